@@ -0,0 +1,215 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.enterprise.adaptor.Config;
+import com.google.enterprise.adaptor.IOHelper;
+import com.google.enterprise.adaptor.sharepoint.SamlAuthenticationHandler.SamlHandshakeManager;
+import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.HttpClient;
+import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.SoapFactory;
+
+import com.microsoft.schemas.sharepoint.soap.ObjectType;
+import com.microsoft.schemas.sharepoint.soap.SiteDataSoap;
+import com.microsoft.schemas.sharepoint.soap.authentication.AuthenticationMode;
+import com.microsoft.schemas.sharepoint.soap.authentication.AuthenticationSoap;
+import com.microsoft.schemas.sharepoint.soap.directory.UserGroupSoap;
+import com.microsoft.schemas.sharepoint.soap.people.PeopleSoap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Holder;
+
+/** Helpers shared between benchmarks. */
+class Benchmarks {
+  /** SharePoint's namespace. */
+  public static final String XMLNS
+      = "http://schemas.microsoft.com/sharepoint/soap/";
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private Benchmarks() {}
+
+  /**
+   * Loads a response from the test {@code spresponses} directory, which must
+   * be on the classpath.
+   */
+  public static String loadResponse(String name) throws IOException {
+    InputStream is = Benchmarks.class.getResourceAsStream("spresponses/"
+        + name);
+    if (is == null) {
+      throw new IOException("Could not find response " + name
+          + ". Is the test directory on the classpath?");
+    }
+    try {
+      return IOHelper.readInputStreamToString(is, CHARSET);
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Adds SharePoint's namespace to the root element, like {@link
+   * SiteDataClient} does before parsing.
+   */
+  public static String addNamespace(String xml, String rootElement) {
+    return xml.replaceFirst("<" + rootElement + "([ >])",
+        "<" + rootElement + " xmlns='" + XMLNS + "'$1");
+  }
+
+  /** SiteDataSoap for benchmarks that never make SOAP calls. */
+  public static SiteDataSoap unsupportedSiteData() {
+    return unsupported(SiteDataSoap.class);
+  }
+
+  /**
+   * Creates an adaptor initialized against the virtual server and content
+   * database in {@code spresponses}, without any network access. The caller
+   * must call {@link SharePointAdaptor#destroy} when done.
+   */
+  public static SharePointAdaptor newInitializedAdaptor() throws Exception {
+    final String virtualServer = loadResponse("vs.xml");
+    final String contentDatabase = loadResponse("cd.xml");
+    final SiteDataSoap siteData = (SiteDataSoap) Proxy.newProxyInstance(
+        SiteDataSoap.class.getClassLoader(),
+        new Class<?>[] {SiteDataSoap.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("getSiteAndWeb".equals(method.getName())) {
+              setHolder(args[1], 0L);
+              setHolder(args[2], args[0]);
+              setHolder(args[3], args[0]);
+              return null;
+            } else if ("getContent".equals(method.getName())
+                && args[0] == ObjectType.VIRTUAL_SERVER) {
+              setHolder(args[7], virtualServer);
+              return null;
+            } else if ("getContent".equals(method.getName())
+                && args[0] == ObjectType.CONTENT_DATABASE) {
+              setHolder(args[7], contentDatabase);
+              return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+    SoapFactory soapFactory = new SoapFactory() {
+      @Override
+      public SiteDataSoap newSiteData(String endpoint) {
+        return siteData;
+      }
+
+      @Override
+      public UserGroupSoap newUserGroup(String endpoint) {
+        return unsupported(UserGroupSoap.class);
+      }
+
+      @Override
+      public PeopleSoap newPeople(String endpoint) {
+        return unsupported(PeopleSoap.class);
+      }
+    };
+    Callable<ExecutorService> executorFactory
+        = new Callable<ExecutorService>() {
+          @Override
+          public ExecutorService call() {
+            return Executors.newCachedThreadPool();
+          }
+        };
+    SharePointAdaptor adaptor = new SharePointAdaptor(soapFactory,
+        unsupported(HttpClient.class), executorFactory,
+        new FormsAuthenticationClientFactory(),
+        unsupported(ActiveDirectoryClientFactory.class));
+    Config config = new Config();
+    adaptor.initConfig(config);
+    config.overrideKey("sharepoint.server", "http://localhost:1");
+    config.overrideKey("sharepoint.username", "fakeuser");
+    config.overrideKey("sharepoint.password", "fakepass");
+    adaptor.init(new MockAdaptorContext(config,
+        new AccumulatingDocIdPusher()));
+    return adaptor;
+  }
+
+  /** Creates an instance whose every method throws. */
+  public static <T> T unsupported(Class<T> klass) {
+    return klass.cast(Proxy.newProxyInstance(klass.getClassLoader(),
+        new Class<?>[] {klass}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            throw new UnsupportedOperationException(method.getName());
+          }
+        }));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void setHolder(Object holder, Object value) {
+    ((Holder<Object>) holder).value = value;
+  }
+
+  /**
+   * Provides forms authentication that reports Windows authentication is in
+   * use, so that no login is attempted.
+   */
+  private static class FormsAuthenticationClientFactory
+      implements AuthenticationClientFactory {
+    @Override
+    public AuthenticationSoap newSharePointFormsAuthentication(
+        String virtualServer, String username, String password) {
+      final Map<String, Object> requestContext = new HashMap<String, Object>();
+      return (AuthenticationSoap) Proxy.newProxyInstance(
+          AuthenticationSoap.class.getClassLoader(),
+          new Class<?>[] {AuthenticationSoap.class, BindingProvider.class},
+          new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+              if ("mode".equals(method.getName())) {
+                return AuthenticationMode.WINDOWS;
+              } else if ("getRequestContext".equals(method.getName())) {
+                return requestContext;
+              }
+              throw new UnsupportedOperationException(method.getName());
+            }
+          });
+    }
+
+    @Override
+    public SamlHandshakeManager newAdfsAuthentication(String virtualServer,
+        String username, String password, String stsendpoint,
+        String stsrealm, String login, String trustlocation) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SamlHandshakeManager newLiveAuthentication(String virtualServer,
+        String username, String password) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SamlHandshakeManager newCustomSamlAuthentication(
+        String factoryMethodName, Map<String, String> config) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
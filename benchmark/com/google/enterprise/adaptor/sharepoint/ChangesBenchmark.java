@@ -0,0 +1,95 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.enterprise.adaptor.DocId;
+
+import com.microsoft.schemas.sharepoint.soap.SPContentDatabase;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracts the modified documents from a synthetic page of content database
+ * changes, built by repeating the list item change of the
+ * {@code testModifiedGetDocIdsClient.changes-cd.xml} response.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ChangesBenchmark {
+  private static final String ITEM_START = "<SPListItem ";
+  private static final String ITEM_END = "</SPListItem>";
+
+  @Param({"10", "1000"})
+  public int changedItems;
+
+  private SharePointAdaptor adaptor;
+  private SiteDataClient client;
+  private String xml;
+  private SPContentDatabase changes;
+
+  @Setup
+  public void setup() throws Exception {
+    adaptor = Benchmarks.newInitializedAdaptor();
+    client = new SiteDataClient(Benchmarks.unsupportedSiteData(), false);
+    String template = Benchmarks.loadResponse(
+        "testModifiedGetDocIdsClient.changes-cd.xml");
+    int itemStart = template.indexOf(ITEM_START);
+    int itemEnd = template.indexOf(ITEM_END) + ITEM_END.length();
+    String item = template.substring(itemStart, itemEnd);
+    StringBuilder sb = new StringBuilder(template.substring(0, itemStart));
+    for (int i = 0; i < changedItems; i++) {
+      sb.append(item.replace("2_.000", i + "_.000"));
+    }
+    sb.append(template.substring(itemEnd));
+    xml = Benchmarks.addNamespace(sb.toString(), "SPContentDatabase");
+    changes = client.jaxbParse(xml, SPContentDatabase.class);
+  }
+
+  @TearDown
+  public void tearDown() {
+    adaptor.destroy();
+  }
+
+  @Benchmark
+  public Set<DocId> getModifiedDocIds() throws IOException {
+    Set<DocId> docIds = new HashSet<DocId>();
+    adaptor.getModifiedDocIdsContentDatabase(changes, docIds,
+        new HashSet<String>());
+    return docIds;
+  }
+
+  @Benchmark
+  public Set<DocId> parseAndGetModifiedDocIds() throws IOException {
+    Set<DocId> docIds = new HashSet<DocId>();
+    adaptor.getModifiedDocIdsContentDatabase(
+        client.jaxbParse(xml, SPContentDatabase.class), docIds,
+        new HashSet<String>());
+    return docIds;
+  }
+}
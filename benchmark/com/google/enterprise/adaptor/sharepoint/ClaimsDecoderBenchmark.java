@@ -0,0 +1,119 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Decodes a mix of login names like those found in the ACLs and group
+ * definitions of a claims enabled site collection. Compares {@link
+ * ClaimsDecoder} against the chain of prefix checks and regular expression it
+ * replaced. Each invocation decodes the whole mix, so results are per {@link
+ * #LOGIN_NAMES} names.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ClaimsDecoderBenchmark {
+  private static final int LOGIN_NAMES = 1000;
+  private static final int USERS = 100000;
+
+  private final List<String> loginNames = new ArrayList<String>();
+
+  @Setup
+  public void setup() {
+    Random random = new Random(0);
+    for (int i = 0; i < LOGIN_NAMES; i++) {
+      int user = random.nextInt(USERS);
+      int kind = random.nextInt(100);
+      if (kind < 60) {
+        loginNames.add("i:0#.w|GDC-PSL\\spuser" + user);
+      } else if (kind < 75) {
+        loginNames.add(
+            "c:0+.w|s-1-5-21-3993744865-3521423997-1479072767-" + user);
+      } else if (kind < 85) {
+        loginNames.add("i:05.t|adfsv2|spuser" + user + "@example.com");
+      } else if (kind < 90) {
+        loginNames.add("i:0#.f|membership|user" + user);
+      } else if (kind < 93) {
+        loginNames.add("c:0-.f|roleprovider|role" + user % 50);
+      } else if (kind < 96) {
+        loginNames.add("c:0(.s|true");
+      } else if (kind < 98) {
+        loginNames.add("c:0!.s|windows");
+      } else {
+        loginNames.add("GDC-PSL\\spuser" + user);
+      }
+    }
+    Collections.shuffle(loginNames, random);
+  }
+
+  @Benchmark
+  public int previous() {
+    int length = 0;
+    for (String loginName : loginNames) {
+      length += previousDecodeClaim(loginName, "Display Name").length();
+    }
+    return length;
+  }
+
+  @Benchmark
+  public int claimsDecoder() {
+    int length = 0;
+    for (String loginName : loginNames) {
+      length += ClaimsDecoder.decode(loginName, "Display Name").length();
+    }
+    return length;
+  }
+
+  /** The implementation {@link ClaimsDecoder} replaced. */
+  private static String previousDecodeClaim(String loginName, String name) {
+    if (!loginName.startsWith("i:0") && !loginName.startsWith("c:0")) {
+      return loginName;
+    }
+    if (loginName.startsWith("i:0#.w|")) {
+      return loginName.substring(7);
+    } else if (loginName.startsWith("c:0+.w|")) {
+      return name;
+    } else if (loginName.equals("c:0(.s|true")) {
+      return "Everyone";
+    } else if (loginName.equals("c:0!.s|windows")) {
+      return "NT AUTHORITY\\authenticated users";
+    } else if (loginName.startsWith("c:0-.f|")) {
+      return loginName.substring(7).replace("|", ":");
+    } else if (loginName.startsWith("i:0#.f|")) {
+      return loginName.substring(7).replace("|", ":");
+    } else if (loginName.matches("^([i|c]\\:0.\\.t\\|).*$")) {
+      String[] parts = loginName.split(Pattern.quote("|"), 3);
+      if (parts.length == 3) {
+        return parts[2];
+      }
+    }
+    return null;
+  }
+}
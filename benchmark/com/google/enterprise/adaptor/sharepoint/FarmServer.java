@@ -0,0 +1,609 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.enterprise.adaptor.sharepoint.SyntheticFarm.Changes;
+import com.google.enterprise.adaptor.sharepoint.SyntheticFarm.Location;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Stand-in for a SharePoint web application, serving a {@link SyntheticFarm}
+ * so that the adaptors can be load and soak tested without a SharePoint
+ * installation. It implements the operations of SiteData, UserGroup, People,
+ * Authentication, UserProfileService and UserProfileChangeService that the
+ * adaptors use, and serves the contents of files.
+ *
+ * <p>Every request can be delayed and fail at a configurable rate, to
+ * simulate a loaded farm. See {@link #main} for running it standalone.
+ */
+class FarmServer {
+  private static final Logger log
+      = Logger.getLogger(FarmServer.class.getName());
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final String SOAP_XMLNS
+      = "http://schemas.xmlsoap.org/soap/envelope/";
+  private static final String SHAREPOINT_XMLNS
+      = "http://schemas.microsoft.com/sharepoint/soap/";
+  private static final String DIRECTORY_XMLNS
+      = "http://schemas.microsoft.com/sharepoint/soap/directory/";
+  private static final String USER_PROFILE_XMLNS = "http://microsoft.com/"
+      + "webservices/SharePointPortalServer/UserProfileService";
+  private static final String USER_PROFILE_CHANGE_XMLNS
+      = "http://microsoft.com/"
+      + "webservices/SharePointPortalServer/UserProfileChangeService";
+  private static final String VTI_BIN = "/_vti_bin/";
+  private static final String LAST_MODIFIED = "Wed, 01 Jan 2014 00:00:00 GMT";
+
+  private final SyntheticFarm farm;
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final Random random = new Random();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong injectedErrors = new AtomicLong();
+  private volatile long latencyMillis;
+  private volatile long latencyJitterMillis;
+  private volatile double errorRate;
+  /** Number of list items returned by each GetContent(Folder) call. */
+  private volatile int folderPageSize = 1000;
+  private final ThreadLocal<DocumentBuilder> documentBuilder
+      = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+          DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+          dbf.setNamespaceAware(true);
+          try {
+            dbf.setFeature(
+                "http://apache.org/xml/features/disallow-doctype-decl", true);
+            return dbf.newDocumentBuilder();
+          } catch (ParserConfigurationException ex) {
+            throw new RuntimeException(ex);
+          }
+        }
+      };
+
+  /**
+   * Creates a server for {@code farm} listening on {@code address}, which
+   * handles up to {@code threads} requests concurrently.
+   */
+  public FarmServer(SyntheticFarm farm, InetSocketAddress address,
+      int threads) throws IOException {
+    if (farm == null || address == null) {
+      throw new NullPointerException();
+    }
+    this.farm = farm;
+    this.server = HttpServer.create(address, 0);
+    this.executor = Executors.newFixedThreadPool(threads);
+    server.setExecutor(executor);
+    server.createContext("/", new FarmHandler());
+  }
+
+  /**
+   * Delays every request by {@code latencyMillis}, plus a uniformly random
+   * amount up to {@code jitterMillis}.
+   */
+  public void setLatency(long latencyMillis, long jitterMillis) {
+    if (latencyMillis < 0 || jitterMillis < 0) {
+      throw new IllegalArgumentException("Latency must be non-negative");
+    }
+    this.latencyMillis = latencyMillis;
+    this.latencyJitterMillis = jitterMillis;
+  }
+
+  /**
+   * Fails the given fraction of requests, with a SOAP fault for web service
+   * calls and a 503 for file downloads.
+   */
+  public void setErrorRate(double errorRate) {
+    if (errorRate < 0 || errorRate > 1) {
+      throw new IllegalArgumentException("errorRate must be in [0, 1]");
+    }
+    this.errorRate = errorRate;
+  }
+
+  /** Sets the number of items in each page of a list or folder. */
+  public void setFolderPageSize(int folderPageSize) {
+    if (folderPageSize < 1) {
+      throw new IllegalArgumentException("folderPageSize must be positive");
+    }
+    this.folderPageSize = folderPageSize;
+  }
+
+  public void start() {
+    server.start();
+    log.log(Level.INFO, "Serving {0} items at {1}",
+        new Object[] {farm.getItemCount(), getBaseUrl()});
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+    log.log(Level.INFO, "Served {0} requests with {1} injected errors",
+        new Object[] {requests.get(), injectedErrors.get()});
+  }
+
+  /** Returns the URL of the root site collection. */
+  public String getBaseUrl() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  private class FarmHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange ex) throws IOException {
+      try {
+        requests.incrementAndGet();
+        delay();
+        boolean fail = random.nextDouble() < errorRate;
+        if (fail) {
+          injectedErrors.incrementAndGet();
+        }
+        String path = ex.getRequestURI().getPath();
+        int vtiBin = path.indexOf(VTI_BIN);
+        if ("POST".equals(ex.getRequestMethod()) && vtiBin != -1) {
+          String webPath = path.substring(0, vtiBin);
+          String service = path.substring(vtiBin + VTI_BIN.length());
+          if (fail) {
+            respondFault(ex, "Injected error");
+          } else {
+            handleSoap(ex, webPath, service);
+          }
+        } else if ("GET".equals(ex.getRequestMethod())
+            || "HEAD".equals(ex.getRequestMethod())) {
+          if (fail) {
+            respond(ex, 503, "text/plain", "Injected error".getBytes(CHARSET));
+          } else {
+            handleDownload(ex, path);
+          }
+        } else {
+          respond(ex, 405, "text/plain", new byte[0]);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (Exception e) {
+        log.log(Level.WARNING, "Failed handling " + ex.getRequestURI(), e);
+        respondFault(ex, String.valueOf(e.getMessage()));
+      } finally {
+        ex.close();
+      }
+    }
+  }
+
+  private void delay() throws InterruptedException {
+    long jitter = latencyJitterMillis;
+    long millis = latencyMillis
+        + (jitter == 0 ? 0 : (long) (random.nextDouble() * jitter));
+    if (millis > 0) {
+      Thread.sleep(millis);
+    }
+  }
+
+  private void handleDownload(HttpExchange ex, String path)
+      throws IOException {
+    Location l = farm.parsePath(path);
+    if (l == null || !l.isItem()) {
+      respond(ex, 404, "text/plain", "Not found".getBytes(CHARSET));
+      return;
+    }
+    ex.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+    if ("HEAD".equals(ex.getRequestMethod())) {
+      ex.getResponseHeaders().set("Content-Type", "text/plain");
+      ex.sendResponseHeaders(200, -1);
+      return;
+    }
+    respond(ex, 200, "text/plain", farm.getFileContent(l));
+  }
+
+  private void handleSoap(HttpExchange ex, String webPath, String service)
+      throws IOException, SAXException {
+    Element operation = parseOperation(ex.getRequestBody());
+    String name = operation.getLocalName();
+    Map<String, String> params = new HashMap<String, String>();
+    for (Node n = operation.getFirstChild(); n != null;
+        n = n.getNextSibling()) {
+      if (n instanceof Element) {
+        params.put(n.getLocalName(), n.getTextContent());
+      }
+    }
+    // Generate URLs using the same host name the client used.
+    String host = ex.getRequestHeaders().getFirst("Host");
+    String baseUrl = host == null ? getBaseUrl() : "http://" + host;
+    service = service.toLowerCase(Locale.ENGLISH);
+    String body;
+    if ("sitedata.asmx".equals(service)) {
+      body = handleSiteData(name, params, webPath, baseUrl);
+    } else if ("usergroup.asmx".equals(service)
+        && "GetUserCollectionFromSite".equals(name)) {
+      body = element(DIRECTORY_XMLNS, "GetUserCollectionFromSiteResponse",
+          "<GetUserCollectionFromSiteResult><GetUserCollectionFromSite>"
+          + "<Users>" + farm.getSiteUsers() + "</Users>"
+          + "</GetUserCollectionFromSite></GetUserCollectionFromSiteResult>");
+    } else if ("people.asmx".equals(service)
+        && "ResolvePrincipals".equals(name)) {
+      body = resolvePrincipals(operation);
+    } else if ("authentication.asmx".equals(service)
+        && "Mode".equals(name)) {
+      body = element(SHAREPOINT_XMLNS, "ModeResponse",
+          "<ModeResult>Windows</ModeResult>");
+    } else if ("userprofileservice.asmx".equals(service)) {
+      body = handleUserProfile(name, params);
+    } else if ("userprofilechangeservice.asmx".equals(service)
+        && "GetCurrentChangeToken".equals(name)) {
+      body = element(USER_PROFILE_CHANGE_XMLNS, "GetCurrentChangeTokenResponse",
+          "<GetCurrentChangeTokenResult>0</GetCurrentChangeTokenResult>");
+    } else if ("userprofilechangeservice.asmx".equals(service)
+        && "GetChanges".equals(name)) {
+      body = element(USER_PROFILE_CHANGE_XMLNS, "GetChangesResponse",
+          "<GetChangesResult><ChangeToken>0</ChangeToken>"
+          + "<HasExceededCountLimit>false</HasExceededCountLimit>"
+          + "</GetChangesResult>");
+    } else {
+      body = null;
+    }
+    if (body == null) {
+      respondFault(ex, "Unsupported operation " + name + " of " + service);
+      return;
+    }
+    respond(ex, 200, "text/xml; charset=utf-8",
+        envelope(body).getBytes(CHARSET));
+  }
+
+  private Element parseOperation(InputStream is)
+      throws IOException, SAXException {
+    Document doc;
+    try {
+      doc = documentBuilder.get().parse(is);
+    } finally {
+      is.close();
+    }
+    NodeList bodies = doc.getElementsByTagNameNS(SOAP_XMLNS, "Body");
+    if (bodies.getLength() != 1) {
+      throw new SAXException("Missing SOAP body");
+    }
+    for (Node n = bodies.item(0).getFirstChild(); n != null;
+        n = n.getNextSibling()) {
+      if (n instanceof Element) {
+        return (Element) n;
+      }
+    }
+    throw new SAXException("Missing SOAP operation");
+  }
+
+  private String handleSiteData(String name, Map<String, String> params,
+      String webPath, String baseUrl) {
+    if ("GetSiteAndWeb".equals(name)) {
+      String path = URI.create(params.get("strUrl")).getPath();
+      Location l = null;
+      while (l == null) {
+        l = farm.parsePath(path);
+        if (l == null && path.indexOf('/') == -1) {
+          return element(SHAREPOINT_XMLNS, "GetSiteAndWebResponse",
+              "<GetSiteAndWebResult>1</GetSiteAndWebResult>"
+              + "<strSite /><strWeb />");
+        }
+        path = path.substring(0, Math.max(0, path.lastIndexOf('/')));
+      }
+      return element(SHAREPOINT_XMLNS, "GetSiteAndWebResponse",
+          "<GetSiteAndWebResult>0</GetSiteAndWebResult>"
+          + "<strSite>" + escape(baseUrl
+              + farm.getSitePath(l.database, l.site)) + "</strSite>"
+          + "<strWeb>" + escape(baseUrl + farm.getWebPath(l)) + "</strWeb>");
+    } else if ("GetURLSegments".equals(name)) {
+      Location l = farm.parsePath(URI.create(params.get("strURL")).getPath());
+      StringBuilder sb = new StringBuilder("<GetURLSegmentsResult>")
+          .append(l != null).append("</GetURLSegmentsResult>");
+      if (l != null && l.list != -1) {
+        sb.append("<strListID>").append(farm.getListId(l))
+            .append("</strListID>");
+      }
+      if (l != null && l.isItem()) {
+        sb.append("<strItemID>").append(l.item + 1).append("</strItemID>");
+      }
+      return element(SHAREPOINT_XMLNS, "GetURLSegmentsResponse",
+          sb.toString());
+    } else if ("GetContent".equals(name)) {
+      return getContent(params, webPath, baseUrl);
+    } else if ("GetChanges".equals(name)) {
+      Location l = farm.parseGuid(params.get("contentDatabaseId"));
+      if (l == null || l.web != -1) {
+        throw new IllegalArgumentException("Unknown change log: "
+            + params.get("contentDatabaseId"));
+      }
+      int timeout = params.get("Timeout") == null ? 0
+          : Integer.parseInt(params.get("Timeout"));
+      // SharePoint 2010 and later interpret the timeout as 60 times the
+      // number of changes to return.
+      int maxChanges = timeout >= 60 ? timeout / 60 : 100;
+      Changes changes = farm.getChanges(l, params.get("LastChangeId"),
+          maxChanges, baseUrl);
+      return element(SHAREPOINT_XMLNS, "GetChangesResponse",
+          "<GetChangesResult>" + escape(changes.xml) + "</GetChangesResult>"
+          + "<LastChangeId>" + changes.lastChangeId + "</LastChangeId>"
+          + "<CurrentChangeId>" + changes.currentChangeId
+          + "</CurrentChangeId><moreChanges>" + changes.moreChanges
+          + "</moreChanges>");
+    }
+    return null;
+  }
+
+  private String getContent(Map<String, String> params, String webPath,
+      String baseUrl) {
+    Location web = farm.parsePath(webPath);
+    if (web == null || web.list != -1) {
+      throw new IllegalArgumentException("Unknown web: " + webPath);
+    }
+    String objectType = params.get("objectType");
+    String lastItemIdOnPage = null;
+    String result;
+    if ("VirtualServer".equals(objectType)) {
+      result = farm.getVirtualServer(baseUrl);
+    } else if ("ContentDatabase".equals(objectType)) {
+      Location l = farm.parseGuid(params.get("objectId"));
+      if (l == null || l.site != -1) {
+        throw new IllegalArgumentException("Unknown content database: "
+            + params.get("objectId"));
+      }
+      result = farm.getContentDatabase(l.database, baseUrl);
+    } else if ("SiteCollection".equals(objectType)) {
+      result = farm.getSiteCollection(web, baseUrl);
+    } else if ("Site".equals(objectType)) {
+      result = farm.getWeb(web, baseUrl);
+    } else if ("List".equals(objectType)) {
+      result = farm.getList(getList(params.get("objectId")));
+    } else if ("Folder".equals(objectType)) {
+      Location l = getList(params.get("objectId"));
+      String folderUrl = params.get("folderUrl") == null ? ""
+          : params.get("folderUrl");
+      String last = params.get("lastItemIdOnPage");
+      int start = last == null || "".equals(last) ? 0 : Integer.parseInt(last);
+      int pageSize = folderPageSize;
+      result = farm.getFolder(l, folderUrl, start, pageSize);
+      // Page through the items of this particular folder.
+      long end = (long) start + pageSize;
+      if (end < farm.getFolderItemCount(l, folderUrl)) {
+        lastItemIdOnPage = String.valueOf(end);
+      }
+    } else if ("ListItem".equals(objectType)) {
+      Location l = getList(params.get("objectId"));
+      int item = Integer.parseInt(params.get("itemId")) - 1;
+      result = farm.getItem(
+          new Location(l.database, l.site, l.web, l.list, item));
+    } else {
+      return null;
+    }
+    return element(SHAREPOINT_XMLNS, "GetContentResponse",
+        "<GetContentResult>" + escape(result) + "</GetContentResult>"
+        + (lastItemIdOnPage == null ? "" : "<lastItemIdOnPage>"
+            + lastItemIdOnPage + "</lastItemIdOnPage>"));
+  }
+
+  private Location getList(String guid) {
+    Location l = guid == null ? null : farm.parseGuid(guid);
+    if (l == null || !l.isList()) {
+      throw new IllegalArgumentException("Unknown list: " + guid);
+    }
+    return l;
+  }
+
+  private String resolvePrincipals(Element operation) {
+    List<String> keys = new ArrayList<String>();
+    NodeList strings = operation.getElementsByTagNameNS("*", "string");
+    for (int i = 0; i < strings.getLength(); i++) {
+      keys.add(strings.item(i).getTextContent());
+    }
+    StringBuilder sb = new StringBuilder("<ResolvePrincipalsResult>");
+    for (String key : keys) {
+      boolean group = key.toLowerCase(Locale.ENGLISH).contains("group")
+          || key.toLowerCase(Locale.ENGLISH).endsWith("\\domain users");
+      sb.append("<PrincipalInfo><AccountName>").append(escape(key))
+          .append("</AccountName><UserInfoID>-1</UserInfoID><DisplayName>")
+          .append(escape(key)).append("</DisplayName>")
+          .append("<IsResolved>true</IsResolved><PrincipalType>")
+          .append(group ? "SecurityGroup" : "User")
+          .append("</PrincipalType></PrincipalInfo>");
+    }
+    sb.append("</ResolvePrincipalsResult>");
+    return element(SHAREPOINT_XMLNS, "ResolvePrincipalsResponse",
+        sb.toString());
+  }
+
+  private String handleUserProfile(String name, Map<String, String> params) {
+    if ("GetUserProfileByIndex".equals(name)) {
+      // Each call returns the profile after index, along with the index to
+      // use for the following call.
+      int next = Integer.parseInt(params.get("index")) + 1;
+      if (next < 0 || next >= farm.getUserProfiles()) {
+        return element(USER_PROFILE_XMLNS, "GetUserProfileByIndexResponse",
+            "");
+      }
+      int nextValue = next + 1 < farm.getUserProfiles() ? next : -1;
+      return element(USER_PROFILE_XMLNS, "GetUserProfileByIndexResponse",
+          "<GetUserProfileByIndexResult><NextValue>" + nextValue
+          + "</NextValue><UserProfile>"
+          + profileProperties(farm.getUserAccountName(next))
+          + "</UserProfile></GetUserProfileByIndexResult>");
+    } else if ("GetUserProfileByName".equals(name)) {
+      return element(USER_PROFILE_XMLNS, "GetUserProfileByNameResponse",
+          "<GetUserProfileByNameResult>"
+          + profileProperties(params.get("AccountName"))
+          + "</GetUserProfileByNameResult>");
+    } else if ("GetUserColleagues".equals(name)) {
+      return element(USER_PROFILE_XMLNS, "GetUserColleaguesResponse",
+          "<GetUserColleaguesResult />");
+    }
+    return null;
+  }
+
+  private static String profileProperties(String accountName) {
+    return profileProperty("AccountName", accountName)
+        + profileProperty("PreferredName", accountName);
+  }
+
+  private static String profileProperty(String name, String value) {
+    return "<PropertyData><IsPrivacyChanged>false</IsPrivacyChanged>"
+        + "<IsValueChanged>false</IsValueChanged><Name>" + name + "</Name>"
+        + "<Privacy>Public</Privacy><Values><ValueData>"
+        + "<Value xsi:type=\"xsd:string\">" + escape(value) + "</Value>"
+        + "</ValueData></Values></PropertyData>";
+  }
+
+  private static String element(String namespace, String name,
+      String content) {
+    return "<" + name + " xmlns=\"" + namespace + "\">" + content + "</"
+        + name + ">";
+  }
+
+  private static String envelope(String body) {
+    return "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+        + "<soap:Envelope xmlns:soap=\"" + SOAP_XMLNS + "\" "
+        + "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" "
+        + "xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\">"
+        + "<soap:Body>" + body + "</soap:Body></soap:Envelope>";
+  }
+
+  private static void respondFault(HttpExchange ex, String message)
+      throws IOException {
+    String fault = envelope("<soap:Fault><faultcode>soap:Server</faultcode>"
+        + "<faultstring>" + escape(message) + "</faultstring></soap:Fault>");
+    respond(ex, 500, "text/xml; charset=utf-8", fault.getBytes(CHARSET));
+  }
+
+  private static void respond(HttpExchange ex, int code, String contentType,
+      byte[] content) throws IOException {
+    ex.getResponseHeaders().set("Content-Type", contentType);
+    ex.sendResponseHeaders(code, content.length == 0 ? -1 : content.length);
+    if (content.length != 0) {
+      ex.getResponseBody().write(content);
+    }
+  }
+
+  private static String escape(String s) {
+    StringBuilder sb = new StringBuilder(s.length() + s.length() / 8);
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '<':
+          sb.append("&lt;");
+          break;
+        case '>':
+          sb.append("&gt;");
+          break;
+        case '&':
+          sb.append("&amp;");
+          break;
+        case '"':
+          sb.append("&quot;");
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Runs a server until killed. Arguments are {@code key=value} pairs, with
+   * keys {@code port}, {@code threads}, {@code databases}, {@code sites}
+   * (per database), {@code webs} (per site collection), {@code lists} (per
+   * web), {@code items} (per list), {@code fileSize}, {@code
+   * changesPerSecond}, {@code profiles}, {@code folderPageSize}, {@code
+   * latencyMillis}, {@code jitterMillis} and {@code errorRate}.
+   */
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("port", "8080");
+    options.put("threads", "32");
+    options.put("databases", "1");
+    options.put("sites", "10");
+    options.put("webs", "3");
+    options.put("lists", "3");
+    options.put("items", "100");
+    options.put("fileSize", "1024");
+    options.put("changesPerSecond", "0");
+    options.put("profiles", "100");
+    options.put("folderPageSize", "1000");
+    options.put("latencyMillis", "0");
+    options.put("jitterMillis", "0");
+    options.put("errorRate", "0");
+    for (String arg : args) {
+      String[] parts = arg.split("=", 2);
+      if (parts.length != 2 || !options.containsKey(parts[0])) {
+        System.err.println("Unknown argument " + arg + ". Valid keys are "
+            + options.keySet());
+        System.exit(2);
+      }
+      options.put(parts[0], parts[1]);
+    }
+    SyntheticFarm farm = new SyntheticFarm(
+        Integer.parseInt(options.get("databases")),
+        Integer.parseInt(options.get("sites")),
+        Integer.parseInt(options.get("webs")),
+        Integer.parseInt(options.get("lists")),
+        Integer.parseInt(options.get("items")));
+    farm.setFileSize(Integer.parseInt(options.get("fileSize")));
+    farm.setChangesPerSecond(
+        Double.parseDouble(options.get("changesPerSecond")));
+    farm.setUserProfiles(Integer.parseInt(options.get("profiles")));
+    final FarmServer server = new FarmServer(farm,
+        new InetSocketAddress(Integer.parseInt(options.get("port"))),
+        Integer.parseInt(options.get("threads")));
+    server.setLatency(Long.parseLong(options.get("latencyMillis")),
+        Long.parseLong(options.get("jitterMillis")));
+    server.setErrorRate(Double.parseDouble(options.get("errorRate")));
+    server.setFolderPageSize(
+        Integer.parseInt(options.get("folderPageSize")));
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        server.stop();
+      }
+    });
+    server.start();
+    System.out.println("Serving " + farm.getItemCount() + " items at "
+        + server.getBaseUrl());
+  }
+}
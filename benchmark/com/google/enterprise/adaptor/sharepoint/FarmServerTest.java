@@ -0,0 +1,217 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.common.base.Joiner;
+import com.google.enterprise.adaptor.Config;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.DocIdPusher.Record;
+import com.google.enterprise.adaptor.sharepoint.ActiveDirectoryClientFactory.ActiveDirectoryClientFactoryImpl;
+import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.SoapFactory;
+import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.SoapFactoryImpl;
+
+import com.microsoft.schemas.sharepoint.soap.ObjectType;
+import com.microsoft.schemas.sharepoint.soap.SiteDataSoap;
+import com.microsoft.schemas.sharepoint.soap.directory.UserGroupSoap;
+import com.microsoft.schemas.sharepoint.soap.people.PeopleSoap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.ws.Holder;
+
+/**
+ * Crawls a small {@link SyntheticFarm} through {@link FarmServer} to make sure
+ * the benchmark farm stays consistent with what the adaptor requests.
+ */
+public class FarmServerTest {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final Pattern HREF = Pattern.compile("<a href=\"([^\"]*)\"");
+
+  private final SyntheticFarm farm = new SyntheticFarm(1, 2, 2, 1, 3);
+  private final AtomicInteger folderRequests = new AtomicInteger();
+  private FarmServer server;
+  private SharePointAdaptor adaptor;
+  private Config config;
+  private AccumulatingDocIdPusher pusher;
+
+  /**
+   * JAXBContext is expensive to create and is created as part of the class'
+   * initialization, so do it before starting the farm.
+   */
+  @BeforeClass
+  public static void initJaxbContext() {
+    SharePointAdaptor.init();
+  }
+
+  @Before
+  public void setup() throws Exception {
+    server = new FarmServer(farm, new InetSocketAddress("localhost", 0), 4);
+    // Smaller than a list, so that each list needs more than one page.
+    server.setFolderPageSize(2);
+    server.start();
+    config = new Config();
+    new SharePointAdaptor().initConfig(config);
+    config.overrideKey("sharepoint.server", server.getBaseUrl());
+    config.overrideKey("sharepoint.username", "fakeuser");
+    config.overrideKey("sharepoint.password", "fakepass");
+    pusher = new AccumulatingDocIdPusher();
+  }
+
+  @After
+  public void teardown() {
+    if (adaptor != null) {
+      adaptor.destroy();
+    }
+    server.stop();
+  }
+
+  @Test
+  public void testCrawl() throws Exception {
+    final SoapFactory soapFactory = new SoapFactoryImpl();
+    adaptor = new SharePointAdaptor(new SoapFactory() {
+      @Override
+      public SiteDataSoap newSiteData(String endpoint) {
+        final SiteDataSoap siteData = soapFactory.newSiteData(endpoint);
+        return new DelegatingSiteData() {
+          @Override
+          protected SiteDataSoap delegate() {
+            return siteData;
+          }
+
+          @Override
+          public void getContent(ObjectType objectType, String objectId,
+              String folderUrl, String itemId, boolean retrieveChildItems,
+              boolean securityOnly, Holder<String> lastItemIdOnPage,
+              Holder<String> getContentResult) {
+            if (objectType == ObjectType.FOLDER) {
+              folderRequests.incrementAndGet();
+            }
+            super.getContent(objectType, objectId, folderUrl, itemId,
+                retrieveChildItems, securityOnly, lastItemIdOnPage,
+                getContentResult);
+          }
+        };
+      }
+
+      @Override
+      public UserGroupSoap newUserGroup(String endpoint) {
+        return soapFactory.newUserGroup(endpoint);
+      }
+
+      @Override
+      public PeopleSoap newPeople(String endpoint) {
+        return soapFactory.newPeople(endpoint);
+      }
+    }, new PooledHttpClient(),
+        new Callable<ExecutorService>() {
+          @Override
+          public ExecutorService call() {
+            return new CallerRunsExecutor();
+          }
+        }, new AuthenticationClientFactoryImpl(),
+        new ActiveDirectoryClientFactoryImpl());
+    MockAdaptorContext context = new MockAdaptorContext(config, pusher);
+    adaptor.init(context);
+
+    adaptor.getDocIds(pusher);
+    Queue<DocId> queue = new ArrayDeque<DocId>();
+    Set<DocId> seen = new HashSet<DocId>();
+    drainRecords(queue, seen);
+    int items = 0;
+    while (!queue.isEmpty()) {
+      DocId docId = queue.remove();
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      GetContentsResponse response = new GetContentsResponse(baos);
+      adaptor.getDocContent(new GetContentsRequest(docId), response);
+      assertFalse("Not found: " + docId, response.isNotFound());
+      if (docId.getUniqueId().endsWith(".txt")) {
+        items++;
+        continue;
+      }
+      URI base = context.getDocIdEncoder().encodeDocId(docId);
+      Matcher m = HREF.matcher(new String(baos.toByteArray(), UTF8));
+      while (m.find()) {
+        DocId link = resolve(base, m.group(1).replace("&amp;", "&"));
+        if (link != null && seen.add(link)) {
+          queue.add(link);
+        }
+      }
+      drainRecords(queue, seen);
+    }
+
+    assertEquals(farm.getItemCount(), items);
+    // Two pages for each of the four lists.
+    assertEquals(8, folderRequests.get());
+  }
+
+  /**
+   * Returns the document that {@code href} links to from {@code base}. {@link
+   * URI#resolve} can't be used because it collapses the {@code //} within the
+   * encoded URLs.
+   */
+  private static DocId resolve(URI base, String href) {
+    URI uri = URI.create(href);
+    if (uri.isAbsolute()) {
+      return new DocId(uri.getPath().substring(1));
+    }
+    if ("".equals(uri.getPath())) {
+      // Link to the document itself.
+      return null;
+    }
+    LinkedList<String> parts
+        = new LinkedList<String>(Arrays.asList(base.getPath().split("/", -1)));
+    parts.removeLast();
+    for (String part : uri.getPath().split("/", -1)) {
+      if ("..".equals(part)) {
+        parts.removeLast();
+      } else if (!".".equals(part)) {
+        parts.add(part);
+      }
+    }
+    return new DocId(Joiner.on("/").join(parts).substring(1));
+  }
+
+  /** Adds the documents pushed so far to the crawl queue. */
+  private void drainRecords(Queue<DocId> queue, Set<DocId> seen) {
+    for (Record record : pusher.getRecords()) {
+      if (seen.add(record.getDocId())) {
+        queue.add(record.getDocId());
+      }
+    }
+    pusher.reset();
+  }
+}
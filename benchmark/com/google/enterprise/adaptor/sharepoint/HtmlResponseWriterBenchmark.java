@@ -0,0 +1,199 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.common.io.CountingOutputStream;
+import com.google.enterprise.adaptor.Config;
+import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.DocIdEncoder;
+
+import com.microsoft.schemas.sharepoint.soap.ObjectType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates the HTML listing of a large list, as done for list and folder
+ * documents. Compares {@link HtmlResponseWriter} against {@link
+ * PreviousHtmlResponseWriter}, the link writing it replaced. Setup fails if
+ * the two don't produce identical bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class HtmlResponseWriterBenchmark {
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  /** Default of sharepoint.maxIndexableSize. */
+  private static final long THRESHOLD_BYTES = 2 * 1024 * 1024;
+  private static final DocId LIST_DOC_ID = new DocId(
+      "http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+      + "AllItems.aspx");
+
+  @Param({"10000", "100000"})
+  public int links;
+
+  private final AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+  private final CallerRunsExecutor executor = new CallerRunsExecutor();
+  private final OutputStream discardingStream = new OutputStream() {
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] b, int off, int len) {}
+  };
+  private MockAdaptorContext context;
+  private List<DocId> docIds;
+  private List<String> labels;
+
+  @Setup
+  public void setup() throws IOException {
+    context = new MockAdaptorContext(new Config(), pusher);
+    docIds = new ArrayList<DocId>(links);
+    labels = new ArrayList<String>(links);
+    for (int i = 0; i < links; i++) {
+      docIds.add(new DocId("http://localhost:1/sites/SiteCollection/Lists/"
+          + "Custom List/Folder " + (i % 100) + "/" + i + "_.000"));
+      // Some titles need escaping.
+      labels.add(i % 10 == 0 ? "R&D <Draft> " + i : "Item " + i);
+    }
+    ByteArrayOutputStream current = new ByteArrayOutputStream();
+    writeLinks(current);
+    ByteArrayOutputStream previous = new ByteArrayOutputStream();
+    previous(previous);
+    if (!Arrays.equals(current.toByteArray(), previous.toByteArray())) {
+      throw new IllegalStateException(
+          "HtmlResponseWriter output differs from the previous output");
+    }
+  }
+
+  @Benchmark
+  public long writeLinks() throws IOException {
+    return writeLinks(discardingStream);
+  }
+
+  @Benchmark
+  public long previous() throws IOException {
+    return previous(discardingStream);
+  }
+
+  private long writeLinks(OutputStream os) throws IOException {
+    pusher.reset();
+    HtmlResponseWriter writer = new HtmlResponseWriter(
+        os, CHARSET, context.getDocIdEncoder(),
+        Locale.ENGLISH, THRESHOLD_BYTES, pusher, executor);
+    writer.start(LIST_DOC_ID, ObjectType.LIST, "Custom List");
+    writer.startSection(ObjectType.LIST_ITEM);
+    for (int i = 0; i < docIds.size(); i++) {
+      writer.addLink(docIds.get(i), labels.get(i));
+    }
+    writer.finish();
+    writer.close();
+    // Links past the threshold are pushed instead of written.
+    return pusher.getRecords().size();
+  }
+
+  private long previous(OutputStream os) throws IOException {
+    PreviousHtmlResponseWriter writer = new PreviousHtmlResponseWriter(
+        os, context.getDocIdEncoder());
+    writer.start(LIST_DOC_ID, "Custom List");
+    for (int i = 0; i < docIds.size(); i++) {
+      writer.addLink(docIds.get(i), labels.get(i));
+    }
+    writer.finish();
+    return writer.overflowDocIds.size();
+  }
+
+  /**
+   * The parts of {@link HtmlResponseWriter} used for a list listing, as they
+   * were before links were written without creating intermediate URIs and
+   * strings.
+   */
+  private static class PreviousHtmlResponseWriter {
+    private static final long POSSIBLY_BUFFERED_BYTES = 1024;
+
+    private final CountingOutputStream countingOutputStream;
+    private final Writer writer;
+    private final DocIdEncoder docIdEncoder;
+    private final List<DocId> overflowDocIds = new ArrayList<DocId>(1024);
+    private URI docUri;
+
+    public PreviousHtmlResponseWriter(OutputStream os,
+        DocIdEncoder docIdEncoder) {
+      this.countingOutputStream = new CountingOutputStream(os);
+      this.writer = new OutputStreamWriter(countingOutputStream, CHARSET);
+      this.docIdEncoder = docIdEncoder;
+    }
+
+    public void start(DocId docId, String label) throws IOException {
+      docUri = docIdEncoder.encodeDocId(docId);
+      writer.write("<!DOCTYPE html>\n<html><head><title>");
+      writer.write(escapeContent(label));
+      writer.write("</title></head><body><h1>");
+      writer.write("<!--googleoff: index-->List<!--googleon: index-->");
+      writer.write(" ");
+      writer.write(escapeContent(label));
+      writer.write("</h1>");
+      writer.write("<p><!--googleoff: index-->List Items"
+          + "<!--googleon: index--></p><ul>");
+    }
+
+    public void addLink(DocId doc, String label) throws IOException {
+      if (countingOutputStream.getCount() + POSSIBLY_BUFFERED_BYTES
+          > THRESHOLD_BYTES) {
+        overflowDocIds.add(doc);
+      }
+      writer.write("<li><a href=\"");
+      URI uri = HtmlResponseWriter.relativize(
+          docUri, docIdEncoder.encodeDocId(doc));
+      writer.write(escapeAttributeValue(uri.toASCIIString()));
+      writer.write("\">");
+      writer.write(escapeContent(label));
+      writer.write("</a></li>");
+    }
+
+    public void finish() throws IOException {
+      writer.write("</ul></body></html>");
+      writer.close();
+    }
+
+    private String escapeContent(String raw) {
+      return raw.replace("&", "&amp;").replace("<", "&lt;");
+    }
+
+    private String escapeAttributeValue(String raw) {
+      return escapeContent(raw).replace("\"", "&quot;")
+          .replace("'", "&apos;");
+    }
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.enterprise.adaptor.GroupPrincipal;
+import com.google.enterprise.adaptor.Principal;
+import com.google.enterprise.adaptor.UserPrincipal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link MemberIdMapping} with the map of boxed ids to interned
+ * principals it replaced. Besides the lookup time measured by JMH, setup
+ * prints the heap retained by each implementation, which is the main reason
+ * for the difference.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class MemberIdMappingBenchmark {
+  private static final String NAMESPACE = "Default";
+
+  @Param({"1000", "200000"})
+  public int users;
+
+  @Param({"hashMap", "memberIdMapping"})
+  public String implementation;
+
+  private Lookup lookup;
+  private int nextId;
+
+  @Setup
+  public void setup() {
+    long before = usedHeap();
+    Map<Integer, Principal> principals = new HashMap<Integer, Principal>();
+    // Like a site collection, mostly users with a few groups.
+    for (int i = 1; i <= users; i++) {
+      if (i % 100 == 0) {
+        principals.put(i, new GroupPrincipal("Group " + i,
+            NAMESPACE + "_http://localhost:1/sites/SiteCollection"));
+      } else {
+        principals.put(i, new UserPrincipal("DOMAIN\\user" + i, NAMESPACE));
+      }
+    }
+    lookup = newLookup(principals);
+    // Leave only what the lookup itself retains reachable.
+    principals = null;
+    long after = usedHeap();
+    System.out.println(implementation + " with " + users
+        + " principals retains about " + (after - before) / users
+        + " bytes per principal");
+  }
+
+  @Benchmark
+  public Principal getPrincipal() {
+    nextId = nextId % users + 1;
+    return lookup.getPrincipal(nextId);
+  }
+
+  private Lookup newLookup(Map<Integer, Principal> principals) {
+    if ("hashMap".equals(implementation)) {
+      return new HashMapLookup(principals);
+    }
+    final MemberIdMapping mapping = new MemberIdMapping(principals);
+    return new Lookup() {
+      @Override
+      public Principal getPrincipal(Integer id) {
+        return mapping.getPrincipal(id);
+      }
+    };
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private interface Lookup {
+    public Principal getPrincipal(Integer id);
+  }
+
+  /** The previous implementation of {@link MemberIdMapping}. */
+  private static class HashMapLookup implements Lookup {
+    private static final Interner<Principal> interner
+        = Interners.newWeakInterner();
+
+    private final Map<Integer, Principal> principals;
+
+    public HashMapLookup(Map<Integer, Principal> principals) {
+      this.principals = new HashMap<Integer, Principal>();
+      for (Map.Entry<Integer, Principal> me : principals.entrySet()) {
+        this.principals.put(me.getKey(), interner.intern(me.getValue()));
+      }
+    }
+
+    @Override
+    public Principal getPrincipal(Integer id) {
+      return principals.get(id);
+    }
+  }
+}
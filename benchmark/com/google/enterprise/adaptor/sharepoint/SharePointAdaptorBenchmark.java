@@ -0,0 +1,101 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * String and URL processing performed for every item, user and link the
+ * adaptor handles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class SharePointAdaptorBenchmark {
+  private final String encodedMetadataName
+      = "Custom_x0020_Column_x0020__x0028_Name_x0029_";
+  private final String html = "<div class=\"ExternalClass\"><p>Quarterly "
+      + "&quot;roadmap&quot; &amp; budget review &#8212; see <a href="
+      + "\"http://localhost:1/Shared%20Documents/plan.docx\">the plan</a>"
+      + "&nbsp;for details.</p></div>";
+  private final String windowsClaim = "i:0#.w|GDC-PSL\\spuser1";
+  private final String trustedClaim = "i:05.t|adfsv2|spuser1@example.com";
+  private final String url = "http://localhost:1/sites/SiteCollection/Lists/"
+      + "Custom List/Test Folder/Some Document (final) #2.docx";
+  private final String urlWithQuery = "http://localhost:1/sites/SiteCollection"
+      + "/Lists/Custom List/DispForm.aspx?ID=2&Source=a b";
+
+  @Benchmark
+  public String decodeMetadataName() {
+    return SharePointAdaptor.decodeMetadataName(encodedMetadataName);
+  }
+
+  @Benchmark
+  public String stripHtml() {
+    return SharePointAdaptor.stripHtml(html);
+  }
+
+  @Benchmark
+  public String decodeWindowsClaim() {
+    return SharePointAdaptor.decodeClaim(windowsClaim, "spuser1");
+  }
+
+  @Benchmark
+  public String decodeTrustedClaim() {
+    return SharePointAdaptor.decodeClaim(trustedClaim, "spuser1");
+  }
+
+  @Benchmark
+  public URI spUrlToUri() throws IOException {
+    return SharePointAdaptor.spUrlToUri(url);
+  }
+
+  @Benchmark
+  public URL encodeSharePointUrl() throws IOException {
+    return SharePointAdaptor.encodeSharePointUrl(urlWithQuery, false);
+  }
+
+  @Benchmark
+  public URL encodeSharePointUrlLenient() throws IOException {
+    return SharePointAdaptor.encodeSharePointUrl(urlWithQuery, true);
+  }
+
+  @Benchmark
+  public long addMetadata() {
+    GetContentsResponse response = new GetContentsResponse(null);
+    long size = 0;
+    size += SharePointAdaptor.addMetadata(response, "ows_Title",
+        "Test Announcement", null);
+    size += SharePointAdaptor.addMetadata(response, "ows_Author",
+        "1;#GDC-PSL\\administrator", null);
+    size += SharePointAdaptor.addMetadata(response, "ows_Categories",
+        ";#Finance;#Planning;#Quarterly;#", null);
+    size += SharePointAdaptor.addMetadata(response,
+        "ows_Custom_x0020_Column", "value", null);
+    size += SharePointAdaptor.addMetadata(response, "ows_MetaInfo",
+        "2;#vti_modifiedby:SR|GDC-PSL\\administrator", null);
+    return size;
+  }
+}
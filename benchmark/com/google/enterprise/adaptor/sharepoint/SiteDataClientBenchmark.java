@@ -0,0 +1,130 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.microsoft.schemas.sharepoint.soap.ContentDatabase;
+import com.microsoft.schemas.sharepoint.soap.ItemData;
+import com.microsoft.schemas.sharepoint.soap.List;
+import com.microsoft.schemas.sharepoint.soap.SPContentDatabase;
+import com.microsoft.schemas.sharepoint.soap.SPSite;
+import com.microsoft.schemas.sharepoint.soap.Site;
+import com.microsoft.schemas.sharepoint.soap.VirtualServer;
+import com.microsoft.schemas.sharepoint.soap.Web;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses the test {@code spresponses} with {@link SiteDataClient#jaxbParse},
+ * after the same namespace fix-up {@link SiteDataClient} performs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class SiteDataClientBenchmark {
+  @Param({"false", "true"})
+  public boolean xmlValidation;
+
+  private SiteDataClient client;
+  private String virtualServer;
+  private String contentDatabase;
+  private String site;
+  private String web;
+  private String list;
+  private String folder;
+  private String listItem;
+  private String contentDatabaseChanges;
+  private String siteCollectionChanges;
+
+  @Setup
+  public void setup() throws IOException {
+    client = new SiteDataClient(Benchmarks.unsupportedSiteData(),
+        xmlValidation);
+    virtualServer = Benchmarks.addNamespace(
+        Benchmarks.loadResponse("vs.xml"), "VirtualServer");
+    contentDatabase = Benchmarks.addNamespace(
+        Benchmarks.loadResponse("cd.xml"), "ContentDatabase");
+    site = Benchmarks.addNamespace(
+        Benchmarks.loadResponse("sites-SiteCollection-sc.xml"), "Site");
+    web = Benchmarks.addNamespace(
+        Benchmarks.loadResponse("sites-SiteCollection-s.xml"), "Web");
+    list = Benchmarks.addNamespace(Benchmarks.loadResponse(
+        "sites-SiteCollection-Lists-CustomList-l.xml"), "List");
+    folder = Benchmarks.addNamespace(Benchmarks.loadResponse(
+        "sites-SiteCollection-Lists-CustomList-f.xml"), "Folder");
+    listItem = Benchmarks.addNamespace(Benchmarks.loadResponse(
+        "sites-SiteCollection-Lists-CustomList-1-li.xml")
+        .replace("<Item>", "<ItemData>").replace("</Item>", "</ItemData>"),
+        "ItemData");
+    contentDatabaseChanges = Benchmarks.addNamespace(Benchmarks.loadResponse(
+        "testModifiedGetDocIdsClient.changes-cd.xml"), "SPContentDatabase");
+    siteCollectionChanges = Benchmarks.addNamespace(Benchmarks.loadResponse(
+        "testModifiedGetDocIdsClient.changes-sc.xml"), "SPSite");
+  }
+
+  @Benchmark
+  public VirtualServer parseVirtualServer() throws IOException {
+    return client.jaxbParse(virtualServer, VirtualServer.class);
+  }
+
+  @Benchmark
+  public ContentDatabase parseContentDatabase() throws IOException {
+    return client.jaxbParse(contentDatabase, ContentDatabase.class);
+  }
+
+  @Benchmark
+  public Site parseSite() throws IOException {
+    return client.jaxbParse(site, Site.class);
+  }
+
+  @Benchmark
+  public Web parseWeb() throws IOException {
+    return client.jaxbParse(web, Web.class);
+  }
+
+  @Benchmark
+  public List parseList() throws IOException {
+    return client.jaxbParse(list, List.class);
+  }
+
+  @Benchmark
+  public ItemData parseFolder() throws IOException {
+    return client.jaxbParse(folder, ItemData.class);
+  }
+
+  @Benchmark
+  public ItemData parseListItem() throws IOException {
+    return client.jaxbParse(listItem, ItemData.class);
+  }
+
+  @Benchmark
+  public SPContentDatabase parseContentDatabaseChanges() throws IOException {
+    return client.jaxbParse(contentDatabaseChanges, SPContentDatabase.class);
+  }
+
+  @Benchmark
+  public SPSite parseSiteCollectionChanges() throws IOException {
+    return client.jaxbParse(siteCollectionChanges, SPSite.class);
+  }
+}
@@ -0,0 +1,706 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A generated SharePoint farm of configurable size. Nothing is stored per
+ * object; every response is computed from the object's position in the farm,
+ * so farms with millions of items need no memory.
+ *
+ * <p>Site collection 0 of database 0 is the root site collection at {@code /}
+ * and the rest are at {@code /sites/db<d>-sc<s>}. Web 0 of a site collection
+ * is its root web and the rest are its children, at {@code <site>/web<w>}.
+ * Every web contains document libraries at {@code <web>/Docs<l>}, each with
+ * files named {@code doc<id>.txt}. Everything shares the permissions of its
+ * site collection.
+ *
+ * <p>Each content database and site collection has a change log that grows at
+ * {@link #setChangesPerSecond changesPerSecond}, with each change modifying
+ * the next item of the database or site collection in turn.
+ */
+class SyntheticFarm {
+  private static final Pattern SITE_PATTERN
+      = Pattern.compile("/sites/db(\\d+)-sc(\\d+)(/.*)?");
+  private static final Pattern WEB_PATTERN
+      = Pattern.compile("/web(\\d+)(/.*)?");
+  private static final Pattern LIST_PATTERN
+      = Pattern.compile("/Docs(\\d+)(/Forms/AllItems\\.aspx)?");
+  private static final Pattern ITEM_PATTERN
+      = Pattern.compile("/Docs(\\d+)/doc(\\d+)\\.txt");
+
+  private static final int KIND_DATABASE = 0xdb;
+  private static final int KIND_SITE = 0x5c;
+  private static final int KIND_WEB = 0x3eb;
+  private static final int KIND_LIST = 0x115;
+  private static final int KIND_ITEM = 0x17e;
+  private static final int KIND_SCOPE = 0x5c0;
+  private static final int KIND_VIEW = 0x1e3;
+
+  private static final String LAST_MODIFIED = "2014-01-01 00:00:00Z";
+  private static final String ROW_MODIFIED = "2014-01-01T00:00:00Z";
+  /** Change number of the oldest change in every change log. */
+  private static final long FIRST_CHANGE = 1000;
+  private static final String FULL_MASK = "9223372036854775807";
+  private static final String READ_MASK = "756052856929";
+  private static final String DOMAIN = "SYNTHETIC";
+  private static final String SID_PREFIX = "S-1-5-21-1000000000-1000000000-1";
+
+  private final int databases;
+  private final int sitesPerDatabase;
+  private final int websPerSite;
+  private final int listsPerWeb;
+  private final int itemsPerList;
+  private final long startMillis = System.currentTimeMillis();
+  private volatile int fileSize = 1024;
+  private volatile double changesPerSecond = 0;
+  private volatile int userProfiles = 100;
+
+  public SyntheticFarm(int databases, int sitesPerDatabase, int websPerSite,
+      int listsPerWeb, int itemsPerList) {
+    if (databases < 1 || sitesPerDatabase < 1 || websPerSite < 1
+        || listsPerWeb < 0 || itemsPerList < 0) {
+      throw new IllegalArgumentException("Farm must have at least one "
+          + "database, site collection and web");
+    }
+    if (databases > 0xffff || sitesPerDatabase > 0xffff
+        || websPerSite > 0xffff || listsPerWeb > 0xffff) {
+      throw new IllegalArgumentException("Farm dimensions are limited to "
+          + 0xffff);
+    }
+    this.databases = databases;
+    this.sitesPerDatabase = sitesPerDatabase;
+    this.websPerSite = websPerSite;
+    this.listsPerWeb = listsPerWeb;
+    this.itemsPerList = itemsPerList;
+  }
+
+  /** Sets the size of each file, in bytes. */
+  public void setFileSize(int fileSize) {
+    if (fileSize < 0) {
+      throw new IllegalArgumentException("fileSize must be non-negative");
+    }
+    this.fileSize = fileSize;
+  }
+
+  public int getFileSize() {
+    return fileSize;
+  }
+
+  /** Sets the rate at which every change log grows. */
+  public void setChangesPerSecond(double changesPerSecond) {
+    if (changesPerSecond < 0) {
+      throw new IllegalArgumentException(
+          "changesPerSecond must be non-negative");
+    }
+    this.changesPerSecond = changesPerSecond;
+  }
+
+  /** Sets the number of user profiles served by the user profile service. */
+  public void setUserProfiles(int userProfiles) {
+    if (userProfiles < 0) {
+      throw new IllegalArgumentException("userProfiles must be non-negative");
+    }
+    this.userProfiles = userProfiles;
+  }
+
+  public int getUserProfiles() {
+    return userProfiles;
+  }
+
+  /** Returns the total number of files in the farm. */
+  public long getItemCount() {
+    return (long) databases * getItemsPerDatabase();
+  }
+
+  private long getItemsPerSite() {
+    return (long) websPerSite * listsPerWeb * itemsPerList;
+  }
+
+  private long getItemsPerDatabase() {
+    return sitesPerDatabase * getItemsPerSite();
+  }
+
+  /**
+   * Position of an object within the farm. Fields that do not apply to the
+   * object, like the item of a list, are {@code -1}.
+   */
+  static class Location {
+    final int database;
+    final int site;
+    final int web;
+    final int list;
+    /** Zero-based; the item's SharePoint ID is one larger. */
+    final int item;
+
+    Location(int database, int site, int web, int list, int item) {
+      this.database = database;
+      this.site = site;
+      this.web = web;
+      this.list = list;
+      this.item = item;
+    }
+
+    boolean isList() {
+      return list != -1 && item == -1;
+    }
+
+    boolean isItem() {
+      return item != -1;
+    }
+
+    @Override
+    public String toString() {
+      return "Location(" + database + "," + site + "," + web + "," + list
+          + "," + item + ")";
+    }
+  }
+
+  /**
+   * Finds the object at {@code path}, which is relative to the host. Returns
+   * {@code null} if there is no such object.
+   */
+  public Location parsePath(String path) {
+    if (path.endsWith("/")) {
+      path = path.substring(0, path.length() - 1);
+    }
+    int database = 0;
+    int site = 0;
+    Matcher m = SITE_PATTERN.matcher(path);
+    if (m.matches()) {
+      database = parseIndex(m.group(1), databases);
+      site = parseIndex(m.group(2), sitesPerDatabase);
+      if (database == -1 || site == -1 || (database == 0 && site == 0)) {
+        return null;
+      }
+      path = m.group(3) == null ? "" : m.group(3);
+    }
+    int web = 0;
+    m = WEB_PATTERN.matcher(path);
+    if (m.matches()) {
+      web = parseIndex(m.group(1), websPerSite);
+      if (web <= 0) {
+        return null;
+      }
+      path = m.group(2) == null ? "" : m.group(2);
+    }
+    if ("".equals(path)) {
+      return new Location(database, site, web, -1, -1);
+    }
+    m = LIST_PATTERN.matcher(path);
+    if (m.matches()) {
+      int list = parseIndex(m.group(1), listsPerWeb);
+      return list == -1 ? null : new Location(database, site, web, list, -1);
+    }
+    m = ITEM_PATTERN.matcher(path);
+    if (m.matches()) {
+      int list = parseIndex(m.group(1), listsPerWeb);
+      int item = parseIndex(m.group(2), itemsPerList + 1) - 1;
+      if (list == -1 || item < 0) {
+        return null;
+      }
+      return new Location(database, site, web, list, item);
+    }
+    return null;
+  }
+
+  /**
+   * Finds the object with id {@code guid}, as generated by this farm. Returns
+   * {@code null} if there is no such object.
+   */
+  public Location parseGuid(String guid) {
+    String hex = guid.replaceAll("[{}-]", "");
+    if (hex.length() != 32) {
+      return null;
+    }
+    try {
+      int kind = Integer.parseInt(hex.substring(0, 8), 16);
+      int database = Integer.parseInt(hex.substring(8, 12), 16);
+      int site = Integer.parseInt(hex.substring(12, 16), 16);
+      int web = Integer.parseInt(hex.substring(16, 20), 16);
+      int list = Integer.parseInt(hex.substring(20, 24), 16);
+      if (database >= databases || site >= sitesPerDatabase
+          || web >= websPerSite) {
+        return null;
+      }
+      if (kind == KIND_DATABASE) {
+        return new Location(database, -1, -1, -1, -1);
+      } else if (kind == KIND_SITE) {
+        return new Location(database, site, -1, -1, -1);
+      } else if (kind == KIND_WEB) {
+        return new Location(database, site, web, -1, -1);
+      } else if (kind == KIND_LIST && list < listsPerWeb) {
+        return new Location(database, site, web, list, -1);
+      }
+    } catch (NumberFormatException ex) {
+      // Not one of ours.
+    }
+    return null;
+  }
+
+  private static int parseIndex(String value, int limit) {
+    try {
+      int i = Integer.parseInt(value);
+      return i < limit ? i : -1;
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  public String getSitePath(int database, int site) {
+    return database == 0 && site == 0 ? ""
+        : "/sites/db" + database + "-sc" + site;
+  }
+
+  public String getWebPath(int database, int site, int web) {
+    return getSitePath(database, site) + (web == 0 ? "" : "/web" + web);
+  }
+
+  public String getWebPath(Location l) {
+    return getWebPath(l.database, l.site, l.web);
+  }
+
+  private String getListPath(Location l) {
+    return getWebPath(l) + "/Docs" + l.list;
+  }
+
+  private String getItemPath(Location l) {
+    return getListPath(l) + "/doc" + (l.item + 1) + ".txt";
+  }
+
+  private static String guid(int kind, int database, int site, int web,
+      int list, int item) {
+    return String.format("{%08x-%04x-%04x-%04x-%04x%08x}", kind, database,
+        site, web, list, item);
+  }
+
+  private static String guid(int kind, Location l) {
+    return guid(kind, l.database, Math.max(l.site, 0), Math.max(l.web, 0),
+        Math.max(l.list, 0), Math.max(l.item, 0));
+  }
+
+  public String getDatabaseId(int database) {
+    return guid(KIND_DATABASE, database, 0, 0, 0, 0);
+  }
+
+  public String getSiteId(int database, int site) {
+    return guid(KIND_SITE, database, site, 0, 0, 0);
+  }
+
+  /** Returns the id of the list containing {@code l}. */
+  public String getListId(Location l) {
+    return guid(KIND_LIST, l.database, l.site, l.web, l.list, 0);
+  }
+
+  private String getScopeId(Location l) {
+    return guid(KIND_SCOPE, l.database, l.site, 0, 0, 0);
+  }
+
+  private String changeToken(boolean site, String guid, long change) {
+    return "1;" + (site ? "1" : "0") + ";" + guid.replaceAll("[{}]", "")
+        + ";635000000000000000;" + change;
+  }
+
+  /** Returns the number of the latest change in every change log. */
+  private long getCurrentChange() {
+    return FIRST_CHANGE + (long) ((System.currentTimeMillis() - startMillis)
+        * changesPerSecond / 1000);
+  }
+
+  public String getVirtualServer(String baseUrl) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<VirtualServer><Metadata URL=\"").append(baseUrl)
+        .append("/\" /><ContentDatabases>");
+    for (int d = 0; d < databases; d++) {
+      sb.append("<ContentDatabase ID=\"").append(getDatabaseId(d))
+          .append("\" />");
+    }
+    sb.append("</ContentDatabases>")
+        .append("<Policies AnonymousGrantMask=\"0\" AnonymousDenyMask=\"0\">")
+        .append("<PolicyUser LoginName=\"").append(DOMAIN)
+        .append("\\farmadmin\" Sid=\"").append(SID_PREFIX)
+        .append("-500\" GrantMask=\"").append(FULL_MASK)
+        .append("\" DenyMask=\"0\" /></Policies></VirtualServer>");
+    return sb.toString();
+  }
+
+  public String getContentDatabase(int database, String baseUrl) {
+    String id = getDatabaseId(database);
+    StringBuilder sb = new StringBuilder();
+    sb.append("<ContentDatabase><Metadata ChangeId=\"")
+        .append(changeToken(false, id, getCurrentChange()))
+        .append("\" ID=\"").append(id).append("\" /><Sites>");
+    for (int s = 0; s < sitesPerDatabase; s++) {
+      sb.append("<Site URL=\"").append(baseUrl)
+          .append(getSitePath(database, s)).append("\" ID=\"")
+          .append(getSiteId(database, s)).append("\" />");
+    }
+    sb.append("</Sites></ContentDatabase>");
+    return sb.toString();
+  }
+
+  public String getSiteCollection(Location l, String baseUrl) {
+    StringBuilder sb = new StringBuilder("<Site>");
+    appendSiteMetadata(sb, l, baseUrl);
+    appendGroups(sb);
+    // Like SharePoint, include the root web, whose users map member ids.
+    sb.append(getWeb(new Location(l.database, l.site, 0, -1, -1), baseUrl));
+    sb.append("</Site>");
+    return sb.toString();
+  }
+
+  private void appendSiteMetadata(StringBuilder sb, Location l,
+      String baseUrl) {
+    String id = getSiteId(l.database, l.site);
+    sb.append("<Metadata URL=\"").append(baseUrl)
+        .append(getSitePath(l.database, l.site)).append("\" ID=\"")
+        .append(id).append("\" LastModified=\"").append(LAST_MODIFIED)
+        .append("\" PortalURL=\"\" UserProfileGUID=\"\" RootWebId=\"")
+        .append(guid(KIND_WEB, l.database, l.site, 0, 0, 0))
+        .append("\" ChangeId=\"")
+        .append(changeToken(true, id, getCurrentChange())).append("\" />");
+  }
+
+  private void appendGroups(StringBuilder sb) {
+    sb.append("<Groups><Group><Group ID=\"3\" Name=\"Owners\" ")
+        .append("Description=\"\" OwnerID=\"3\" OwnerIsUser=\"False\" />")
+        .append("<Users>");
+    appendUser(sb, 1);
+    sb.append("</Users></Group></Groups>");
+  }
+
+  private void appendUser(StringBuilder sb, int id) {
+    boolean group = id == 2;
+    String name = group ? "domain users" : "user" + id;
+    sb.append("<User ID=\"").append(id).append("\" Sid=\"")
+        .append(SID_PREFIX).append("-").append(group ? 513 : 1000 + id)
+        .append("\" Name=\"").append(name).append("\" LoginName=\"")
+        .append(DOMAIN).append("\\").append(name)
+        .append("\" Email=\"\" Notes=\"\" IsSiteAdmin=\"")
+        .append(group ? "False" : "True").append("\" IsDomainGroup=\"")
+        .append(group ? "True" : "False").append("\" Flags=\"0\" />");
+  }
+
+  private void appendPermissions(StringBuilder sb) {
+    sb.append("<permissions>")
+        .append("<permission memberid=\"1\" mask=\"").append(FULL_MASK)
+        .append("\" /><permission memberid=\"2\" mask=\"").append(READ_MASK)
+        .append("\" /><permission memberid=\"3\" mask=\"").append(FULL_MASK)
+        .append("\" /></permissions>");
+  }
+
+  public String getWeb(Location l, String baseUrl) {
+    StringBuilder sb = new StringBuilder("<Web>");
+    appendWebMetadata(sb, l, baseUrl);
+    sb.append("<Users>");
+    appendUser(sb, 1);
+    appendUser(sb, 2);
+    sb.append("</Users><ACL>");
+    appendPermissions(sb);
+    sb.append("</ACL><Webs>");
+    if (l.web == 0) {
+      for (int w = 1; w < websPerSite; w++) {
+        sb.append("<Web URL=\"").append(baseUrl)
+            .append(getWebPath(l.database, l.site, w)).append("\" ID=\"")
+            .append(guid(KIND_WEB, l.database, l.site, w, 0, 0))
+            .append("\" LastModified=\"").append(LAST_MODIFIED)
+            .append("\" />");
+      }
+    }
+    sb.append("</Webs><Lists>");
+    for (int i = 0; i < listsPerWeb; i++) {
+      Location list = new Location(l.database, l.site, l.web, i, -1);
+      sb.append("<List ID=\"").append(getListId(list))
+          .append("\" LastModified=\"").append(LAST_MODIFIED)
+          .append("\" DefaultViewUrl=\"").append(getListPath(list))
+          .append("/Forms/AllItems.aspx\" />");
+    }
+    sb.append("</Lists></Web>");
+    return sb.toString();
+  }
+
+  private void appendWebMetadata(StringBuilder sb, Location l,
+      String baseUrl) {
+    sb.append("<Metadata URL=\"").append(baseUrl).append(getWebPath(l))
+        .append("\" LastModified=\"").append(LAST_MODIFIED)
+        .append("\" Created=\"").append(LAST_MODIFIED).append("\" ID=\"")
+        .append(guid(KIND_WEB, l.database, l.site, l.web, 0, 0))
+        .append("\" Title=\"Web ").append(l.web)
+        .append("\" Description=\"\" Author=\"").append(DOMAIN)
+        .append("\\user1\" Language=\"1033\" CRC=\"0\" NoIndex=\"False\" ")
+        .append("DefaultHomePage=\"\" ExternalSecurity=\"False\" ScopeID=\"")
+        .append(getScopeId(l)).append("\" AllowAnonymousAccess=\"False\" ")
+        .append("AnonymousViewListItems=\"False\" AnonymousPermMask=\"0\" />");
+  }
+
+  public String getList(Location l) {
+    StringBuilder sb = new StringBuilder("<List>");
+    appendListMetadata(sb, l);
+    sb.append("<ACL>");
+    appendPermissions(sb);
+    sb.append("</ACL><Views><View URL=\"Docs").append(l.list)
+        .append("/Forms/AllItems.aspx\" ID=\"")
+        .append(guid(KIND_VIEW, l.database, l.site, l.web, l.list, 0))
+        .append("\" Title=\"All Documents\" /></Views><Schema>")
+        .append("<Field Name=\"FileLeafRef\" Title=\"Name\" Type=\"File\" />")
+        .append("<Field Name=\"Title\" Title=\"Title\" Type=\"Text\" />")
+        .append("<Field Name=\"Modified\" Title=\"Modified\" ")
+        .append("Type=\"DateTime\" /></Schema></List>");
+    return sb.toString();
+  }
+
+  private void appendListMetadata(StringBuilder sb, Location l) {
+    String listPath = getListPath(l);
+    sb.append("<Metadata ID=\"").append(getListId(l))
+        .append("\" LastModified=\"").append(LAST_MODIFIED)
+        .append("\" Title=\"Docs").append(l.list)
+        .append("\" Description=\"\" DefaultTitle=\"False\" ")
+        .append("BaseType=\"DocumentLibrary\" ")
+        .append("BaseTemplate=\"DocumentLibrary\" DefaultViewUrl=\"")
+        .append(listPath).append("/Forms/AllItems.aspx\" ")
+        .append("DefaultViewItemUrl=\"").append(listPath)
+        .append("/Forms/DispForm.aspx\" RootFolder=\"").append(listPath)
+        .append("\" Author=\"").append(DOMAIN).append("\\user1\" ItemCount=\"")
+        .append(itemsPerList).append("\" ReadSecurity=\"1\" ")
+        .append("AllowAnonymousAccess=\"False\" ")
+        .append("AnonymousViewListItems=\"False\" AnonymousPermMask=\"0\" ")
+        .append("CRC=\"0\" NoIndex=\"False\" ScopeID=\"")
+        .append(getScopeId(l)).append("\" />");
+  }
+
+  /**
+   * Returns the number of items in the folder at {@code folderUrl} of list
+   * {@code l}. The empty string is the list's root folder, which holds all of
+   * its items, since the farm has no other folders.
+   */
+  public int getFolderItemCount(Location l, String folderUrl) {
+    String folderPath = folderUrl.startsWith("/") ? folderUrl
+        : "/" + folderUrl;
+    if ("".equals(folderUrl) || getListPath(l).equals(folderPath)) {
+      return itemsPerList;
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the page of the items in the folder at {@code folderUrl} of list
+   * {@code l} that starts at item {@code start}, containing at most {@code
+   * pageSize} items.
+   */
+  public String getFolder(Location l, String folderUrl, int start,
+      int pageSize) {
+    int end = (int) Math.min(getFolderItemCount(l, folderUrl),
+        (long) start + pageSize);
+    StringBuilder sb = new StringBuilder("<Folder>");
+    appendItemMetadata(sb, l);
+    sb.append("<xml xmlns:s=\"uuid:BDC6E3F0-6DA3-11d1-A2A3-00AA00C14882\" ")
+        .append("xmlns:dt=\"uuid:C2F41010-65B3-11d1-A29F-00AA00C14882\" ")
+        .append("xmlns:rs=\"urn:schemas-microsoft-com:rowset\" ")
+        .append("xmlns:z=\"#RowsetSchema\"><rs:data ItemCount=\"")
+        .append(Math.max(0, end - start)).append("\">");
+    for (int i = start; i < end; i++) {
+      appendRow(sb, new Location(l.database, l.site, l.web, l.list, i),
+          false);
+    }
+    sb.append("</rs:data></xml></Folder>");
+    return sb.toString();
+  }
+
+  public String getItem(Location l) {
+    StringBuilder sb = new StringBuilder("<Item>");
+    appendItemMetadata(sb, l);
+    sb.append("<xml xmlns:s=\"uuid:BDC6E3F0-6DA3-11d1-A2A3-00AA00C14882\" ")
+        .append("xmlns:dt=\"uuid:C2F41010-65B3-11d1-A29F-00AA00C14882\" ")
+        .append("xmlns:rs=\"urn:schemas-microsoft-com:rowset\" ")
+        .append("xmlns:z=\"#RowsetSchema\"><rs:data ItemCount=\"1\">");
+    appendRow(sb, l, false);
+    sb.append("</rs:data></xml></Item>");
+    return sb.toString();
+  }
+
+  private void appendItemMetadata(StringBuilder sb, Location l) {
+    sb.append("<Metadata><scope id=\"").append(getScopeId(l)).append("\">");
+    appendPermissions(sb);
+    sb.append("</scope></Metadata>");
+  }
+
+  private void appendRow(StringBuilder sb, Location l, boolean namespace) {
+    int id = l.item + 1;
+    String listPath = getListPath(l).substring(1);
+    String name = "doc" + id + ".txt";
+    sb.append("<z:row ");
+    if (namespace) {
+      sb.append("xmlns:z=\"#RowsetSchema\" ");
+    }
+    sb.append("ows_ContentTypeId=\"0x0101\" ows_ContentType=\"Document\" ")
+        .append("ows_ID=\"").append(id).append("\" ows_Title=\"Document ")
+        .append(id).append("\" ows_Modified=\"").append(ROW_MODIFIED)
+        .append("\" ows_Created=\"").append(ROW_MODIFIED)
+        .append("\" ows_Author=\"1;#user1\" ows_Editor=\"1;#user1\" ")
+        .append("ows_Attachments=\"0\" ows_FileRef=\"").append(id)
+        .append(";#").append(listPath).append("/").append(name)
+        .append("\" ows_FileDirRef=\"").append(id).append(";#")
+        .append(listPath).append("\" ows_FSObjType=\"").append(id)
+        .append(";#0\" ows_FileLeafRef=\"").append(id).append(";#")
+        .append(name).append("\" ows_UniqueId=\"").append(id).append(";#")
+        .append(guid(KIND_ITEM, l)).append("\" ows_ScopeId=\"").append(id)
+        .append(";#").append(getScopeId(l)).append("\" ows_File_x0020_Size=\"")
+        .append(id).append(";#").append(fileSize)
+        .append("\" ows_ServerUrl=\"").append(getItemPath(l)).append("\" />");
+  }
+
+  /** A page of a change log. */
+  static class Changes {
+    final String xml;
+    /** Id of the last change in this page. */
+    final String lastChangeId;
+    /** Id of the latest change in the change log. */
+    final String currentChangeId;
+    final boolean moreChanges;
+
+    Changes(String xml, String lastChangeId, String currentChangeId,
+        boolean moreChanges) {
+      this.xml = xml;
+      this.lastChangeId = lastChangeId;
+      this.currentChangeId = currentChangeId;
+      this.moreChanges = moreChanges;
+    }
+  }
+
+  /**
+   * Returns the changes following {@code lastChangeId} in the change log of
+   * the database or site collection {@code l}, at most {@code maxChanges} of
+   * them.
+   */
+  public Changes getChanges(Location l, String lastChangeId, int maxChanges,
+      String baseUrl) {
+    boolean site = l.site != -1;
+    String id = site ? getSiteId(l.database, l.site)
+        : getDatabaseId(l.database);
+    long current = getCurrentChange();
+    long last;
+    try {
+      last = Long.parseLong(
+          lastChangeId.substring(lastChangeId.lastIndexOf(';') + 1));
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Invalid change id: "
+          + lastChangeId);
+    }
+    last = Math.max(FIRST_CHANGE, Math.min(last, current));
+    long end = Math.min(current, last + Math.max(1, maxChanges));
+    long itemsInLog = site ? getItemsPerSite() : getItemsPerDatabase();
+
+    StringBuilder sb = new StringBuilder();
+    if (site) {
+      appendSiteChangeStart(sb, l, baseUrl, changeToken(site, id, end));
+    } else {
+      sb.append("<SPContentDatabase Change=\"Unchanged\" ItemCount=\"")
+          .append(end - last).append("\"><ContentDatabase><Metadata ")
+          .append("ChangeId=\"").append(changeToken(false, id, end))
+          .append("\" ID=\"").append(id).append("\" /></ContentDatabase>");
+    }
+    for (long change = last + 1; change <= end && itemsInLog > 0; change++) {
+      long index = (change - FIRST_CHANGE - 1) % itemsInLog;
+      int siteIndex = site ? l.site : (int) (index / getItemsPerSite());
+      long inSite = site ? index : index % getItemsPerSite();
+      Location item = new Location(l.database, siteIndex,
+          (int) (inSite / ((long) listsPerWeb * itemsPerList)),
+          (int) (inSite / itemsPerList % listsPerWeb),
+          (int) (inSite % itemsPerList));
+      if (site) {
+        appendWebChange(sb, item, baseUrl);
+      } else {
+        appendSiteChangeStart(sb, item, baseUrl,
+            changeToken(site, id, change));
+        appendWebChange(sb, item, baseUrl);
+        sb.append("</SPSite>");
+      }
+    }
+    sb.append(site ? "</SPSite>" : "</SPContentDatabase>");
+    return new Changes(sb.toString(), changeToken(site, id, end),
+        changeToken(site, id, current), end < current);
+  }
+
+  private void appendSiteChangeStart(StringBuilder sb, Location l,
+      String baseUrl, String changeId) {
+    sb.append("<SPSite Change=\"Unchanged\" ItemCount=\"1\" ServerUrl=\"")
+        .append(baseUrl).append("\" DisplayUrl=\"")
+        .append(getSitePath(l.database, l.site))
+        .append("\"><Messages><Message>").append(changeId)
+        .append(" Microsoft.SharePoint.SPChangeItem Update Done</Message>")
+        .append("</Messages><Site>");
+    appendSiteMetadata(sb, l, baseUrl);
+    appendGroups(sb);
+    sb.append("</Site>");
+  }
+
+  private void appendWebChange(StringBuilder sb, Location l, String baseUrl) {
+    sb.append("<SPWeb Change=\"Unchanged\" ItemCount=\"1\" ")
+        .append("ServerUrl=\"").append(baseUrl).append("\" DisplayUrl=\"")
+        .append(getWebPath(l)).append("\"><Web>");
+    appendWebMetadata(sb, l, baseUrl);
+    sb.append("</Web><SPList Change=\"Unchanged\" ItemCount=\"1\" ")
+        .append("ServerUrl=\"").append(baseUrl).append("\" DisplayUrl=\"")
+        .append(getListPath(l)).append("/Forms/AllItems.aspx\"><List>");
+    appendListMetadata(sb, l);
+    sb.append("<ACL>");
+    appendPermissions(sb);
+    sb.append("</ACL><Views><View URL=\"Docs").append(l.list)
+        .append("/Forms/AllItems.aspx\" ID=\"")
+        .append(guid(KIND_VIEW, l.database, l.site, l.web, l.list, 0))
+        .append("\" Title=\"All Documents\" /></Views><Schema>")
+        .append("<Field Name=\"Title\" Title=\"Title\" Type=\"Text\" />")
+        .append("</Schema></List>")
+        .append("<SPListItem Change=\"Update\" ItemCount=\"0\" Id=\"")
+        .append(guid(KIND_ITEM, l)).append("\" ServerUrl=\"")
+        .append(baseUrl).append("\" DisplayUrl=\"").append(getItemPath(l))
+        .append("\"><ListItem>");
+    appendRow(sb, l, true);
+    appendPermissions(sb);
+    sb.append("</ListItem></SPListItem></SPList></SPWeb>");
+  }
+
+  /**
+   * Returns the contents of the file at {@code l}, which is {@link
+   * #getFileSize} bytes of text.
+   */
+  public byte[] getFileContent(Location l) {
+    byte[] prefix = ("Synthetic document " + getItemPath(l) + "\n")
+        .getBytes();
+    byte[] content = new byte[fileSize];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = i < prefix.length ? prefix[i] : (byte) ('a' + i % 26);
+    }
+    return content;
+  }
+
+  /**
+   * Returns the account name of user {@code index}, where {@code index} is
+   * less than {@link #getUserProfiles}.
+   */
+  public String getUserAccountName(int index) {
+    return DOMAIN + "\\user" + index;
+  }
+
+  /** Returns the users that are members of every site collection. */
+  public String getSiteUsers() {
+    StringBuilder sb = new StringBuilder();
+    appendUser(sb, 1);
+    appendUser(sb, 2);
+    return sb.toString();
+  }
+}
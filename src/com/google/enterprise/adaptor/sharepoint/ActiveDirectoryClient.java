@@ -3,13 +3,36 @@ package com.google.enterprise.adaptor.sharepoint;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,58 +55,197 @@ import javax.naming.ldap.LdapContext;
 public class ActiveDirectoryClient {
   private static final Logger log =
       Logger.getLogger(ActiveDirectoryClient.class.getName());
+  /** Number of concurrent LDAP connections, and of background refreshes. */
+  static final int MAX_CONNECTIONS = 4;
+
   private final ADServer adServer;
-  private final LoadingCache<String, String> cache =
-      CacheBuilder.newBuilder()
-  // Cache will auto expire in 30 minutes after initial write or update.
-  .expireAfterWrite(30, TimeUnit.MINUTES)
-  .build(new CacheLoader<String, String>() {
-    @Override
-    public String load(String key) throws IOException {
-      log.log(Level.FINE, "Performing SID lookup for {0}", key);
-      String resolved = adServer.getUserAccountBySid(key);
-      log.log(Level.FINE, "SID {0} resolved to {1}",
-          new Object[] {key, resolved});
-      if (resolved == null) {
+  private final ExecutorService refreshExecutor;
+  private final LoadingCache<String, String> cache;
+  /** SIDs waiting for the next batched background refresh. */
+  private final Map<String, SettableFuture<String>> pendingRefreshes
+      = new HashMap<String, SettableFuture<String>>();
+  /** SIDs dropped from {@link #cache} that may still be persisted. */
+  private final Set<String> evicted = Collections.newSetFromMap(
+      new ConcurrentHashMap<String, Boolean>());
+  /** Durable copy of resolved names, if configured. */
+  private volatile CheckpointStore persistentCache;
+
+  private Map<String, String> loadAll(Iterable<? extends String> keys)
+      throws IOException {
+    List<String> sids = ImmutableList.copyOf(keys);
+    log.log(Level.FINE, "Performing SID lookup for {0}", sids);
+    Map<String, String> found = adServer.getUserAccountsBySid(sids);
+    log.log(Level.FINE, "SIDs resolved to {0}", found);
+    Map<String, String> loaded = new HashMap<String, String>();
+    Map<String, String> resolved = new HashMap<String, String>();
+    for (String sid : sids) {
+      String name = found.get(sid);
+      if (Strings.isNullOrEmpty(name)) {
         // CacheBuilder doesn't allow to return null here.
         // Throwing IOEXception will result in repeated attempts
         // to resolve unknown SID. To avoid repeated attempts to resolve
         // SID, returning empty string here.
         log.log(Level.WARNING, "Could not resolve SID {0}."
-            + "Returning empty string", key);
-        return "";
+            + "Returning empty string", sid);
+        loaded.put(sid, "");
+      } else {
+        loaded.put(sid, name);
+        resolved.put(sid, name);
+      }
+    }
+    save(resolved);
+    return loaded;
+  }
+
+  /**
+   * Queues {@code sid} for the next batched refresh. Reads of many stale names
+   * at once, like those of {@link #getUserAccountsBySid}, then share a single
+   * directory lookup instead of refreshing one SID per query.
+   */
+  private ListenableFuture<String> scheduleRefresh(String sid) {
+    SettableFuture<String> future = SettableFuture.create();
+    boolean first;
+    synchronized (pendingRefreshes) {
+      first = pendingRefreshes.isEmpty();
+      pendingRefreshes.put(sid, future);
+    }
+    if (first) {
+      refreshExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          refreshPending();
+        }
+      });
+    }
+    return future;
+  }
+
+  private void refreshPending() {
+    Map<String, SettableFuture<String>> batch;
+    synchronized (pendingRefreshes) {
+      batch = new HashMap<String, SettableFuture<String>>(pendingRefreshes);
+      pendingRefreshes.clear();
+    }
+    try {
+      Map<String, String> loaded = loadAll(batch.keySet());
+      for (Map.Entry<String, SettableFuture<String>> me : batch.entrySet()) {
+        me.getValue().set(loaded.get(me.getKey()));
+      }
+    } catch (Throwable t) {
+      for (SettableFuture<String> future : batch.values()) {
+        future.setException(t);
       }
-      return resolved;
     }
-  });
+  }
 
   public String getUserAccountBySid(String sid) throws IOException {
-    Preconditions.checkNotNull(sid);
-    Preconditions.checkArgument(sid.startsWith("S-1-")
-        || sid.startsWith("s-1-"), "Invalid SID: %s", sid);
+    return getUserAccountsBySid(Collections.singleton(sid)).get(sid);
+  }
+
+  /**
+   * Resolves many SIDs at once. SIDs that are not already cached are looked up
+   * with as few LDAP queries as possible.
+   *
+   * @return logon names of the SIDs that could be resolved
+   */
+  public Map<String, String> getUserAccountsBySid(Collection<String> sids)
+      throws IOException {
+    Set<String> keys = new LinkedHashSet<String>();
+    for (String sid : sids) {
+      Preconditions.checkNotNull(sid);
+      Preconditions.checkArgument(sid.startsWith("S-1-")
+          || sid.startsWith("s-1-"), "Invalid SID: %s", sid);
+      keys.add(getDomainSid(sid));
+      keys.add(sid);
+    }
+    Map<String, String> names;
     try {
-      String domainSid = sid.substring(0, sid.lastIndexOf("-"));
-      String domain = cache.get(domainSid);
+      names = cache.getAll(keys);
+    } catch (ExecutionException e) {
+      throw new IOException(e);
+    }
+    Map<String, String> logonNames = new HashMap<String, String>();
+    for (String sid : sids) {
+      String domainSid = getDomainSid(sid);
+      String domain = names.get(domainSid);
       if ("".equals(domain)) {
         log.log(Level.WARNING, "Could not resolve domain for domain SID {0}."
             + " Returning null as account name for SID {1}",
             new Object[] {domainSid, sid});
-        return null;
+        continue;
       }
-      String accountname = cache.get(sid);
+      String accountname = names.get(sid);
       if ("".equals(accountname)) {
         log.log(Level.WARNING, "Could not resolve accountname for SID {0}."
             + " Returning null as account name.", sid);
-        return null;
+        continue;
       }
 
       String logonName = domain + "\\" + accountname;
       log.log(Level.FINE, "Returning logon name as {0} for SID {1}",
           new Object[] {logonName, sid});
-      return logonName;
-    } catch (ExecutionException e) {
-      throw new IOException(e);
+      logonNames.put(sid, logonName);
     }
+    return logonNames;
+  }
+
+  private static String getDomainSid(String sid) {
+    return sid.substring(0, sid.lastIndexOf("-"));
+  }
+
+  /**
+   * Loads names resolved before a restart from {@code store}, and saves newly
+   * resolved names to it. The caller remains responsible for closing {@code
+   * store}.
+   */
+  public void setPersistentCache(CheckpointStore store) throws IOException {
+    Map<String, String> saved = store.load();
+    log.log(Level.FINE, "Loaded {0} SIDs from persistent cache",
+        saved.size());
+    cache.putAll(saved);
+    persistentCache = store;
+  }
+
+  /**
+   * Saves {@code resolved} to the persistent cache, and removes the names that
+   * were evicted since, so that the file only keeps SIDs still in use.
+   */
+  private void save(Map<String, String> resolved) {
+    CheckpointStore store = persistentCache;
+    if (store == null) {
+      return;
+    }
+    evicted.removeAll(resolved.keySet());
+    List<String> pruned = new ArrayList<String>();
+    for (Iterator<String> it = evicted.iterator(); it.hasNext(); ) {
+      String sid = it.next();
+      it.remove();
+      // Names loaded again since they were evicted are still in use.
+      if (!cache.asMap().containsKey(sid)) {
+        pruned.add(sid);
+      }
+    }
+    try {
+      if (!resolved.isEmpty()) {
+        store.putAll(resolved);
+      }
+      if (!pruned.isEmpty()) {
+        store.removeAll(pruned);
+      }
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Could not save resolved SIDs", ex);
+    }
+  }
+
+  /**
+   * Stops background refreshes, prunes expired names from the store and closes
+   * the connections to the server.
+   */
+  public void close() {
+    refreshExecutor.shutdownNow();
+    cache.cleanUp();
+    save(Collections.<String, String>emptyMap());
+    adServer.close();
   }
 
   public static ActiveDirectoryClient getInstance(String host, int port,
@@ -94,26 +256,107 @@ public class ActiveDirectoryClient {
 
   @VisibleForTesting
   ActiveDirectoryClient(ADServer adServer) throws IOException {
+    this(adServer, Ticker.systemTicker(),
+        Executors.newFixedThreadPool(MAX_CONNECTIONS, new ThreadFactoryBuilder()
+          .setDaemon(true).setNameFormat("sid-lookup-refresh-%d").build()));
+  }
+
+  @VisibleForTesting
+  ActiveDirectoryClient(ADServer adServer, Ticker ticker,
+      ExecutorService refreshExecutor) throws IOException {
     Preconditions.checkNotNull(adServer);
+    Preconditions.checkNotNull(refreshExecutor);
     this.adServer = adServer;
+    this.refreshExecutor = refreshExecutor;
+    this.cache = CacheBuilder.newBuilder()
+        // Names are looked up again in the background 30 minutes after they
+        // were loaded, so that frequently used SIDs never wait for LDAP. Names
+        // that can not be refreshed, or are not used, are dropped after two
+        // hours.
+        .refreshAfterWrite(30, TimeUnit.MINUTES)
+        .expireAfterWrite(2, TimeUnit.HOURS)
+        .ticker(ticker)
+        .removalListener(new RemovalListener<String, String>() {
+          @Override
+          public void onRemoval(RemovalNotification<String, String> removal) {
+            if (removal.wasEvicted()) {
+              evicted.add(removal.getKey());
+            }
+          }
+        })
+        .build(new CacheLoader<String, String>() {
+          @Override
+          public String load(String key) throws IOException {
+            return loadAll(Collections.singleton(key)).get(key);
+          }
+
+          @Override
+          public Map<String, String> loadAll(Iterable<? extends String> keys)
+              throws IOException {
+            return ActiveDirectoryClient.this.loadAll(keys);
+          }
+
+          @Override
+          public ListenableFuture<String> reload(String key,
+              String oldValue) {
+            return scheduleRefresh(key);
+          }
+        });
     adServer.start();
   }
 
+  /**
+   * Converts a binary {@code objectSid} to its string form, like
+   * "S-1-5-21-3993744865-3521423997-1479072767-513".
+   */
+  @VisibleForTesting
+  static String sidToString(byte[] sid) {
+    // Revision and number of sub-authorities, followed by the 48-bit
+    // big-endian identifier authority and 32-bit little-endian
+    // sub-authorities.
+    StringBuilder sb = new StringBuilder("S-").append(sid[0] & 0xff);
+    long authority = 0;
+    for (int i = 2; i < 8; i++) {
+      authority = (authority << 8) | (sid[i] & 0xff);
+    }
+    sb.append('-').append(authority);
+    int subAuthorities = sid[1] & 0xff;
+    for (int i = 0; i < subAuthorities; i++) {
+      int offset = 8 + 4 * i;
+      long subAuthority = (sid[offset] & 0xff)
+          | (sid[offset + 1] & 0xff) << 8
+          | (sid[offset + 2] & 0xff) << 16
+          | (long) (sid[offset + 3] & 0xff) << 24;
+      sb.append('-').append(subAuthority);
+    }
+    return sb.toString();
+  }
+
   interface ADServer {
     /*
-     * Resolves input SID to user account name. Returns null if SID is not 
-     * available.
+     * Resolves input SIDs to user account names. SIDs that are not available
+     * are absent from the returned map.
      */
-    public String getUserAccountBySid(String sid) throws IOException;
+    public Map<String, String> getUserAccountsBySid(Collection<String> sids)
+        throws IOException;
     
     /*
      * Initializes LDAP Context and verifies that successful connection can
      * established with AD server using provided connection properties.
      */
     public void start() throws IOException;
+
+    /*
+     * Closes the connections kept for reuse. Connections in use are closed
+     * once they are released.
+     */
+    public void close();
   }
 
   static class ADServerImpl implements ADServer {
+    /** Maximum number of SIDs combined into a single LDAP query. */
+    private static final int MAX_SIDS_PER_QUERY = 100;
+
     private final String host;
     private final int port;
     private final String username;
@@ -122,10 +365,16 @@ public class ActiveDirectoryClient {
     private final SearchControls searchCtls;
 
     private final String[] attributes = new String[] {
-        "sAMAccountName", "name" };
+        "objectSid", "sAMAccountName", "name" };
 
-    private volatile LdapContext context;
-    private String dn;
+    /** Connections not currently in use. */
+    private final BlockingQueue<LdapContext> idleContexts
+        = new LinkedBlockingQueue<LdapContext>();
+    /** Limits the number of connections, idle or in use. */
+    private final Semaphore contextPermits
+        = new Semaphore(MAX_CONNECTIONS, true);
+    private volatile String dn;
+    private volatile boolean closed;
 
     ADServerImpl(String host, int port, String username, String password,
         String method) {
@@ -147,107 +396,181 @@ public class ActiveDirectoryClient {
     }
 
     @Override
-    public String getUserAccountBySid(String sid) throws IOException {      
-      Preconditions.checkNotNull(sid);
-      Preconditions.checkArgument(sid.startsWith("S-1-")
-          || sid.startsWith("s-1-"), "Invalid SID: %s", sid);      
-      refreshConnection();
-      String query = String.format("(objectSid=%s)", sid);
+    public Map<String, String> getUserAccountsBySid(Collection<String> sids)
+        throws IOException {
+      Map<String, String> resolved = new HashMap<String, String>();
+      List<String> batch = new ArrayList<String>(MAX_SIDS_PER_QUERY);
+      for (String sid : sids) {
+        Preconditions.checkNotNull(sid);
+        Preconditions.checkArgument(sid.startsWith("S-1-")
+            || sid.startsWith("s-1-"), "Invalid SID: %s", sid);
+        batch.add(sid);
+        if (batch.size() == MAX_SIDS_PER_QUERY) {
+          search(batch, resolved);
+          batch.clear();
+        }
+      }
+      if (!batch.isEmpty()) {
+        search(batch, resolved);
+      }
+      return resolved;
+    }
+
+    private void search(List<String> sids, Map<String, String> resolved)
+        throws IOException {
+      // Results identify themselves by binary objectSid, which converts to
+      // upper case.
+      Map<String, String> requested = new HashMap<String, String>();
+      StringBuilder query = new StringBuilder("(|");
+      for (String sid : sids) {
+        requested.put(sid.toUpperCase(Locale.ENGLISH), sid);
+        query.append("(objectSid=").append(sid).append(")");
+      }
+      query.append(")");
       String searchBase = (port == 389 || port == 636) ? dn : "";
       log.log(Level.FINE, "Querying host {0} on port {1} with query {2} and"
           + " search base {3}", new Object[] {host, port, query, searchBase});
+      LdapContext context = borrowContext();
+      boolean reusable = false;
       try {
-        NamingEnumeration<SearchResult> results = context.search(searchBase,
-            query, searchCtls);
-        if (!results.hasMoreElements()) {
-          log.log(Level.WARNING, "No result found on host {0} on port {1}"
-              + " with query {2} and search base {3}. Returing null.",
-              new Object[] {host, port, query, searchBase});
-          return null;
-        }
-        SearchResult sr = results.next();
-        Attributes attrbs = sr.getAttributes();
-        // use sAMAccountName when available
-        String sAMAccountName = (String) getAttribute(attrbs, "sAMAccountName");
-        if (!Strings.isNullOrEmpty(sAMAccountName)) {
-          return sAMAccountName;
+        NamingEnumeration<SearchResult> results;
+        try {
+          results = context.search(searchBase, query.toString(), searchCtls);
+        } catch (CommunicationException ce) {
+          log.log(Level.INFO, "Error using LDAP connection to host {0}"
+              + " on port {1} for SID lookup. Retrying.",
+              new Object[] {host, port});
+          closeQuietly(context);
+          context = newContext();
+          results = context.search(searchBase, query.toString(), searchCtls);
         }
-        log.log(Level.FINER, "sAMAccountName is null for SID {0}. This might"
-            + " be domain object.", sid);
-        String name = (String) getAttribute(attrbs, "name");
-        if (!Strings.isNullOrEmpty(name)) {
-          return name;
+        while (results.hasMore()) {
+          Attributes attrbs = results.next().getAttributes();
+          Object objectSid = getAttribute(attrbs, "objectSid");
+          if (!(objectSid instanceof byte[])) {
+            continue;
+          }
+          String sid = requested.get(sidToString((byte[]) objectSid));
+          if (sid == null) {
+            continue;
+          }
+          String accountName = getAccountName(sid, attrbs);
+          if (accountName != null) {
+            resolved.put(sid, accountName);
+          }
         }
-        log.log(Level.WARNING, "name is null for SID {0}. Returing null.", sid);
-        return null;
+        reusable = true;
       } catch (NamingException ne) {
         throw new IOException(ne);
+      } finally {
+        releaseContext(context, reusable);
+      }
+    }
+
+    private String getAccountName(String sid, Attributes attrbs)
+        throws NamingException {
+      // use sAMAccountName when available
+      String sAMAccountName = (String) getAttribute(attrbs, "sAMAccountName");
+      if (!Strings.isNullOrEmpty(sAMAccountName)) {
+        return sAMAccountName;
       }
+      log.log(Level.FINER, "sAMAccountName is null for SID {0}. This might"
+          + " be domain object.", sid);
+      String name = (String) getAttribute(attrbs, "name");
+      if (!Strings.isNullOrEmpty(name)) {
+        return name;
+      }
+      log.log(Level.WARNING, "name is null for SID {0}. Returing null.", sid);
+      return null;
     }
 
     @Override
     public void start() throws IOException {
-      initializeContext();
-      refreshConnection();
+      LdapContext context = newContext();
+      try {
+        Attributes attributes = context.getAttributes("");
+        dn = (String) getAttribute(attributes, "defaultNamingContext");
+      } catch (NamingException ne) {
+        closeQuietly(context);
+        throw new IOException(ne);
+      }
+      offerIdleContext(context);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+      closeIdleContexts();
     }
 
-    private synchronized void initializeContext() throws IOException {
-      // Check if current context is still useful by calling 
-      // context.getAttributes.
+    private LdapContext borrowContext() throws IOException {
+      try {
+        contextPermits.acquire();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException(ex);
+      }
+      LdapContext context = idleContexts.poll();
       if (context != null) {
-        try {
-          context.getAttributes("");
-          return;
-        } catch (NamingException ignore) {
-          ignore = null;
-        }
+        return context;
+      }
+      try {
+        return newContext();
+      } catch (IOException ex) {
+        contextPermits.release();
+        throw ex;
+      }
+    }
+
+    private void releaseContext(LdapContext context, boolean reusable) {
+      if (reusable) {
+        offerIdleContext(context);
+      } else {
+        closeQuietly(context);
       }
+      contextPermits.release();
+    }
+
+    private void offerIdleContext(LdapContext context) {
+      idleContexts.offer(context);
+      // Checked after offering, so that either close() or this call closes
+      // the context.
+      if (closed) {
+        closeIdleContexts();
+      }
+    }
+
+    private void closeIdleContexts() {
+      for (LdapContext context = idleContexts.poll(); context != null;
+          context = idleContexts.poll()) {
+        closeQuietly(context);
+      }
+    }
+
+    private LdapContext newContext() throws IOException {
       Hashtable<String, String> env = new Hashtable<String, String>();
       env.put(Context.INITIAL_CONTEXT_FACTORY,
           "com.sun.jndi.ldap.LdapCtxFactory");
       env.put("com.sun.jndi.ldap.read.timeout", "90000");
+      // Return objectSid as byte[] instead of a mangled String.
+      env.put("java.naming.ldap.attributes.binary", "objectSid");
       env.put(Context.SECURITY_AUTHENTICATION, "simple");
       env.put(Context.SECURITY_PRINCIPAL, username);
       env.put(Context.SECURITY_CREDENTIALS, password);
       String ldapUrl = String.format("%s://%s:%d", protocol, host, port);
       env.put(Context.PROVIDER_URL, ldapUrl);
       try {
-        context = new InitialLdapContext(env, null);
+        return new InitialLdapContext(env, null);
       } catch (NamingException ne) {
         throw new IOException(ne);
       }
     }
-    
-    private void refreshConnection() throws IOException {
-      refreshConnection(true);
-    }
-    private void refreshConnection(boolean retry) throws IOException {
-      if (context == null) {
-        throw new IOException("LDAP Context not initialized.");
-      }
+
+    private void closeQuietly(LdapContext context) {
       try {
-        Attributes attributes = context.getAttributes("");
-        dn = (String) getAttribute(attributes, "defaultNamingContext");
-      } catch (CommunicationException ce) {
-        if (retry) {
-          log.log(Level.INFO, "Error refreshing LDAP connection to host {0}"
-              + " on port {1} for SID lookup. Retrying.",
-              new Object[] {host, port});
-          initializeContext();
-          refreshConnection(false);
-        } else {
-          throw new IOException(ce);
-        }
-      } catch (NamingException ne) {
-        if (retry) {
-          log.log(Level.INFO, "Error refreshing LDAP connection to host {0}"
-              + " on port {1} for SID lookup. Retrying.",
-              new Object[] {host, port});
-          initializeContext();
-          refreshConnection(false);
-        } else {
-          throw new IOException(ne);
-        }
+        context.close();
+      } catch (NamingException ex) {
+        log.log(Level.FINEST, "Error closing LDAP connection", ex);
       }
     }
 
@@ -262,4 +585,3 @@ public class ActiveDirectoryClient {
     }
   }
 }
-
@@ -0,0 +1,77 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Durable storage for string checkpoints, like the change token last processed
+ * for a content database or site collection. Implementations must be
+ * thread-safe.
+ */
+interface CheckpointStore {
+  /**
+   * Returns all checkpoints currently in the store. Intended to be called once,
+   * before any modifications.
+   */
+  public Map<String, String> load() throws IOException;
+
+  /** Persists {@code value} for {@code key}, replacing any previous value. */
+  public void put(String key, String value) throws IOException;
+
+  /**
+   * Persists all of {@code values}, like {@link #put} for each of them but
+   * potentially with less overhead.
+   */
+  public void putAll(Map<String, String> values) throws IOException;
+
+  /** Removes any checkpoint for {@code key}. */
+  public void remove(String key) throws IOException;
+
+  /**
+   * Removes the checkpoints for all of {@code keys}, like {@link #remove} for
+   * each of them but potentially with less overhead.
+   */
+  public void removeAll(Collection<String> keys) throws IOException;
+
+  /** Releases any resources held by the store. */
+  public void close() throws IOException;
+
+  /** Store that keeps nothing, so that every restart begins from scratch. */
+  public static class NoopCheckpointStore implements CheckpointStore {
+    @Override
+    public Map<String, String> load() {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public void put(String key, String value) {}
+
+    @Override
+    public void putAll(Map<String, String> values) {}
+
+    @Override
+    public void remove(String key) {}
+
+    @Override
+    public void removeAll(Collection<String> keys) {}
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decodes claims encoded login names, like {@code i:0#.f|membership|user1},
+ * into the names used for principals.
+ *
+ * <p>The encoding starts with a fixed-width prefix: identity ({@code i}) or
+ * other ({@code c}) claim, {@code :0}, the claim type, {@code .}, the issuer
+ * type and {@code |}. Decoding dispatches on those characters directly, so
+ * each login name is examined once without any regular expressions.
+ */
+final class ClaimsDecoder {
+  private static final Logger log
+      = Logger.getLogger(ClaimsDecoder.class.getName());
+
+  /** Length of the fixed-width prefix, like {@code i:0#.w|}. */
+  private static final int PREFIX_LENGTH = 7;
+
+  private static final String EVERYONE_CLAIM = "c:0(.s|true";
+  private static final String AUTHENTICATED_USERS_CLAIM = "c:0!.s|windows";
+
+  private static final int NOT_CLAIM = 0;
+  private static final int UNSUPPORTED = 1;
+  private static final int WINDOWS_USER = 2;
+  private static final int WINDOWS_GROUP = 3;
+  private static final int EVERYONE = 4;
+  private static final int AUTHENTICATED_USERS = 5;
+  private static final int FORMS = 6;
+  private static final int TRUSTED = 7;
+
+  private ClaimsDecoder() {}
+
+  /**
+   * Returns the principal name for {@code loginName}, using {@code name}
+   * for claims encoded domain groups, or {@code null} if the claim type is
+   * not supported. Login names that are not claims encoded are returned as-is.
+   */
+  public static String decode(String loginName, String name) {
+    return decode(classify(loginName), loginName, name);
+  }
+
+  private static String decode(int kind, String loginName, String name) {
+    switch (kind) {
+      case NOT_CLAIM:
+        return loginName;
+      case WINDOWS_USER:
+        return loginName.substring(PREFIX_LENGTH);
+      case WINDOWS_GROUP:
+        return name;
+      case EVERYONE:
+        return "Everyone";
+      case AUTHENTICATED_USERS:
+        return "NT AUTHORITY\\authenticated users";
+      case FORMS:
+        // Forms authentication users and roles are provider|name.
+        return loginName.substring(PREFIX_LENGTH).replace('|', ':');
+      case TRUSTED:
+        // Identity and role claims for trusted providers such as ADFS are
+        // provider|name.
+        int nameStart = loginName.indexOf('|', PREFIX_LENGTH) + 1;
+        if (nameStart != 0) {
+          return loginName.substring(nameStart);
+        }
+        break;
+      default:
+        break;
+    }
+    log.log(Level.WARNING, "Unsupported claims value {0}", loginName);
+    return null;
+  }
+
+  private static int classify(String loginName) {
+    if (loginName.length() < 3
+        || (loginName.charAt(0) != 'i' && loginName.charAt(0) != 'c')
+        || loginName.charAt(1) != ':' || loginName.charAt(2) != '0') {
+      return NOT_CLAIM;
+    }
+    if (loginName.length() < PREFIX_LENGTH || loginName.charAt(4) != '.'
+        || loginName.charAt(6) != '|') {
+      return UNSUPPORTED;
+    }
+    boolean identity = loginName.charAt(0) == 'i';
+    char claimType = loginName.charAt(3);
+    switch (loginName.charAt(5)) {
+      case 'w':
+        if (identity && claimType == '#') {
+          return WINDOWS_USER;
+        } else if (!identity && claimType == '+') {
+          return WINDOWS_GROUP;
+        }
+        break;
+      case 's':
+        if (EVERYONE_CLAIM.equals(loginName)) {
+          return EVERYONE;
+        } else if (AUTHENTICATED_USERS_CLAIM.equals(loginName)) {
+          return AUTHENTICATED_USERS;
+        }
+        break;
+      case 'f':
+        if ((identity && claimType == '#') || (!identity && claimType == '-')) {
+          return FORMS;
+        }
+        break;
+      case 't':
+        return TRUSTED;
+      default:
+        break;
+    }
+    return UNSUPPORTED;
+  }
+}
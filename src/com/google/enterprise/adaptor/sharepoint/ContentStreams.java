@@ -0,0 +1,81 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies document contents using a large buffer that is reused by each
+ * thread, so that large downloads need few reads and writes and do not
+ * allocate per document.
+ */
+class ContentStreams {
+  /** Large enough to hold several TCP windows of a fast download. */
+  static final int BUFFER_SIZE = 256 * 1024;
+
+  private static final ThreadLocal<byte[]> buffer
+      = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+          return new byte[BUFFER_SIZE];
+        }
+      };
+
+  private ContentStreams() {}
+
+  /**
+   * Copies {@code in} to {@code out} until the end of {@code in}, or until
+   * {@code maxBytes} bytes have been copied. Neither stream is closed.
+   *
+   * @return the number of bytes copied
+   */
+  public static long copy(InputStream in, OutputStream out, long maxBytes)
+      throws IOException {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative");
+    }
+    byte[] buf = buffer.get();
+    long copied = 0;
+    while (copied < maxBytes) {
+      int read = in.read(buf, 0, (int) Math.min(buf.length, maxBytes - copied));
+      if (read == -1) {
+        break;
+      }
+      out.write(buf, 0, read);
+      copied += read;
+    }
+    return copied;
+  }
+
+  /**
+   * Parses a {@code Content-Length} header value.
+   *
+   * @return the length, or {@code -1} if {@code value} is {@code null} or not
+   *     a valid length
+   */
+  public static long parseContentLength(String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      long length = Long.parseLong(value.trim());
+      return length < 0 ? -1 : length;
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+}
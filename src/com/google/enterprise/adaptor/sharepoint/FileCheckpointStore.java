@@ -0,0 +1,302 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.adaptor.IOHelper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link CheckpointStore} backed by an append-only journal file. Every
+ * modification is appended as a single line and synced to disk before
+ * returning. When the journal grows much larger than the number of live
+ * checkpoints, it is compacted by writing the live checkpoints to a separate
+ * file and renaming it over the journal.
+ *
+ * <p>A crash while appending can leave a partial final line, which is ignored
+ * when loading. A crash during compaction leaves either the old journal or the
+ * fully-written compacted copy, and loading recovers from either.
+ */
+class FileCheckpointStore implements CheckpointStore {
+  private static final Logger log
+      = Logger.getLogger(FileCheckpointStore.class.getName());
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private static final String PUT = "P";
+  private static final String REMOVE = "R";
+  /** Journal size, in records, below which compaction is never performed. */
+  private static final int MIN_RECORDS_FOR_COMPACTION = 1000;
+
+  private final File file;
+  private final File compactionFile;
+  private final int minRecordsForCompaction;
+  private final Map<String, String> checkpoints = new HashMap<String, String>();
+  private FileOutputStream out;
+  /** {@code null} after a failed compaction removed the journal. */
+  private Writer writer;
+  /** Whether the store has been loaded and not closed since. */
+  private boolean open;
+  /** Number of records currently in the journal. */
+  private int records;
+
+  public FileCheckpointStore(File file) {
+    this(file, MIN_RECORDS_FOR_COMPACTION);
+  }
+
+  @VisibleForTesting
+  FileCheckpointStore(File file, int minRecordsForCompaction) {
+    if (file == null) {
+      throw new NullPointerException();
+    }
+    this.file = file;
+    this.compactionFile = new File(file.getPath() + ".compact");
+    this.minRecordsForCompaction = minRecordsForCompaction;
+  }
+
+  @Override
+  public synchronized Map<String, String> load() throws IOException {
+    if (!file.exists() && compactionFile.exists()) {
+      // Compaction removed the journal, but did not get to rename the
+      // compacted copy. The compacted copy was synced before the journal was
+      // removed, so it is complete.
+      log.log(Level.INFO, "Recovering checkpoints from {0}", compactionFile);
+      if (!compactionFile.renameTo(file)) {
+        throw new IOException("Could not rename " + compactionFile + " to "
+            + file);
+      }
+    }
+    checkpoints.clear();
+    if (file.exists()) {
+      readJournal();
+    }
+    // Start out with a clean journal, which also drops any partial record.
+    compact();
+    open = true;
+    log.log(Level.FINE, "Loaded {0} checkpoints from {1}",
+        new Object[] {checkpoints.size(), file});
+    return Collections.unmodifiableMap(
+        new HashMap<String, String>(checkpoints));
+  }
+
+  @Override
+  public synchronized void put(String key, String value) throws IOException {
+    checkField(key);
+    checkField(value);
+    if (value.equals(checkpoints.get(key))) {
+      return;
+    }
+    append(PUT + "\t" + key + "\t" + value + "\n");
+    checkpoints.put(key, value);
+    maybeCompact();
+  }
+
+  /** Appends all changed values and syncs to disk once. */
+  @Override
+  public synchronized void putAll(Map<String, String> values)
+      throws IOException {
+    StringBuilder records = new StringBuilder();
+    int count = 0;
+    for (Map.Entry<String, String> me : values.entrySet()) {
+      checkField(me.getKey());
+      checkField(me.getValue());
+      if (me.getValue().equals(checkpoints.get(me.getKey()))) {
+        continue;
+      }
+      records.append(PUT).append("\t").append(me.getKey()).append("\t")
+          .append(me.getValue()).append("\n");
+      count++;
+    }
+    if (count == 0) {
+      return;
+    }
+    append(records.toString(), count);
+    checkpoints.putAll(values);
+    maybeCompact();
+  }
+
+  @Override
+  public synchronized void remove(String key) throws IOException {
+    checkField(key);
+    if (!checkpoints.containsKey(key)) {
+      return;
+    }
+    append(REMOVE + "\t" + key + "\n");
+    checkpoints.remove(key);
+    maybeCompact();
+  }
+
+  /** Appends all removals and syncs to disk once. */
+  @Override
+  public synchronized void removeAll(Collection<String> keys)
+      throws IOException {
+    StringBuilder records = new StringBuilder();
+    int count = 0;
+    for (String key : keys) {
+      checkField(key);
+      if (!checkpoints.containsKey(key)) {
+        continue;
+      }
+      records.append(REMOVE).append("\t").append(key).append("\n");
+      count++;
+    }
+    if (count == 0) {
+      return;
+    }
+    append(records.toString(), count);
+    checkpoints.keySet().removeAll(keys);
+    maybeCompact();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    open = false;
+    closeJournal();
+  }
+
+  private void closeJournal() throws IOException {
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.close();
+    } finally {
+      writer = null;
+      out = null;
+    }
+  }
+
+  private void readJournal() throws IOException {
+    String contents;
+    InputStream in = new FileInputStream(file);
+    try {
+      contents = IOHelper.readInputStreamToString(in, CHARSET);
+    } finally {
+      in.close();
+    }
+    int start = 0;
+    while (start < contents.length()) {
+      int end = contents.indexOf('\n', start);
+      if (end == -1) {
+        log.log(Level.WARNING, "Ignoring incomplete checkpoint record at end "
+            + "of {0}", file);
+        break;
+      }
+      parseRecord(contents.substring(start, end));
+      start = end + 1;
+    }
+  }
+
+  private void parseRecord(String record) {
+    String[] parts = record.split("\t", -1);
+    if (PUT.equals(parts[0]) && parts.length == 3) {
+      checkpoints.put(parts[1], parts[2]);
+    } else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+      checkpoints.remove(parts[1]);
+    } else {
+      log.log(Level.WARNING, "Ignoring malformed checkpoint record in {0}: {1}",
+          new Object[] {file, record});
+    }
+  }
+
+  private void append(String record) throws IOException {
+    append(record, 1);
+  }
+
+  private void append(String records, int count) throws IOException {
+    if (!open) {
+      throw new IllegalStateException("Store is not loaded or is closed");
+    }
+    if (writer == null) {
+      // An earlier compaction failed after removing the journal. Rewrite it
+      // from the checkpoints in memory, failing with an IOException again if
+      // that is still not possible.
+      compact();
+    }
+    writer.write(records);
+    writer.flush();
+    out.getFD().sync();
+    this.records += count;
+  }
+
+  private void maybeCompact() throws IOException {
+    if (records >= minRecordsForCompaction
+        && records > 2 * checkpoints.size()) {
+      compact();
+    }
+  }
+
+  /**
+   * Rewrites the journal to contain only the live checkpoints. If this fails,
+   * the existing journal stays open for appending.
+   */
+  private void compact() throws IOException {
+    FileOutputStream compactOut = new FileOutputStream(compactionFile);
+    try {
+      Writer compactWriter = new OutputStreamWriter(compactOut, CHARSET);
+      for (Map.Entry<String, String> me : checkpoints.entrySet()) {
+        compactWriter.write(PUT + "\t" + me.getKey() + "\t" + me.getValue()
+            + "\n");
+      }
+      compactWriter.flush();
+      compactOut.getFD().sync();
+    } finally {
+      compactOut.close();
+    }
+    closeJournal();
+    try {
+      if (!compactionFile.renameTo(file)) {
+        // Some platforms do not allow renaming over an existing file.
+        if (!file.delete() || !compactionFile.renameTo(file)) {
+          throw new IOException("Could not rename " + compactionFile + " to "
+              + file);
+        }
+      }
+      records = checkpoints.size();
+    } finally {
+      // Reopen whichever journal is in place. If the old journal was deleted
+      // but the compacted copy could not be renamed, the copy is complete and
+      // load() recovers from it; the next append retries the compaction.
+      if (file.exists()) {
+        out = new FileOutputStream(file, true);
+        writer = new OutputStreamWriter(out, CHARSET);
+      }
+    }
+  }
+
+  private static void checkField(String field) {
+    if (field == null) {
+      throw new NullPointerException();
+    }
+    if (field.indexOf('\t') != -1 || field.indexOf('\n') != -1
+        || field.indexOf('\r') != -1) {
+      throw new IllegalArgumentException(
+          "Checkpoint keys and values may not contain tabs or newlines: "
+          + field);
+    }
+  }
+}
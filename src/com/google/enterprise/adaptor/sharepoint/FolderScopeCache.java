@@ -0,0 +1,124 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of the permission scope of folders within lists, so that
+ * determining whether a list item inherits its permissions from its folder
+ * does not require retrieving the folder. Entries are filled in bulk as folder
+ * contents are listed, and are invalidated as permission changes within the
+ * list are seen in the change feed.
+ */
+class FolderScopeCache {
+  private final Cache<FolderKey, String> cache;
+
+  /**
+   * @param maximumSize maximum number of folders to remember
+   */
+  public FolderScopeCache(long maximumSize) {
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        // Only a safety net for changes missed by the change feed.
+        .expireAfterWrite(6, TimeUnit.HOURS)
+        .build();
+  }
+
+  /**
+   * Returns the lower-cased scope id of the folder, or {@code null} if it is
+   * not known.
+   *
+   * @param listId id of the list containing the folder
+   * @param folderUrl unique id of the folder's DocId
+   */
+  public String getScopeId(String listId, String folderUrl) {
+    return cache.getIfPresent(new FolderKey(listId, folderUrl));
+  }
+
+  public void putScopeId(String listId, String folderUrl, String scopeId) {
+    if (scopeId == null) {
+      throw new NullPointerException();
+    }
+    cache.put(new FolderKey(listId, folderUrl),
+        scopeId.toLowerCase(Locale.ENGLISH));
+  }
+
+  /** Drops all folders of a list, because the list changed. */
+  public void invalidateList(String listId) {
+    String id = listId.toUpperCase(Locale.ENGLISH);
+    for (Iterator<FolderKey> it = cache.asMap().keySet().iterator();
+        it.hasNext();) {
+      if (it.next().listId.equals(id)) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Drops all folders within a site collection, because its security changed.
+   */
+  public void invalidateSiteCollection(String siteUrl) {
+    String prefix = siteUrl + "/";
+    for (Iterator<FolderKey> it = cache.asMap().keySet().iterator();
+        it.hasNext();) {
+      if (it.next().folderUrl.startsWith(prefix)) {
+        it.remove();
+      }
+    }
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  @VisibleForTesting
+  long size() {
+    return cache.size();
+  }
+
+  private static final class FolderKey {
+    private final String listId;
+    private final String folderUrl;
+
+    public FolderKey(String listId, String folderUrl) {
+      if (listId == null || folderUrl == null) {
+        throw new NullPointerException();
+      }
+      this.listId = listId.toUpperCase(Locale.ENGLISH);
+      this.folderUrl = folderUrl;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof FolderKey)) {
+        return false;
+      }
+      FolderKey key = (FolderKey) o;
+      return listId.equals(key.listId) && folderUrl.equals(key.folderUrl);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * listId.hashCode() + folderUrl.hashCode();
+    }
+  }
+}
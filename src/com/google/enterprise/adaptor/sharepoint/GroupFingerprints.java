@@ -0,0 +1,118 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.enterprise.adaptor.GroupPrincipal;
+import com.google.enterprise.adaptor.Principal;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded record of a SHA-1 fingerprint of the membership last pushed for each
+ * group, so that group definitions that have not changed are not pushed again.
+ * Fingerprints are independent of member order, since SharePoint does not
+ * guarantee any.
+ *
+ * <p>Entries expire a while after being written, so every group is still
+ * re-pushed occasionally in case the GSA lost its definition or a concurrent
+ * push of the same group left a stale fingerprint behind.
+ */
+class GroupFingerprints {
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private final Cache<GroupPrincipal, byte[]> fingerprints;
+
+  /**
+   * @param maximumSize maximum number of groups to remember
+   */
+  public GroupFingerprints(long maximumSize) {
+    fingerprints = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(1, TimeUnit.DAYS)
+        .build();
+  }
+
+  /**
+   * Returns the groups in {@code defs} whose membership differs from what was
+   * last passed to {@link #pushed}.
+   */
+  public Map<GroupPrincipal, Collection<Principal>> changed(
+      Map<GroupPrincipal, ? extends Collection<Principal>> defs) {
+    Map<GroupPrincipal, Collection<Principal>> changed
+        = new HashMap<GroupPrincipal, Collection<Principal>>();
+    for (Map.Entry<GroupPrincipal, ? extends Collection<Principal>> me
+        : defs.entrySet()) {
+      byte[] previous = fingerprints.getIfPresent(me.getKey());
+      if (previous == null
+          || !Arrays.equals(previous, fingerprint(me.getValue()))) {
+        changed.put(me.getKey(), me.getValue());
+      }
+    }
+    return changed;
+  }
+
+  /** Records that {@code defs} were successfully pushed. */
+  public void pushed(
+      Map<GroupPrincipal, ? extends Collection<Principal>> defs) {
+    for (Map.Entry<GroupPrincipal, ? extends Collection<Principal>> me
+        : defs.entrySet()) {
+      fingerprints.put(me.getKey(), fingerprint(me.getValue()));
+    }
+  }
+
+  public void invalidateAll() {
+    fingerprints.invalidateAll();
+  }
+
+  @VisibleForTesting
+  long size() {
+    return fingerprints.size();
+  }
+
+  @VisibleForTesting
+  static byte[] fingerprint(Collection<Principal> members) {
+    List<String> keys = new ArrayList<String>(members.size());
+    for (Principal member : members) {
+      keys.add((member instanceof GroupPrincipal ? "G\t" : "U\t")
+          + member.getName() + "\t" + member.getNamespace());
+    }
+    Collections.sort(keys);
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException ex) {
+      // Every Java platform is required to support SHA-1.
+      throw new AssertionError(ex);
+    }
+    for (String key : keys) {
+      digest.update(key.getBytes(CHARSET));
+      digest.update((byte) '\n');
+    }
+    return digest.digest();
+  }
+}
@@ -23,8 +23,10 @@ import com.google.enterprise.adaptor.DocIdPusher;
 
 import com.microsoft.schemas.sharepoint.soap.ObjectType;
 
+import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
@@ -40,11 +42,35 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 class HtmlResponseWriter implements Closeable {
+  /** The number of chars buffered in front of the charset encoder. */
+  private static final int BUFFER_CHARS = 8 * 1024;
   /**
-   * The number of bytes that may be buffered within the streams. It should
-   * error on the side of being too large.
+   * The number of bytes {@link OutputStreamWriter} may buffer after encoding.
+   * It should error on the side of being too large.
    */
-  private static final long POSSIBLY_BUFFERED_BYTES = 1024;
+  private static final long ENCODER_BUFFERED_BYTES = 8 * 1024;
+  /**
+   * Characters that may appear unquoted in a relative path produced by {@link
+   * #relativize}, indexed by character. Only ASCII is considered.
+   */
+  private static final boolean[] PATH_CHARS = new boolean[128];
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  static {
+    for (char c = 'a'; c <= 'z'; c++) {
+      PATH_CHARS[c] = true;
+    }
+    for (char c = 'A'; c <= 'Z'; c++) {
+      PATH_CHARS[c] = true;
+    }
+    for (char c = '0'; c <= '9'; c++) {
+      PATH_CHARS[c] = true;
+    }
+    // Unreserved marks and the punctuation java.net.URI allows in a path.
+    for (char c : "-_.!~*'();/:@&=+$,".toCharArray()) {
+      PATH_CHARS[c] = true;
+    }
+  }
 
   private static final Logger log
       = Logger.getLogger(HtmlResponseWriter.class.getName());
@@ -72,14 +98,45 @@ class HtmlResponseWriter implements Closeable {
   private final CountingOutputStream countingOutputStream;
   private final DocIdPusher pusher;
   private final Executor executor;
+  /**
+   * Number of overflowing DocIds pushed together from the writing thread, while
+   * the rest of the document is still being written.
+   */
+  private final int overflowBatchSize;
+  /**
+   * The number of bytes that may be buffered within the writers, and so not
+   * yet counted by {@link #countingOutputStream}.
+   */
+  private final long possiblyBufferedBytes;
   private DocId docId;
   private URI docUri;
+  /** Decoded path of {@link #docUri}, if it is hierarchical. */
+  private String docPath;
+  /**
+   * Decoded path of {@link #docUri} up to and including the final '/', or
+   * {@code null} if links can't be relativized without {@link #relativize}.
+   */
+  private String docFolderPath;
+  /** Reused to build the href of each link, see {@link #writeHrefFast}. */
+  private char[] hrefBuffer = new char[256];
   private State state = State.INITIAL;
   private final Collection<DocId> overflowDocIds = new ArrayList<DocId>(1024);
 
   public HtmlResponseWriter(OutputStream os, Charset charset,
       DocIdEncoder docIdEncoder, Locale locale, long thresholdBytes,
       DocIdPusher pusher, Executor executor) {
+    this(os, charset, docIdEncoder, locale, thresholdBytes, pusher, executor,
+        Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param overflowBatchSize number of DocIds that didn't fit within {@code
+   *     thresholdBytes} to push together while writing, like {@code
+   *     feed.maxUrls}
+   */
+  public HtmlResponseWriter(OutputStream os, Charset charset,
+      DocIdEncoder docIdEncoder, Locale locale, long thresholdBytes,
+      DocIdPusher pusher, Executor executor, int overflowBatchSize) {
     if (os == null) {
       throw new NullPointerException();
     }
@@ -98,13 +155,22 @@ class HtmlResponseWriter implements Closeable {
     if (executor == null) {
       throw new NullPointerException();
     }
+    if (overflowBatchSize < 1) {
+      throw new IllegalArgumentException(
+          "overflowBatchSize must be positive: " + overflowBatchSize);
+    }
     countingOutputStream = new CountingOutputStream(os);
-    this.writer = new OutputStreamWriter(countingOutputStream, charset);
+    this.writer = new BufferedWriter(
+        new OutputStreamWriter(countingOutputStream, charset), BUFFER_CHARS);
+    float maxBytesPerChar = charset.newEncoder().maxBytesPerChar();
+    this.possiblyBufferedBytes = ENCODER_BUFFERED_BYTES
+        + (long) Math.ceil(BUFFER_CHARS * maxBytesPerChar);
     this.docIdEncoder = docIdEncoder;
     this.locale = locale;
     this.thresholdBytes = thresholdBytes;
     this.pusher = pusher;
     this.executor = executor;
+    this.overflowBatchSize = overflowBatchSize;
   }
 
   /**
@@ -121,16 +187,24 @@ class HtmlResponseWriter implements Closeable {
     }
     this.docId = docId;
     this.docUri = docIdEncoder.encodeDocId(docId);
+    this.docPath = docUri.getPath();
+    int lastSlash = docPath == null ? -1 : docPath.lastIndexOf('/');
+    if (docUri.getScheme() == null || docUri.getAuthority() == null
+        || lastSlash == -1) {
+      this.docFolderPath = null;
+    } else {
+      this.docFolderPath = docPath.substring(0, lastSlash + 1);
+    }
     String documentLabel = computeLabel(label, docId);
     writer.write("<!DOCTYPE html>\n<html><head><title>");
-    writer.write(escapeContent(documentLabel));
+    writeEscapedContent(documentLabel);
     writer.write("</title></head><body><h1>");
     googleoffIndex();
     // TODO(ejona): Localize.
     writer.write(computeTypeHeaderLabel(type));
     googleonIndex();
     writer.write(" ");
-    writer.write(escapeContent(documentLabel));
+    writeEscapedContent(documentLabel);
     writer.write("</h1>");
     state = State.STARTED;
   }
@@ -142,7 +216,7 @@ class HtmlResponseWriter implements Closeable {
     checkAndCloseSection();
     writer.write("<p>");
     googleoffIndex();
-    writer.write(escapeContent(computeTypeSectionLabel(type)));
+    writeEscapedContent(computeTypeSectionLabel(type));
     googleonIndex();
     writer.write("</p><ul>");
     state = State.IN_SECTION;
@@ -165,20 +239,94 @@ class HtmlResponseWriter implements Closeable {
     if (doc == null) {
       throw new NullPointerException();
     }
-    if (countingOutputStream.getCount() + POSSIBLY_BUFFERED_BYTES
+    if (countingOutputStream.getCount() + possiblyBufferedBytes
         > thresholdBytes) {
       overflowDocIds.add(doc);
+      if (overflowDocIds.size() >= overflowBatchSize) {
+        pushOverflowDocIds();
+      }
     }
     writer.write("<li><a href=\"");
-    writer.write(escapeAttributeValue(encodeDocId(doc)));
+    URI uri = docIdEncoder.encodeDocId(doc);
+    if (!writeHrefFast(uri)) {
+      writeEscapedAttributeValue(encodeDocId(uri));
+    }
     writer.write("\">");
-    writer.write(escapeContent(computeLabel(label, doc)));
+    writeEscapedContent(computeLabel(label, doc));
     writer.write("</a></li>");
   }
 
+  /**
+   * Writes the escaped href for {@code uri} when it is within the folder of the
+   * document being written, which is the case for nearly all links of list and
+   * folder listings. The output is identical to escaping the result of {@link
+   * #relativize}, but avoids splitting the paths and creating a new URI for
+   * every link. Returns {@code false} without writing anything if {@code uri}
+   * needs the general handling of {@code relativize}.
+   */
+  private boolean writeHrefFast(URI uri) throws IOException {
+    if (docFolderPath == null || uri.getRawQuery() != null
+        || uri.getRawFragment() != null
+        || !docUri.getScheme().equals(uri.getScheme())
+        || !docUri.getAuthority().equals(uri.getAuthority())) {
+      return false;
+    }
+    String path = uri.getPath();
+    // relativize produces "#" for a link to the document itself.
+    if (path == null || !path.startsWith(docFolderPath)
+        || path.equals(docPath)) {
+      return false;
+    }
+    int start = docFolderPath.length();
+    if (path.startsWith("/", start)) {
+      // Empty path segment, which relativize doesn't handle either.
+      return false;
+    }
+    // Each char becomes at most a 5 char entity or a 3 char escape.
+    int maxLength = (path.length() - start) * 5;
+    if (hrefBuffer.length < maxLength) {
+      hrefBuffer = new char[maxLength];
+    }
+    char[] buffer = hrefBuffer;
+    int length = 0;
+    boolean inFirstSegment = true;
+    for (int i = start; i < path.length(); i++) {
+      char c = path.charAt(i);
+      if (c >= PATH_CHARS.length) {
+        // URI normalizes non-ASCII before quoting it.
+        return false;
+      }
+      if (c == ':' && inFirstSegment) {
+        // relativize prefixes "./" so it isn't mistaken for a scheme.
+        return false;
+      }
+      if (c == '/') {
+        inFirstSegment = false;
+      }
+      if (c == '&') {
+        length = append(buffer, length, "&amp;");
+      } else if (c == '\'') {
+        length = append(buffer, length, "&apos;");
+      } else if (PATH_CHARS[c]) {
+        buffer[length++] = c;
+      } else {
+        buffer[length++] = '%';
+        buffer[length++] = HEX_DIGITS[c >> 4];
+        buffer[length++] = HEX_DIGITS[c & 0xF];
+      }
+    }
+    writer.write(buffer, 0, length);
+    return true;
+  }
+
+  private static int append(char[] buffer, int length, String s) {
+    s.getChars(0, s.length(), buffer, length);
+    return length + s.length();
+  }
+
   private void addComment(String comment) throws IOException {
     writer.write("<!--");
-    writer.write(escapeContent(comment));
+    writeEscapedContent(comment);
     writer.write("-->");
   }
 
@@ -197,9 +345,9 @@ class HtmlResponseWriter implements Closeable {
     writer.write("<table style='border: none'>");
     for (Map.Entry<String, String> me : metadata.entries()) {
       writer.write("<tr><td>");
-      writer.write(escapeContent(me.getKey()));
+      writeEscapedContent(me.getKey());
       writer.write("</td><td>");
-      writer.write(escapeContent(me.getValue()));
+      writeEscapedContent(me.getValue());
       writer.write("</td></tr>");
     }
     writer.write("</table>");
@@ -220,7 +368,11 @@ class HtmlResponseWriter implements Closeable {
         @Override
         public void run() {
           try {
-            pusher.pushDocIds(overflowDocIds);
+            DocId failed = pusher.pushDocIds(overflowDocIds);
+            if (failed != null) {
+              log.log(Level.WARNING, "Failed to push overflowing links, "
+                  + "starting at {0}", failed);
+            }
           } catch (InterruptedException ex) {
             Thread.currentThread().interrupt();
           }
@@ -234,6 +386,27 @@ class HtmlResponseWriter implements Closeable {
     log.exiting("HtmlResponseWriter", "finish");
   }
 
+  /**
+   * Pushes the DocIds that have overflowed so far, so that they don't
+   * accumulate until the document is finished. The push happens on the
+   * writing thread, which holds back writing while the pusher is busy.
+   */
+  private void pushOverflowDocIds() throws IOException {
+    DocId failed;
+    try {
+      failed = pusher.pushDocIds(overflowDocIds);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(
+          "Interrupted while pushing overflowing links");
+    }
+    if (failed != null) {
+      throw new IOException("Failed to push overflowing links, starting at "
+          + failed);
+    }
+    overflowDocIds.clear();
+  }
+
   /**
    * Close underlying writer. You will generally want to call {@link #finish}
    * first.
@@ -247,11 +420,10 @@ class HtmlResponseWriter implements Closeable {
   }
 
   /**
-   * Encodes a DocId into a URI formatted as a string.
+   * Encodes the URI of a DocId into a URI formatted as a string.
    */
-  private String encodeDocId(DocId doc) {
-    log.entering("HtmlResponseWriter", "encodeDocId", doc);
-    URI uri = docIdEncoder.encodeDocId(doc);
+  private String encodeDocId(URI uri) {
+    log.entering("HtmlResponseWriter", "encodeDocId", uri);
     uri = relativize(docUri, uri);
     String encoded = uri.toASCIIString();
     log.exiting("HtmlResponseWriter", "encodeDocId", encoded);
@@ -369,11 +541,46 @@ class HtmlResponseWriter implements Closeable {
     }
   }
 
-  private String escapeContent(String raw) {
-    return raw.replace("&", "&amp;").replace("<", "&lt;");
+  private void writeEscapedContent(String raw) throws IOException {
+    writeEscaped(raw, false);
   }
 
-  private String escapeAttributeValue(String raw) {
-    return escapeContent(raw).replace("\"", "&quot;").replace("'", "&apos;");
+  private void writeEscapedAttributeValue(String raw) throws IOException {
+    writeEscaped(raw, true);
+  }
+
+  /**
+   * Writes {@code raw} with {@code &} and {@code <} escaped, and quotes as
+   * well if {@code attribute}. Unescaped runs are written directly from {@code
+   * raw} instead of creating an escaped copy.
+   */
+  private void writeEscaped(String raw, boolean attribute) throws IOException {
+    int start = 0;
+    for (int i = 0; i < raw.length(); i++) {
+      String entity;
+      switch (raw.charAt(i)) {
+        case '&':
+          entity = "&amp;";
+          break;
+        case '<':
+          entity = "&lt;";
+          break;
+        case '"':
+          entity = attribute ? "&quot;" : null;
+          break;
+        case '\'':
+          entity = attribute ? "&apos;" : null;
+          break;
+        default:
+          entity = null;
+          break;
+      }
+      if (entity != null) {
+        writer.write(raw, start, i - start);
+        writer.write(entity);
+        start = i + 1;
+      }
+    }
+    writer.write(raw, start, raw.length() - start);
   }
 }
@@ -0,0 +1,92 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded index from list item URL to the ids of the list and item, so that
+ * retrieving an item does not first require asking SharePoint what the URL
+ * refers to. Entries are filled in bulk as folder contents are listed and as
+ * items are seen in the change feed.
+ *
+ * <p>Items can be renamed, moved, or deleted, so callers must verify that the
+ * item retrieved for an entry still has the expected URL.
+ */
+class ListItemIndex {
+  private final Cache<String, ListItemId> cache;
+
+  /**
+   * @param maximumSize maximum number of items to remember
+   */
+  public ListItemIndex(long maximumSize) {
+    cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(6, TimeUnit.HOURS)
+        .build();
+  }
+
+  /** Returns the ids for {@code url}, or {@code null} if they are not known. */
+  public ListItemId get(String url) {
+    return cache.getIfPresent(url);
+  }
+
+  public void put(String url, String listId, String itemId) {
+    cache.put(url, new ListItemId(listId, itemId));
+  }
+
+  /** Drops the entry for {@code url}, because it was found to be stale. */
+  public void invalidate(String url) {
+    cache.invalidate(url);
+  }
+
+  /** Drops all items of a list, because the list was deleted. */
+  public void invalidateList(String listId) {
+    for (Iterator<ListItemId> it = cache.asMap().values().iterator();
+        it.hasNext();) {
+      if (it.next().listId.equalsIgnoreCase(listId)) {
+        it.remove();
+      }
+    }
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  @VisibleForTesting
+  long size() {
+    return cache.size();
+  }
+
+  /** Ids SharePoint uses to refer to a list item. */
+  public static final class ListItemId {
+    public final String listId;
+    public final String itemId;
+
+    private ListItemId(String listId, String itemId) {
+      if (listId == null || itemId == null) {
+        throw new NullPointerException();
+      }
+      this.listId = listId;
+      this.itemId = itemId;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded record of the state of each list when its listing was last
+ * generated, so that an unchanged list can be answered with "no content"
+ * without paging through its children again. The state is the list's item
+ * count and last modified time, both of which are part of the list's metadata
+ * and so known before any children are retrieved.
+ *
+ * <p>Entries expire a while after being written, so every listing is still
+ * regenerated occasionally in case a change was not reflected in the list's
+ * metadata.
+ */
+class ListingFingerprints {
+  private final Cache<String, String> fingerprints;
+
+  /**
+   * @param maximumSize maximum number of listings to remember
+   */
+  public ListingFingerprints(long maximumSize) {
+    fingerprints = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(1, TimeUnit.DAYS)
+        .build();
+  }
+
+  /**
+   * Returns whether the listing with DocId {@code docId} was last generated
+   * for the same item count and last modified time.
+   *
+   * @param docId unique id of the listing's DocId
+   * @param lastModified the list's last modified time, as provided by
+   *     SharePoint
+   */
+  public boolean isUnchanged(String docId, int itemCount,
+      String lastModified) {
+    return fingerprint(itemCount, lastModified)
+        .equals(fingerprints.getIfPresent(docId));
+  }
+
+  /** Records that the listing with DocId {@code docId} was generated. */
+  public void listed(String docId, int itemCount, String lastModified) {
+    fingerprints.put(docId, fingerprint(itemCount, lastModified));
+  }
+
+  public void invalidateAll() {
+    fingerprints.invalidateAll();
+  }
+
+  @VisibleForTesting
+  long size() {
+    return fingerprints.size();
+  }
+
+  private static String fingerprint(int itemCount, String lastModified) {
+    if (lastModified == null) {
+      throw new NullPointerException();
+    }
+    return itemCount + "\t" + lastModified;
+  }
+}
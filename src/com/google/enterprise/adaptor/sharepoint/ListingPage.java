@@ -0,0 +1,92 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.enterprise.adaptor.DocId;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+/**
+ * A continuation page of the listing of a list or folder, used when listings
+ * are split into pages of a bounded number of links. The DocId of a page is the
+ * URL of the list or folder followed by SharePoint's opaque position in the
+ * children of the list or folder, as returned by {@code
+ * SiteData.GetContent}'s {@code lastItemIdOnPage}.
+ */
+final class ListingPage {
+  private static final String PARAMETER = "?gsaListingPage=";
+  private static final String CHARSET = "UTF-8";
+
+  /** URL of the list or folder being listed. */
+  public final String containerUrl;
+  /** Position within the children of the container to continue from. */
+  public final String lastItemIdOnPage;
+
+  private ListingPage(String containerUrl, String lastItemIdOnPage) {
+    this.containerUrl = containerUrl;
+    this.lastItemIdOnPage = lastItemIdOnPage;
+  }
+
+  /**
+   * Returns the DocId of the page of {@code containerUrl}'s listing that
+   * starts after {@code lastItemIdOnPage}.
+   */
+  public static DocId docId(String containerUrl, String lastItemIdOnPage) {
+    if (containerUrl == null || lastItemIdOnPage == null) {
+      throw new NullPointerException();
+    }
+    try {
+      return new DocId(containerUrl + PARAMETER
+          + URLEncoder.encode(lastItemIdOnPage, CHARSET));
+    } catch (UnsupportedEncodingException ex) {
+      throw new AssertionError(ex);
+    }
+  }
+
+  /**
+   * Returns the page identified by {@code url}, or {@code null} if {@code url}
+   * is not the URL of a listing page.
+   */
+  public static ListingPage parse(String url) {
+    int index = url.lastIndexOf(PARAMETER);
+    if (index == -1) {
+      return null;
+    }
+    String encoded = url.substring(index + PARAMETER.length());
+    if (encoded.isEmpty()) {
+      return null;
+    }
+    try {
+      return new ListingPage(url.substring(0, index),
+          URLDecoder.decode(encoded, CHARSET));
+    } catch (IllegalArgumentException ex) {
+      // Malformed percent-encoding, so not one of ours.
+      return null;
+    } catch (UnsupportedEncodingException ex) {
+      throw new AssertionError(ex);
+    }
+  }
+
+  /**
+   * Returns the URL of the list or folder if {@code url} is the URL of a
+   * listing page, or {@code url} itself otherwise.
+   */
+  public static String containerUrl(String url) {
+    ListingPage page = parse(url);
+    return page == null ? url : page.containerUrl;
+  }
+}
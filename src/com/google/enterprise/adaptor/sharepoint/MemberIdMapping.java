@@ -16,38 +16,118 @@ package com.google.enterprise.adaptor.sharepoint;
 
 import com.google.common.collect.Interner;
 import com.google.common.collect.Interners;
+import com.google.enterprise.adaptor.GroupPrincipal;
 import com.google.enterprise.adaptor.Principal;
+import com.google.enterprise.adaptor.UserPrincipal;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Immutable lookup from identifier to name for users and groups.
+ *
+ * <p>Site collections can have hundreds of thousands of users, so instead of
+ * a map of boxed identifiers to principals, this uses an open-addressing hash
+ * table of primitive identifiers. Only the interned principal names are kept,
+ * with each principal's namespace and type packed into an {@code int}, and
+ * principals are recreated on lookup.
  */
 class MemberIdMapping {
-  private static final Interner<Principal> interner
+  private static final Interner<String> interner
       = Interners.newWeakInterner();
+  /** Maximum ratio of entries to slots, to keep probe sequences short. */
+  private static final float LOAD_FACTOR = 0.6f;
 
-  private final Map<Integer, Principal> principals;
+  private final int[] ids;
+  /** Principal names, or {@code null} for empty slots. */
+  private final String[] names;
+  /**
+   * Index into {@link #namespaces} shifted left by one, with the low bit set
+   * for groups.
+   */
+  private final int[] types;
+  private final String[] namespaces;
+  /** Shift that reduces a hash to a slot index. */
+  private final int shift;
+  private final int size;
 
   public MemberIdMapping(Map<Integer, ? extends Principal> principals) {
-    Map<Integer, Principal> tmp = new HashMap<Integer, Principal>(principals);
-    // Most of the purpose for this class is to allow future memory
-    // optimizations without having to tweak all the calling code. Thus, it
-    // makes sense for this class to do intern()ing.
-    for (Map.Entry<Integer, Principal> me : tmp.entrySet()) {
-      me.setValue(interner.intern(me.getValue()));
+    int capacity = Integer.highestOneBit(
+        Math.max(2, (int) (principals.size() / LOAD_FACTOR)) - 1) << 1;
+    ids = new int[capacity];
+    names = new String[capacity];
+    types = new int[capacity];
+    shift = Integer.SIZE - Integer.numberOfTrailingZeros(capacity);
+    List<String> namespaceList = new ArrayList<String>();
+    for (Map.Entry<Integer, ? extends Principal> me : principals.entrySet()) {
+      Principal principal = me.getValue();
+      int id = me.getKey();
+      String namespace = principal.getNamespace();
+      int namespaceIndex = namespaceList.indexOf(namespace);
+      if (namespaceIndex == -1) {
+        namespaceIndex = namespaceList.size();
+        namespaceList.add(interner.intern(namespace));
+      }
+      int slot = findSlot(id);
+      ids[slot] = id;
+      names[slot] = interner.intern(principal.getName());
+      types[slot] = (namespaceIndex << 1)
+          | (principal instanceof GroupPrincipal ? 1 : 0);
     }
-    this.principals = Collections.unmodifiableMap(principals);
+    namespaces = namespaceList.toArray(new String[namespaceList.size()]);
+    size = principals.size();
   }
 
   public Principal getPrincipal(Integer id) {
-    return principals.get(id);
+    if (id == null) {
+      return null;
+    }
+    int slot = findSlot(id);
+    String name = names[slot];
+    if (name == null) {
+      return null;
+    }
+    String namespace = namespaces[types[slot] >>> 1];
+    if ((types[slot] & 1) != 0) {
+      return new GroupPrincipal(name, namespace);
+    } else {
+      return new UserPrincipal(name, namespace);
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the slot containing {@code id}, or the empty slot where it would
+   * be inserted. There is always at least one empty slot.
+   */
+  private int findSlot(int id) {
+    int mask = ids.length - 1;
+    // Fibonacci hashing spreads the small sequential ids SharePoint uses.
+    int slot = (id * 0x9E3779B9) >>> shift;
+    while (names[slot] != null && ids[slot] != id) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
   }
 
   @Override
   public String toString() {
-    return "MemberIdMapping(" + principals + ")";
+    StringBuilder sb = new StringBuilder("MemberIdMapping({");
+    boolean first = true;
+    for (int slot = 0; slot < ids.length; slot++) {
+      if (names[slot] == null) {
+        continue;
+      }
+      if (!first) {
+        sb.append(", ");
+      }
+      first = false;
+      sb.append(ids[slot]).append('=').append(getPrincipal(ids[slot]));
+    }
+    return sb.append("})").toString();
   }
 }
@@ -0,0 +1,345 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.PasswordAuthentication;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Client side of an NTLMv2 handshake over HTTP, as described in [MS-NLMP].
+ * The server authenticates the connection that the handshake is performed
+ * on, so the handshake has to be repeated for each new connection.
+ *
+ * <p>Only what HTTP authentication needs is implemented: there is no session
+ * security, and NTLMv1 responses are never sent.
+ */
+class NtlmHandshake {
+  private static final Charset UNICODE = Charset.forName("UTF-16LE");
+  private static final byte[] SIGNATURE
+      = "NTLMSSP\0".getBytes(Charset.forName("US-ASCII"));
+
+  private static final int NEGOTIATE_UNICODE = 0x00000001;
+  private static final int NEGOTIATE_OEM = 0x00000002;
+  private static final int REQUEST_TARGET = 0x00000004;
+  private static final int NEGOTIATE_NTLM = 0x00000200;
+  private static final int NEGOTIATE_ALWAYS_SIGN = 0x00008000;
+  private static final int NEGOTIATE_EXTENDED_SESSIONSECURITY = 0x00080000;
+  private static final int NEGOTIATE_128 = 0x20000000;
+  private static final int NEGOTIATE_56 = 0x80000000;
+  private static final int NEGOTIATE_FLAGS = NEGOTIATE_UNICODE | NEGOTIATE_OEM
+      | REQUEST_TARGET | NEGOTIATE_NTLM | NEGOTIATE_ALWAYS_SIGN
+      | NEGOTIATE_EXTENDED_SESSIONSECURITY | NEGOTIATE_128 | NEGOTIATE_56;
+
+  private static final int AV_EOL = 0;
+  private static final int AV_TIMESTAMP = 7;
+  /** Difference between the Windows and the Java epoch, in milliseconds. */
+  private static final long WINDOWS_EPOCH_OFFSET_MILLIS = 11644473600000L;
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private final String domain;
+  private final String user;
+  private final char[] password;
+
+  /**
+   * The user name may be qualified with a domain as
+   * <code>DOMAIN&#92;user</code>. The {@code http.auth.ntlm.domain} system
+   * property is used as domain otherwise, like {@link
+   * java.net.HttpURLConnection} does.
+   */
+  public NtlmHandshake(PasswordAuthentication credentials) {
+    String name = credentials.getUserName();
+    int separator = name.indexOf('\\');
+    if (separator == -1) {
+      this.domain = System.getProperty("http.auth.ntlm.domain", "");
+      this.user = name;
+    } else {
+      this.domain = name.substring(0, separator);
+      this.user = name.substring(separator + 1);
+    }
+    this.password = credentials.getPassword();
+  }
+
+  /** Returns the base64 encoded NEGOTIATE_MESSAGE that starts a handshake. */
+  public String negotiate() {
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    message.write(SIGNATURE, 0, SIGNATURE.length);
+    writeInt(message, 1);
+    writeInt(message, NEGOTIATE_FLAGS);
+    // No domain or workstation is supplied.
+    writeSecurityBuffer(message, 0, 0);
+    writeSecurityBuffer(message, 0, 0);
+    return DatatypeConverter.printBase64Binary(message.toByteArray());
+  }
+
+  /**
+   * Returns the base64 encoded AUTHENTICATE_MESSAGE that answers {@code
+   * challenge}, the base64 encoded CHALLENGE_MESSAGE sent by the server.
+   */
+  public String authenticate(String challenge) throws IOException {
+    byte[] message = DatatypeConverter.parseBase64Binary(challenge);
+    if (message.length < 32
+        || !Arrays.equals(SIGNATURE, Arrays.copyOf(message, 8))
+        || readInt(message, 8) != 2) {
+      throw new IOException("Invalid NTLM challenge: " + challenge);
+    }
+    int flags = readInt(message, 20);
+    byte[] serverChallenge = Arrays.copyOfRange(message, 24, 32);
+    byte[] targetInfo = message.length >= 48
+        ? readSecurityBuffer(message, 40) : new byte[0];
+    byte[] timestamp = findAvPair(targetInfo, AV_TIMESTAMP);
+    byte[] clientChallenge = new byte[8];
+    random.nextBytes(clientChallenge);
+    if (timestamp == null) {
+      timestamp = windowsTime(System.currentTimeMillis());
+    }
+    return DatatypeConverter.printBase64Binary(authenticateMessage(flags,
+        serverChallenge, clientChallenge, timestamp, targetInfo));
+  }
+
+  @VisibleForTesting
+  byte[] authenticateMessage(int challengeFlags, byte[] serverChallenge,
+      byte[] clientChallenge, byte[] timestamp, byte[] targetInfo) {
+    byte[] ntowf = ntowfv2(password, user, domain);
+    byte[] ntResponse = ntlmv2Response(ntowf, serverChallenge,
+        clientChallenge, timestamp, targetInfo);
+    // When the server sends a timestamp it checks the NT response only, and
+    // the LM response is expected to be empty.
+    byte[] lmResponse = findAvPair(targetInfo, AV_TIMESTAMP) != null
+        ? new byte[24]
+        : lmv2Response(ntowf, serverChallenge, clientChallenge);
+    byte[] domainBytes = domain.getBytes(UNICODE);
+    byte[] userBytes = user.getBytes(UNICODE);
+    byte[] workstationBytes = new byte[0];
+    int flags = (challengeFlags & NEGOTIATE_FLAGS)
+        | NEGOTIATE_NTLM | NEGOTIATE_UNICODE;
+    flags &= ~NEGOTIATE_OEM;
+
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    message.write(SIGNATURE, 0, SIGNATURE.length);
+    writeInt(message, 3);
+    int offset = 64;
+    writeSecurityBuffer(message, lmResponse.length, offset);
+    offset += lmResponse.length;
+    writeSecurityBuffer(message, ntResponse.length, offset);
+    offset += ntResponse.length;
+    writeSecurityBuffer(message, domainBytes.length, offset);
+    offset += domainBytes.length;
+    writeSecurityBuffer(message, userBytes.length, offset);
+    offset += userBytes.length;
+    writeSecurityBuffer(message, workstationBytes.length, offset);
+    offset += workstationBytes.length;
+    // No session key is exchanged.
+    writeSecurityBuffer(message, 0, offset);
+    writeInt(message, flags);
+    message.write(lmResponse, 0, lmResponse.length);
+    message.write(ntResponse, 0, ntResponse.length);
+    message.write(domainBytes, 0, domainBytes.length);
+    message.write(userBytes, 0, userBytes.length);
+    message.write(workstationBytes, 0, workstationBytes.length);
+    return message.toByteArray();
+  }
+
+  @VisibleForTesting
+  static byte[] ntowfv2(char[] password, String user, String domain) {
+    byte[] ntHash = md4(new String(password).getBytes(UNICODE));
+    return hmacMd5(ntHash,
+        (user.toUpperCase(Locale.ENGLISH) + domain).getBytes(UNICODE));
+  }
+
+  /**
+   * Returns the NTProofStr followed by the blob it proves, which together
+   * are the NTLMv2 response.
+   */
+  @VisibleForTesting
+  static byte[] ntlmv2Response(byte[] ntowf, byte[] serverChallenge,
+      byte[] clientChallenge, byte[] timestamp, byte[] targetInfo) {
+    ByteArrayOutputStream blob = new ByteArrayOutputStream();
+    blob.write(1);
+    blob.write(1);
+    blob.write(new byte[6], 0, 6);
+    blob.write(timestamp, 0, 8);
+    blob.write(clientChallenge, 0, 8);
+    blob.write(new byte[4], 0, 4);
+    blob.write(targetInfo, 0, targetInfo.length);
+    blob.write(new byte[4], 0, 4);
+    byte[] temp = blob.toByteArray();
+    byte[] proof = hmacMd5(ntowf, concat(serverChallenge, temp));
+    return concat(proof, temp);
+  }
+
+  @VisibleForTesting
+  static byte[] lmv2Response(byte[] ntowf, byte[] serverChallenge,
+      byte[] clientChallenge) {
+    return concat(hmacMd5(ntowf, concat(serverChallenge, clientChallenge)),
+        clientChallenge);
+  }
+
+  /** Returns the FILETIME of {@code millis}, in little-endian order. */
+  @VisibleForTesting
+  static byte[] windowsTime(long millis) {
+    long time = (millis + WINDOWS_EPOCH_OFFSET_MILLIS) * 10000;
+    byte[] bytes = new byte[8];
+    for (int i = 0; i < 8; i++) {
+      bytes[i] = (byte) (time >>> (8 * i));
+    }
+    return bytes;
+  }
+
+  /** Returns the value of the first AV_PAIR with {@code id}, if any. */
+  private static byte[] findAvPair(byte[] targetInfo, int id) {
+    int offset = 0;
+    while (offset + 4 <= targetInfo.length) {
+      int avId = readShort(targetInfo, offset);
+      int avLen = readShort(targetInfo, offset + 2);
+      if (avId == AV_EOL || offset + 4 + avLen > targetInfo.length) {
+        break;
+      }
+      if (avId == id) {
+        return Arrays.copyOfRange(targetInfo, offset + 4, offset + 4 + avLen);
+      }
+      offset += 4 + avLen;
+    }
+    return null;
+  }
+
+  private static byte[] readSecurityBuffer(byte[] message, int offset)
+      throws IOException {
+    int length = readShort(message, offset);
+    int start = readInt(message, offset + 4);
+    if (start < 0 || start + length > message.length) {
+      throw new IOException("Invalid NTLM message");
+    }
+    return Arrays.copyOfRange(message, start, start + length);
+  }
+
+  private static void writeSecurityBuffer(ByteArrayOutputStream out,
+      int length, int offset) {
+    writeShort(out, length);
+    writeShort(out, length);
+    writeInt(out, offset);
+  }
+
+  private static int readShort(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return readShort(bytes, offset) | readShort(bytes, offset + 2) << 16;
+  }
+
+  private static void writeShort(ByteArrayOutputStream out, int value) {
+    out.write(value);
+    out.write(value >>> 8);
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int value) {
+    writeShort(out, value);
+    writeShort(out, value >>> 16);
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] result = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, result, a.length, b.length);
+    return result;
+  }
+
+  private static byte[] hmacMd5(byte[] key, byte[] data) {
+    try {
+      Mac mac = Mac.getInstance("HmacMD5");
+      mac.init(new SecretKeySpec(key, "HmacMD5"));
+      return mac.doFinal(data);
+    } catch (GeneralSecurityException ex) {
+      // Every Java platform is required to support HmacMD5.
+      throw new AssertionError(ex);
+    }
+  }
+
+  /**
+   * MD4, as specified by RFC 1320. The JDK does not provide a public
+   * implementation, but NTLM hashes passwords with it.
+   */
+  @VisibleForTesting
+  static byte[] md4(byte[] input) {
+    int padded = (input.length + 8) / 64 * 64 + 64;
+    byte[] message = Arrays.copyOf(input, padded);
+    message[input.length] = (byte) 0x80;
+    long bits = (long) input.length * 8;
+    for (int i = 0; i < 8; i++) {
+      message[padded - 8 + i] = (byte) (bits >>> (8 * i));
+    }
+
+    int a = 0x67452301;
+    int b = 0xefcdab89;
+    int c = 0x98badcfe;
+    int d = 0x10325476;
+    int[] x = new int[16];
+    for (int block = 0; block < padded; block += 64) {
+      for (int i = 0; i < 16; i++) {
+        x[i] = readInt(message, block + 4 * i);
+      }
+      int aa = a;
+      int bb = b;
+      int cc = c;
+      int dd = d;
+      for (int i = 0; i < 16; i += 4) {
+        a = Integer.rotateLeft(a + ((b & c) | (~b & d)) + x[i], 3);
+        d = Integer.rotateLeft(d + ((a & b) | (~a & c)) + x[i + 1], 7);
+        c = Integer.rotateLeft(c + ((d & a) | (~d & b)) + x[i + 2], 11);
+        b = Integer.rotateLeft(b + ((c & d) | (~c & a)) + x[i + 3], 19);
+      }
+      for (int i = 0; i < 4; i++) {
+        a = Integer.rotateLeft(
+            a + ((b & c) | (b & d) | (c & d)) + x[i] + 0x5a827999, 3);
+        d = Integer.rotateLeft(
+            d + ((a & b) | (a & c) | (b & c)) + x[i + 4] + 0x5a827999, 5);
+        c = Integer.rotateLeft(
+            c + ((d & a) | (d & b) | (a & b)) + x[i + 8] + 0x5a827999, 9);
+        b = Integer.rotateLeft(
+            b + ((c & d) | (c & a) | (d & a)) + x[i + 12] + 0x5a827999, 13);
+      }
+      int[] order = {0, 2, 1, 3};
+      for (int i : order) {
+        a = Integer.rotateLeft(a + (b ^ c ^ d) + x[i] + 0x6ed9eba1, 3);
+        d = Integer.rotateLeft(d + (a ^ b ^ c) + x[i + 8] + 0x6ed9eba1, 9);
+        c = Integer.rotateLeft(c + (d ^ a ^ b) + x[i + 4] + 0x6ed9eba1, 11);
+        b = Integer.rotateLeft(b + (c ^ d ^ a) + x[i + 12] + 0x6ed9eba1, 15);
+      }
+      a += aa;
+      b += bb;
+      c += cc;
+      d += dd;
+    }
+
+    ByteArrayOutputStream digest = new ByteArrayOutputStream(16);
+    writeInt(digest, a);
+    writeInt(digest, b);
+    writeInt(digest, c);
+    writeInt(digest, d);
+    return digest.toByteArray();
+  }
+}
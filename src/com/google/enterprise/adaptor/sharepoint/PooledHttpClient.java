@@ -0,0 +1,1206 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Authenticator;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * {@link SharePointAdaptor.HttpClient} that keeps its own pool of HTTP/1.1
+ * connections to each host, instead of relying on the JDK's keep-alive cache.
+ *
+ * <p>The pool owns its sockets: a connection is leased for the lifetime of a
+ * response and returned once the response body has been read to the end or
+ * closed. At most a configured number of connections are open to a single
+ * host; further requests wait for one to be returned. Connections that stay
+ * idle for longer than the idle timeout are closed.
+ *
+ * <p>NTLM authenticates a connection rather than a request, so a pooled
+ * connection is authenticated once and then reused without repeating the
+ * handshake. Credentials are requested from the default {@link
+ * Authenticator}, like {@link HttpURLConnection} does. Cookie based
+ * authentication is passed through as request headers. Other authentication
+ * schemes, such as Kerberos, are not supported, and requests that need a
+ * proxy are left to {@link HttpURLConnection}.
+ */
+class PooledHttpClient extends SharePointAdaptor.HttpClientImpl {
+  private static final Logger log
+      = Logger.getLogger(PooledHttpClient.class.getName());
+  private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+  /**
+   * Largest remainder of a response body that is read when closing it early,
+   * and largest error response that is buffered. Larger remainders are
+   * cheaper to discard along with the connection.
+   */
+  private static final int MAX_DRAIN_BYTES = 64 * 1024;
+  private static final int MAX_HEADER_LINE_LENGTH = 16 * 1024;
+  /** Same limit as the default of {@code http.maxRedirects}. */
+  private static final int MAX_REDIRECTS = 20;
+  private static final long DEFAULT_IDLE_TIMEOUT_MILLIS
+      = TimeUnit.MINUTES.toMillis(1);
+
+  private final Ticker ticker;
+  /** Guarded by {@code this}. */
+  private final Map<String, HostPool> pools = new HashMap<String, HostPool>();
+  /** Guarded by {@code this}. */
+  private int maxConnectionsPerHost;
+  /** Guarded by {@code this}. */
+  private long idleTimeoutNanos
+      = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MILLIS);
+  /** Guarded by {@code this}. */
+  private boolean closed;
+  private volatile int connectTimeoutMillis;
+  private volatile int readTimeoutMillis;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong opened = new AtomicLong();
+  private final AtomicLong reused = new AtomicLong();
+  private final AtomicLong waits = new AtomicLong();
+  private final AtomicLong waitNanos = new AtomicLong();
+  private final AtomicLong discarded = new AtomicLong();
+  private final AtomicLong evicted = new AtomicLong();
+  private final AtomicLong authentications = new AtomicLong();
+
+  public PooledHttpClient() {
+    this(Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  PooledHttpClient(Ticker ticker) {
+    if (ticker == null) {
+      throw new NullPointerException();
+    }
+    this.ticker = ticker;
+  }
+
+  /**
+   * Configures the client and reopens it if it was closed. Connections that
+   * are already open are kept, even if there are now more than allowed.
+   *
+   * @param maxConnectionsPerHost maximum number of open connections to a
+   *     single host, or {@code 0} for no limit
+   * @param idleTimeoutMillis time after which unused connections are closed
+   * @param connectTimeoutMillis connect timeout, or {@code 0} for none
+   * @param readTimeoutMillis read timeout, or {@code 0} for none
+   */
+  public synchronized void configure(int maxConnectionsPerHost,
+      long idleTimeoutMillis, int connectTimeoutMillis,
+      int readTimeoutMillis) {
+    if (maxConnectionsPerHost < 0 || connectTimeoutMillis < 0
+        || readTimeoutMillis < 0) {
+      throw new IllegalArgumentException("Limits must not be negative");
+    }
+    if (idleTimeoutMillis <= 0) {
+      throw new IllegalArgumentException("idleTimeoutMillis must be positive");
+    }
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+    this.closed = false;
+    // Waiting requests may be allowed to connect now.
+    notifyAll();
+  }
+
+  /**
+   * Returns a connection from the pool for http and https URLs that are not
+   * reached through a proxy.
+   */
+  @Override
+  public HttpURLConnection getHttpURLConnection(URL url) throws IOException {
+    String protocol = url.getProtocol();
+    if ((!"http".equals(protocol) && !"https".equals(protocol))
+        || isProxied(url)) {
+      return super.getHttpURLConnection(url);
+    }
+    HttpURLConnection conn = new PooledHttpURLConnection(url);
+    conn.setConnectTimeout(connectTimeoutMillis);
+    conn.setReadTimeout(readTimeoutMillis);
+    return conn;
+  }
+
+  /** Closes the connections that have been idle for the idle timeout. */
+  public synchronized void evictIdleConnections() {
+    long now = ticker.read();
+    for (Iterator<HostPool> it = pools.values().iterator(); it.hasNext();) {
+      HostPool pool = it.next();
+      // Idle connections are ordered from most to least recently used.
+      while (!pool.idle.isEmpty()
+          && now - pool.idle.peekLast().idleSinceNanos >= idleTimeoutNanos) {
+        pool.idle.removeLast().close();
+        evicted.incrementAndGet();
+      }
+      if (pool.idle.isEmpty() && pool.leased == 0) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Closes all idle connections. Leased connections are closed when their
+   * response is closed, and requests made later are not pooled, until the
+   * client is configured again.
+   */
+  public synchronized void close() {
+    closed = true;
+    for (HostPool pool : pools.values()) {
+      for (HostConnection conn : pool.idle) {
+        conn.close();
+      }
+      pool.idle.clear();
+    }
+    notifyAll();
+  }
+
+  /** Returns a snapshot of the pool's counters. */
+  public synchronized Stats getStats() {
+    int leased = 0;
+    int idle = 0;
+    for (HostPool pool : pools.values()) {
+      leased += pool.leased;
+      idle += pool.idle.size();
+    }
+    return new Stats(pools.size(), leased, idle, requests.get(), opened.get(),
+        reused.get(), waits.get(),
+        TimeUnit.NANOSECONDS.toMillis(waitNanos.get()), discarded.get(),
+        evicted.get(), authentications.get());
+  }
+
+  private static boolean isProxied(URL url) {
+    ProxySelector selector = ProxySelector.getDefault();
+    if (selector == null) {
+      return false;
+    }
+    List<Proxy> proxies;
+    try {
+      proxies = selector.select(url.toURI());
+    } catch (URISyntaxException ex) {
+      return true;
+    }
+    return !proxies.isEmpty() && proxies.get(0).type() != Proxy.Type.DIRECT;
+  }
+
+  /**
+   * Leases a connection to the host of {@code url}, waiting for one to be
+   * returned if the host has as many connections as allowed. The connection
+   * is connected, unless it was idle.
+   */
+  private HostConnection lease(URL url, int connectTimeout)
+      throws IOException {
+    requests.incrementAndGet();
+    String key = hostKey(url);
+    HostConnection conn;
+    synchronized (this) {
+      evictIdleConnections();
+      HostPool pool = pools.get(key);
+      if (pool == null) {
+        pool = new HostPool();
+        pools.put(key, pool);
+      }
+      long waitStart = 0;
+      boolean waited = false;
+      while (true) {
+        conn = pool.idle.pollFirst();
+        if (conn != null) {
+          conn.reused = true;
+          reused.incrementAndGet();
+          break;
+        }
+        // There are no idle connections, so all open ones are leased.
+        if (maxConnectionsPerHost == 0
+            || pool.leased < maxConnectionsPerHost) {
+          conn = new HostConnection(pool);
+          break;
+        }
+        if (!waited) {
+          waited = true;
+          waitStart = ticker.read();
+          waits.incrementAndGet();
+          log.log(Level.FINEST, "Waiting for a connection to {0}", key);
+        }
+        try {
+          wait();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException(
+              "Interrupted waiting for a connection to " + key);
+        }
+      }
+      pool.leased++;
+      if (waited) {
+        waitNanos.addAndGet(ticker.read() - waitStart);
+      }
+    }
+    if (conn.socket == null) {
+      boolean connected = false;
+      try {
+        conn.open(url, connectTimeout);
+        opened.incrementAndGet();
+        connected = true;
+      } finally {
+        if (!connected) {
+          release(conn, false);
+        }
+      }
+    }
+    return conn;
+  }
+
+  /**
+   * Returns a leased connection to its pool, or closes it if it can't be
+   * reused.
+   */
+  private synchronized void release(HostConnection conn, boolean reusable) {
+    HostPool pool = conn.pool;
+    pool.leased--;
+    if (reusable && !closed) {
+      conn.idleSinceNanos = ticker.read();
+      pool.idle.addFirst(conn);
+    } else {
+      if (!reusable && conn.socket != null) {
+        discarded.incrementAndGet();
+      }
+      conn.close();
+    }
+    notifyAll();
+  }
+
+  /**
+   * Uses the same notion of host as {@code NtlmAuthenticator}, but separates
+   * http and https connections to the same port.
+   */
+  private static String hostKey(URL url) {
+    return url.getProtocol() + "://" + url.getHost() + ":" + port(url);
+  }
+
+  private static int port(URL url) {
+    return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+  }
+
+  /** Pooled connections to a single host. Guarded by the client. */
+  private static class HostPool {
+    /** Ordered from most to least recently used. */
+    private final Deque<HostConnection> idle
+        = new ArrayDeque<HostConnection>();
+    private int leased;
+    /**
+     * Whether the host has asked for NTLM authentication, so that new
+     * connections can start the handshake right away.
+     */
+    private volatile boolean ntlm;
+  }
+
+  /** A socket to a host, which is either leased or idle in its pool. */
+  private static class HostConnection {
+    private final HostPool pool;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    /** Whether the connection has completed an NTLM handshake. */
+    private boolean authenticated;
+    /** Whether the connection has already served a request. */
+    private boolean reused;
+    /** Guarded by the client. */
+    private long idleSinceNanos;
+
+    public HostConnection(HostPool pool) {
+      this.pool = pool;
+    }
+
+    public void open(URL url, int connectTimeout) throws IOException {
+      String host = url.getHost();
+      if (host.startsWith("[") && host.endsWith("]")) {
+        host = host.substring(1, host.length() - 1);
+      }
+      Socket socket = new Socket();
+      boolean connected = false;
+      try {
+        socket.connect(new InetSocketAddress(host, port(url)),
+            connectTimeout);
+        socket.setTcpNoDelay(true);
+        if ("https".equals(url.getProtocol())) {
+          SSLSocket sslSocket = (SSLSocket) HttpsURLConnection
+              .getDefaultSSLSocketFactory()
+              .createSocket(socket, host, port(url), true);
+          SSLParameters params = sslSocket.getSSLParameters();
+          params.setEndpointIdentificationAlgorithm("HTTPS");
+          sslSocket.setSSLParameters(params);
+          sslSocket.setSoTimeout(connectTimeout);
+          sslSocket.startHandshake();
+          socket = sslSocket;
+        }
+        connected = true;
+      } finally {
+        if (!connected) {
+          closeQuietly(socket);
+        }
+      }
+      this.socket = socket;
+      this.in = new BufferedInputStream(socket.getInputStream());
+      this.out = new BufferedOutputStream(socket.getOutputStream());
+      this.authenticated = false;
+    }
+
+    public void close() {
+      if (socket != null) {
+        closeQuietly(socket);
+        socket = null;
+      }
+    }
+
+    private static void closeQuietly(Socket socket) {
+      try {
+        socket.close();
+      } catch (IOException ex) {
+        log.log(Level.FINEST, "Failed to close connection", ex);
+      }
+    }
+  }
+
+  /** Status line and headers of a response. */
+  private static class ResponseHead {
+    private final String statusLine;
+    private final String version;
+    private final int code;
+    private final String message;
+    private final List<String> keys = new ArrayList<String>();
+    private final List<String> values = new ArrayList<String>();
+
+    public ResponseHead(String statusLine) throws IOException {
+      this.statusLine = statusLine;
+      String[] parts = statusLine.split(" ", 3);
+      if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+        throw new IOException("Invalid status line: " + statusLine);
+      }
+      version = parts[0];
+      try {
+        code = Integer.parseInt(parts[1]);
+      } catch (NumberFormatException ex) {
+        throw new IOException("Invalid status line: " + statusLine, ex);
+      }
+      message = parts.length > 2 ? parts[2] : "";
+    }
+
+    /** Returns the last value of the header, like HttpURLConnection. */
+    public String get(String key) {
+      for (int i = keys.size() - 1; i >= 0; i--) {
+        if (keys.get(i).equalsIgnoreCase(key)) {
+          return values.get(i);
+        }
+      }
+      return null;
+    }
+
+    public List<String> getAll(String key) {
+      List<String> all = new ArrayList<String>();
+      for (int i = 0; i < keys.size(); i++) {
+        if (keys.get(i).equalsIgnoreCase(key)) {
+          all.add(values.get(i));
+        }
+      }
+      return all;
+    }
+
+    public boolean hasBody() {
+      return code >= 200 && code != HttpURLConnection.HTTP_NO_CONTENT
+          && code != HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    /** Whether the server allows another request on the connection. */
+    public boolean isKeepAlive() {
+      String connection = get("Connection");
+      if ("HTTP/1.0".equals(version)) {
+        return "keep-alive".equalsIgnoreCase(connection);
+      }
+      return !"close".equalsIgnoreCase(connection);
+    }
+
+    /** Returns the NTLM challenge of a 401 response, if there is one. */
+    public String getNtlmChallenge() {
+      for (String value : getAll("WWW-Authenticate")) {
+        if (value.regionMatches(true, 0, "NTLM ", 0, 5)) {
+          return value.substring(5).trim();
+        }
+      }
+      return null;
+    }
+
+    public boolean offersNtlm() {
+      for (String value : getAll("WWW-Authenticate")) {
+        if (value.trim().equalsIgnoreCase("NTLM")) {
+          return true;
+        }
+      }
+      return getNtlmChallenge() != null;
+    }
+  }
+
+  /**
+   * Response body framed by Content-Length, chunked encoding, or the end of
+   * the connection. Reaching its end leaves the connection at the next
+   * response.
+   */
+  private abstract static class Body extends InputStream {
+    protected final InputStream in;
+    protected boolean complete;
+
+    protected Body(InputStream in) {
+      this.in = in;
+    }
+
+    /** Whether the body has been read to the end. */
+    public boolean isComplete() {
+      return complete;
+    }
+
+    /**
+     * Returns the number of bytes left to read, or {@code -1} if that is not
+     * known.
+     */
+    public long remaining() {
+      return -1;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int read = read(b, 0, 1);
+      return read == -1 ? -1 : b[0] & 0xff;
+    }
+
+    /** Reads at most {@code limit} more bytes, trying to reach the end. */
+    public void drain(long limit) throws IOException {
+      byte[] buffer = new byte[4096];
+      int read;
+      while (limit >= 0 && (read = read(buffer, 0, buffer.length)) != -1) {
+        limit -= read;
+      }
+    }
+
+    public static Body create(ResponseHead head, InputStream in)
+        throws IOException {
+      if (!head.hasBody()) {
+        return new FixedLengthBody(in, 0);
+      }
+      String transferEncoding = head.get("Transfer-Encoding");
+      if (transferEncoding != null) {
+        if (transferEncoding.toLowerCase(Locale.ENGLISH).endsWith("chunked")) {
+          return new ChunkedBody(in);
+        }
+        return new UntilCloseBody(in);
+      }
+      String contentLength = head.get("Content-Length");
+      if (contentLength != null) {
+        long length = ContentStreams.parseContentLength(contentLength.trim());
+        if (length < 0) {
+          throw new IOException("Invalid Content-Length: " + contentLength);
+        }
+        return new FixedLengthBody(in, length);
+      }
+      return new UntilCloseBody(in);
+    }
+  }
+
+  private static class FixedLengthBody extends Body {
+    private long remaining;
+
+    public FixedLengthBody(InputStream in, long length) {
+      super(in);
+      this.remaining = length;
+      this.complete = length == 0;
+    }
+
+    @Override
+    public long remaining() {
+      return remaining;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining == 0) {
+        return -1;
+      }
+      int read = in.read(b, off, (int) Math.min(len, remaining));
+      if (read == -1) {
+        throw new EOFException("Connection closed with " + remaining
+            + " bytes of the response body left");
+      }
+      remaining -= read;
+      complete = remaining == 0;
+      return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+  }
+
+  private static class ChunkedBody extends Body {
+    /** Bytes left in the current chunk, or {@code -1} before a chunk. */
+    private long chunkRemaining = -1;
+
+    public ChunkedBody(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (complete) {
+        return -1;
+      }
+      if (chunkRemaining <= 0) {
+        if (chunkRemaining == 0) {
+          // End of the previous chunk.
+          readLine(in);
+        }
+        String line = readLine(in);
+        int extension = line.indexOf(';');
+        if (extension != -1) {
+          line = line.substring(0, extension);
+        }
+        try {
+          chunkRemaining = Long.parseLong(line.trim(), 16);
+        } catch (NumberFormatException ex) {
+          throw new IOException("Invalid chunk size: " + line, ex);
+        }
+        if (chunkRemaining == 0) {
+          // Skip the trailer.
+          while (!readLine(in).isEmpty()) {
+          }
+          complete = true;
+          return -1;
+        }
+      }
+      int read = in.read(b, off, (int) Math.min(len, chunkRemaining));
+      if (read == -1) {
+        throw new EOFException("Connection closed within a chunk");
+      }
+      chunkRemaining -= read;
+      return read;
+    }
+  }
+
+  /** The end of such a body is the end of its connection. */
+  private static class UntilCloseBody extends Body {
+    public UntilCloseBody(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (complete) {
+        return -1;
+      }
+      int read = in.read(b, off, len);
+      complete = read == -1;
+      return read;
+    }
+  }
+
+  /** Reads a line of a response head, without its line terminator. */
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    while (true) {
+      int b = in.read();
+      if (b == -1) {
+        throw new EOFException("Connection closed within a response head");
+      }
+      if (b == '\n') {
+        break;
+      }
+      if (line.size() == MAX_HEADER_LINE_LENGTH) {
+        throw new IOException("Response header line too long");
+      }
+      line.write(b);
+    }
+    byte[] bytes = line.toByteArray();
+    int length = bytes.length;
+    if (length > 0 && bytes[length - 1] == '\r') {
+      length--;
+    }
+    return new String(bytes, 0, length, HEADER_CHARSET);
+  }
+
+  /**
+   * Response body of a successful response, which holds on to its connection
+   * until it is read to the end or closed.
+   */
+  private class ResponseStream extends InputStream {
+    private final HostConnection conn;
+    private final Body body;
+    private final boolean keepAlive;
+    private boolean released;
+
+    public ResponseStream(HostConnection conn, Body body, boolean keepAlive) {
+      this.conn = conn;
+      this.body = body;
+      this.keepAlive = keepAlive;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int read = read(b, 0, 1);
+      return read == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (released) {
+        if (body.isComplete()) {
+          return -1;
+        }
+        throw new IOException("Response closed");
+      }
+      int read;
+      try {
+        read = body.read(b, off, len);
+      } catch (IOException ex) {
+        releaseConnection(false);
+        throw ex;
+      }
+      if (read == -1) {
+        releaseConnection(keepAlive);
+      }
+      return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return released ? 0 : body.available();
+    }
+
+    @Override
+    public void close() {
+      if (released) {
+        return;
+      }
+      long remaining = body.remaining();
+      if (remaining == -1 || remaining <= MAX_DRAIN_BYTES) {
+        try {
+          body.drain(MAX_DRAIN_BYTES);
+        } catch (IOException ex) {
+          log.log(Level.FINEST, "Failed to drain response", ex);
+        }
+      }
+      releaseConnection(keepAlive && body.isComplete());
+    }
+
+    private void releaseConnection(boolean reusable) {
+      if (!released) {
+        released = true;
+        release(conn, reusable);
+      }
+    }
+  }
+
+  /**
+   * {@link HttpURLConnection} that sends its request over a pooled connection.
+   * Supports GET requests, which is all that the adaptor downloads with.
+   */
+  private class PooledHttpURLConnection extends HttpURLConnection {
+    private final Map<String, List<String>> requestProperties
+        = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+    private ResponseHead head;
+    private InputStream body;
+    /** The body of a successful response, while it holds the connection. */
+    private ResponseStream responseStream;
+
+    public PooledHttpURLConnection(URL url) {
+      super(url);
+    }
+
+    @Override
+    public void setRequestProperty(String key, String value) {
+      checkNotConnected();
+      List<String> values = new ArrayList<String>();
+      values.add(value);
+      requestProperties.put(key, values);
+    }
+
+    @Override
+    public void addRequestProperty(String key, String value) {
+      checkNotConnected();
+      List<String> values = requestProperties.get(key);
+      if (values == null) {
+        values = new ArrayList<String>();
+        requestProperties.put(key, values);
+      }
+      values.add(value);
+    }
+
+    @Override
+    public String getRequestProperty(String key) {
+      List<String> values = requestProperties.get(key);
+      return values == null ? null : values.get(0);
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestProperties() {
+      checkNotConnected();
+      Map<String, List<String>> properties
+          = new LinkedHashMap<String, List<String>>();
+      for (Map.Entry<String, List<String>> e : requestProperties.entrySet()) {
+        properties.put(e.getKey(),
+            Collections.unmodifiableList(new ArrayList<String>(e.getValue())));
+      }
+      return Collections.unmodifiableMap(properties);
+    }
+
+    private void checkNotConnected() {
+      if (connected) {
+        throw new IllegalStateException("Already connected");
+      }
+    }
+
+    @Override
+    public void connect() throws IOException {
+      if (connected) {
+        return;
+      }
+      if (!"GET".equals(method)) {
+        throw new IOException("Unsupported method: " + method);
+      }
+      URL initialUrl = url;
+      for (int redirects = 0;; redirects++) {
+        send(url);
+        String location = head.get("Location");
+        if (!getInstanceFollowRedirects() || !isRedirect(head.code)
+            || location == null || redirects == MAX_REDIRECTS) {
+          break;
+        }
+        URL target = new URL(url, location);
+        if (!target.getProtocol().equals(url.getProtocol())) {
+          // HttpURLConnection doesn't follow redirects across protocols.
+          break;
+        }
+        if (!target.getHost().equalsIgnoreCase(initialUrl.getHost())
+            || port(target) != port(initialUrl)) {
+          requestProperties.remove("Cookie");
+          requestProperties.remove("Authorization");
+        }
+        log.log(Level.FINER, "Following redirect from {0} to {1}",
+            new Object[] {url, target});
+        url = target;
+      }
+      responseCode = head.code;
+      responseMessage = head.message;
+      connected = true;
+    }
+
+    private boolean isRedirect(int code) {
+      return code == HTTP_MOVED_PERM || code == HTTP_MOVED_TEMP
+          || code == HTTP_SEE_OTHER || code == 307;
+    }
+
+    /**
+     * Sends the request to {@code target}, authenticating the connection if
+     * needed, and reads the response head.
+     */
+    private void send(URL target) throws IOException {
+      HostConnection conn = lease(target, getConnectTimeout());
+      boolean leased = true;
+      try {
+        NtlmHandshake handshake = null;
+        String authorization = null;
+        if (conn.pool.ntlm && !conn.authenticated) {
+          handshake = startNtlmHandshake(target);
+          if (handshake != null) {
+            authorization = "NTLM " + handshake.negotiate();
+          }
+        }
+        ResponseHead response = roundTrip(conn, target, authorization);
+        if (response.code == HTTP_UNAUTHORIZED && handshake == null
+            && response.offersNtlm()) {
+          handshake = startNtlmHandshake(target);
+          if (handshake != null) {
+            discardBody(conn, target, response);
+            response = roundTrip(conn, target, "NTLM " + handshake.negotiate());
+          }
+        }
+        if (response.code == HTTP_UNAUTHORIZED && handshake != null) {
+          String challenge = response.getNtlmChallenge();
+          if (challenge != null && discardBody(conn, target, response)) {
+            response = roundTrip(conn, target,
+                "NTLM " + handshake.authenticate(challenge));
+            if (response.code != HTTP_UNAUTHORIZED) {
+              conn.authenticated = true;
+              conn.pool.ntlm = true;
+              authentications.incrementAndGet();
+            }
+          }
+        }
+        readBody(conn, response);
+        leased = false;
+      } finally {
+        if (leased) {
+          release(conn, false);
+        }
+      }
+    }
+
+    private NtlmHandshake startNtlmHandshake(URL target) {
+      PasswordAuthentication credentials
+          = Authenticator.requestPasswordAuthentication(target.getHost(), null,
+              port(target), target.getProtocol(), "", "NTLM", target,
+              Authenticator.RequestorType.SERVER);
+      if (credentials == null) {
+        log.log(Level.FINE, "No credentials for {0}", target);
+        return null;
+      }
+      return new NtlmHandshake(credentials);
+    }
+
+    /**
+     * Writes the request and reads the response head. A connection that was
+     * reused may have been closed by the server meanwhile, so the request is
+     * retried once on a new connection.
+     */
+    private ResponseHead roundTrip(HostConnection conn, URL target,
+        String authorization) throws IOException {
+      while (true) {
+        boolean retry = conn.reused;
+        conn.reused = false;
+        try {
+          if (conn.socket == null) {
+            conn.open(target, getConnectTimeout());
+            opened.incrementAndGet();
+          }
+          conn.socket.setSoTimeout(getReadTimeout());
+          writeRequest(conn.out, target, authorization);
+          return readHead(conn.in);
+        } catch (IOException ex) {
+          conn.close();
+          if (!retry) {
+            throw ex;
+          }
+          log.log(Level.FINE, "Retrying request to " + target
+              + " on a new connection", ex);
+        }
+      }
+    }
+
+    private void writeRequest(OutputStream out, URL target,
+        String authorization) throws IOException {
+      StringBuilder request = new StringBuilder();
+      String file = target.getFile();
+      request.append(method).append(' ').append(file.isEmpty() ? "/" : file)
+          .append(" HTTP/1.1\r\n");
+      request.append("Host: ").append(target.getHost());
+      if (target.getPort() != -1
+          && target.getPort() != target.getDefaultPort()) {
+        request.append(':').append(target.getPort());
+      }
+      request.append("\r\n");
+      if (!requestProperties.containsKey("User-Agent")) {
+        request.append("User-Agent: Java/")
+            .append(System.getProperty("java.version")).append("\r\n");
+      }
+      if (!requestProperties.containsKey("Accept")) {
+        request.append("Accept: */*\r\n");
+      }
+      request.append("Connection: keep-alive\r\n");
+      if (authorization != null) {
+        request.append("Authorization: ").append(authorization)
+            .append("\r\n");
+      }
+      for (Map.Entry<String, List<String>> e : requestProperties.entrySet()) {
+        String key = e.getKey();
+        if (key.equalsIgnoreCase("Host")
+            || key.equalsIgnoreCase("Connection")
+            || (authorization != null
+                && key.equalsIgnoreCase("Authorization"))) {
+          continue;
+        }
+        if (key.equalsIgnoreCase("Cookie")) {
+          // Only a single Cookie header is allowed.
+          request.append(key).append(": ");
+          String separator = "";
+          for (String value : e.getValue()) {
+            request.append(separator).append(value);
+            separator = "; ";
+          }
+          request.append("\r\n");
+          continue;
+        }
+        for (String value : e.getValue()) {
+          request.append(key).append(": ").append(value).append("\r\n");
+        }
+      }
+      request.append("\r\n");
+      out.write(request.toString().getBytes(HEADER_CHARSET));
+      out.flush();
+    }
+
+    private ResponseHead readHead(InputStream in) throws IOException {
+      ResponseHead response;
+      do {
+        response = new ResponseHead(readLine(in));
+        for (String line = readLine(in); !line.isEmpty();
+            line = readLine(in)) {
+          if ((line.charAt(0) == ' ' || line.charAt(0) == '\t')
+              && !response.values.isEmpty()) {
+            // Continuation of the previous header.
+            int last = response.values.size() - 1;
+            response.values.set(last,
+                response.values.get(last) + " " + line.trim());
+            continue;
+          }
+          int colon = line.indexOf(':');
+          if (colon <= 0) {
+            throw new IOException("Invalid response header: " + line);
+          }
+          response.keys.add(line.substring(0, colon).trim());
+          response.values.add(line.substring(colon + 1).trim());
+        }
+        // Interim responses are followed by the actual response.
+      } while (response.code >= 100 && response.code < 200);
+      return response;
+    }
+
+    /**
+     * Reads the body of a response that is not passed on, such as a
+     * challenge, and reconnects if the server is done with the connection.
+     *
+     * @return whether the connection is still the same
+     */
+    private boolean discardBody(HostConnection conn, URL target,
+        ResponseHead response) throws IOException {
+      Body discard = Body.create(response, conn.in);
+      discard.drain(MAX_DRAIN_BYTES);
+      if (discard.isComplete() && response.isKeepAlive()) {
+        return true;
+      }
+      conn.close();
+      conn.open(target, getConnectTimeout());
+      opened.incrementAndGet();
+      discarded.incrementAndGet();
+      return false;
+    }
+
+    /**
+     * Passes on the response body. Only the body of a successful response
+     * keeps the connection leased; other responses are buffered.
+     */
+    private void readBody(HostConnection conn, ResponseHead response)
+        throws IOException {
+      Body responseBody = Body.create(response, conn.in);
+      head = response;
+      if (response.code / 100 == 2 && !responseBody.isComplete()) {
+        responseStream
+            = new ResponseStream(conn, responseBody, response.isKeepAlive());
+        body = responseStream;
+        return;
+      }
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      byte[] b = new byte[4096];
+      boolean released = false;
+      try {
+        int read;
+        while (buffer.size() < MAX_DRAIN_BYTES
+            && (read = responseBody.read(b, 0, b.length)) != -1) {
+          buffer.write(b, 0, read);
+        }
+        released = true;
+        release(conn, responseBody.isComplete() && response.isKeepAlive());
+      } finally {
+        if (!released) {
+          release(conn, false);
+        }
+      }
+      body = new ByteArrayInputStream(buffer.toByteArray());
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      connect();
+      if (responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE) {
+        throw new FileNotFoundException(url.toString());
+      }
+      if (responseCode >= HTTP_BAD_REQUEST) {
+        throw new IOException("Server returned HTTP response code: "
+            + responseCode + " for URL: " + url);
+      }
+      return body;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+      return connected && responseCode >= HTTP_BAD_REQUEST ? body : null;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+      connect();
+      return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+      connect();
+      return responseMessage;
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+      return connectQuietly() ? head.get(name) : null;
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+      if (!connectQuietly() || n <= 0 || n > head.keys.size()) {
+        return null;
+      }
+      return head.keys.get(n - 1);
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+      if (!connectQuietly() || n < 0 || n > head.keys.size()) {
+        return null;
+      }
+      return n == 0 ? head.statusLine : head.values.get(n - 1);
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+      if (!connectQuietly()) {
+        return Collections.emptyMap();
+      }
+      Map<String, List<String>> fields
+          = new LinkedHashMap<String, List<String>>();
+      fields.put(null, Collections.singletonList(head.statusLine));
+      for (String key : head.keys) {
+        if (!fields.containsKey(key)) {
+          fields.put(key, Collections.unmodifiableList(head.getAll(key)));
+        }
+      }
+      return Collections.unmodifiableMap(fields);
+    }
+
+    private boolean connectQuietly() {
+      try {
+        connect();
+        return true;
+      } catch (IOException ex) {
+        log.log(Level.FINE, "Request to " + url + " failed", ex);
+        return false;
+      }
+    }
+
+    /** Closes the connection if its response has not been read yet. */
+    @Override
+    public void disconnect() {
+      if (responseStream != null && !responseStream.released) {
+        responseStream.releaseConnection(false);
+      }
+    }
+
+    @Override
+    public boolean usingProxy() {
+      return false;
+    }
+  }
+
+  /** Counters describing the use of the pool. */
+  public static class Stats {
+    /** Number of hosts with open connections. */
+    public final int hosts;
+    /** Connections serving a response. */
+    public final int leased;
+    /** Open connections waiting in the pool. */
+    public final int idle;
+    public final long requests;
+    /** Connections that have been opened. */
+    public final long opened;
+    /** Requests sent over a connection from the pool. */
+    public final long reused;
+    /** Requests that had to wait for a connection. */
+    public final long waits;
+    public final long waitMillis;
+    /** Connections closed because they could not be reused. */
+    public final long discarded;
+    /** Connections closed after being idle for the idle timeout. */
+    public final long evicted;
+    /** Connections authenticated with NTLM. */
+    public final long authentications;
+
+    Stats(int hosts, int leased, int idle, long requests, long opened,
+        long reused, long waits, long waitMillis, long discarded,
+        long evicted, long authentications) {
+      this.hosts = hosts;
+      this.leased = leased;
+      this.idle = idle;
+      this.requests = requests;
+      this.opened = opened;
+      this.reused = reused;
+      this.waits = waits;
+      this.waitMillis = waitMillis;
+      this.discarded = discarded;
+      this.evicted = evicted;
+      this.authentications = authentications;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats(hosts=" + hosts + ",leased=" + leased + ",idle=" + idle
+          + ",requests=" + requests + ",opened=" + opened + ",reused="
+          + reused + ",waits=" + waits + ",waitMillis=" + waitMillis
+          + ",discarded=" + discarded + ",evicted=" + evicted
+          + ",authentications=" + authentications + ")";
+    }
+  }
+}
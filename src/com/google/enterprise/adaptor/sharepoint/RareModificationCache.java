@@ -15,8 +15,8 @@
 package com.google.enterprise.adaptor.sharepoint;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.LoadingCache;
 
 import com.microsoft.schemas.sharepoint.soap.List;
 import com.microsoft.schemas.sharepoint.soap.PolicyUser;
@@ -26,52 +26,61 @@ import com.microsoft.schemas.sharepoint.soap.Web;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Cache with items that rarely change, so items have a long lifetime in the
- * cache.
+ * cache. Webs and lists are invalidated as changes to them are seen in the
+ * change feed, so expiry only bounds how long a missed change can go
+ * unnoticed.
+ *
+ * <p>Keys only identify the cached object. The client used to retrieve it on
+ * a miss is passed along with each lookup, so that entries do not keep
+ * clients, and the webs they belong to, reachable.
  */
 class RareModificationCache {
-  private final Executor executor;
-  private final VirtualServerKey virtualServerKey;
-  private final LoadingCache<CacheKey<?>, Object> cache
-      = CacheBuilder.newBuilder()
-      .expireAfterAccess(5, TimeUnit.MINUTES)
-      .expireAfterWrite(30, TimeUnit.MINUTES)
-      .build(new AsyncCacheLoader<CacheKey<?>, Object>() {
-        @Override
-        protected Executor executor() {
-          return executor;
-        }
+  /**
+   * Maximum number of cached webs and lists. Entries are small, so this
+   * mainly guards against farms with very many lists.
+   */
+  private static final long MAXIMUM_SIZE = 50000;
 
-        @Override
-        public Object load(CacheKey<?> key) throws IOException {
-          return key.computeValue();
-        }
-      });
+  private final SiteDataClient virtualServerSiteDataClient;
+  private final Cache<CacheKey<?>, Object> cache
+      = CacheBuilder.newBuilder()
+      .maximumSize(MAXIMUM_SIZE)
+      .expireAfterAccess(30, TimeUnit.MINUTES)
+      .expireAfterWrite(6, TimeUnit.HOURS)
+      .build();
 
-  public RareModificationCache(SiteDataClient virtualServerSiteDataClient,
-      Executor executor) {
-    if (virtualServerSiteDataClient == null || executor == null) {
+  public RareModificationCache(SiteDataClient virtualServerSiteDataClient) {
+    if (virtualServerSiteDataClient == null) {
       throw new NullPointerException();
     }
-    this.executor = executor;
-    this.virtualServerKey = new VirtualServerKey(virtualServerSiteDataClient);
+    this.virtualServerSiteDataClient = virtualServerSiteDataClient;
   }
 
   /**
    * Getter that handles type-safety, and expected to be used for all retrievals
    * from the cache.
+   *
+   * @param siteDataClient client used to compute the value on a cache miss
    */
   @VisibleForTesting
-  <T> T get(CacheKey<T> key) throws IOException {
+  <T> T get(final CacheKey<T> key, final SiteDataClient siteDataClient)
+      throws IOException {
     try {
       @SuppressWarnings("unchecked")
-      T t = (T) cache.get(key);
+      T t = (T) cache.get(key, new Callable<Object>() {
+        @Override
+        public Object call() throws IOException {
+          return key.computeValue(siteDataClient);
+        }
+      });
       return t;
     } catch (ExecutionException e) {
       throw new IOException(e);
@@ -79,16 +88,53 @@ class RareModificationCache {
   }
 
   public CachedVirtualServer getVirtualServer() throws IOException {
-    return get(virtualServerKey);
+    return get(VirtualServerKey.INSTANCE, virtualServerSiteDataClient);
   }
 
-  public CachedWeb getWeb(SiteDataClient siteDataClient) throws IOException {
-    return get(new WebKey(siteDataClient));
+  /**
+   * @param webUrl canonical URL of the web
+   * @param siteDataClient client for the web, used on cache misses
+   */
+  public CachedWeb getWeb(String webUrl, SiteDataClient siteDataClient)
+      throws IOException {
+    return get(new WebKey(webUrl), siteDataClient);
   }
 
-  public CachedList getList(SiteDataClient siteDataClient, String listId)
-      throws IOException {
-    return get(new ListKey(siteDataClient, listId));
+  public CachedList getList(String webUrl, SiteDataClient siteDataClient,
+      String listId) throws IOException {
+    return get(new ListKey(webUrl, listId), siteDataClient);
+  }
+
+  /** Drops the cached copy of a web, because it changed. */
+  public void invalidateWeb(String webUrl) {
+    cache.invalidate(new WebKey(webUrl));
+  }
+
+  /** Drops the cached copy of a list, because it changed. */
+  public void invalidateList(String webUrl, String listId) {
+    cache.invalidate(new ListKey(webUrl, listId));
+  }
+
+  /**
+   * Drops the cached copies of all webs and lists within a site collection,
+   * because its security changed.
+   */
+  public void invalidateSiteCollection(String siteUrl) {
+    for (Iterator<CacheKey<?>> it = cache.asMap().keySet().iterator();
+        it.hasNext();) {
+      CacheKey<?> key = it.next();
+      String webUrl;
+      if (key instanceof WebKey) {
+        webUrl = ((WebKey) key).webUrl;
+      } else if (key instanceof ListKey) {
+        webUrl = ((ListKey) key).webUrl;
+      } else {
+        continue;
+      }
+      if (webUrl.equals(siteUrl) || webUrl.startsWith(siteUrl + "/")) {
+        it.remove();
+      }
+    }
   }
 
   /**
@@ -97,7 +143,7 @@ class RareModificationCache {
    */
   @VisibleForTesting
   interface CacheKey<V> {
-    public V computeValue() throws IOException;
+    public V computeValue(SiteDataClient siteDataClient) throws IOException;
   }
 
   /**
@@ -106,14 +152,13 @@ class RareModificationCache {
    */
   @VisibleForTesting
   static final class VirtualServerKey implements CacheKey<CachedVirtualServer> {
-    private final SiteDataClient siteDataClient;
+    public static final VirtualServerKey INSTANCE = new VirtualServerKey();
 
-    public VirtualServerKey(SiteDataClient siteDataClient) {
-      this.siteDataClient = siteDataClient;
-    }
+    private VirtualServerKey() {}
 
     @Override
-    public CachedVirtualServer computeValue() throws IOException {
+    public CachedVirtualServer computeValue(SiteDataClient siteDataClient)
+        throws IOException {
       return new CachedVirtualServer(siteDataClient.getContentVirtualServer());
     }
   }
@@ -138,16 +183,24 @@ class RareModificationCache {
     }
   }
 
+  /**
+   * Key for a web. Identified by URL, since the same web may be accessed with
+   * different clients over time.
+   */
   @VisibleForTesting
   static final class WebKey implements CacheKey<CachedWeb> {
-    private final SiteDataClient siteDataClient;
+    private final String webUrl;
 
-    public WebKey(SiteDataClient siteDataClient) {
-      this.siteDataClient = siteDataClient;
+    public WebKey(String webUrl) {
+      if (webUrl == null) {
+        throw new NullPointerException();
+      }
+      this.webUrl = webUrl;
     }
 
     @Override
-    public CachedWeb computeValue() throws IOException {
+    public CachedWeb computeValue(SiteDataClient siteDataClient)
+        throws IOException {
       return new CachedWeb(siteDataClient.getContentWeb());
     }
 
@@ -157,12 +210,12 @@ class RareModificationCache {
         return false;
       }
       WebKey webKey = (WebKey) o;
-      return siteDataClient.equals(webKey.siteDataClient);
+      return webUrl.equals(webKey.webUrl);
     }
 
     @Override
     public int hashCode() {
-      return siteDataClient.hashCode();
+      return webUrl.hashCode();
     }
   }
 
@@ -172,6 +225,11 @@ class RareModificationCache {
     public final TrueFalseType anonymousViewListItems;
     public final long anonymousPermMask;
     public final String webTitle;
+    /**
+     * Scope of the web's permissions, which is the same as its parent's when
+     * the web inherits permissions.
+     */
+    public final String scopeId;
 
     public CachedWeb(Web w) {
       this.noIndex = w.getMetadata().getNoIndex();
@@ -180,21 +238,26 @@ class RareModificationCache {
       this.anonymousPermMask
           = w.getMetadata().getAnonymousPermMask().longValue();
       this.webTitle = w.getMetadata().getTitle();
+      this.scopeId = w.getMetadata().getScopeID();
     }
   }
 
   @VisibleForTesting
   static final class ListKey implements CacheKey<CachedList> {
-    private final SiteDataClient siteDataClient;
+    private final String webUrl;
     private final String listId;
 
-    public ListKey(SiteDataClient siteDataClient, String listId) {
-      this.siteDataClient = siteDataClient;
+    public ListKey(String webUrl, String listId) {
+      if (webUrl == null) {
+        throw new NullPointerException();
+      }
+      this.webUrl = webUrl;
       this.listId = listId.toUpperCase(Locale.ENGLISH);
     }
 
     @Override
-    public CachedList computeValue() throws IOException {
+    public CachedList computeValue(SiteDataClient siteDataClient)
+        throws IOException {
       return new CachedList(siteDataClient.getContentList(listId));
     }
 
@@ -204,13 +267,12 @@ class RareModificationCache {
         return false;
       }
       ListKey listKey = (ListKey) o;
-      return siteDataClient.equals(listKey.siteDataClient)
-          && listId.equals(listKey.listId);
+      return webUrl.equals(listKey.webUrl) && listId.equals(listKey.listId);
     }
 
     @Override
     public int hashCode() {
-      return Arrays.hashCode(new Object[] {siteDataClient, listId});
+      return Arrays.hashCode(new Object[] {webUrl, listId});
     }
   }
 
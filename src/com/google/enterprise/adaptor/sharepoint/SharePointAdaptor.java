@@ -15,15 +15,21 @@
 package com.google.enterprise.adaptor.sharepoint;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.TreeMultimap;
 import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.enterprise.adaptor.AbstractAdaptor;
 import com.google.enterprise.adaptor.Acl;
 import com.google.enterprise.adaptor.AdaptorContext;
@@ -32,7 +38,6 @@ import com.google.enterprise.adaptor.DocId;
 import com.google.enterprise.adaptor.DocIdEncoder;
 import com.google.enterprise.adaptor.DocIdPusher;
 import com.google.enterprise.adaptor.GroupPrincipal;
-import com.google.enterprise.adaptor.IOHelper;
 import com.google.enterprise.adaptor.InvalidConfigurationException;
 import com.google.enterprise.adaptor.PollingIncrementalLister;
 import com.google.enterprise.adaptor.Principal;
@@ -45,8 +50,9 @@ import com.google.enterprise.adaptor.sharepoint.RareModificationCache.CachedList
 import com.google.enterprise.adaptor.sharepoint.RareModificationCache.CachedVirtualServer;
 import com.google.enterprise.adaptor.sharepoint.RareModificationCache.CachedWeb;
 import com.google.enterprise.adaptor.sharepoint.SamlAuthenticationHandler.SamlHandshakeManager;
+import com.google.enterprise.adaptor.sharepoint.SiteDataClient.ChangeVisitor;
 import com.google.enterprise.adaptor.sharepoint.SiteDataClient.CursorPaginator;
-import com.google.enterprise.adaptor.sharepoint.SiteDataClient.Paginator;
+import com.google.enterprise.adaptor.sharepoint.SiteDataClient.RowVisitor;
 import com.google.enterprise.adaptor.sharepoint.SiteDataClient.WebServiceIOException;
 import com.google.enterprise.adaptor.sharepoint.SiteDataClient.XmlProcessingException;
 
@@ -94,6 +100,7 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Method;
@@ -119,22 +126,29 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -183,6 +197,8 @@ public class SharePointAdaptor extends AbstractAdaptor
   private static final String OWS_AUTHOR_ATTRIBUTE = "ows_Author";
   /** Row attribute that contains the title of the List Item. */
   private static final String OWS_TITLE_ATTRIBUTE = "ows_Title";
+  /** Row attribute that contains the id of the List Item within its List. */
+  private static final String OWS_ID_ATTRIBUTE = "ows_ID";
   /**
    * Row attribute that contains a URL-like string identifying the object.
    * Sometimes this can be modified (by turning spaces into %20 and the like) to
@@ -245,10 +261,6 @@ public class SharePointAdaptor extends AbstractAdaptor
 
   private static final int LIST_READ_SECURITY_ENABLED = 2;
 
-  private static final String IDENTITY_CLAIMS_PREFIX = "i:0";
-
-  private static final String OTHER_CLAIMS_PREFIX = "c:0";
-  
   private static final String METADATA_OBJECT_TYPE = "google:objecttype";
   private static final String METADATA_PARENT_WEB_TITLE 
       = "sharepoint:parentwebtitle";
@@ -288,6 +300,8 @@ public class SharePointAdaptor extends AbstractAdaptor
 
   private int socketTimeoutMillis;
   private int readTimeOutMillis;
+  /** Seconds after which unused pooled download connections are closed. */
+  private int connectionIdleTimeoutSecs;
   private int maxRedirectsToFollow;
   
   // flag controls whether adaptor leniently corrects common URL mistakes
@@ -298,6 +312,33 @@ public class SharePointAdaptor extends AbstractAdaptor
   private boolean performBrowserLeniency;
   
   private boolean performSidLookup;
+  /**
+   * Number of site collections whose groups are retrieved concurrently during
+   * full listing. A value of 1 traverses the farm serially.
+   */
+  private int siteCollectionTraversalThreads;
+  /**
+   * Maximum number of concurrent site collection requests against a single
+   * content database during full listing.
+   */
+  private int siteCollectionTraversalThreadsPerContentDatabase;
+  /** Number of content databases polled for changes concurrently. */
+  private int changePollingThreads;
+  /**
+   * Maximum time spent retrieving changes from a single content database
+   * during a poll, or 0 for no limit.
+   */
+  private long changePollingTimeBudgetMillis;
+  /**
+   * Whether changes from several pages are pushed together. Otherwise each
+   * content database page is pushed as it is received, and the changes of a
+   * site collection are pushed once all have been received.
+   */
+  private boolean changeBatching;
+  /** Number of changed documents pushed together during incremental listing. */
+  private int changeBatchSize;
+  /** Maximum time a change waits to be pushed while more changes arrive. */
+  private long changeBatchMaxDelayMillis;
 
   /**
    * Mapping of mime-types used by SharePoint to ones that the GSA comprehends.
@@ -356,12 +397,39 @@ public class SharePointAdaptor extends AbstractAdaptor
   private static final Logger log
       = Logger.getLogger(SharePointAdaptor.class.getName());
 
+  /** Time after which unused SiteAdaptors and ports are released. */
+  private static final long SITE_ADAPTOR_IDLE_MINUTES = 30;
+  /**
+   * Time an unresolvable member id is remembered. The mappings are refreshed
+   * at least this often anyway, which picks up any newly resolvable ids.
+   */
+  private static final long UNRESOLVED_MEMBER_ID_MINUTES = 30;
+  /** Maximum number of unresolvable member ids to remember. */
+  private static final long UNRESOLVED_MEMBER_ID_CACHE_SIZE = 100000;
+  /** Number of folders whose permission scope is remembered. */
+  private static final long FOLDER_SCOPE_CACHE_SIZE = 100000;
+  /** Number of groups whose last pushed membership is remembered. */
+  private static final long GROUP_FINGERPRINTS_SIZE = 100000;
+  /** Number of web and list URLs whose web is remembered. */
+  private static final long WEB_URL_RESOLVER_SIZE = 100000;
+  /** Number of list items whose list and item ids are remembered. */
+  private static final long LIST_ITEM_INDEX_SIZE = 100000;
+  /** Number of list listings whose last generated state is remembered. */
+  private static final long LISTING_FINGERPRINTS_SIZE = 100000;
+
   /**
    * Map from Site or Web URL to SiteAdaptor object used to communicate with
-   * that Site/Web.
+   * that Site/Web. Bounded, since large farms have more webs than fit in
+   * memory.
+   */
+  private Cache<String, SiteAdaptor> siteAdaptors
+      = newSiteAdaptorCache(1);
+  /**
+   * Map from Site URL to the UserGroup and People ports shared by the
+   * SiteAdaptors of all webs in that site collection.
    */
-  private final ConcurrentMap<String, SiteAdaptor> siteAdaptors
-      = new ConcurrentSkipListMap<String, SiteAdaptor>();
+  private Cache<String, SiteCollectionPorts> siteCollectionPorts
+      = newSiteAdaptorCache(1);
   private final DocId virtualServerDocId = new DocId("");
   private AdaptorContext context;  
   /**
@@ -384,14 +452,62 @@ public class SharePointAdaptor extends AbstractAdaptor
         .refreshAfterWrite(30, TimeUnit.MINUTES)
         .expireAfterWrite(45, TimeUnit.MINUTES)
         .build(new SiteUserCacheLoader());
+  /**
+   * Refreshes of {@link #memberIdsCache} in progress, by site URL, so that
+   * concurrent requests missing on the same site collection share a single
+   * refresh.
+   */
+  private final ConcurrentMap<String, FutureTask<MemberIdMapping>>
+      memberIdsRefreshes
+      = new ConcurrentHashMap<String, FutureTask<MemberIdMapping>>();
+  /** Refreshes of {@link #siteUserCache} in progress, by site URL. */
+  private final ConcurrentMap<String, FutureTask<MemberIdMapping>>
+      siteUserRefreshes
+      = new ConcurrentHashMap<String, FutureTask<MemberIdMapping>>();
+  /**
+   * Member ids that could not be resolved even after refreshing the mappings,
+   * like those of deleted users that remain in old permissions. Refreshes are
+   * not attempted for them until they expire.
+   */
+  private final Cache<MemberIdKey, Boolean> unresolvedMemberIds
+      = CacheBuilder.newBuilder()
+        .maximumSize(UNRESOLVED_MEMBER_ID_CACHE_SIZE)
+        .expireAfterWrite(UNRESOLVED_MEMBER_ID_MINUTES, TimeUnit.MINUTES)
+        .build();
+  /** Mapping refreshes skipped because of {@link #unresolvedMemberIds}. */
+  private final AtomicLong suppressedMappingRefreshes = new AtomicLong();
   private RareModificationCache rareModCache;
+  private final FolderScopeCache folderScopeCache
+      = new FolderScopeCache(FOLDER_SCOPE_CACHE_SIZE);
+  private final GroupFingerprints groupFingerprints
+      = new GroupFingerprints(GROUP_FINGERPRINTS_SIZE);
+  private final WebUrlResolver webUrlResolver
+      = new WebUrlResolver(WEB_URL_RESOLVER_SIZE);
+  private final ListItemIndex listItemIndex
+      = new ListItemIndex(LIST_ITEM_INDEX_SIZE);
+  private final ListingFingerprints listingFingerprints
+      = new ListingFingerprints(LISTING_FINGERPRINTS_SIZE);
   /** Map from SharePoint Object GUID to last known Change Token for that 
    * object. */
   private final ConcurrentSkipListMap<String, String> 
       objectGuidToChangeIdMapping = new ConcurrentSkipListMap<String, String>();
+  /**
+   * Durable copy of {@link #objectGuidToChangeIdMapping}, so that change
+   * detection resumes where it stopped after a restart.
+   */
+  private CheckpointStore checkpointStore
+      = new CheckpointStore.NoopCheckpointStore();
+  /** Durable copy of the SIDs resolved by {@link #adClient}. */
+  private CheckpointStore sidCacheStore
+      = new CheckpointStore.NoopCheckpointStore();
   private final SoapFactory soapFactory;
-  /** Client for initiating raw HTTP connections. */
-  private final HttpClient httpClient;
+  /** Client passed to the constructor. */
+  private final HttpClient injectedHttpClient;
+  /**
+   * Client for initiating raw HTTP connections. The injected client, unless
+   * sharepoint.useConnectionPool replaces the stock one.
+   */
+  private HttpClient httpClient;
   private final Callable<ExecutorService> executorFactory;
 
   private final AuthenticationClientFactory authenticationClientFactory;
@@ -399,8 +515,25 @@ public class SharePointAdaptor extends AbstractAdaptor
   /** Executor service to perform background tasks */
   private ExecutorService executor;
   private boolean xmlValidation;
+  /**
+   * Whether folder contents and changes are parsed as they are read, instead
+   * of building each page in memory first.
+   */
+  private boolean streamingXmlParser;
   private int feedMaxUrls;
+  /**
+   * Number of links after which list and folder listings continue in a
+   * separate page document. 0 means listings are never split.
+   */
+  private int listingPageSize;
   private long maxIndexableSize;
+  /** Largest document whose content is downloaded, or 0 for no limit. */
+  private long maxDocumentSize;
+  /**
+   * Whether documents larger than {@link #maxDocumentSize} are truncated,
+   * instead of being sent with metadata only.
+   */
+  private boolean truncateOversizedDocuments;
   
   private String adaptorUserAgent;
   
@@ -466,6 +599,7 @@ public class SharePointAdaptor extends AbstractAdaptor
       throw new NullPointerException();
     }
     this.soapFactory = soapFactory;
+    this.injectedHttpClient = httpClient;
     this.httpClient = httpClient;
     this.executorFactory = executorFactory;
     this.authenticationClientFactory = authenticationClientFactory;
@@ -492,6 +626,9 @@ public class SharePointAdaptor extends AbstractAdaptor
     // allow us to improve the schema itself, but also allow enable users to
     // enable checking as a form of debugging.
     config.addKey("sharepoint.xmlValidation", "false");
+    // Parse folder contents and changes while reading them, so that memory use
+    // does not grow with the number of items on a page.
+    config.addKey("sharepoint.streamingXmlParser", "false");
     // 2 MB. We need to know how much of the generated HTML the GSA will index,
     // because the GSA won't see links outside of that content.
     config.addKey("sharepoint.maxIndexableSize", "2097152");
@@ -535,9 +672,65 @@ public class SharePointAdaptor extends AbstractAdaptor
     config.addKey("sidLookup.username", "");
     config.addKey("sidLookup.password", "");
     config.addKey("sidLookup.method", "standard");
+    // File used to remember resolved SIDs across restarts, so that they do not
+    // all need to be looked up again. When empty, resolved SIDs are only kept
+    // in memory.
+    config.addKey("sidLookup.cacheFile", "");
     // Set this to static factory method name which will return 
     // custom SamlHandshakeManager object
     config.addKey("sharepoint.customSamlManager", "");
+    // Number of site collections whose group definitions are retrieved in
+    // parallel during full listing. Default of 1 traverses site collections
+    // one at a time.
+    config.addKey("sharepoint.siteCollectionTraversalThreads", "1");
+    // Limits the number of parallel requests for site collections within a
+    // single content database. Empty means the farm-wide limit applies.
+    config.addKey(
+        "sharepoint.siteCollectionTraversalThreadsPerContentDatabase", "");
+    // File used to persist the change tokens of content databases and site
+    // collections across restarts. When empty, change tokens are only kept in
+    // memory and changes made while the adaptor is down are not detected.
+    config.addKey("sharepoint.changeCheckpointFile", "");
+    // Number of content databases whose changes are retrieved concurrently
+    // during incremental listing.
+    config.addKey("sharepoint.changePollingThreads", "1");
+    // Maximum number of seconds spent retrieving changes from a single
+    // content database per incremental listing. Remaining changes are picked
+    // up during the next incremental listing. 0 means no limit.
+    config.addKey("sharepoint.changePollingTimeBudgetSecs", "0");
+    // Whether changed documents from several pages of changes are pushed
+    // together in batches during incremental listing.
+    config.addKey("sharepoint.changeBatching", "false");
+    // Number of changed documents pushed together during incremental listing.
+    // Empty means feed.maxUrls. Only used with sharepoint.changeBatching.
+    config.addKey("sharepoint.changeBatchSize", "");
+    // Maximum number of seconds changed documents are held back to be pushed
+    // with later changes.
+    config.addKey("sharepoint.changeBatchMaxDelaySecs", "30");
+    // Whether documents are downloaded over a pool of connections owned by
+    // the adaptor, instead of the JVM's keep-alive cache. The pool supports
+    // NTLM and cookie based authentication only.
+    config.addKey("sharepoint.useConnectionPool", "false");
+    // Maximum number of pooled connections to a single host. 0 means no
+    // limit.
+    config.addKey("sharepoint.maxConnectionsPerHost", "0");
+    // Seconds after which unused pooled connections are closed.
+    config.addKey("sharepoint.connectionIdleTimeoutSecs", "60");
+    // Documents larger than this many bytes are not downloaded completely.
+    // 0 means no limit.
+    config.addKey("sharepoint.maxDocumentSize", "0");
+    // Whether the first sharepoint.maxDocumentSize bytes of larger documents
+    // are sent. Otherwise larger documents are sent with metadata and ACLs
+    // only, or fail if SharePoint did not send their length up front.
+    config.addKey("sharepoint.truncateOversizedDocuments", "false");
+    // Maximum number of webs whose web service clients are kept. Clients for
+    // webs that have not been used for 30 minutes are released regardless.
+    config.addKey("sharepoint.maxCachedWebs", "10000");
+    // Lists and folders with more children than this are listed in a chain of
+    // page documents, each linking to the next, instead of one document.
+    // Pages end at the end of a page of SharePoint results, so they can
+    // contain somewhat more links. 0 means listings are never split.
+    config.addKey("sharepoint.listingPageSize", "0");
   }
 
   @Override
@@ -554,9 +747,21 @@ public class SharePointAdaptor extends AbstractAdaptor
         config.getValue("sharepoint.password"));
     xmlValidation = Boolean.parseBoolean(
         config.getValue("sharepoint.xmlValidation"));
+    streamingXmlParser = Boolean.parseBoolean(
+        config.getValue("sharepoint.streamingXmlParser"));
     feedMaxUrls = Integer.parseInt(config.getValue("feed.maxUrls"));
     maxIndexableSize = Integer.parseInt(
         config.getValue("sharepoint.maxIndexableSize"));
+    String maxDocumentSizeStr = config.getValue("sharepoint.maxDocumentSize");
+    Long maxDocumentSizeValue = Longs.tryParse(maxDocumentSizeStr);
+    if (maxDocumentSizeValue == null || maxDocumentSizeValue < 0) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for maximum document size (sharepoint.maxDocumentSize): "
+          + maxDocumentSizeStr);
+    }
+    maxDocumentSize = maxDocumentSizeValue;
+    truncateOversizedDocuments = Boolean.parseBoolean(
+        config.getValue("sharepoint.truncateOversizedDocuments"));
     defaultNamespace = config.getValue("adaptor.namespace");
     String stsendpoint = config.getValue("sharepoint.sts.endpoint");
     String stsrealm = config.getValue("sharepoint.sts.realm");
@@ -568,6 +773,39 @@ public class SharePointAdaptor extends AbstractAdaptor
     readTimeOutMillis = Integer.parseInt(
         config.getValue("adaptor.docContentTimeoutSecs")) * 1000;
     adaptorUserAgent = config.getValue("adaptor.userAgent").trim();
+    String maxConnectionsPerHost
+        = config.getValue("sharepoint.maxConnectionsPerHost");
+    if (!isNumeric(maxConnectionsPerHost)
+        || Integer.parseInt(maxConnectionsPerHost) < 0) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for maximum number of connections per host "
+          + "(sharepoint.maxConnectionsPerHost): " + maxConnectionsPerHost);
+    }
+    String connectionIdleTimeout
+        = config.getValue("sharepoint.connectionIdleTimeoutSecs");
+    if (!isNumeric(connectionIdleTimeout)
+        || Integer.parseInt(connectionIdleTimeout) <= 0) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for connection idle timeout "
+          + "(sharepoint.connectionIdleTimeoutSecs): "
+          + connectionIdleTimeout);
+    }
+    connectionIdleTimeoutSecs = Integer.parseInt(connectionIdleTimeout);
+    boolean useConnectionPool = Boolean.parseBoolean(
+        config.getValue("sharepoint.useConnectionPool"));
+    // Only the stock client is replaced; injected clients are used as given.
+    if (useConnectionPool
+        && injectedHttpClient.getClass() == HttpClientImpl.class) {
+      httpClient = new PooledHttpClient();
+    } else {
+      httpClient = injectedHttpClient;
+    }
+    if (httpClient instanceof PooledHttpClient) {
+      ((PooledHttpClient) httpClient).configure(
+          Integer.parseInt(maxConnectionsPerHost),
+          TimeUnit.SECONDS.toMillis(connectionIdleTimeoutSecs),
+          socketTimeoutMillis, readTimeOutMillis);
+    }
     String maxRedirectsToFollowStr = config.getValue(
         "adaptor.maxRedirectsToFollow");
     performBrowserLeniency = Boolean.parseBoolean(config.getValue(
@@ -600,6 +838,7 @@ public class SharePointAdaptor extends AbstractAdaptor
     String sidLookupUsername = null;
     String sidLookupPassword = null;
     String sidLookupMethod = null;
+    String sidLookupCacheFile = null;
     int sidLookupPort = 0;
     if (Strings.isNullOrEmpty(sidLookupHost)) {
       performSidLookup = false;
@@ -614,8 +853,90 @@ public class SharePointAdaptor extends AbstractAdaptor
       }
       sidLookupPort = Integer.parseInt(config.getValue("sidLookup.port"));
       sidLookupMethod = config.getValue("sidLookup.method");
+      sidLookupCacheFile = config.getValue("sidLookup.cacheFile").trim();
       performSidLookup = true;     
     }
+    String changeCheckpointFile
+        = config.getValue("sharepoint.changeCheckpointFile").trim();
+    String pollingThreads = config.getValue("sharepoint.changePollingThreads");
+    if (!isNumeric(pollingThreads) || Integer.parseInt(pollingThreads) < 1) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for number of change polling threads "
+          + "(sharepoint.changePollingThreads): " + pollingThreads);
+    }
+    changePollingThreads = Integer.parseInt(pollingThreads);
+    String pollingTimeBudget
+        = config.getValue("sharepoint.changePollingTimeBudgetSecs");
+    if (!isNumeric(pollingTimeBudget)
+        || Integer.parseInt(pollingTimeBudget) < 0) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for change polling time budget "
+          + "(sharepoint.changePollingTimeBudgetSecs): " + pollingTimeBudget);
+    }
+    changePollingTimeBudgetMillis
+        = TimeUnit.SECONDS.toMillis(Integer.parseInt(pollingTimeBudget));
+    changeBatching = Boolean.parseBoolean(
+        config.getValue("sharepoint.changeBatching"));
+    String batchSize = config.getValue("sharepoint.changeBatchSize");
+    if ("".equals(batchSize)) {
+      changeBatchSize = feedMaxUrls;
+    } else if (!isNumeric(batchSize) || Integer.parseInt(batchSize) < 1) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for change batch size (sharepoint.changeBatchSize): "
+          + batchSize);
+    } else {
+      changeBatchSize = Integer.parseInt(batchSize);
+    }
+    String batchMaxDelay = config.getValue("sharepoint.changeBatchMaxDelaySecs");
+    if (!isNumeric(batchMaxDelay) || Integer.parseInt(batchMaxDelay) < 0) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for change batch delay (sharepoint.changeBatchMaxDelaySecs): "
+          + batchMaxDelay);
+    }
+    changeBatchMaxDelayMillis
+        = TimeUnit.SECONDS.toMillis(Integer.parseInt(batchMaxDelay));
+    String traversalThreads
+        = config.getValue("sharepoint.siteCollectionTraversalThreads");
+    if (!isNumeric(traversalThreads)
+        || Integer.parseInt(traversalThreads) < 1) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for number of site collection traversal threads "
+          + "(sharepoint.siteCollectionTraversalThreads): " + traversalThreads);
+    }
+    siteCollectionTraversalThreads = Integer.parseInt(traversalThreads);
+    String traversalThreadsPerDb = config.getValue(
+        "sharepoint.siteCollectionTraversalThreadsPerContentDatabase");
+    if ("".equals(traversalThreadsPerDb)) {
+      siteCollectionTraversalThreadsPerContentDatabase
+          = siteCollectionTraversalThreads;
+    } else if (!isNumeric(traversalThreadsPerDb)
+        || Integer.parseInt(traversalThreadsPerDb) < 1) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for number of site collection traversal threads per content "
+          + "database (sharepoint."
+          + "siteCollectionTraversalThreadsPerContentDatabase): "
+          + traversalThreadsPerDb);
+    } else {
+      siteCollectionTraversalThreadsPerContentDatabase = Math.min(
+          siteCollectionTraversalThreads,
+          Integer.parseInt(traversalThreadsPerDb));
+    }
+    String maxCachedWebs = config.getValue("sharepoint.maxCachedWebs");
+    if (!isNumeric(maxCachedWebs) || Integer.parseInt(maxCachedWebs) < 1) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for maximum number of cached webs (sharepoint.maxCachedWebs): "
+          + maxCachedWebs);
+    }
+    siteAdaptors = newSiteAdaptorCache(Integer.parseInt(maxCachedWebs));
+    siteCollectionPorts
+        = newSiteAdaptorCache(Integer.parseInt(maxCachedWebs));
+    String pageSize = config.getValue("sharepoint.listingPageSize");
+    if (!isNumeric(pageSize) || Integer.parseInt(pageSize) < 0) {
+      throw new InvalidConfigurationException("Invalid configuration value "
+          + "for listing page size (sharepoint.listingPageSize): "
+          + pageSize);
+    }
+    listingPageSize = Integer.parseInt(pageSize);
     
     log.log(Level.CONFIG, "SharePoint Url: {0}", configuredSharePointUrl);
     log.log(Level.CONFIG, "Username: {0}", getAdaptorUser(username));
@@ -632,11 +953,30 @@ public class SharePointAdaptor extends AbstractAdaptor
         configuredSharePointUrl.isSiteCollectionUrl());
     log.log(Level.CONFIG, "Perform SID Lookup for domain groups: {0}",
         performSidLookup);
+    log.log(Level.CONFIG, "Change checkpoint file: {0}",
+        changeCheckpointFile);
+    log.log(Level.CONFIG, "Change polling threads: {0}",
+        changePollingThreads);
+    log.log(Level.CONFIG, "Change polling time budget per content database: "
+        + "{0} ms", changePollingTimeBudgetMillis);
+    log.log(Level.CONFIG, "Change batching: {0}", changeBatching);
+    log.log(Level.CONFIG, "Change batch size: {0}", changeBatchSize);
+    log.log(Level.CONFIG, "Change batch maximum delay: {0} ms",
+        changeBatchMaxDelayMillis);
+    log.log(Level.CONFIG, "Download connection pool: {0}",
+        httpClient instanceof PooledHttpClient);
+    log.log(Level.CONFIG, "Site collection traversal threads: {0}",
+        siteCollectionTraversalThreads);
+    log.log(Level.CONFIG, "Site collection traversal threads per content "
+        + "database: {0}", siteCollectionTraversalThreadsPerContentDatabase);
+    log.log(Level.CONFIG, "Maximum cached webs: {0}", maxCachedWebs);
+    log.log(Level.CONFIG, "Listing page size: {0}", listingPageSize);
     if(performSidLookup) {
       log.log(Level.CONFIG, "SID Lookup Host: {0}", sidLookupHost);
       log.log(Level.CONFIG, "SID Lookup Username: {0}", sidLookupUsername);
       log.log(Level.CONFIG, "SID Lookup Password: {0}", sidLookupPassword);
       log.log(Level.CONFIG, "SID Lookup Port: {0}", sidLookupPort);
+      log.log(Level.CONFIG, "SID Lookup Cache File: {0}", sidLookupCacheFile);
     }
     if (configuredSharePointUrl.isSiteCollectionUrl()) {
       log.info("Adaptor is configured to use site collection only mode. "
@@ -654,6 +994,16 @@ public class SharePointAdaptor extends AbstractAdaptor
         new URL(configuredSharePointUrl.getVirtualServerUrl());
     ntlmAuthenticator.addPermitForHost(virtualServerUrl);
     scheduledExecutor = new ScheduledThreadPoolExecutor(1);
+    if (httpClient instanceof PooledHttpClient) {
+      final PooledHttpClient pool = (PooledHttpClient) httpClient;
+      scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          pool.evictIdleConnections();
+        }
+      }, connectionIdleTimeoutSecs, connectionIdleTimeoutSecs,
+          TimeUnit.SECONDS);
+    }
     String authenticationType;
     if (!"".equals(customSamlManager)) {
       authenticationType = "Custom SAML Provider";
@@ -751,17 +1101,27 @@ public class SharePointAdaptor extends AbstractAdaptor
    
     try {
       executor = executorFactory.call();
+      if (!"".equals(changeCheckpointFile)) {
+        checkpointStore
+            = new FileCheckpointStore(new File(changeCheckpointFile));
+      }
+      objectGuidToChangeIdMapping.clear();
+      objectGuidToChangeIdMapping.putAll(checkpointStore.load());
       SiteAdaptor spAdaptor = getSiteAdaptor(
           configuredSharePointUrl.getSharePointUrl(),
           configuredSharePointUrl.getSharePointUrl());
       SiteDataClient sharePointSiteDataClient =
           spAdaptor.getSiteDataClient();
-      rareModCache
-          = new RareModificationCache(sharePointSiteDataClient, executor);
+      rareModCache = new RareModificationCache(sharePointSiteDataClient);
       if (performSidLookup) {
       adClient = adClientFactory.newActiveDirectoryClient(
               sidLookupHost,sidLookupPort, sidLookupUsername,
               sidLookupPassword,sidLookupMethod);     
+        if (!"".equals(sidLookupCacheFile)) {
+          sidCacheStore
+              = new FileCheckpointStore(new File(sidLookupCacheFile));
+          adClient.setPersistentCache(sidCacheStore);
+        }
       }
       
       // Web Application which does not have root site is not supported 
@@ -856,6 +1216,8 @@ public class SharePointAdaptor extends AbstractAdaptor
             configuredSharePointUrl.getVirtualServerUrl());
       }
     } catch (WebServiceIOException ex) {
+      // Don't leak the executor or the checkpoint stores.
+      destroy();
       String warning;
       Throwable cause = ex.getCause();
       if (cause instanceof UnknownHostException) {
@@ -875,7 +1237,7 @@ public class SharePointAdaptor extends AbstractAdaptor
       }
       throw new IOException(warning, ex);
     } catch (Exception e) {
-      // Don't leak the executor.
+      // Don't leak the executor or the checkpoint stores.
       destroy();
       throw e;
     }
@@ -888,6 +1250,38 @@ public class SharePointAdaptor extends AbstractAdaptor
     executor = null;
     scheduledExecutor = null;
     rareModCache = null;
+    folderScopeCache.invalidateAll();
+    groupFingerprints.invalidateAll();
+    webUrlResolver.invalidateAll();
+    listItemIndex.invalidateAll();
+    listingFingerprints.invalidateAll();
+    try {
+      checkpointStore.close();
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Failed to close change checkpoint store", ex);
+    }
+    checkpointStore = new CheckpointStore.NoopCheckpointStore();
+    if (adClient != null) {
+      adClient.close();
+      adClient = null;
+    }
+    try {
+      sidCacheStore.close();
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Failed to close SID cache", ex);
+    }
+    sidCacheStore = new CheckpointStore.NoopCheckpointStore();
+    log.log(Level.INFO, "Web client cache: {0}", siteAdaptors.stats());
+    siteAdaptors.invalidateAll();
+    siteCollectionPorts.invalidateAll();
+    log.log(Level.INFO, "Mapping refreshes suppressed for unresolvable member "
+        + "ids: {0}", suppressedMappingRefreshes.get());
+    unresolvedMemberIds.invalidateAll();
+    if (httpClient instanceof PooledHttpClient) {
+      PooledHttpClient pool = (PooledHttpClient) httpClient;
+      log.log(Level.INFO, "Download connection pool: {0}", pool.getStats());
+      pool.close();
+    }
     if (needToResetDefaultAuthenticator) {
       // Reset authenticator
       Authenticator.setDefault(null);     
@@ -1043,7 +1437,7 @@ public class SharePointAdaptor extends AbstractAdaptor
     Map<GroupPrincipal, Collection<Principal>> groupDefs 
         = new HashMap<GroupPrincipal, Collection<Principal>>();
     groupDefs.putAll(scAdaptor.computeMembersForGroups(site.getGroups()));
-    pusher.pushGroupDefinitions(groupDefs, false);
+    pushChangedGroupDefinitions(pusher, groupDefs);
     log.exiting("SharePointAdaptor", "getDocIdsSiteCollectionOnly");
   }
   
@@ -1055,8 +1449,10 @@ public class SharePointAdaptor extends AbstractAdaptor
     SiteDataClient vsClient = vsAdaptor.getSiteDataClient();
     pusher.pushDocIds(Arrays.asList(virtualServerDocId));
     VirtualServer vs = vsClient.getContentVirtualServer();
-    Map<GroupPrincipal, Collection<Principal>> defs
-        = new HashMap<GroupPrincipal, Collection<Principal>>();
+    // Included site collections of each content database, along with the
+    // permits limiting the parallel requests to that database.
+    List<Queue<String>> sitesByDatabase = new ArrayList<Queue<String>>();
+    List<Semaphore> permitsByDatabase = new ArrayList<Semaphore>();
     for (ContentDatabases.ContentDatabase cdcd
         : vs.getContentDatabases().getContentDatabase()) {
       ContentDatabase cd;
@@ -1070,6 +1466,7 @@ public class SharePointAdaptor extends AbstractAdaptor
       if (cd.getSites() == null) {
         continue;
       }
+      Queue<String> sites = new LinkedList<String>();
       Set<String> excluded = new TreeSet<String>();
       for (Sites.Site siteListing : cd.getSites().getSite()) {
         String siteString
@@ -1079,37 +1476,262 @@ public class SharePointAdaptor extends AbstractAdaptor
           excluded.add(siteString);
           continue;
         }
-        ntlmAuthenticator.addPermitForHost(spUrlToUri(siteString).toURL());           
-        SiteAdaptor siteAdaptor = getSiteAdaptor(siteString, siteString);
-        Site site;
-        try {
-          site = siteAdaptor.getSiteDataClient().getContentSite();
-        } catch (IOException ex) {
-          log.log(Level.WARNING, "Failed to get local groups for site: "
-              + siteString, ex);
-          continue;
-        }
-        Map<GroupPrincipal, Collection<Principal>> siteDefs
-            = siteAdaptor.computeMembersForGroups(site.getGroups());
-        for (Map.Entry<GroupPrincipal, Collection<Principal>> me
-            : siteDefs.entrySet()) {
-          defs.put(me.getKey(), me.getValue());
-          if (defs.size() >= feedMaxUrls) {
-            pusher.pushGroupDefinitions(defs, false);
-            defs.clear();
-          }
-        }
+        ntlmAuthenticator.addPermitForHost(spUrlToUri(siteString).toURL());
+        sites.add(siteString);
       }
       if (excluded.size() > 0) {
         log.log(Level.INFO,
             "List of site collections excluded from index in "
                 + "getDocIds: {0}", excluded);
       }
+      sitesByDatabase.add(sites);
+      permitsByDatabase.add(
+          new Semaphore(siteCollectionTraversalThreadsPerContentDatabase));
+    }
+
+    GroupDefinitionsBatcher batcher = new GroupDefinitionsBatcher(pusher);
+    SiteGroupsTraversal traversal
+        = new SiteGroupsTraversal(siteCollectionTraversalThreads, batcher);
+    try {
+      // Take one site collection from each content database in turn, skipping
+      // the databases at their limit, so that a busy database does not keep
+      // the other databases idle.
+      while (true) {
+        boolean remaining = false;
+        boolean submitted = false;
+        for (int i = 0; i < sitesByDatabase.size(); i++) {
+          Queue<String> sites = sitesByDatabase.get(i);
+          if (sites.isEmpty()) {
+            continue;
+          }
+          remaining = true;
+          if (traversal.trySubmit(sites.peek(), permitsByDatabase.get(i))) {
+            sites.remove();
+            submitted = true;
+          }
+        }
+        if (!remaining) {
+          break;
+        }
+        if (!submitted) {
+          traversal.awaitPermit();
+        }
+      }
+      traversal.finish();
+    } finally {
+      traversal.shutdown();
     }
-    pusher.pushGroupDefinitions(defs, false);
+    batcher.flush();
     log.exiting("SharePointAdaptor", "getDocIdsVirtualServer");
   }
 
+  /**
+   * Pushes the groups in {@code defs} whose membership changed since they were
+   * last pushed. Returns {@code null} on success, like {@link
+   * DocIdPusher#pushGroupDefinitions}.
+   */
+  private GroupPrincipal pushChangedGroupDefinitions(DocIdPusher pusher,
+      Map<GroupPrincipal, Collection<Principal>> defs)
+      throws InterruptedException {
+    Map<GroupPrincipal, Collection<Principal>> changed
+        = groupFingerprints.changed(defs);
+    log.log(Level.FINE, "{0} of {1} groups changed since last pushed",
+        new Object[] {changed.size(), defs.size()});
+    return pushGroupDefinitions(pusher, changed);
+  }
+
+  /**
+   * Pushes {@code defs} and remembers their membership if successful. Returns
+   * {@code null} on success, like {@link DocIdPusher#pushGroupDefinitions}.
+   */
+  private GroupPrincipal pushGroupDefinitions(DocIdPusher pusher,
+      Map<GroupPrincipal, Collection<Principal>> defs)
+      throws InterruptedException {
+    if (defs.isEmpty()) {
+      return null;
+    }
+    GroupPrincipal failed = pusher.pushGroupDefinitions(defs, false);
+    if (failed == null) {
+      groupFingerprints.pushed(defs);
+    }
+    return failed;
+  }
+
+  /**
+   * Accumulates group definitions and pushes them to the GSA in batches of at
+   * most {@code feedMaxUrls} groups. Groups whose membership has not changed
+   * since they were last pushed are dropped.
+   */
+  private class GroupDefinitionsBatcher {
+    private final DocIdPusher pusher;
+    private final Map<GroupPrincipal, Collection<Principal>> defs
+        = new HashMap<GroupPrincipal, Collection<Principal>>();
+
+    public GroupDefinitionsBatcher(DocIdPusher pusher) {
+      this.pusher = pusher;
+    }
+
+    public void add(Map<GroupPrincipal, Collection<Principal>> siteDefs)
+        throws InterruptedException {
+      for (Map.Entry<GroupPrincipal, Collection<Principal>> me
+          : groupFingerprints.changed(siteDefs).entrySet()) {
+        defs.put(me.getKey(), me.getValue());
+        if (defs.size() >= feedMaxUrls) {
+          pushGroupDefinitions(pusher, defs);
+          defs.clear();
+        }
+      }
+    }
+
+    public void flush() throws InterruptedException {
+      pushGroupDefinitions(pusher, defs);
+      defs.clear();
+    }
+  }
+
+  /**
+   * Retrieves the local groups of site collections, potentially in parallel,
+   * and hands them to a {@link GroupDefinitionsBatcher} in the order the site
+   * collections were submitted. Delivering in submission order keeps the
+   * pushed batches identical to a serial traversal.
+   *
+   * <p>This class is not thread-safe; {@link #trySubmit}, {@link #finish}, and
+   * {@link #shutdown} must be called from a single thread.
+   */
+  private class SiteGroupsTraversal {
+    private final GroupDefinitionsBatcher batcher;
+    /** {@code null} when traversing serially. */
+    private final ExecutorService traversalExecutor;
+    /** Outstanding results, in submission order. */
+    private final Queue<Future<Map<GroupPrincipal, Collection<Principal>>>>
+        pending
+        = new LinkedList<Future<Map<GroupPrincipal, Collection<Principal>>>>();
+    /**
+     * Maximum number of outstanding results, which bounds the memory used by
+     * completed, but not yet consumed, group definitions.
+     */
+    private final int maxPending;
+    /** Released each time a worker releases its content database permit. */
+    private final Semaphore releasedPermits = new Semaphore(0);
+
+    public SiteGroupsTraversal(int threads, GroupDefinitionsBatcher batcher) {
+      this.batcher = batcher;
+      this.traversalExecutor
+          = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+      this.maxPending = 2 * threads;
+    }
+
+    /**
+     * Submits the site collection {@code siteString} unless its content
+     * database has no free permit, and returns whether it was submitted. The
+     * permit is acquired here, instead of by the worker, so that workers never
+     * wait on a busy content database while other databases have work queued.
+     */
+    public boolean trySubmit(String siteString,
+        final Semaphore contentDatabasePermits)
+        throws InterruptedException, IOException {
+      if (traversalExecutor == null) {
+        Map<GroupPrincipal, Collection<Principal>> siteDefs
+            = retrieveSiteGroups(getSiteAdaptor(siteString, siteString));
+        if (siteDefs != null) {
+          batcher.add(siteDefs);
+        }
+        return true;
+      }
+      while (pending.size() >= maxPending) {
+        consumeNext();
+      }
+      if (!contentDatabasePermits.tryAcquire()) {
+        return false;
+      }
+      boolean submitted = false;
+      try {
+        final SiteAdaptor siteAdaptor = getSiteAdaptor(siteString, siteString);
+        pending.add(traversalExecutor.submit(
+            new Callable<Map<GroupPrincipal, Collection<Principal>>>() {
+              @Override
+              public Map<GroupPrincipal, Collection<Principal>> call() {
+                try {
+                  return retrieveSiteGroups(siteAdaptor);
+                } finally {
+                  contentDatabasePermits.release();
+                  releasedPermits.release();
+                }
+              }
+            }));
+        submitted = true;
+      } finally {
+        if (!submitted) {
+          contentDatabasePermits.release();
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Waits until a worker releases a content database permit. Must only be
+     * called while some submitted site collection holds a permit.
+     */
+    public void awaitPermit() throws InterruptedException {
+      releasedPermits.acquire();
+      // Permits released earlier are seen by the caller's next round anyway.
+      releasedPermits.drainPermits();
+    }
+
+    /** Waits for and consumes all outstanding results. */
+    public void finish() throws InterruptedException, IOException {
+      while (!pending.isEmpty()) {
+        consumeNext();
+      }
+    }
+
+    public void shutdown() {
+      if (traversalExecutor == null) {
+        return;
+      }
+      for (Future<?> future : pending) {
+        future.cancel(true);
+      }
+      pending.clear();
+      traversalExecutor.shutdownNow();
+    }
+
+    private void consumeNext() throws InterruptedException, IOException {
+      Map<GroupPrincipal, Collection<Principal>> siteDefs;
+      try {
+        siteDefs = pending.remove().get();
+      } catch (ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        } else if (cause instanceof InterruptedException) {
+          throw (InterruptedException) cause;
+        } else {
+          throw new IOException(cause);
+        }
+      }
+      if (siteDefs != null) {
+        batcher.add(siteDefs);
+      }
+    }
+
+    /** Returns {@code null} if the site's groups could not be retrieved. */
+    private Map<GroupPrincipal, Collection<Principal>> retrieveSiteGroups(
+        SiteAdaptor siteAdaptor) {
+      Site site;
+      try {
+        site = siteAdaptor.getSiteDataClient().getContentSite();
+      } catch (IOException ex) {
+        log.log(Level.WARNING, "Failed to get local groups for site: "
+            + siteAdaptor.siteUrl, ex);
+        return null;
+      }
+      return siteAdaptor.computeMembersForGroups(site.getGroups());
+    }
+  }
+
   @Override
   public void getModifiedDocIds(DocIdPusher pusher)
       throws InterruptedException {
@@ -1177,7 +1799,7 @@ public class SharePointAdaptor extends AbstractAdaptor
       pusher.pushRecords(Collections.singleton(record));
     }
     for (String contentDatabase : removedContentDatabases) {
-      objectGuidToChangeIdMapping.remove(contentDatabase);
+      removeChangeId(contentDatabase);
     }
     for (String contentDatabase : newContentDatabases) {
       ContentDatabase cd;
@@ -1190,54 +1812,328 @@ public class SharePointAdaptor extends AbstractAdaptor
         continue;
       }
       String changeId = cd.getMetadata().getChangeId();
-      objectGuidToChangeIdMapping.put(contentDatabase, changeId);
+      saveChangeId(contentDatabase, changeId);
     }
-    for (String contentDatabase : updatedContentDatabases) {
-      String changeId = objectGuidToChangeIdMapping.get(contentDatabase);
-      if (changeId == null) {
-        // The item was removed from objectGuidToChangeIdMapping, so apparently
-        // this database is gone.
-        continue;
+    pollContentDatabaseChanges(pusher, siteAdaptor, updatedContentDatabases);
+    log.exiting("SharePointAdaptor", "getModifiedDocIdsVirtualServer", pusher);
+  }
+
+  /**
+   * Retrieves and pushes the changes of each content database, using up to
+   * {@code changePollingThreads} databases concurrently so that a busy
+   * database does not delay change detection in the others.
+   */
+  private void pollContentDatabaseChanges(final DocIdPusher pusher,
+      final SiteAdaptor siteAdaptor, Collection<String> contentDatabases)
+      throws InterruptedException {
+    int threads = Math.min(changePollingThreads, contentDatabases.size());
+    if (threads <= 1) {
+      for (String contentDatabase : contentDatabases) {
+        pushContentDatabaseChanges(pusher, siteAdaptor, contentDatabase);
       }
-      CursorPaginator<SPContentDatabase, String> changesPaginator
-          = client.getChangesContentDatabase(contentDatabase, changeId,
-              isSp2007);
-      Set<DocId> docIds = new HashSet<DocId>();
-      Set<String> updatedSiteSecurity = new HashSet<String>();
-      try {
-        while (true) {
-          try {
-            SPContentDatabase changes = changesPaginator.next();
-            if (changes == null) {
-              break;
-            }
-            getModifiedDocIdsContentDatabase(changes, docIds,
-                updatedSiteSecurity);
-          } catch (XmlProcessingException ex) {
-            log.log(Level.WARNING, "Error parsing changes from content "
-                + "database: " + contentDatabase, ex);
-            // The cursor is guaranteed to be advanced past the position that
-            // failed parsing, so we just ignore the failure and continue
-            // looping.
+      return;
+    }
+    ExecutorService pollingExecutor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (final String contentDatabase : contentDatabases) {
+        futures.add(pollingExecutor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws InterruptedException {
+            pushContentDatabaseChanges(pusher, siteAdaptor, contentDatabase);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException ex) {
+          Throwable cause = ex.getCause();
+          if (cause instanceof InterruptedException) {
+            throw (InterruptedException) cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
+          } else {
+            throw new AssertionError(cause);
           }
-          objectGuidToChangeIdMapping.put(contentDatabase,
-              changesPaginator.getCursor());
         }
-      } catch (IOException ex) {
-        log.log(Level.WARNING, "Error getting changes from content database: "
-            + contentDatabase, ex);
-        // Continue processing. Hope that next time works better.
       }
-      pushIncrementalUpdatesAndGroups(
+    } finally {
+      pollingExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * Retrieves the changes of a content database page by page, pushing the
+   * changes of each page as soon as it is received and then advancing the
+   * database's change token. Stops when there are no more changes or once the
+   * database has used its {@code changePollingTimeBudgetMillis}, in which case
+   * the remaining changes are retrieved during the next poll. The budget
+   * starts when polling this database starts, not when it was queued.
+   */
+  private void pushContentDatabaseChanges(DocIdPusher pusher,
+      SiteAdaptor siteAdaptor, String contentDatabase)
+      throws InterruptedException {
+    long deadlineMillis = changePollingTimeBudgetMillis == 0
+        ? Long.MAX_VALUE
+        : System.currentTimeMillis() + changePollingTimeBudgetMillis;
+    String changeId = objectGuidToChangeIdMapping.get(contentDatabase);
+    if (changeId == null) {
+      // The item was removed from objectGuidToChangeIdMapping, so apparently
+      // this database is gone.
+      return;
+    }
+    ChangeCollector collector = new ChangeCollector();
+    CursorPaginator<Boolean, String> changesPaginator
+        = getChangesContentDatabase(siteAdaptor.getSiteDataClient(),
+            contentDatabase, changeId, collector);
+    ChangeBatcher batcher
+        = new ChangeBatcher(pusher, siteAdaptor, contentDatabase);
+    try {
+      while (true) {
+        collector.clear();
+        try {
+          if (changesPaginator.next() == null) {
+            break;
+          }
+        } catch (XmlProcessingException ex) {
+          log.log(Level.WARNING, "Error parsing changes from content "
+              + "database: " + contentDatabase, ex);
+          // The cursor is guaranteed to be advanced past the position that
+          // failed parsing, so we just ignore the failure and continue
+          // looping.
+        }
+        batcher.add(collector.docIds, collector.updatedSiteSecurity,
+            changesPaginator.getCursor());
+        if ((!changeBatching || batcher.isFlushDue()) && !batcher.flush()) {
+          // Retry from the last acknowledged change token on the next poll.
+          return;
+        }
+        if (System.currentTimeMillis() >= deadlineMillis) {
+          log.log(Level.INFO, "Time budget for change polling exhausted for "
+              + "content database {0}. Remaining changes will be retrieved "
+              + "during the next poll.", contentDatabase);
+          break;
+        }
+      }
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Error getting changes from content database: "
+          + contentDatabase, ex);
+      // Continue processing. Hope that next time works better.
+    }
+    batcher.flush();
+  }
+
+  /**
+   * Provides the pages of changes of a content database, with each page's
+   * changes placed in {@code collector}.
+   */
+  private CursorPaginator<Boolean, String> getChangesContentDatabase(
+      SiteDataClient client, String contentDatabase, String changeId,
+      final ChangeCollector collector) {
+    if (streamingXmlParser) {
+      return client.visitChangesContentDatabase(contentDatabase, changeId,
+          isSp2007, collector);
+    }
+    final CursorPaginator<SPContentDatabase, String> changesPaginator
+        = client.getChangesContentDatabase(contentDatabase, changeId,
+            isSp2007);
+    return new CursorPaginator<Boolean, String>() {
+      @Override
+      public Boolean next() throws IOException {
+        SPContentDatabase changes = changesPaginator.next();
+        if (changes == null) {
+          return null;
+        }
+        getModifiedDocIdsContentDatabase(changes, collector.docIds,
+            collector.updatedSiteSecurity);
+        return Boolean.TRUE;
+      }
+
+      @Override
+      public String getCursor() {
+        return changesPaginator.getCursor();
+      }
+    };
+  }
+
+  /**
+   * Provides the pages of changes of a site collection, with each page's
+   * changes placed in {@code collector}.
+   */
+  private CursorPaginator<Boolean, String> getChangesSiteCollection(
+      SiteDataClient client, String siteId, String changeId,
+      final ChangeCollector collector) {
+    if (streamingXmlParser) {
+      return client.visitChangesSPSite(siteId, changeId, isSp2007, collector);
+    }
+    final CursorPaginator<SPSite, String> changesPaginator
+        = client.getChangesSPSite(siteId, changeId, isSp2007);
+    return new CursorPaginator<Boolean, String>() {
+      @Override
+      public Boolean next() throws IOException {
+        SPSite changes = changesPaginator.next();
+        if (changes == null) {
+          return null;
+        }
+        getModifiedDocIdsSite(changes, collector.docIds,
+            collector.updatedSiteSecurity);
+        return Boolean.TRUE;
+      }
+
+      @Override
+      public String getCursor() {
+        return changesPaginator.getCursor();
+      }
+    };
+  }
+
+  /**
+   * Collects the documents and site collection security changed within a
+   * page of changes, as the page is parsed.
+   */
+  private class ChangeCollector implements ChangeVisitor {
+    private final Set<DocId> docIds = new HashSet<DocId>();
+    private final Set<String> updatedSiteSecurity = new HashSet<String>();
+    /** Whether the webs that follow belong to an included site collection. */
+    private boolean siteIncluded;
+
+    public void clear() {
+      docIds.clear();
+      updatedSiteSecurity.clear();
+    }
+
+    @Override
+    public void visitContentDatabase(String change) {
+      if (!"Unchanged".equals(change)) {
+        docIds.add(virtualServerDocId);
+      }
+    }
+
+    @Override
+    public void visitSite(SPSite site) throws IOException {
+      String siteUrl = getCanonicalUrl(
+          site.getServerUrl() + site.getDisplayUrl());
+      siteIncluded = sharePointUrl.isSiteCollectionIncluded(siteUrl);
+      getModifiedDocIdsSite(site, docIds, updatedSiteSecurity);
+    }
+
+    @Override
+    public void visitWeb(SPWeb web) {
+      if (siteIncluded) {
+        getModifiedDocIdsWeb(web, docIds);
+      }
+    }
+  }
+
+  /**
+   * Accumulates the changes of one content database or site collection and
+   * pushes them in batches. With {@code changeBatching}, a batch is pushed
+   * once it holds {@code changeBatchSize} distinct documents or its oldest
+   * change has waited {@code changeBatchMaxDelayMillis}; the age is checked as
+   * pages arrive.
+   * Documents changed more than once within a batch are pushed once. The
+   * change token is only advanced once the batch containing the changes up to
+   * that token has been accepted by the pusher, so that a failed push is
+   * retried from the same position on the next poll.
+   */
+  private class ChangeBatcher {
+    private final DocIdPusher pusher;
+    private final SiteAdaptor siteAdaptor;
+    private final String objectGuid;
+    private final Set<DocId> docIds = new LinkedHashSet<DocId>();
+    private final Set<String> updatedSiteSecurity = new HashSet<String>();
+    /** Change token covering all pending changes, or {@code null}. */
+    private String cursor;
+    private long oldestPendingMillis;
+
+    public ChangeBatcher(DocIdPusher pusher, SiteAdaptor siteAdaptor,
+        String objectGuid) {
+      this.pusher = pusher;
+      this.siteAdaptor = siteAdaptor;
+      this.objectGuid = objectGuid;
+    }
+
+    public void add(Collection<DocId> newDocIds,
+        Collection<String> newUpdatedSiteSecurity, String newCursor) {
+      if (docIds.isEmpty() && updatedSiteSecurity.isEmpty()) {
+        oldestPendingMillis = System.currentTimeMillis();
+      }
+      docIds.addAll(newDocIds);
+      updatedSiteSecurity.addAll(newUpdatedSiteSecurity);
+      cursor = newCursor;
+    }
+
+    public boolean isFlushDue() {
+      if (docIds.isEmpty() && updatedSiteSecurity.isEmpty()) {
+        // Only the change token would be advanced, which is cheap.
+        return cursor != null;
+      }
+      return docIds.size() >= changeBatchSize
+          || System.currentTimeMillis() - oldestPendingMillis
+              >= changeBatchMaxDelayMillis;
+    }
+
+    /**
+     * Pushes pending changes and then advances the change token. Returns
+     * {@code false} if the pusher did not accept the changes, in which case
+     * the change token is left untouched.
+     */
+    public boolean flush() throws InterruptedException {
+      if (cursor == null) {
+        return true;
+      }
+      boolean acknowledged = pushIncrementalUpdatesAndGroups(
           pusher, siteAdaptor, docIds, updatedSiteSecurity);
-      
+      docIds.clear();
+      updatedSiteSecurity.clear();
+      String flushedCursor = cursor;
+      cursor = null;
+      if (!acknowledged) {
+        log.log(Level.WARNING, "Failed to push changes for {0}. Changes will "
+            + "be retrieved again during the next poll.", objectGuid);
+        return false;
+      }
+      saveChangeId(objectGuid, flushedCursor);
+      return true;
     }
-    log.exiting("SharePointAdaptor", "getModifiedDocIdsVirtualServer", pusher);
   }
 
-  private void pushIncrementalUpdatesAndGroups(DocIdPusher pusher, 
+  /**
+   * Records the change token to resume from for the provided object, both in
+   * memory and in the checkpoint store.
+   */
+  private void saveChangeId(String objectGuid, String changeId) {
+    objectGuidToChangeIdMapping.put(objectGuid, changeId);
+    try {
+      checkpointStore.put(objectGuid, changeId);
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Failed to persist change token for: "
+          + objectGuid, ex);
+    }
+  }
+
+  private void removeChangeId(String objectGuid) {
+    objectGuidToChangeIdMapping.remove(objectGuid);
+    try {
+      checkpointStore.remove(objectGuid);
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Failed to remove change token for: "
+          + objectGuid, ex);
+    }
+  }
+
+  /**
+   * Returns {@code false} if the pusher failed to push some of the records or
+   * groups.
+   */
+  private boolean pushIncrementalUpdatesAndGroups(DocIdPusher pusher, 
       SiteAdaptor siteAdaptor, Set<DocId> docIds,
       Set<String> updatedSiteSecurity) throws InterruptedException {
+    if (!docIds.isEmpty()) {
       List<DocIdPusher.Record> records
           = new ArrayList<DocIdPusher.Record>(docIds.size());
       DocIdPusher.Record.Builder builder
@@ -1246,26 +2142,29 @@ public class SharePointAdaptor extends AbstractAdaptor
       for (DocId docId : docIds) {
         records.add(builder.setDocId(docId).build());
       }
-      pusher.pushRecords(records);
-      if (updatedSiteSecurity.isEmpty()) {
-        return;
+      if (pusher.pushRecords(records) != null) {
+        return false;
       }
-      Map<GroupPrincipal, Collection<Principal>> groupDefs
-          = new HashMap<GroupPrincipal, Collection<Principal>>();
-      for (String siteUrl : updatedSiteSecurity) {
-        Site site;
-        try {
-          site = getSiteAdaptor(siteUrl, siteUrl).getSiteDataClient()
-              .getContentSite();
-        } catch (IOException ex) {
-          log.log(Level.WARNING, "Failed to get local groups for site: "
-              + siteUrl, ex);
-          continue;
-        }
-        groupDefs.putAll(siteAdaptor.computeMembersForGroups(site.getGroups()));
+    }
+    if (updatedSiteSecurity.isEmpty()) {
+      return true;
+    }
+    Map<GroupPrincipal, Collection<Principal>> groupDefs
+        = new HashMap<GroupPrincipal, Collection<Principal>>();
+    for (String siteUrl : updatedSiteSecurity) {
+      Site site;
+      try {
+        site = getSiteAdaptor(siteUrl, siteUrl).getSiteDataClient()
+            .getContentSite();
+      } catch (IOException ex) {
+        log.log(Level.WARNING, "Failed to get local groups for site: "
+            + siteUrl, ex);
+        continue;
       }
-      pusher.pushGroupDefinitions(groupDefs, false);
+      groupDefs.putAll(siteAdaptor.computeMembersForGroups(site.getGroups()));
     }
+    return pushChangedGroupDefinitions(pusher, groupDefs) == null;
+  }
 
   @VisibleForTesting
   void getModifiedDocIdsContentDatabase(SPContentDatabase changes,
@@ -1320,30 +2219,33 @@ public class SharePointAdaptor extends AbstractAdaptor
     }
     String siteId = site.getMetadata().getID();
     if (!objectGuidToChangeIdMapping.containsKey(siteId)) {
-      objectGuidToChangeIdMapping.put(siteId, site.getMetadata().getChangeId());
+      saveChangeId(siteId, site.getMetadata().getChangeId());
     }
     
-    Set<DocId> docIds = new HashSet<DocId>();
-    Set<String> updatedSiteSecurity = new HashSet<String>();
+    ChangeBatcher batcher = new ChangeBatcher(pusher, siteAdaptor, siteId);
+    ChangeCollector collector = new ChangeCollector();
     try {
-      CursorPaginator<SPSite, String> changesPaginator 
-          = client.getChangesSPSite(siteId,
-              objectGuidToChangeIdMapping.get(siteId), isSp2007);
+      CursorPaginator<Boolean, String> changesPaginator
+          = getChangesSiteCollection(client, siteId,
+              objectGuidToChangeIdMapping.get(siteId), collector);
       while(true) {
-        SPSite changes = changesPaginator.next();
-        if (changes == null) {
+        collector.clear();
+        if (changesPaginator.next() == null) {
           break;
         }
-        getModifiedDocIdsSite(changes, docIds, updatedSiteSecurity);
-        objectGuidToChangeIdMapping.put(siteId, changesPaginator.getCursor());
+        batcher.add(collector.docIds, collector.updatedSiteSecurity,
+            changesPaginator.getCursor());
+        if (changeBatching && batcher.isFlushDue() && !batcher.flush()) {
+          // Retry from the last acknowledged change token on the next poll.
+          return;
+        }
       }
     } catch (IOException ex) {
       log.log(Level.WARNING, "Error getting changes from Site Collection : "
             + site.getMetadata().getURL(), ex);
         // Continue processing. Hope that next time works better.
     }
-    pushIncrementalUpdatesAndGroups(
-        pusher, siteAdaptor, docIds, updatedSiteSecurity);
+    batcher.flush();
   }
 
   private void getModifiedDocIdsSite(SPSite changes, Collection<DocId> docIds,
@@ -1356,6 +2258,9 @@ public class SharePointAdaptor extends AbstractAdaptor
       log.exiting("SharePointAdaptor", "getModifiedDocIdsSite");
       return;
     }
+    if (!"Unchanged".equals(changes.getChange())) {
+      webUrlResolver.invalidate(siteUrl);
+    }
     if (isModified(changes.getChange())) {
       docIds.add(new DocId(siteUrl));
       // Add modified site to whitelist for authenticator as this might be new
@@ -1363,6 +2268,9 @@ public class SharePointAdaptor extends AbstractAdaptor
       ntlmAuthenticator.addPermitForHost(spUrlToUri(siteUrl).toURL());
       if ("UpdateSecurity".equals(changes.getChange())) {
         updatedSiteSecurity.add(siteUrl);
+        // Webs and lists inheriting permissions have changed as well.
+        rareModCache.invalidateSiteCollection(siteUrl);
+        folderScopeCache.invalidateSiteCollection(siteUrl);
       }
     }
     List<SPWeb> changedWebs = changes.getSPWeb();
@@ -1379,9 +2287,14 @@ public class SharePointAdaptor extends AbstractAdaptor
   private void getModifiedDocIdsWeb(SPWeb changes, Collection<DocId> docIds) {
     log.entering("SharePointAdaptor", "getModifiedDocIdsWeb",
         new Object[] {changes, docIds});
+    String webUrl = changes.getServerUrl() + changes.getDisplayUrl();
+    webUrl = getCanonicalUrl(webUrl);
+    if (!"Unchanged".equals(changes.getChange())) {
+      rareModCache.invalidateWeb(webUrl);
+      // The web may have been deleted or moved, or a child web added.
+      webUrlResolver.invalidate(webUrl);
+    }
     if (isModified(changes.getChange())) {
-      String webUrl = changes.getServerUrl() + changes.getDisplayUrl();
-      webUrl = getCanonicalUrl(webUrl);
       docIds.add(new DocId(webUrl));
     }
     
@@ -1392,36 +2305,61 @@ public class SharePointAdaptor extends AbstractAdaptor
     }
     for (Object choice : spObjects) {      
       if (choice instanceof SPList) {
-        getModifiedDocIdsList((SPList) choice, docIds);
+        getModifiedDocIdsList((SPList) choice, webUrl, docIds);
       }
     }
     log.exiting("SharePointAdaptor", "getModifiedDocIdsWeb");
   }
 
-  private void getModifiedDocIdsList(SPList changes,
+  private void getModifiedDocIdsList(SPList changes, String webUrl,
       Collection<DocId> docIds) {
     log.entering("SharePointAdaptor", "getModifiedDocIdsList",
         new Object[] {changes, docIds});
+    boolean listChanged = !"Unchanged".equals(changes.getChange());
+    if (listChanged && changes.getId() != null) {
+      rareModCache.invalidateList(webUrl, changes.getId());
+    }
+    String listId = changes.getId();
+    if (listId == null && changes.getList() != null
+        && changes.getList().getMetadata() != null) {
+      listId = changes.getList().getMetadata().getID();
+    }
+    if ("Delete".equals(changes.getChange()) && listId != null) {
+      listItemIndex.invalidateList(listId);
+    }
     if (isModified(changes.getChange())) {
       String listUrl = changes.getServerUrl() + changes.getDisplayUrl();
       docIds.add(new DocId(listUrl));
     }
+    // Folder scopes only change with permissions. Other changes, like
+    // edits of documents, leave the cached scopes valid.
+    boolean securityChanged = "UpdateSecurity".equals(changes.getChange())
+        || "Delete".equals(changes.getChange());
     List<Object> spObjects = changes.getSPViewOrSPListItem();
-    if (spObjects == null) {
-      log.exiting("SharePointAdaptor", "getModifiedDocIdsList");
-      return;
-    }
-    for (Object choice : spObjects) {
-      // Ignore view change detection.
-
-      if (choice instanceof SPListItem) {
-        getModifiedDocIdsListItem((SPListItem) choice, docIds);
+    if (spObjects != null) {
+      for (Object choice : spObjects) {
+        // Ignore view change detection.
+
+        if (choice instanceof SPListItem) {
+          SPListItem item = (SPListItem) choice;
+          // The item may be a folder whose permissions changed.
+          securityChanged |= "UpdateSecurity".equals(item.getChange())
+              || TrueFalseType.TRUE.equals(item.getUpdateSecurity());
+          getModifiedDocIdsListItem(item, listId, docIds);
+        }
       }
     }
+    if (securityChanged && listId != null) {
+      folderScopeCache.invalidateList(listId);
+    }
     log.exiting("SharePointAdaptor", "getModifiedDocIdsList");
   }
 
-  private void getModifiedDocIdsListItem(SPListItem changes,
+  /**
+   * @param listId id of the list containing the item, or {@code null} if not
+   *     known
+   */
+  private void getModifiedDocIdsListItem(SPListItem changes, String listId,
       Collection<DocId> docIds) {
     log.entering("SharePointAdaptor", "getModifiedDocIdsListItem",
         new Object[] {changes, docIds});
@@ -1444,50 +2382,124 @@ public class SharePointAdaptor extends AbstractAdaptor
         } else {
           String url = changes.getServerUrl() + serverUrl;
           docIds.add(new DocId(url));
+          String itemId = data.getAttribute(OWS_ID_ATTRIBUTE);
+          if (listId != null && !Strings.isNullOrEmpty(itemId)) {
+            listItemIndex.put(url, listId, itemId);
+          }
         }
       }
     }
     log.exiting("SharePointAdaptor", "getModifiedDocIdsListItem");
   }
 
-  private boolean isModified(String change) {
-    return !"Unchanged".equals(change) && !"Delete".equals(change);
+  private boolean isModified(String change) {
+    return !"Unchanged".equals(change) && !"Delete".equals(change);
+  }
+
+  private SiteAdaptor getSiteAdaptor(final String site, String web)
+      throws IOException {
+    final String canonicalWeb = getCanonicalUrl(web);
+    return getOrCreate(siteAdaptors, canonicalWeb,
+        new Callable<SiteAdaptor>() {
+          @Override
+          public SiteAdaptor call() throws IOException {
+            return newSiteAdaptor(getCanonicalUrl(site), canonicalWeb);
+          }
+        });
+  }
+
+  /**
+   * Creates a SiteAdaptor for {@code web}. Only the SiteData port is specific
+   * to the web, so creating adaptors for more webs of a known site collection
+   * constructs a single port.
+   */
+  private SiteAdaptor newSiteAdaptor(final String site, String web)
+      throws IOException {
+    ntlmAuthenticator.addPermitForHost(new URL(web));
+    String endpoint = spUrlToUri(web + "/_vti_bin/SiteData.asmx").toString();
+    SiteDataSoap siteDataSoap = soapFactory.newSiteData(endpoint);
+    addRequestHeaders((BindingProvider) siteDataSoap);
+    addSocketTimeoutConfiguration((BindingProvider) siteDataSoap);
+
+    SiteCollectionPorts ports = getOrCreate(siteCollectionPorts, site,
+        new Callable<SiteCollectionPorts>() {
+          @Override
+          public SiteCollectionPorts call() throws IOException {
+            return newSiteCollectionPorts(site);
+          }
+        });
+    return new SiteAdaptor(site, web, siteDataSoap, ports.userGroup,
+        ports.people, new MemberIdMappingCallable(site),
+        new SiteUserIdMappingCallable(site));
   }
 
-  private SiteAdaptor getSiteAdaptor(String site, String web)
+  private SiteCollectionPorts newSiteCollectionPorts(String site)
       throws IOException {
-    web = getCanonicalUrl(web);
-    SiteAdaptor siteAdaptor = siteAdaptors.get(web);
-    if (siteAdaptor == null) {
-      site = getCanonicalUrl(site);
-      ntlmAuthenticator.addPermitForHost(new URL(web));
-      String endpoint = spUrlToUri(web + "/_vti_bin/SiteData.asmx").toString();
-      SiteDataSoap siteDataSoap = soapFactory.newSiteData(endpoint);
-      
-      String endpointUserGroup = spUrlToUri(site + "/_vti_bin/UserGroup.asmx")
-          .toString();
-      UserGroupSoap userGroupSoap = soapFactory.newUserGroup(endpointUserGroup);
-      String endpointPeople = spUrlToUri(site + "/_vti_bin/People.asmx")
-          .toString();
-      PeopleSoap peopleSoap = soapFactory.newPeople(endpointPeople);
-
-      addRequestHeaders((BindingProvider) siteDataSoap);
-      addRequestHeaders((BindingProvider) userGroupSoap);
-      addRequestHeaders((BindingProvider) peopleSoap);
+    String endpointUserGroup = spUrlToUri(site + "/_vti_bin/UserGroup.asmx")
+        .toString();
+    UserGroupSoap userGroupSoap = soapFactory.newUserGroup(endpointUserGroup);
+    String endpointPeople = spUrlToUri(site + "/_vti_bin/People.asmx")
+        .toString();
+    PeopleSoap peopleSoap = soapFactory.newPeople(endpointPeople);
+
+    addRequestHeaders((BindingProvider) userGroupSoap);
+    addRequestHeaders((BindingProvider) peopleSoap);
+
+    addSocketTimeoutConfiguration((BindingProvider) userGroupSoap);
+    addSocketTimeoutConfiguration((BindingProvider) peopleSoap);
+    return new SiteCollectionPorts(userGroupSoap, peopleSoap);
+  }
 
-      addSocketTimeoutConfiguration((BindingProvider) siteDataSoap);
-      addSocketTimeoutConfiguration((BindingProvider) userGroupSoap);
-      addSocketTimeoutConfiguration((BindingProvider) peopleSoap);
+  private static <V> Cache<String, V> newSiteAdaptorCache(int maximumSize) {
+    return CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterAccess(SITE_ADAPTOR_IDLE_MINUTES, TimeUnit.MINUTES)
+        .recordStats()
+        .<String, V>build();
+  }
 
-      siteAdaptor = new SiteAdaptor(site, web, siteDataSoap, userGroupSoap,
-          peopleSoap, new MemberIdMappingCallable(site),
-          new SiteUserIdMappingCallable(site));
-      siteAdaptors.putIfAbsent(web, siteAdaptor);
-      siteAdaptor = siteAdaptors.get(web);
+  /**
+   * Returns the value cached for {@code key}, creating it if necessary.
+   * Concurrent callers for the same key wait for a single creation.
+   */
+  private static <V> V getOrCreate(Cache<String, V> cache, String key,
+      Callable<V> creator) throws IOException {
+    Throwable cause;
+    try {
+      return cache.get(key, creator);
+    } catch (ExecutionException ex) {
+      cause = ex.getCause();
+    } catch (UncheckedExecutionException ex) {
+      cause = ex.getCause();
+    } catch (ExecutionError ex) {
+      cause = ex.getCause();
+    }
+    if (cause instanceof IOException) {
+      throw (IOException) cause;
+    } else if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    } else if (cause instanceof Error) {
+      throw (Error) cause;
+    } else {
+      throw new IOException(cause);
     }
-    return siteAdaptor;
   }
-  
+
+  /**
+   * Number of times resolving member ids did not refresh the mappings, because
+   * the missing ids were known to be unresolvable.
+   */
+  @VisibleForTesting
+  long getSuppressedMappingRefreshes() {
+    return suppressedMappingRefreshes.get();
+  }
+
+  /** Hit, miss, and eviction counts of the SiteAdaptor cache. */
+  @VisibleForTesting
+  CacheStats getSiteAdaptorStats() {
+    return siteAdaptors.stats();
+  }
+
   private void addRequestHeaders(BindingProvider port) {
     Map<String, List<String>> headers = new HashMap<String, List<String>>();
     // Add forms authentication cookies or disable forms authentication
@@ -1594,6 +2606,72 @@ public class SharePointAdaptor extends AbstractAdaptor
     return url.substring(0, url.length() - 1);
   }
 
+  private static long addMetadata(Response response, String name,
+      String value) {
+    return addMetadata(response, name, value, null);
+  }
+
+  /**
+   * Adds the SharePoint field to {@code response}, splitting lookup and
+   * multi-choice values into separate values. Returns an estimate of the bytes
+   * added.
+   */
+  @VisibleForTesting
+  static long addMetadata(Response response, String name, String value,
+      Multimap<String, String> addedMetadata) {
+    long size = 0;
+    if ("ows_MetaInfo".equals(name)) {
+      // ows_MetaInfo is parsed out into other fields for us by SharePoint.
+      // We filter it since it only duplicates those other fields.
+      return 0;
+    }
+    if (name.startsWith("ows_")) {
+      name = name.substring("ows_".length());
+    }
+    name = decodeMetadataName(name);
+    if (ALTERNATIVE_VALUE_PATTERN.matcher(value).find()) {
+      // This is a lookup field. We need to take alternative values only.
+      // Ignore the integer part. 314;#pi;#42;#the answer
+      String[] parts = value.split(";#", 0);
+      for (int i = 1; i < parts.length; i += 2) {
+        if (parts[i].isEmpty()) {
+          continue;
+        }
+        response.addMetadata(name, parts[i]);
+        if (addedMetadata != null) {
+          addedMetadata.put(name, parts[i]);
+        }
+        // +30 for per-metadata-possible overhead, just to make sure that we
+        // don't count too few.
+        size += name.length() + parts[i].length() + 30;
+      }
+    } else if (value.startsWith(";#") && value.endsWith(";#")) {
+      // This is a multi-choice field. Values will be in the form:
+      // ;#value1;#value2;#
+      for (String part : value.split(";#", 0)) {
+        if (part.isEmpty()) {
+          continue;
+        }
+        response.addMetadata(name, part);
+        if (addedMetadata != null) {
+          addedMetadata.put(name, part);
+        }
+        // +30 for per-metadata-possible overhead, just to make sure that we
+        // don't count too few.
+        size += name.length() + part.length() + 30;
+      }
+    } else {
+      response.addMetadata(name, value);
+      if (addedMetadata != null) {
+        addedMetadata.put(name, value);
+      }
+      // +30 for per-metadata-possible overhead, just to make sure that we
+      // don't count too few.
+      size += name.length() + value.length() + 30;
+    }
+    return size;
+  }
+
   /**
    * SharePoint encodes special characters as _x????_ where the ? are hex
    * digits. Each such encoding is a UTF-16 character. For example, _x0020_ is
@@ -1626,7 +2704,9 @@ public class SharePointAdaptor extends AbstractAdaptor
       return getSiteAdaptor(sharePointUrl.getVirtualServerUrl(),
           sharePointUrl.getVirtualServerUrl());
     } 
-    URI uri = spUrlToUri(docId.getUniqueId());
+    // Pages of a listing belong to the same web as the list or folder.
+    String url = ListingPage.containerUrl(docId.getUniqueId());
+    URI uri = spUrlToUri(url);
     if (!ntlmAuthenticator.isPermittedHost(uri.toURL())) {
       log.log(Level.WARNING, "URL {0} not white listed", uri);
       return null;
@@ -1637,9 +2717,14 @@ public class SharePointAdaptor extends AbstractAdaptor
     } catch (URISyntaxException e) {
       throw new IOException(e);
     }
-    SiteAdaptor rootAdaptor = getSiteAdaptor(rootUrl, rootUrl);
-    SiteAdaptor adaptorForUrl =
-        rootAdaptor.getAdaptorForUrl(docId.getUniqueId());
+    SiteAdaptor adaptorForUrl;
+    WebUrlResolver.Resolution resolution = webUrlResolver.resolve(url);
+    if (resolution != null) {
+      adaptorForUrl = getSiteAdaptor(resolution.siteUrl, resolution.webUrl);
+    } else {
+      SiteAdaptor rootAdaptor = getSiteAdaptor(rootUrl, rootUrl);
+      adaptorForUrl = rootAdaptor.getAdaptorForUrl(url);
+    }
     if (adaptorForUrl == null) {
       return null;
     }    
@@ -1705,37 +2790,38 @@ public class SharePointAdaptor extends AbstractAdaptor
 
   @VisibleForTesting
   static String decodeClaim(String loginName, String name) {
-    if (!loginName.startsWith(IDENTITY_CLAIMS_PREFIX)
-        && !loginName.startsWith(OTHER_CLAIMS_PREFIX)) {
-      return loginName;
-    }
-    // AD User
-    if (loginName.startsWith("i:0#.w|")) {
-      return loginName.substring(7);
-    // AD Group
-    } else if (loginName.startsWith("c:0+.w|")) {
-      return name;
-    } else if (loginName.equals("c:0(.s|true")) {
-      return "Everyone";
-    } else if (loginName.equals("c:0!.s|windows")) {
-      return "NT AUTHORITY\\authenticated users";
-    // Forms authentication role  
-    } else if (loginName.startsWith("c:0-.f|")) {
-      return loginName.substring(7).replace("|", ":");
-    // Forms authentication user  
-    } else if (loginName.startsWith("i:0#.f|")) {
-      return loginName.substring(7).replace("|", ":");
-    // Identity and role claims for trusted providers such as ADFS   
-    } else if (loginName.matches("^([i|c]\\:0.\\.t\\|).*$")) {
-      String[] parts = loginName.split(Pattern.quote("|"), 3);
-      if (parts.length == 3) {
-        return parts[2];
-      }
-    }
-    log.log(Level.WARNING, "Unsupported claims value {0}", loginName);
-    return null;
+    return ClaimsDecoder.decode(loginName, name);
   }
-  
+
+  /**
+   * Resolves the SIDs of any claims encoded domain groups in {@code
+   * loginNames} with as few LDAP queries as possible, so that later calls to
+   * {@link #getLoginNameForPrincipal} for them are answered from cache.
+   */
+  private void prefetchSidLookups(Collection<String> loginNames) {
+    if (!performSidLookup) {
+      return;
+    }
+    Set<String> sids = new HashSet<String>();
+    for (String loginName : loginNames) {
+      if (loginName != null && loginName.startsWith("c:0+.w|")) {
+        sids.add(loginName.substring(7));
+      }
+    }
+    if (sids.isEmpty()) {
+      return;
+    }
+    try {
+      adClient.getUserAccountsBySid(sids);
+    } catch (IOException ex) {
+      log.log(Level.WARNING, "Error performing SID lookup for " + sids.size()
+          + " domain groups. Falling back to individual lookups.", ex);
+    } catch (IllegalArgumentException ex) {
+      log.log(Level.WARNING, "Invalid SID in domain groups. Falling back to "
+          + "individual lookups.", ex);
+    }
+  }
+
   /**
    * Method to get decoded login name for users and groups principals. For 
    * claims encoded domain groups if performSidLookup is true, this method will
@@ -1892,18 +2978,6 @@ public class SharePointAdaptor extends AbstractAdaptor
     private final Callable<MemberIdMapping> memberIdMappingCallable;
     private final Callable<MemberIdMapping> siteUserIdMappingCallable;
 
-    /**
-     * Lock for refreshing MemberIdMapping. We use a unique lock because it is
-     * held while waiting on I/O.
-     */
-    private final Object refreshMemberIdMappingLock = new Object();
-
-    /**
-     * Lock for refreshing SiteUserMapping. We use a unique lock because it is
-     * held while waiting on I/O.
-     */
-    private final Object refreshSiteUserMappingLock = new Object();
-
     public SiteAdaptor(String site, String web, SiteDataSoap siteDataSoap,
         UserGroupSoap userGroupSoap, PeopleSoap people,
         Callable<MemberIdMapping> memberIdMappingCallable,
@@ -1946,19 +3020,8 @@ public class SharePointAdaptor extends AbstractAdaptor
      */
     private MemberIdMapping refreshMemberIdMapping(MemberIdMapping mapping)
         throws IOException {
-      // Synchronize callers to prevent a rush of invalidations due to multiple
-      // callers noticing that the map was out of date at the same time.
-      synchronized (refreshMemberIdMappingLock) {
-        // NOTE: This may block on I/O, so we must be wary of what locks are
-        // held.
-        MemberIdMapping maybeNewMapping = getMemberIdMapping();
-        if (mapping != maybeNewMapping) {
-          // The map has already been refreshed.
-          return maybeNewMapping;
-        }
-        memberIdsCache.invalidate(siteUrl);
-      }
-      return getMemberIdMapping();
+      return refreshMapping(mapping, memberIdsCache, memberIdsRefreshes,
+          memberIdMappingCallable);
     }
 
     /**
@@ -1967,19 +3030,61 @@ public class SharePointAdaptor extends AbstractAdaptor
      */
     private MemberIdMapping refreshSiteUserMapping(MemberIdMapping mapping)
         throws IOException {
-      // Synchronize callers to prevent a rush of invalidations due to multiple
-      // callers noticing that the map was out of date at the same time.
-      synchronized (refreshSiteUserMappingLock) {
+      return refreshMapping(mapping, siteUserCache, siteUserRefreshes,
+          siteUserIdMappingCallable);
+    }
+
+    /**
+     * Provide a more recent mapping than {@code mapping}, because it is known
+     * to be out-of-date. Concurrent callers for the same site collection share
+     * a single refresh, to prevent a rush of invalidations due to multiple
+     * callers noticing that the map was out of date at the same time.
+     */
+    private MemberIdMapping refreshMapping(final MemberIdMapping mapping,
+        final LoadingCache<String, MemberIdMapping> cache,
+        ConcurrentMap<String, FutureTask<MemberIdMapping>> refreshes,
+        final Callable<MemberIdMapping> mappingCallable) throws IOException {
+      FutureTask<MemberIdMapping> refresh = new FutureTask<MemberIdMapping>(
+          new Callable<MemberIdMapping>() {
+            @Override
+            public MemberIdMapping call() throws Exception {
+              MemberIdMapping maybeNewMapping = mappingCallable.call();
+              if (mapping != maybeNewMapping) {
+                // The map has already been refreshed.
+                return maybeNewMapping;
+              }
+              cache.invalidate(siteUrl);
+              return mappingCallable.call();
+            }
+          });
+      FutureTask<MemberIdMapping> inProgress
+          = refreshes.putIfAbsent(siteUrl, refresh);
+      if (inProgress == null) {
         // NOTE: This may block on I/O, so we must be wary of what locks are
         // held.
-        MemberIdMapping maybeNewMapping = getSiteUserMapping();
-        if (mapping != maybeNewMapping) {
-          // The map has already been refreshed.
-          return maybeNewMapping;
+        try {
+          refresh.run();
+        } finally {
+          refreshes.remove(siteUrl, refresh);
+        }
+      } else {
+        refresh = inProgress;
+      }
+      try {
+        return refresh.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException(ex);
+      } catch (ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        } else {
+          throw new IOException(cause);
         }
-        siteUserCache.invalidate(siteUrl);
       }
-      return getSiteUserMapping();
     }
 
      private MemberIdMapping getSiteUserMapping() throws IOException {
@@ -1997,6 +3102,17 @@ public class SharePointAdaptor extends AbstractAdaptor
       log.entering("SiteAdaptor", "getDocContent",
           new Object[] {request, response});
       String url = request.getDocId().getUniqueId();
+      ListingPage page = ListingPage.parse(url);
+      if (page != null) {
+        if (listingPageSize == 0) {
+          log.log(Level.FINE, "Responding not found as listings are no longer "
+              + "split into pages: {0}", url);
+          response.respondNotFound();
+          log.exiting("SiteAdaptor", "getDocContent");
+          return;
+        }
+        url = page.containerUrl;
+      }
       // SiteData.GetUrlSegment call fails for URLs with trailing slash.
       // Responding not found as DocId ends with trailing slash.
       if (url.endsWith("/")) {
@@ -2006,22 +3122,33 @@ public class SharePointAdaptor extends AbstractAdaptor
         log.exiting("SiteAdaptor", "getDocContent");
         return;
       }
-      if (getAttachmentDocContent(request, response)) {
+      if (page == null && getAttachmentDocContent(request, response)) {
         // Success, it was an attachment.
         log.exiting("SiteAdaptor", "getDocContent");
         return;
       }
 
+      ListItemIndex.ListItemId known = listItemIndex.get(url);
+      if (known != null) {
+        ItemData item = getIndexedItem(url, known);
+        if (item != null) {
+          getListItemDocContent(request, response, known.listId,
+              known.itemId, item, page);
+          log.exiting("SiteAdaptor", "getDocContent");
+          return;
+        }
+        listItemIndex.invalidate(url);
+      }
+
       Holder<String> listId = new Holder<String>();
       Holder<String> itemId = new Holder<String>();
       // No need to retrieve webId, since it isn't populated when you contact a
       // web's SiteData.asmx page instead of its parent site's.
-      boolean result = siteDataClient.getUrlSegments(
-          request.getDocId().getUniqueId(), listId, itemId);
-      if (!result) {
+      boolean result = siteDataClient.getUrlSegments(url, listId, itemId);
+      if (!result || (page != null && listId.value == null)) {
         // It may still be an aspx page.
-        if (request.getDocId().getUniqueId().toLowerCase(Locale.ENGLISH)
-            .endsWith(".aspx")) {
+        if (page == null
+            && url.toLowerCase(Locale.ENGLISH).endsWith(".aspx")) {
           getAspxDocContent(request, response);
         } else {
           log.log(Level.FINE, "responding not found");
@@ -2031,9 +3158,10 @@ public class SharePointAdaptor extends AbstractAdaptor
         return;
       }
       if (itemId.value != null) {
-        getListItemDocContent(request, response, listId.value, itemId.value);
+        getListItemDocContent(request, response, listId.value, itemId.value,
+            null, page);
       } else if (listId.value != null) {
-        getListDocContent(request, response, listId.value);
+        getListDocContent(request, response, listId.value, page);
       } else {
         // Assume it is a top-level site.
         getSiteDocContent(request, response);
@@ -2204,8 +3332,9 @@ public class SharePointAdaptor extends AbstractAdaptor
 
     /**
      * Returns {@code true} if the current web should not be indexed. This
-     * method may issue a request for the web content for all parent webs, so it
-     * is expensive, although it uses cached responses to reduce cost.
+     * method needs the web content for all parent webs, but they come from
+     * {@link #rareModCache}, so after the first call for a hierarchy the check
+     * is answered from memory.
      */
     private boolean isWebNoIndex(CachedWeb w) throws IOException {
       if ("True".equals(w.noIndex)) {
@@ -2215,8 +3344,8 @@ public class SharePointAdaptor extends AbstractAdaptor
         return false;
       }
       SiteAdaptor siteAdaptor = getSiteAdaptor(siteUrl, getWebParentUrl());
-      return siteAdaptor.isWebNoIndex(
-          rareModCache.getWeb(siteAdaptor.siteDataClient));
+      return siteAdaptor.isWebNoIndex(rareModCache.getWeb(
+          siteAdaptor.webUrl, siteAdaptor.siteDataClient));
     }
 
     private void getSiteDocContent(Request request, Response response)
@@ -2271,7 +3400,8 @@ public class SharePointAdaptor extends AbstractAdaptor
               final Map<GroupPrincipal, Collection<Principal>> groupDefs =
                   new HashMap<GroupPrincipal, Collection<Principal>>();
               groupDefs.putAll(computeMembersForGroups(groups));
-              context.getDocIdPusher().pushGroupDefinitions(groupDefs, false);
+              pushChangedGroupDefinitions(context.getDocIdPusher(),
+                  groupDefs);
             } catch (InterruptedException e) {
               log.log(Level.WARNING,
                   "interrupted during group push for site " + siteUrl, e);
@@ -2293,9 +3423,9 @@ public class SharePointAdaptor extends AbstractAdaptor
         } else {
           SiteAdaptor parentSiteAdaptor
               = getSiteAdaptor(siteUrl, getWebParentUrl());
-          Web parentW = parentSiteAdaptor.siteDataClient.getContentWeb();
-          String parentScopeId
-              = parentW.getMetadata().getScopeID().toLowerCase(Locale.ENGLISH);
+          CachedWeb parentW = rareModCache.getWeb(parentSiteAdaptor.webUrl,
+              parentSiteAdaptor.siteDataClient);
+          String parentScopeId = parentW.scopeId.toLowerCase(Locale.ENGLISH);
           String scopeId
               = w.getMetadata().getScopeID().toLowerCase(Locale.ENGLISH);
           includePermissions = !scopeId.equals(parentScopeId);
@@ -2329,6 +3459,7 @@ public class SharePointAdaptor extends AbstractAdaptor
         for (Webs.Web web : w.getWebs().getWeb()) {
           String childWebUrl = getCanonicalUrl(web.getURL());          
           writer.addLink(encodeDocId(childWebUrl), childWebUrl);
+          webUrlResolver.putWeb(siteUrl, childWebUrl);
         }
       }
       if (w.getLists() != null) {
@@ -2379,16 +3510,22 @@ public class SharePointAdaptor extends AbstractAdaptor
       log.exiting("SiteAdaptor", "getSiteDocContent");
     }
 
+    /**
+     * @param page the page of the list's listing to write, or {@code null} for
+     *     the list itself
+     */
     private void getListDocContent(Request request, Response response,
-        String id) throws IOException {
+        String id, ListingPage page) throws IOException {
       log.entering("SiteAdaptor", "getListDocContent",
-          new Object[] {request, response, id});
+          new Object[] {request, response, id, page});
       com.microsoft.schemas.sharepoint.soap.List l
           = siteDataClient.getContentList(id);
-      Web w = siteDataClient.getContentWeb();
+      CachedWeb w = rareModCache.getWeb(webUrl, siteDataClient);
+      webUrlResolver.putListRootFolder(siteUrl, webUrl,
+          encodeDocId(l.getMetadata().getRootFolder()).getUniqueId());
 
       if (TrueFalseType.TRUE.equals(l.getMetadata().getNoIndex())
-          || isWebNoIndex(new CachedWeb(w))) {
+          || isWebNoIndex(w)) {
         log.fine("Document marked for NoIndex");
         response.respondNotFound();
         log.exiting("SiteAdaptor", "getListDocContent");
@@ -2397,14 +3534,13 @@ public class SharePointAdaptor extends AbstractAdaptor
 
       boolean allowAnonymousAccess
           = isAllowAnonymousReadForList(new CachedList(l))
-          && isAllowAnonymousPeekForWeb(new CachedWeb(w))
+          && isAllowAnonymousPeekForWeb(w)
           && (!isDenyAnonymousAccessOnVirtualServer());
 
       if (!allowAnonymousAccess) {
         String scopeId
             = l.getMetadata().getScopeID().toLowerCase(Locale.ENGLISH);
-        String webScopeId
-            = w.getMetadata().getScopeID().toLowerCase(Locale.ENGLISH);
+        String webScopeId = w.scopeId.toLowerCase(Locale.ENGLISH);
 
         DocId rootFolderDocId
             = encodeDocId(l.getMetadata().getRootFolder());
@@ -2428,8 +3564,7 @@ public class SharePointAdaptor extends AbstractAdaptor
 
       response.addMetadata(METADATA_OBJECT_TYPE,
           ObjectType.LIST.value());
-      response.addMetadata(METADATA_PARENT_WEB_TITLE,
-          w.getMetadata().getTitle());
+      response.addMetadata(METADATA_PARENT_WEB_TITLE, w.webTitle);
       response.addMetadata(METADATA_LIST_GUID, l.getMetadata().getID());
 
       response.setDisplayUrl(sharePointUrlToUri(
@@ -2437,45 +3572,138 @@ public class SharePointAdaptor extends AbstractAdaptor
             ? l.getMetadata().getRootFolder() 
             : l.getMetadata().getDefaultViewUrl()));
       String lastModified = l.getMetadata().getLastModified();
+      Date lastModifiedDate = null;
       try {
-        response.setLastModified(
-            listLastModifiedDateFormat.get().parse(lastModified));
+        lastModifiedDate = listLastModifiedDateFormat.get().parse(lastModified);
+        response.setLastModified(lastModifiedDate);
       } catch (ParseException ex) {
         log.log(Level.INFO, "Could not parse LastModified: {0}", lastModified);
       }
+      String listingId = request.getDocId().getUniqueId();
+      int itemCount = l.getMetadata().getItemCount();
+      // The ACL of the list's root folder was pushed above, so only the
+      // listing itself is skipped.
+      if (lastModifiedDate != null
+          && request.canRespondWithNoContent(lastModifiedDate)
+          && listingFingerprints.isUnchanged(
+              listingId, itemCount, lastModified)) {
+        log.log(Level.FINER, "List: Responding with 204 as Last-Modified is "
+            + "{0}, last access time is {1} and the item count is unchanged",
+            new Object[] {lastModified, request.getLastAccessTime()});
+        response.respondNoContent();
+        log.exiting("SiteAdaptor", "getListDocContent");
+        return;
+      }
       HtmlResponseWriter writer = createHtmlResponseWriter(response);
       writer.start(request.getDocId(), ObjectType.LIST,
           l.getMetadata().getTitle());
-      processFolder(id, "", writer);
+      processFolder(id, "", ListingPage.containerUrl(listingId), page, writer);
       writer.finish();
+      listingFingerprints.listed(listingId, itemCount, lastModified);
       log.exiting("SiteAdaptor", "getListDocContent");
     }
 
     /**
      * {@code writer} should already have had {@link HtmlResponseWriter#start}
-     * called.
+     * called. When listings are split into pages, only the children of {@code
+     * page} are written, followed by a link to the next page if there is one.
+     *
+     * @param containerUrl URL of the list or folder, to derive the DocIds of
+     *     its pages from
+     * @param page the page to write, or {@code null} for the first page
      */
-    private void processFolder(String listGuid, String folderPath,
-        HtmlResponseWriter writer) throws IOException {
+    private void processFolder(final String listGuid, String folderPath,
+        String containerUrl, ListingPage page,
+        final HtmlResponseWriter writer) throws IOException {
       log.entering("SiteAdaptor", "processFolder",
-          new Object[] {listGuid, folderPath, writer});
-      Paginator<ItemData> folderPaginator
-          = siteDataClient.getContentFolderChildren(listGuid, folderPath);
+          new Object[] {listGuid, folderPath, page, writer});
       writer.startSection(ObjectType.LIST_ITEM);
-      ItemData folder;
-      while ((folder = folderPaginator.next()) != null) {
-        Xml xml = folder.getXml();
-
-        Element data = getFirstChildWithName(xml, DATA_ELEMENT);
-        for (Element row : getChildrenWithName(data, ROW_ELEMENT)) {
-          String rowUrl = row.getAttribute(OWS_SERVERURL_ATTRIBUTE);
-          String rowTitle = row.getAttribute(OWS_TITLE_ATTRIBUTE);
-          writer.addLink(encodeDocId(getCanonicalUrl(rowUrl)), rowTitle);
+      String lastItemIdOnPage = page == null ? "" : page.lastItemIdOnPage;
+      int minRows = listingPageSize == 0 ? Integer.MAX_VALUE : listingPageSize;
+      String nextPage;
+      if (streamingXmlParser) {
+        nextPage = siteDataClient.visitContentFolderChildren(listGuid,
+            folderPath, lastItemIdOnPage, minRows, new RowVisitor() {
+              @Override
+              public void visitRow(Map<String, String> attributes)
+                  throws IOException {
+                String rowUrl = Strings.nullToEmpty(
+                    attributes.get(OWS_SERVERURL_ATTRIBUTE));
+                String rowTitle = Strings.nullToEmpty(
+                    attributes.get(OWS_TITLE_ATTRIBUTE));
+                DocId rowDocId = encodeDocId(getCanonicalUrl(rowUrl));
+                writer.addLink(rowDocId, rowTitle);
+                rememberRow(listGuid, rowDocId,
+                    attributes.get(OWS_ID_ATTRIBUTE),
+                    attributes.get(OWS_FSOBJTYPE_ATTRIBUTE),
+                    attributes.get(OWS_SCOPEID_ATTRIBUTE));
+              }
+            });
+      } else {
+        CursorPaginator<ItemData, String> folderPaginator
+            = siteDataClient.getContentFolderChildren(listGuid, folderPath,
+                lastItemIdOnPage);
+        int rows = 0;
+        ItemData folder;
+        while (rows < minRows && (folder = folderPaginator.next()) != null) {
+          Xml xml = folder.getXml();
+
+          Element data = getFirstChildWithName(xml, DATA_ELEMENT);
+          for (Element row : getChildrenWithName(data, ROW_ELEMENT)) {
+            String rowUrl = row.getAttribute(OWS_SERVERURL_ATTRIBUTE);
+            String rowTitle = row.getAttribute(OWS_TITLE_ATTRIBUTE);
+            DocId rowDocId = encodeDocId(getCanonicalUrl(rowUrl));
+            writer.addLink(rowDocId, rowTitle);
+            rememberRow(listGuid, rowDocId,
+                row.getAttribute(OWS_ID_ATTRIBUTE),
+                row.getAttribute(OWS_FSOBJTYPE_ATTRIBUTE),
+                row.getAttribute(OWS_SCOPEID_ATTRIBUTE));
+            rows++;
+          }
         }
+        nextPage = folderPaginator.getCursor();
+      }
+      if (nextPage != null) {
+        writer.addLink(ListingPage.docId(containerUrl, nextPage), "Next page");
       }
       log.exiting("SiteAdaptor", "processFolder");
     }
 
+    /**
+     * Records the ids of a list item seen in a listing, so that it can be
+     * retrieved without resolving its URL first. For folders, also records
+     * their scope, so that their children can be checked for inheritance
+     * without retrieving the folder.
+     *
+     * @param itemId value of {@code ows_ID}, like "1"
+     * @param rawFsObjType value of {@code ows_FSObjType}, like "1;#1"
+     * @param rawScopeId value of {@code ows_ScopeId}, like "1;#{GUID}"
+     */
+    private void rememberRow(String listGuid, DocId rowDocId, String itemId,
+        String rawFsObjType, String rawScopeId) {
+      if (!Strings.isNullOrEmpty(itemId)) {
+        listItemIndex.put(rowDocId.getUniqueId(), listGuid, itemId);
+      }
+      String type = parseLookupValue(rawFsObjType);
+      String scopeId = parseLookupValue(rawScopeId);
+      if ("1".equals(type) && scopeId != null) {
+        folderScopeCache.putScopeId(listGuid, rowDocId.getUniqueId(),
+            scopeId);
+      }
+    }
+
+    /**
+     * Returns the value portion of a value in the form "1234;#value", or
+     * {@code null} if it is not in that form.
+     */
+    private String parseLookupValue(String raw) {
+      if (raw == null) {
+        return null;
+      }
+      String[] parts = raw.split(";#", 2);
+      return parts.length == 2 ? parts[1] : null;
+    }
+
     private boolean elementHasName(Element ele, QName name) {
       return name.getLocalPart().equals(ele.getLocalName())
           && name.getNamespaceURI().equals(ele.getNamespaceURI());
@@ -2529,69 +3757,9 @@ public class SharePointAdaptor extends AbstractAdaptor
       return attrs;
     }
 
-    private long addMetadata(Response response, String name, String value) {
-      return addMetadata(response, name, value, null);
-    }
-
-    private long addMetadata(Response response, String name, String value,
-        Multimap<String, String> addedMetadata) {
-      long size = 0;
-      if ("ows_MetaInfo".equals(name)) {
-        // ows_MetaInfo is parsed out into other fields for us by SharePoint.
-        // We filter it since it only duplicates those other fields.
-        return 0;
-      }
-      if (name.startsWith("ows_")) {
-        name = name.substring("ows_".length());
-      }
-      name = decodeMetadataName(name);
-      if (ALTERNATIVE_VALUE_PATTERN.matcher(value).find()) {
-        // This is a lookup field. We need to take alternative values only.
-        // Ignore the integer part. 314;#pi;#42;#the answer
-        String[] parts = value.split(";#", 0);
-        for (int i = 1; i < parts.length; i += 2) {
-          if (parts[i].isEmpty()) {
-            continue;
-          }
-          response.addMetadata(name, parts[i]);
-          if (addedMetadata != null) {
-            addedMetadata.put(name, parts[i]);
-          }
-          // +30 for per-metadata-possible overhead, just to make sure that we
-          // don't count too few.
-          size += name.length() + parts[i].length() + 30;
-        }
-      } else if (value.startsWith(";#") && value.endsWith(";#")) {
-        // This is a multi-choice field. Values will be in the form:
-        // ;#value1;#value2;#
-        for (String part : value.split(";#", 0)) {
-          if (part.isEmpty()) {
-            continue;
-          }
-          response.addMetadata(name, part);
-          if (addedMetadata != null) {
-            addedMetadata.put(name, part);
-          }
-          // +30 for per-metadata-possible overhead, just to make sure that we
-          // don't count too few.
-          size += name.length() + part.length() + 30;
-        }
-      } else {
-        response.addMetadata(name, value);
-        if (addedMetadata != null) {
-          addedMetadata.put(name, value);
-        }
-        // +30 for per-metadata-possible overhead, just to make sure that we
-        // don't count too few.
-        size += name.length() + value.length() + 30;
-      }
-      return size;
-    }
-
     private Acl.Builder generateAcl(List<Permission> permissions,
         final long necessaryPermissionMask) throws IOException {
-      List<Principal> permits = new LinkedList<Principal>();
-      IdMappings idMapping = new IdMappings();
+      List<Integer> ids = new ArrayList<Integer>(permissions.size());
       for (Permission permission : permissions) {
         // Although it is named "mask", this is really a bit-field of
         // permissions.
@@ -2599,8 +3767,14 @@ public class SharePointAdaptor extends AbstractAdaptor
         if ((necessaryPermissionMask & mask) != necessaryPermissionMask) {
           continue;
         }
-        Integer id = permission.getMemberid();
-        Principal principal = idMapping.resolvePrincipal(id);
+        ids.add(permission.getMemberid());
+      }
+      // Resolve all ids at once, so that misses cause at most one refresh.
+      Map<Integer, Principal> resolved
+          = new IdMappings().resolvePrincipals(ids);
+      List<Principal> permits = new LinkedList<Principal>();
+      for (Integer id : ids) {
+        Principal principal = resolved.get(id);
         if (principal == null) {
           log.log(Level.WARNING, "Could not resolve member id {0} for Web "
               + "[{1}] under Site Collection [{2}].", 
@@ -2679,7 +3853,7 @@ public class SharePointAdaptor extends AbstractAdaptor
       log.entering("SiteAdaptor", "getAspxDocContent",
           new Object[] {request, response});
 
-      CachedWeb w = rareModCache.getWeb(siteDataClient);
+      CachedWeb w = rareModCache.getWeb(webUrl, siteDataClient);
       if (isWebNoIndex(w)) {
         log.fine("Document marked for NoIndex");
         response.respondNotFound();
@@ -2777,8 +3951,35 @@ public class SharePointAdaptor extends AbstractAdaptor
                 lastModifiedString);
           }
         }
+        long contentLength = ContentStreams.parseContentLength(
+            fi.getFirstHeaderWithName("Content-Length"));
+        if (maxDocumentSize > 0 && contentLength > maxDocumentSize
+            && !truncateOversizedDocuments) {
+          // Skip the download, but keep metadata and ACLs searchable.
+          log.log(Level.INFO, "Sending only metadata for {0}, as its length "
+              + "of {1} bytes exceeds sharepoint.maxDocumentSize",
+              new Object[] {contentUrl, contentLength});
+          response.getOutputStream();
+          log.exiting("SiteAdaptor", "getFileDocContent");
+          return;
+        }
         long contentDownloadStart = System.currentTimeMillis();
-        IOHelper.copyStream(fi.getContents(), response.getOutputStream());
+        long maxBytes = maxDocumentSize > 0 ? maxDocumentSize : Long.MAX_VALUE;
+        long copied = ContentStreams.copy(
+            fi.getContents(), response.getOutputStream(), maxBytes);
+        // Look past the limit instead of trusting Content-Length, which may be
+        // missing, so that a document of exactly maxBytes is not oversized.
+        if (copied == maxBytes && fi.getContents().read() != -1) {
+          if (!truncateOversizedDocuments) {
+            // Part of the content has been sent, so it is too late to send
+            // only metadata. Fail rather than have a truncated copy indexed.
+            throw new IOException("Content of " + contentUrl + " without a "
+                + "known length exceeds sharepoint.maxDocumentSize of "
+                + maxBytes + " bytes");
+          }
+          log.log(Level.INFO, "Truncated content of {0} to {1} bytes",
+              new Object[] {contentUrl, copied});
+        }
         log.log(Level.FINE, "Duration: downlaod content {0} : {1,number,#} ms",
             new Object[] {contentUrl,
             System.currentTimeMillis() - contentDownloadStart});        
@@ -2790,13 +3991,55 @@ public class SharePointAdaptor extends AbstractAdaptor
       log.exiting("SiteAdaptor", "getFileDocContent");
     }
 
+    /**
+     * Retrieves the item {@code listId} and {@code itemId} refer to, if it
+     * still has the URL {@code url}. Returns {@code null} if the item no longer
+     * exists or has a different URL.
+     */
+    private ItemData getIndexedItem(String url,
+        ListItemIndex.ListItemId known) {
+      ItemData item;
+      try {
+        item = siteDataClient.getContentItem(known.listId, known.itemId);
+      } catch (IOException ex) {
+        log.log(Level.FINE, "Could not retrieve indexed item for " + url, ex);
+        return null;
+      }
+      Element data = getFirstChildWithName(item.getXml(), DATA_ELEMENT);
+      if (data == null) {
+        return null;
+      }
+      List<Element> rows = getChildrenWithName(data, ROW_ELEMENT);
+      if (rows.isEmpty()) {
+        return null;
+      }
+      String serverUrl = rows.get(0).getAttribute(OWS_SERVERURL_ATTRIBUTE);
+      if (!url.equals(encodeDocId(getCanonicalUrl(serverUrl)).getUniqueId())) {
+        log.log(Level.FINE, "Indexed item for {0} is now at {1}",
+            new Object[] {url, serverUrl});
+        return null;
+      }
+      return item;
+    }
+
     private void getListItemDocContent(Request request, Response response,
         String listId, String itemId) throws IOException {
+      getListItemDocContent(request, response, listId, itemId, null, null);
+    }
+
+    /**
+     * @param i the item, if already retrieved, or {@code null}
+     * @param page the page of the folder's listing to write, or {@code null}
+     *     for the item itself
+     */
+    private void getListItemDocContent(Request request, Response response,
+        String listId, String itemId, ItemData i, ListingPage page)
+        throws IOException {
       log.entering("SiteAdaptor", "getListItemDocContent",
           new Object[] {request, response, listId, itemId});
-      CachedList l = rareModCache.getList(siteDataClient, listId);
+      CachedList l = rareModCache.getList(webUrl, siteDataClient, listId);
 
-      CachedWeb w = rareModCache.getWeb(siteDataClient);
+      CachedWeb w = rareModCache.getWeb(webUrl, siteDataClient);
       if (TrueFalseType.TRUE.equals(l.noIndex) || isWebNoIndex(w)) {
         log.fine("Document marked for NoIndex");
         response.respondNotFound();
@@ -2806,7 +4049,9 @@ public class SharePointAdaptor extends AbstractAdaptor
 
       boolean applyReadSecurity =
           (l.readSecurity == LIST_READ_SECURITY_ENABLED);
-      ItemData i = siteDataClient.getContentItem(listId, itemId);
+      if (i == null) {
+        i = siteDataClient.getContentItem(listId, itemId);
+      }
 
       Xml xml = i.getXml();
       Element data = getFirstChildWithName(xml, DATA_ELEMENT);
@@ -2867,6 +4112,11 @@ public class SharePointAdaptor extends AbstractAdaptor
             || scopeId.equals(l.scopeId.toLowerCase(Locale.ENGLISH))) {       
           parentScopeId = l.scopeId.toLowerCase(Locale.ENGLISH);
         } else {
+          // Usually known from listing the folder's contents.
+          parentScopeId = folderScopeCache.getScopeId(
+              listId, folderDocId.getUniqueId());
+        }
+        if (parentScopeId == null) {
           // Instead of using getUrlSegments and getContent(ListItem), we could
           // use just getContent(Folder). However, getContent(Folder) always
           // returns children which could make the call very expensive. In
@@ -2893,6 +4143,8 @@ public class SharePointAdaptor extends AbstractAdaptor
               = getChildrenWithName(folderData, ROW_ELEMENT).get(0);
           parentScopeId = folderRow.getAttribute(OWS_SCOPEID_ATTRIBUTE)
               .split(";#", 2)[1].toLowerCase(Locale.ENGLISH);
+          folderScopeCache.putScopeId(listId, folderDocId.getUniqueId(),
+              parentScopeId);
         }
         if (scopeId.equals(parentScopeId)) {
           acl = new Acl.Builder().setInheritFrom(folderDocId);
@@ -2953,6 +4205,12 @@ public class SharePointAdaptor extends AbstractAdaptor
       // This should be in the form of "1234;#0". We want to extract the 0.
       String type = row.getAttribute(OWS_FSOBJTYPE_ATTRIBUTE).split(";#", 2)[1];
       boolean isFolder = "1".equals(type);
+      if (page != null && !isFolder) {
+        log.fine("Responding not found as only folders have listing pages");
+        response.respondNotFound();
+        log.exiting("SiteAdaptor", "getListItemDocContent");
+        return;
+      }
       String title = row.getAttribute(OWS_TITLE_ATTRIBUTE);
       String serverUrl = row.getAttribute(OWS_SERVERURL_ATTRIBUTE);
       Multimap<String, String> metadata = TreeMultimap.create();
@@ -2974,6 +4232,7 @@ public class SharePointAdaptor extends AbstractAdaptor
         if (!folder.startsWith(root)) {
           throw new AssertionError();
         }
+        folderScopeCache.putScopeId(listId, folder, scopeId);
         URI displayPage = sharePointUrlToUri(l.defaultViewUrl);
         if (serverUrl.contains("&") || serverUrl.contains("=")
             || serverUrl.contains("%")) {
@@ -3004,9 +4263,14 @@ public class SharePointAdaptor extends AbstractAdaptor
         HtmlResponseWriter writer
             = createHtmlResponseWriter(response, metadataLength);
         writer.start(request.getDocId(), ObjectType.FOLDER, null);
-        processAttachments(listId, itemId, row, writer);
-        processFolder(listId, folder.substring(root.length()), writer);
-        writeMetadataAsContent(writer, metadata);
+        if (page == null) {
+          processAttachments(listId, itemId, row, writer);
+        }
+        processFolder(listId, folder.substring(root.length()), folder, page,
+            writer);
+        if (page == null) {
+          writeMetadataAsContent(writer, metadata);
+        }
         writer.finish();
         log.exiting("SiteAdaptor", "getListItemDocContent");
         return;
@@ -3186,8 +4450,8 @@ public class SharePointAdaptor extends AbstractAdaptor
       // that if the document exists it is an attachment.
       log.fine("Suspected attachment verified as being an attachment, assuming "
           + "it exists.");
-      CachedList l = rareModCache.getList(siteDataClient, listId);
-      CachedWeb w = rareModCache.getWeb(siteDataClient);
+      CachedList l = rareModCache.getList(webUrl, siteDataClient, listId);
+      CachedWeb w = rareModCache.getWeb(webUrl, siteDataClient);
       if (TrueFalseType.TRUE.equals(l.noIndex) || isWebNoIndex(w)) {
         log.fine("Document marked for NoIndex");
         response.respondNotFound();
@@ -3276,6 +4540,11 @@ public class SharePointAdaptor extends AbstractAdaptor
             group.getGroup().getName(),
             defaultNamespace + "_" + site.getMetadata().getURL()));
       }
+      List<String> loginNames = new ArrayList<String>();
+      for (UserDescription user : site.getWeb().getUsers().getUser()) {
+        loginNames.add(user.getLoginName());
+      }
+      prefetchSidLookups(loginNames);
       for (UserDescription user : site.getWeb().getUsers().getUser()) {
         Principal principal = userDescriptionToPrincipal(user);
         if (principal == null) {
@@ -3295,6 +4564,15 @@ public class SharePointAdaptor extends AbstractAdaptor
         GroupMembership groups) {
       Map<GroupPrincipal, Collection<Principal>> defs
           = new HashMap<GroupPrincipal, Collection<Principal>>();
+      List<String> loginNames = new ArrayList<String>();
+      for (GroupMembership.Group group : groups.getGroup()) {
+        if (group.getUsers() != null) {
+          for (UserDescription user : group.getUsers().getUser()) {
+            loginNames.add(user.getLoginName());
+          }
+        }
+      }
+      prefetchSidLookups(loginNames);
       for (GroupMembership.Group group : groups.getGroup()) {
         GroupPrincipal groupPrincipal = new GroupPrincipal(
             group.getGroup().getName(), defaultNamespace + "_" + siteUrl);
@@ -3351,6 +4629,11 @@ public class SharePointAdaptor extends AbstractAdaptor
         log.exiting("SiteAdaptor", "retrieveSiteUserMapping", mapping);
         return mapping;
       }
+      List<String> loginNames = new ArrayList<String>();
+      for (User user : siteUsers.getUsers().getUser()) {
+        loginNames.add(user.getLoginName());
+      }
+      prefetchSidLookups(loginNames);
       for (User user : siteUsers.getUsers().getUser()) {
         boolean isDomainGroup = (user.getIsDomainGroup()
             == com.microsoft.schemas.sharepoint.soap.directory.TrueFalseType.TRUE);
@@ -3392,6 +4675,7 @@ public class SharePointAdaptor extends AbstractAdaptor
         return null;
       }
       SiteAdaptor siteAdaptor = getSiteAdaptor(site.value, web.value);
+      webUrlResolver.putWeb(siteAdaptor.siteUrl, siteAdaptor.webUrl);
       log.exiting("SiteAdaptor", "getAdaptorForUrl", siteAdaptor);
       return siteAdaptor;
     }
@@ -3408,7 +4692,7 @@ public class SharePointAdaptor extends AbstractAdaptor
       return new HtmlResponseWriter(response.getOutputStream(), CHARSET,
           context.getDocIdEncoder(), Locale.ENGLISH,
           maxIndexableSize - metadataLength, context.getDocIdPusher(),
-          executor);
+          executor, feedMaxUrls);
     }
 
     public SiteDataClient getSiteDataClient() {
@@ -3434,44 +4718,100 @@ public class SharePointAdaptor extends AbstractAdaptor
       }
 
       private Principal resolvePrincipal(Integer id) throws IOException {
-        Principal principal = memberIdMapping.getPrincipal(id);
-        if (principal == null) {
-          log.log(Level.FINE, "Member id {0} is not available in memberid"
-              + " mapping for Web [{1}] under Site Collection [{2}].",
-              new Object[] {id, webUrl, siteUrl});
-          if (siteUserMapping == null && !siteUserMappingInitialized) {
-            try {
-              siteUserMapping = getSiteUserMapping();
-            } catch (IOException ex) {
-              log.log(Level.WARNING, "Could not resolve site user mapping for "
-                  + id, ex);
-            } finally {
-              siteUserMappingInitialized = true;
-            }
-          }
-          if (siteUserMapping != null) {
-            principal = siteUserMapping.getPrincipal(id);
-          }
+        return resolvePrincipals(Collections.singletonList(id)).get(id);
+      }
+
+      /**
+       * Resolves all of {@code ids}, refreshing each mapping at most once for
+       * all of the ids that are missing from it. Ids that could not be
+       * resolved are absent from the returned map.
+       */
+      private Map<Integer, Principal> resolvePrincipals(
+          Collection<Integer> ids) throws IOException {
+        Map<Integer, Principal> resolved = new HashMap<Integer, Principal>();
+        Collection<Integer> missing = resolveFromMappings(ids, resolved);
+        if (!missing.isEmpty() && !memberIdMappingRefreshed
+            && isKnownUnresolvable(missing)) {
+          log.log(Level.FINE, "Not refreshing mappings for Site Collection "
+              + "[{0}], since member ids {1} could not be resolved recently",
+              new Object[] {siteUrl, missing});
+          suppressedMappingRefreshes.incrementAndGet();
+          return resolved;
         }
-        if (principal == null && !memberIdMappingRefreshed) {
+        boolean siteUserMappingRefreshFailed = false;
+        if (!missing.isEmpty() && !memberIdMappingRefreshed) {
           // Try to refresh member id mapping and check again.
           memberIdMapping = refreshMemberIdMapping(memberIdMapping);
           memberIdMappingRefreshed = true;
-          principal = memberIdMapping.getPrincipal(id);
+          missing = resolveFromMappings(missing, resolved);
         }
-        if (principal == null && !siteUserMappingRefreshed) {
+        if (!missing.isEmpty() && !siteUserMappingRefreshed) {
           // Try to refresh site user mapping and check again.
           try {
             siteUserMapping = refreshSiteUserMapping(siteUserMapping);
-            principal = siteUserMapping.getPrincipal(id);
+            missing = resolveFromMappings(missing, resolved);
           } catch (IOException ex) {
             log.log(Level.FINE, "Could not resolve refresh site user mapping "
-                + "for" + id, ex);
+                + "for " + missing, ex);
+            siteUserMappingRefreshFailed = true;
           } finally {
             siteUserMappingRefreshed = true;
           }
+          if (!siteUserMappingRefreshFailed) {
+            for (Integer id : missing) {
+              unresolvedMemberIds.put(new MemberIdKey(siteUrl, id),
+                  Boolean.TRUE);
+            }
+          }
+        }
+        return resolved;
+      }
+
+      /** Returns whether all of {@code ids} recently failed to resolve. */
+      private boolean isKnownUnresolvable(Collection<Integer> ids) {
+        for (Integer id : ids) {
+          if (unresolvedMemberIds.getIfPresent(new MemberIdKey(siteUrl, id))
+              == null) {
+            return false;
+          }
+        }
+        return true;
+      }
+
+      /**
+       * Adds the principals for {@code ids} known to the current mappings to
+       * {@code resolved}, and returns the ids that are unknown.
+       */
+      private Collection<Integer> resolveFromMappings(Collection<Integer> ids,
+          Map<Integer, Principal> resolved) {
+        List<Integer> missing = new ArrayList<Integer>();
+        for (Integer id : ids) {
+          Principal principal = memberIdMapping.getPrincipal(id);
+          if (principal == null) {
+            log.log(Level.FINE, "Member id {0} is not available in memberid"
+                + " mapping for Web [{1}] under Site Collection [{2}].",
+                new Object[] {id, webUrl, siteUrl});
+            if (siteUserMapping == null && !siteUserMappingInitialized) {
+              try {
+                siteUserMapping = getSiteUserMapping();
+              } catch (IOException ex) {
+                log.log(Level.WARNING, "Could not resolve site user mapping "
+                    + "for " + id, ex);
+              } finally {
+                siteUserMappingInitialized = true;
+              }
+            }
+            if (siteUserMapping != null) {
+              principal = siteUserMapping.getPrincipal(id);
+            }
+          }
+          if (principal == null) {
+            missing.add(id);
+          } else {
+            resolved.put(id, principal);
+          }
         }
-        return principal;
+        return missing;
       }
     }
   }
@@ -3671,6 +5011,8 @@ public class SharePointAdaptor extends AbstractAdaptor
       // errorHeader = 0 for other errors on SharePoint server
       
       if (errorHeader != null) {            
+        // Release the connection, which may be pooled.
+        getAndCloseStream(conn, url);
         if ("2".equals(errorHeader)) {
           throw new IOException("Got error 2 from SharePoint for URL [" + url 
               + "]. Error Code 2 indicates SharePoint has rejected current "
@@ -3708,7 +5050,7 @@ public class SharePointAdaptor extends AbstractAdaptor
       } catch (URISyntaxException ex) {
         throw new IOException(ex);
       }
-      HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+      HttpURLConnection conn = getHttpURLConnection(url);
       try {
         if (authenticationCookies.isEmpty()) {
           conn.addRequestProperty("X-FORMS_BASED_AUTH_ACCEPTED", "f");
@@ -3814,7 +5156,8 @@ public class SharePointAdaptor extends AbstractAdaptor
   private static class NtlmAuthenticator extends Authenticator {
     private final String username;
     private final char[] password;
-    private final Set<String> permittedHosts = new HashSet<String>();
+    private final Set<String> permittedHosts
+        = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     public NtlmAuthenticator(String username, String password) {
       this.username = username;
@@ -3919,6 +5262,45 @@ public class SharePointAdaptor extends AbstractAdaptor
     }
   }
 
+  /** Identifies a member id within a site collection. */
+  private static final class MemberIdKey {
+    private final String siteUrl;
+    private final Integer id;
+
+    public MemberIdKey(String siteUrl, Integer id) {
+      if (siteUrl == null) {
+        throw new NullPointerException();
+      }
+      this.siteUrl = siteUrl;
+      this.id = id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof MemberIdKey)) {
+        return false;
+      }
+      MemberIdKey key = (MemberIdKey) o;
+      return siteUrl.equals(key.siteUrl) && Objects.equal(id, key.id);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(siteUrl, id);
+    }
+  }
+
+  /** Ports for the web services of a site collection. */
+  private static class SiteCollectionPorts {
+    private final UserGroupSoap userGroup;
+    private final PeopleSoap people;
+
+    public SiteCollectionPorts(UserGroupSoap userGroup, PeopleSoap people) {
+      this.userGroup = userGroup;
+      this.people = people;
+    }
+  }
+
   @VisibleForTesting
   class SiteUserIdMappingCallable implements Callable<MemberIdMapping> {
     private final String siteUrl;
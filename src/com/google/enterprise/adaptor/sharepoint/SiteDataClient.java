@@ -22,6 +22,7 @@ import com.microsoft.schemas.sharepoint.soap.ItemData;
 import com.microsoft.schemas.sharepoint.soap.ObjectType;
 import com.microsoft.schemas.sharepoint.soap.SPContentDatabase;
 import com.microsoft.schemas.sharepoint.soap.SPSite;
+import com.microsoft.schemas.sharepoint.soap.SPWeb;
 import com.microsoft.schemas.sharepoint.soap.Site;
 import com.microsoft.schemas.sharepoint.soap.SiteDataSoap;
 import com.microsoft.schemas.sharepoint.soap.VirtualServer;
@@ -32,8 +33,18 @@ import org.w3c.dom.Node;
 
 import org.xml.sax.SAXException;
 
+import java.io.FilterReader;
 import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
 import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
@@ -44,6 +55,11 @@ import javax.xml.bind.Unmarshaller;
 import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
 import javax.xml.transform.Source;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamSource;
@@ -57,6 +73,8 @@ class SiteDataClient {
   /** SharePoint's namespace. */
   private static final String XMLNS
       = "http://schemas.microsoft.com/sharepoint/soap/";
+  /** Namespace of the rows within list and folder contents. */
+  private static final String ROWSET_SCHEMA_XMLNS = "#RowsetSchema";
 
   private static final Logger log
       = Logger.getLogger(SiteDataClient.class.getName());
@@ -70,6 +88,13 @@ class SiteDataClient {
    * expectations.
    */
   private static final Schema schema;
+  /**
+   * Unmarshallers are expensive to create, but are not thread-safe, so idle
+   * ones are shared between instances. All the classes we parse come from the
+   * same JAXBContext, so unmarshallers only differ by whether they validate.
+   */
+  private static final UnmarshallerPool validatingUnmarshallerPool;
+  private static final UnmarshallerPool unmarshallerPool;
 
   // Unused character range 1 : &#00; - &#08; or &#0; - &#8;
   private static final String UNUSED_CHAR_RANGE1 = "((0[0-8])|[0-8])";
@@ -87,7 +112,26 @@ class SiteDataClient {
       = Pattern.compile("&#(" + UNUSED_CHAR_RANGE1 + "|" + UNUSED_CHAR_RANGE2 
           + "|" + UNUSED_CHAR_RANGE3 + "|" + UNUSED_CHAR_RANGE4 + ");");
 
+  /**
+   * Same as {@link #BINARY_UNUSED_CHAR_PATTERN}, but without the leading
+   * ampersand, for matching the remainder of a single reference.
+   */
+  private static final Pattern UNUSED_CHAR_REFERENCE_REMAINDER_PATTERN
+      = Pattern.compile("#(" + UNUSED_CHAR_RANGE1 + "|" + UNUSED_CHAR_RANGE2
+          + "|" + UNUSED_CHAR_RANGE3 + "|" + UNUSED_CHAR_RANGE4 + ");");
+
+  /** Longest unused character reference, {@code &#159;}. */
+  private static final int MAX_UNUSED_CHAR_REFERENCE_LENGTH = 6;
+
+  /** Thread-safe once configured. */
+  private static final XMLInputFactory xmlInputFactory;
+
   static {
+    xmlInputFactory = XMLInputFactory.newInstance();
+    xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    xmlInputFactory.setProperty(
+        XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
     try {
       jaxbContext = JAXBContext.newInstance(
           "com.microsoft.schemas.sharepoint.soap");
@@ -111,6 +155,9 @@ class SiteDataClient {
     } catch (ParserConfigurationException ex) {
       throw new RuntimeException("Could not initialize Schema", ex);
     }
+
+    validatingUnmarshallerPool = new UnmarshallerPool(jaxbContext, schema);
+    unmarshallerPool = new UnmarshallerPool(jaxbContext, null);
   }
 
   private final CheckedExceptionSiteDataSoap siteData;
@@ -227,23 +274,39 @@ class SiteDataClient {
 
   public Paginator<ItemData> getContentFolderChildren(final String guid,
       final String url) {
+    return getContentFolderChildren(guid, url, "");
+  }
+
+  /**
+   * Pages through the children of the folder, starting after {@code
+   * lastItemIdOnPage}. The empty string starts at the first child. The cursor
+   * is the position to continue from after the pages returned so far, and is
+   * {@code null} once all pages have been returned.
+   */
+  public CursorPaginator<ItemData, String> getContentFolderChildren(
+      final String guid, final String url, String lastItemIdOnPage) {
     log.entering("SiteDataClient", "getContentFolderChildren",
-        new Object[] {guid, url});
-    final Holder<String> lastItemIdOnPage = new Holder<String>("");
+        new Object[] {guid, url, lastItemIdOnPage});
+    final Holder<String> cursor = new Holder<String>(lastItemIdOnPage);
     log.exiting("SiteDataClient", "getContentFolderChildren");
-    return new Paginator<ItemData>() {
+    return new CursorPaginator<ItemData, String>() {
       @Override
       public ItemData next() throws IOException {
-        if (lastItemIdOnPage.value == null) {
+        if (cursor.value == null) {
           return null;
         }
         Holder<String> result = new Holder<String>();
         siteData.getContent(ObjectType.FOLDER, guid, url, null, true, false,
-            lastItemIdOnPage, result);
+            cursor, result);
         String xml = result.value;
         xml = xml.replace("<Folder>", "<Folder xmlns='" + XMLNS + "'>");
         return jaxbParse(xml, ItemData.class);
       }
+
+      @Override
+      public String getCursor() {
+        return cursor.value;
+      }
     };
   }
 
@@ -272,29 +335,18 @@ class SiteDataClient {
           String startChangeId, final boolean isSp2007) {
     log.entering("SiteDataClient", "getChangesContentDatabase",
         new Object[] {contentDatabaseGuid, startChangeId});
-    final Holder<String> lastChangeId = new Holder<String>(startChangeId);
-    final Holder<String> lastLastChangeId = new Holder<String>();
-    final Holder<String> currentChangeId = new Holder<String>();
-    final Holder<Boolean> moreChanges = new Holder<Boolean>(true);
+    final CursorPaginator<String, String> xmlPaginator = getChangesXml(
+        ObjectType.CONTENT_DATABASE, contentDatabaseGuid, startChangeId,
+        isSp2007);
     log.exiting("SiteDataClient", "getChangesContentDatabase");
     return new CursorPaginator<SPContentDatabase, String>() {
       @Override
       public SPContentDatabase next() throws IOException {
-        if (!moreChanges.value) {
+        String xml = xmlPaginator.next();
+        if (xml == null) {
           return null;
         }
-        lastLastChangeId.value = lastChangeId.value;
-        Holder<String> result = new Holder<String>();
-        // In SP 2007, the timeout is a number of seconds. In SP2010 and above,
-        // the timeout is n * 60, where n is the number of items you want
-        // returned. However, asking for more than 10 items seems
-        // to lose results. If timeout is less than 60 in SP 2010 / 2013,
-        // then it causes an infinite loop.
-        int timeout = isSp2007 ? 15 : 10 * 60;
-        siteData.getChanges(ObjectType.CONTENT_DATABASE, contentDatabaseGuid,
-            lastChangeId, currentChangeId, timeout, result, moreChanges);
         // XmlProcessingExceptions fine after this point.
-        String xml = result.value;
         xml = xml.replace("<SPContentDatabase ",
             "<SPContentDatabase xmlns='" + XMLNS + "' ");
         return jaxbParse(xml, SPContentDatabase.class);
@@ -302,7 +354,43 @@ class SiteDataClient {
 
       @Override
       public String getCursor() {
-        return lastChangeId.value;
+        return xmlPaginator.getCursor();
+      }
+    };
+  }
+
+  /**
+   * Same as {@link #getChangesContentDatabase}, except that each page is
+   * parsed while it is read and its changes are provided to {@code visitor}
+   * one site collection and one web at a time, instead of building the entire
+   * page in memory. {@code next()} returns {@code Boolean.TRUE} once a page
+   * has been visited. If next() throws an XmlProcessingException, the changes
+   * visited before the error remain visited.
+   */
+  public CursorPaginator<Boolean, String>
+      visitChangesContentDatabase(final String contentDatabaseGuid,
+          String startChangeId, final boolean isSp2007,
+          final ChangeVisitor visitor) {
+    log.entering("SiteDataClient", "visitChangesContentDatabase",
+        new Object[] {contentDatabaseGuid, startChangeId});
+    final CursorPaginator<String, String> xmlPaginator = getChangesXml(
+        ObjectType.CONTENT_DATABASE, contentDatabaseGuid, startChangeId,
+        isSp2007);
+    log.exiting("SiteDataClient", "visitChangesContentDatabase");
+    return new CursorPaginator<Boolean, String>() {
+      @Override
+      public Boolean next() throws IOException {
+        String xml = xmlPaginator.next();
+        if (xml == null) {
+          return null;
+        }
+        streamChanges(xml, visitor);
+        return Boolean.TRUE;
+      }
+
+      @Override
+      public String getCursor() {
+        return xmlPaginator.getCursor();
       }
     };
   }
@@ -318,18 +406,79 @@ class SiteDataClient {
           String startChangeId, final boolean isSp2007) {
     log.entering("SiteDataClient", "getChangesSPSite",
         new Object[] {siteCollectionGuid, startChangeId});
-    final Holder<String> lastChangeId = new Holder<String>(startChangeId);
-    final Holder<String> lastLastChangeId = new Holder<String>();
-    final Holder<String> currentChangeId = new Holder<String>();
-    final Holder<Boolean> moreChanges = new Holder<Boolean>(true);
+    final CursorPaginator<String, String> xmlPaginator = getChangesXml(
+        ObjectType.SITE_COLLECTION, siteCollectionGuid, startChangeId,
+        isSp2007);
     log.exiting("SiteDataClient", "getChangesSPSite");
     return new CursorPaginator<SPSite, String>() {
       @Override
       public SPSite next() throws IOException {
+        String xml = xmlPaginator.next();
+        if (xml == null) {
+          return null;
+        }
+        // XmlProcessingExceptions fine after this point.
+        xml = xml.replace("<SPSite ",
+            "<SPSite xmlns='" + XMLNS + "' ");
+        return jaxbParse(xml, SPSite.class);
+      }
+
+      @Override
+      public String getCursor() {
+        return xmlPaginator.getCursor();
+      }
+    };
+  }
+
+  /**
+   * Same as {@link #getChangesSPSite}, except that each page is parsed while
+   * it is read and its changes are provided to {@code visitor} one web at a
+   * time. See {@link #visitChangesContentDatabase}.
+   */
+  public CursorPaginator<Boolean, String>
+      visitChangesSPSite(final String siteCollectionGuid,
+          String startChangeId, final boolean isSp2007,
+          final ChangeVisitor visitor) {
+    log.entering("SiteDataClient", "visitChangesSPSite",
+        new Object[] {siteCollectionGuid, startChangeId});
+    final CursorPaginator<String, String> xmlPaginator = getChangesXml(
+        ObjectType.SITE_COLLECTION, siteCollectionGuid, startChangeId,
+        isSp2007);
+    log.exiting("SiteDataClient", "visitChangesSPSite");
+    return new CursorPaginator<Boolean, String>() {
+      @Override
+      public Boolean next() throws IOException {
+        String xml = xmlPaginator.next();
+        if (xml == null) {
+          return null;
+        }
+        streamChanges(xml, visitor);
+        return Boolean.TRUE;
+      }
+
+      @Override
+      public String getCursor() {
+        return xmlPaginator.getCursor();
+      }
+    };
+  }
+
+  /**
+   * Provides the raw XML of each page of changes. The cursor is advanced
+   * before next() returns, so parsing errors can be skipped.
+   */
+  private CursorPaginator<String, String> getChangesXml(
+      final ObjectType objectType, final String objectGuid,
+      String startChangeId, final boolean isSp2007) {
+    final Holder<String> lastChangeId = new Holder<String>(startChangeId);
+    final Holder<String> currentChangeId = new Holder<String>();
+    final Holder<Boolean> moreChanges = new Holder<Boolean>(true);
+    return new CursorPaginator<String, String>() {
+      @Override
+      public String next() throws IOException {
         if (!moreChanges.value) {
           return null;
         }
-        lastLastChangeId.value = lastChangeId.value;
         Holder<String> result = new Holder<String>();
         // In SP 2007, the timeout is a number of seconds. In SP2010 and above,
         // the timeout is n * 60, where n is the number of items you want
@@ -337,13 +486,9 @@ class SiteDataClient {
         // to lose results. If timeout is less than 60 in SP 2010 / 2013,
         // then it causes an infinite loop.
         int timeout = isSp2007 ? 15 : 10 * 60;
-        siteData.getChanges(ObjectType.SITE_COLLECTION, siteCollectionGuid,
-            lastChangeId, currentChangeId, timeout, result, moreChanges);
-        // XmlProcessingExceptions fine after this point.
-        String xml = result.value;
-        xml = xml.replace("<SPSite ",
-            "<SPSite xmlns='" + XMLNS + "' ");
-        return jaxbParse(xml, SPSite.class);
+        siteData.getChanges(objectType, objectGuid, lastChangeId,
+            currentChangeId, timeout, result, moreChanges);
+        return result.value;
       }
 
       @Override
@@ -353,6 +498,173 @@ class SiteDataClient {
     };
   }
 
+  /**
+   * Reads a page of changes rooted at either an SPContentDatabase or an
+   * SPSite. Each SPSite is provided to the visitor without its webs, followed
+   * by each of its webs individually, so only a single web is ever held in
+   * memory.
+   */
+  private void streamChanges(String xml, ChangeVisitor visitor)
+      throws IOException {
+    try {
+      XMLStreamReader reader = createStreamReader(xml);
+      try {
+        UnmarshallerPool pool = getUnmarshallerPool(xmlValidation);
+        Unmarshaller unmarshaller = pool.borrow();
+        reader.nextTag();
+        if (isSharePointElement(reader, "SPContentDatabase")) {
+          visitor.visitContentDatabase(
+              reader.getAttributeValue(null, "Change"));
+          int event = reader.next();
+          while (event != XMLStreamConstants.END_ELEMENT) {
+            if (event == XMLStreamConstants.START_ELEMENT) {
+              if (isSharePointElement(reader, "SPSite")) {
+                streamSiteChanges(reader, unmarshaller, visitor);
+              } else {
+                skipElement(reader);
+              }
+            }
+            event = reader.next();
+          }
+        } else if (isSharePointElement(reader, "SPSite")) {
+          streamSiteChanges(reader, unmarshaller, visitor);
+        } else {
+          throw new XMLStreamException("Unexpected root element: "
+              + reader.getName(), reader.getLocation());
+        }
+        pool.release(unmarshaller);
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException ex) {
+      throw new XmlProcessingException(ex, xml);
+    } catch (JAXBException ex) {
+      throw new XmlProcessingException(ex, xml);
+    }
+  }
+
+  /**
+   * {@code reader} must be positioned at the start of an SPSite and is left
+   * positioned at its end.
+   */
+  private void streamSiteChanges(XMLStreamReader reader,
+      Unmarshaller unmarshaller, ChangeVisitor visitor)
+      throws IOException, XMLStreamException, JAXBException {
+    SPSite site = new SPSite();
+    site.setChange(reader.getAttributeValue(null, "Change"));
+    site.setId(reader.getAttributeValue(null, "Id"));
+    site.setServerUrl(reader.getAttributeValue(null, "ServerUrl"));
+    site.setDisplayUrl(reader.getAttributeValue(null, "DisplayUrl"));
+    visitor.visitSite(site);
+    int event = reader.next();
+    while (event != XMLStreamConstants.END_ELEMENT) {
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        if (isSharePointElement(reader, "SPWeb")) {
+          visitor.visitWeb(unmarshaller.unmarshal(reader, SPWeb.class)
+              .getValue());
+          // Unmarshalling leaves the reader just past the web's end.
+          event = reader.getEventType();
+          continue;
+        }
+        skipElement(reader);
+      }
+      event = reader.next();
+    }
+  }
+
+  /**
+   * Visits each row of the folder, across all pages, without building the
+   * pages in memory. The rows' attributes are provided keyed by their local
+   * name, like {@code ows_ServerUrl}.
+   */
+  public void visitContentFolderChildren(String guid, String url,
+      RowVisitor visitor) throws IOException {
+    visitContentFolderChildren(guid, url, "", Integer.MAX_VALUE, visitor);
+  }
+
+  /**
+   * Like {@link #visitContentFolderChildren(String, String, RowVisitor)}, but
+   * starts after {@code lastItemIdOnPage} and stops at the end of the first
+   * page that brings the number of visited rows to at least {@code minRows}.
+   *
+   * @return the position to continue from, or {@code null} if all rows were
+   *     visited
+   */
+  public String visitContentFolderChildren(String guid, String url,
+      String lastItemIdOnPage, int minRows, RowVisitor visitor)
+      throws IOException {
+    log.entering("SiteDataClient", "visitContentFolderChildren",
+        new Object[] {guid, url, lastItemIdOnPage, minRows});
+    Holder<String> cursor = new Holder<String>(lastItemIdOnPage);
+    int rows = 0;
+    while (cursor.value != null && rows < minRows) {
+      Holder<String> result = new Holder<String>();
+      siteData.getContent(ObjectType.FOLDER, guid, url, null, true, false,
+          cursor, result);
+      String xml = result.value;
+      try {
+        XMLStreamReader reader = createStreamReader(xml);
+        try {
+          while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT
+                && ROWSET_SCHEMA_XMLNS.equals(reader.getNamespaceURI())
+                && "row".equals(reader.getLocalName())) {
+              Map<String, String> attributes = new HashMap<String, String>();
+              for (int i = 0; i < reader.getAttributeCount(); i++) {
+                attributes.put(reader.getAttributeLocalName(i),
+                    reader.getAttributeValue(i));
+              }
+              visitor.visitRow(attributes);
+              rows++;
+            }
+          }
+        } finally {
+          reader.close();
+        }
+      } catch (XMLStreamException ex) {
+        throw new XmlProcessingException(ex, xml);
+      }
+    }
+    log.exiting("SiteDataClient", "visitContentFolderChildren",
+        cursor.value);
+    return cursor.value;
+  }
+
+  private XMLStreamReader createStreamReader(String xml)
+      throws XMLStreamException {
+    return new SharePointNamespaceStreamReader(
+        xmlInputFactory.createXMLStreamReader(
+            new UnusedCharacterReferenceFilterReader(new StringReader(xml))));
+  }
+
+  @VisibleForTesting
+  static UnmarshallerPool getUnmarshallerPool(boolean validating) {
+    return validating ? validatingUnmarshallerPool : unmarshallerPool;
+  }
+
+  private static boolean isSharePointElement(XMLStreamReader reader,
+      String localName) {
+    return XMLNS.equals(reader.getNamespaceURI())
+        && localName.equals(reader.getLocalName());
+  }
+
+  /**
+   * Skips the element {@code reader} is positioned at the start of, leaving
+   * the reader positioned at its end.
+   */
+  private static void skipElement(XMLStreamReader reader)
+      throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
   @VisibleForTesting
   <T> T jaxbParse(String xml, Class<T> klass)
       throws XmlProcessingException {
@@ -364,12 +676,12 @@ class SiteDataClient {
     xml = BINARY_UNUSED_CHAR_PATTERN.matcher(xml).replaceAll("");
 
     Source source = new StreamSource(new StringReader(xml));
+    UnmarshallerPool pool = getUnmarshallerPool(xmlValidation);
     try {
-      Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-      if (xmlValidation) {
-        unmarshaller.setSchema(schema);
-      }
-      return unmarshaller.unmarshal(source, klass).getValue();
+      Unmarshaller unmarshaller = pool.borrow();
+      T result = unmarshaller.unmarshal(source, klass).getValue();
+      pool.release(unmarshaller);
+      return result;
     } catch (JAXBException ex) {
       throw new XmlProcessingException(ex, xml);
     }
@@ -382,6 +694,10 @@ class SiteDataClient {
     public XmlProcessingException(JAXBException cause, String xml) {
       super("Error when parsing xml: " + xml, cause);
     }
+
+    public XmlProcessingException(XMLStreamException cause, String xml) {
+      super("Error when parsing xml: " + xml, cause);
+    }
   }
 
   /**
@@ -426,6 +742,255 @@ class SiteDataClient {
     public C getCursor();
   }
 
+  /**
+   * Receives the changes of a page as it is parsed. The objects provided are
+   * only partially populated: an SPSite has no webs and does not include its
+   * Site element, since the webs are provided individually afterward.
+   */
+  public interface ChangeVisitor {
+    /**
+     * Called with the page's Change attribute when the changes are for a
+     * content database, before any of its site collections.
+     */
+    public void visitContentDatabase(String change) throws IOException;
+
+    /** Called for each site collection, before any of its webs. */
+    public void visitSite(SPSite site) throws IOException;
+
+    /** Called for each web of the site collection last visited. */
+    public void visitWeb(SPWeb web) throws IOException;
+  }
+
+  /** Receives the rows of a folder as they are parsed. */
+  public interface RowVisitor {
+    /** {@code attributes} is keyed by attribute local name. */
+    public void visitRow(Map<String, String> attributes) throws IOException;
+  }
+
+  /**
+   * Removes character references that would cause XML parsing to fail, as
+   * they are read. Removes exactly the references that {@link
+   * #BINARY_UNUSED_CHAR_PATTERN} matches.
+   */
+  @VisibleForTesting
+  static class UnusedCharacterReferenceFilterReader extends FilterReader {
+    private final PushbackReader pushback;
+
+    public UnusedCharacterReferenceFilterReader(Reader in) {
+      this(new PushbackReader(in, MAX_UNUSED_CHAR_REFERENCE_LENGTH));
+    }
+
+    private UnusedCharacterReferenceFilterReader(PushbackReader in) {
+      super(in);
+      this.pushback = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      char[] remainder = new char[MAX_UNUSED_CHAR_REFERENCE_LENGTH - 1];
+      while (true) {
+        int c = pushback.read();
+        if (c != '&') {
+          return c;
+        }
+        int length = 0;
+        while (length < remainder.length) {
+          int next = pushback.read();
+          if (next == -1) {
+            break;
+          }
+          remainder[length++] = (char) next;
+          if (next == ';') {
+            break;
+          }
+        }
+        if (!isUnusedReferenceRemainder(remainder, 0, length)) {
+          pushback.unread(remainder, 0, length);
+          return c;
+        }
+      }
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      int read = pushback.read(cbuf, off, len);
+      if (read <= 0) {
+        return read;
+      }
+      int end = off + read;
+      int out = off;
+      int i = off;
+      while (i < end) {
+        char c = cbuf[i];
+        if (c != '&') {
+          cbuf[out++] = c;
+          i++;
+          continue;
+        }
+        int limit = Math.min(end, i + MAX_UNUSED_CHAR_REFERENCE_LENGTH);
+        int semicolon = -1;
+        for (int j = i + 1; j < limit; j++) {
+          if (cbuf[j] == ';') {
+            semicolon = j;
+            break;
+          }
+        }
+        if (semicolon == -1 && limit < i + MAX_UNUSED_CHAR_REFERENCE_LENGTH) {
+          // The reference may continue past what was read. Process it during
+          // the next read.
+          pushback.unread(cbuf, i, end - i);
+          break;
+        }
+        if (semicolon != -1
+            && isUnusedReferenceRemainder(cbuf, i + 1, semicolon - i)) {
+          i = semicolon + 1;
+        } else {
+          cbuf[out++] = c;
+          i++;
+        }
+      }
+      if (out == off) {
+        // Everything read was either removed or needs more input to decide.
+        int c = read();
+        if (c == -1) {
+          return -1;
+        }
+        cbuf[off] = (char) c;
+        return 1;
+      }
+      return out - off;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      char[] buffer = new char[(int) Math.min(n, 1024)];
+      long skipped = 0;
+      while (skipped < n) {
+        int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+        if (read == -1) {
+          break;
+        }
+        skipped += read;
+      }
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) throws IOException {
+      throw new IOException("mark() not supported");
+    }
+
+    @Override
+    public void reset() throws IOException {
+      throw new IOException("reset() not supported");
+    }
+
+    private static boolean isUnusedReferenceRemainder(char[] buf, int off,
+        int len) {
+      return UNUSED_CHAR_REFERENCE_REMAINDER_PATTERN.matcher(
+          CharBuffer.wrap(buf, off, len)).matches();
+    }
+  }
+
+  /**
+   * Idle unmarshallers available for reuse, with counts of how often one was
+   * available. An unmarshaller that failed is not returned to the pool, since
+   * its state is unknown.
+   */
+  @VisibleForTesting
+  static class UnmarshallerPool {
+    /** Enough for every thread of a busy adaptor to keep one. */
+    private static final int MAX_IDLE = 64;
+
+    private final JAXBContext context;
+    /** Schema to validate against, or {@code null} to not validate. */
+    private final Schema schema;
+    private final BlockingQueue<Unmarshaller> idle
+        = new ArrayBlockingQueue<Unmarshaller>(MAX_IDLE);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public UnmarshallerPool(JAXBContext context, Schema schema) {
+      this.context = context;
+      this.schema = schema;
+    }
+
+    public Unmarshaller borrow() throws JAXBException {
+      Unmarshaller unmarshaller = idle.poll();
+      if (unmarshaller != null) {
+        hits.incrementAndGet();
+        return unmarshaller;
+      }
+      long missCount = misses.incrementAndGet();
+      log.log(Level.FINE, "Creating unmarshaller (validating: {0}). Pool hits: "
+          + "{1}, misses: {2}", new Object[] {schema != null, hits.get(),
+          missCount});
+      unmarshaller = context.createUnmarshaller();
+      if (schema != null) {
+        unmarshaller.setSchema(schema);
+      }
+      return unmarshaller;
+    }
+
+    /** Makes an unmarshaller that completed successfully available again. */
+    public void release(Unmarshaller unmarshaller) {
+      // If the pool is full, the unmarshaller is simply dropped.
+      idle.offer(unmarshaller);
+    }
+
+    public long getHits() {
+      return hits.get();
+    }
+
+    public long getMisses() {
+      return misses.get();
+    }
+  }
+
+  /**
+   * Places elements without a namespace into SharePoint's namespace, which
+   * SharePoint omits from the XML it returns within SOAP responses.
+   */
+  private static class SharePointNamespaceStreamReader
+      extends StreamReaderDelegate {
+    public SharePointNamespaceStreamReader(XMLStreamReader reader) {
+      super(reader);
+    }
+
+    @Override
+    public String getNamespaceURI() {
+      String namespace = super.getNamespaceURI();
+      if (namespace == null || namespace.isEmpty()) {
+        return XMLNS;
+      }
+      return namespace;
+    }
+
+    @Override
+    public String getNamespaceURI(String prefix) {
+      String namespace = super.getNamespaceURI(prefix);
+      if (XMLConstants.DEFAULT_NS_PREFIX.equals(prefix)
+          && (namespace == null || namespace.isEmpty())) {
+        return XMLNS;
+      }
+      return namespace;
+    }
+
+    @Override
+    public QName getName() {
+      QName name = super.getName();
+      if (name.getNamespaceURI().isEmpty()) {
+        return new QName(XMLNS, name.getLocalPart(), name.getPrefix());
+      }
+      return name;
+    }
+  }
+
   public static Service createSiteDataService() {
     return Service.create(
         SiteDataSoap.class.getResource("SiteData.wsdl"),
@@ -0,0 +1,129 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded record of which site collection and web URLs belong to, so that
+ * most URLs can be resolved without asking SharePoint via {@code
+ * GetSiteAndWeb}.
+ *
+ * <p>Two kinds of URLs are recorded. Web URLs only resolve themselves, since
+ * anything below a web may be a child web or even another site collection.
+ * List root folders resolve everything below them as well, since SharePoint
+ * does not permit webs within lists. A URL is resolved by the longest
+ * recorded prefix ending at a path segment boundary.
+ */
+class WebUrlResolver {
+  private final Cache<String, Resolution> resolutions;
+
+  /**
+   * @param maximumSize maximum number of web and list URLs to remember
+   */
+  public WebUrlResolver(long maximumSize) {
+    resolutions = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        // Only a safety net for changes missed by the change feed.
+        .expireAfterWrite(6, TimeUnit.HOURS)
+        .build();
+  }
+
+  /**
+   * Returns the site collection and web of {@code url}, or {@code null} if
+   * they are not known.
+   */
+  public Resolution resolve(String url) {
+    Resolution resolution = resolutions.getIfPresent(url);
+    if (resolution != null) {
+      return resolution;
+    }
+    int queryStart = url.indexOf('?');
+    String path = queryStart == -1 ? url : url.substring(0, queryStart);
+    // Never consider anything shorter than scheme://host.
+    int minEnd = path.indexOf("//") + 2;
+    for (int end = path.lastIndexOf('/'); end > minEnd;
+        end = path.lastIndexOf('/', end - 1)) {
+      resolution = resolutions.getIfPresent(path.substring(0, end));
+      if (resolution != null && resolution.includesDescendants) {
+        return resolution;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Records that {@code webUrl} is a web in site collection {@code siteUrl}.
+   */
+  public void putWeb(String siteUrl, String webUrl) {
+    resolutions.put(webUrl, new Resolution(siteUrl, webUrl, false));
+  }
+
+  /**
+   * Records that everything at or below {@code rootFolderUrl}, the root folder
+   * of a list, belongs to web {@code webUrl} in site collection {@code
+   * siteUrl}.
+   */
+  public void putListRootFolder(String siteUrl, String webUrl,
+      String rootFolderUrl) {
+    resolutions.put(rootFolderUrl, new Resolution(siteUrl, webUrl, true));
+  }
+
+  /**
+   * Forgets everything recorded at or below {@code url}, because the web or
+   * site collection there changed.
+   */
+  public void invalidate(String url) {
+    String prefix = url + "/";
+    for (Iterator<String> it = resolutions.asMap().keySet().iterator();
+        it.hasNext();) {
+      String key = it.next();
+      if (key.equals(url) || key.startsWith(prefix)) {
+        it.remove();
+      }
+    }
+  }
+
+  public void invalidateAll() {
+    resolutions.invalidateAll();
+  }
+
+  @VisibleForTesting
+  long size() {
+    return resolutions.size();
+  }
+
+  /** Site collection and web that a URL belongs to. */
+  public static final class Resolution {
+    public final String siteUrl;
+    public final String webUrl;
+    private final boolean includesDescendants;
+
+    private Resolution(String siteUrl, String webUrl,
+        boolean includesDescendants) {
+      if (siteUrl == null || webUrl == null) {
+        throw new NullPointerException();
+      }
+      this.siteUrl = siteUrl;
+      this.webUrl = webUrl;
+      this.includesDescendants = includesDescendants;
+    }
+  }
+}
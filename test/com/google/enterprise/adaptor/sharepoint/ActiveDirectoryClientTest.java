@@ -0,0 +1,264 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Ticker;
+import com.google.enterprise.adaptor.sharepoint.ActiveDirectoryClient.ADServer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Test cases for {@link ActiveDirectoryClient}. */
+public class ActiveDirectoryClientTest {
+  private static final String DOMAIN_SID
+      = "s-1-5-21-3993744865-3521423997-1479072767";
+  private static final String USERS_SID = DOMAIN_SID + "-513";
+  private static final String ADMINS_SID = DOMAIN_SID + "-512";
+  private static final String UNKNOWN_SID = DOMAIN_SID + "-1234";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testSidToString() {
+    byte[] sid = new byte[] {1, 5, 0, 0, 0, 0, 0, 5,
+        21, 0, 0, 0,
+        (byte) 0xe1, (byte) 0xb5, (byte) 0x0b, (byte) 0xee,
+        (byte) 0x7d, (byte) 0xaa, (byte) 0xe4, (byte) 0xd1,
+        (byte) 0xff, (byte) 0xdb, (byte) 0x28, (byte) 0x58,
+        1, 2, 0, 0};
+    assertEquals("S-1-5-21-3993744865-3521423997-1479072767-513",
+        ActiveDirectoryClient.sidToString(sid));
+  }
+
+  @Test
+  public void testBatchedLookup() throws IOException {
+    CountingADServer server = new CountingADServer();
+    ActiveDirectoryClient client = new ActiveDirectoryClient(server);
+    try {
+      Map<String, String> golden = new HashMap<String, String>();
+      golden.put(USERS_SID, "GSA-CONNECTORS\\domain-users");
+      golden.put(ADMINS_SID, "GSA-CONNECTORS\\domain-admins");
+      assertEquals(golden, client.getUserAccountsBySid(
+          Arrays.asList(USERS_SID, ADMINS_SID, UNKNOWN_SID)));
+      assertEquals(1, server.requests.size());
+      assertEquals(new HashSet<String>(Arrays.asList(
+            DOMAIN_SID, USERS_SID, ADMINS_SID, UNKNOWN_SID)),
+          new HashSet<String>(server.requests.get(0)));
+      // Everything, including the unknown SID, is now cached.
+      assertEquals("GSA-CONNECTORS\\domain-users",
+          client.getUserAccountBySid(USERS_SID));
+      assertNull(client.getUserAccountBySid(UNKNOWN_SID));
+      assertEquals(1, server.requests.size());
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidSid() throws IOException {
+    ActiveDirectoryClient client
+        = new ActiveDirectoryClient(new CountingADServer());
+    try {
+      client.getUserAccountsBySid(Arrays.asList(USERS_SID, "invalid"));
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void testPersistentCache() throws IOException {
+    File file = new File(folder.getRoot(), "sids");
+    CheckpointStore store = new FileCheckpointStore(file);
+    ActiveDirectoryClient client
+        = new ActiveDirectoryClient(new CountingADServer());
+    try {
+      client.setPersistentCache(store);
+      client.getUserAccountBySid(USERS_SID);
+    } finally {
+      client.close();
+      store.close();
+    }
+
+    store = new FileCheckpointStore(file);
+    CountingADServer server = new CountingADServer();
+    client = new ActiveDirectoryClient(server);
+    try {
+      client.setPersistentCache(store);
+      assertEquals("GSA-CONNECTORS\\domain-users",
+          client.getUserAccountBySid(USERS_SID));
+      assertEquals(0, server.requests.size());
+    } finally {
+      client.close();
+      store.close();
+    }
+  }
+
+  @Test
+  public void testRefreshesInBatches() throws IOException {
+    MockTicker ticker = new MockTicker();
+    QueueingExecutor executor = new QueueingExecutor();
+    CountingADServer server = new CountingADServer();
+    ActiveDirectoryClient client
+        = new ActiveDirectoryClient(server, ticker, executor);
+    try {
+      client.getUserAccountsBySid(Arrays.asList(USERS_SID, ADMINS_SID));
+      assertEquals(1, server.requests.size());
+      server.lookup.put(USERS_SID, "renamed-users");
+      ticker.advance(31, TimeUnit.MINUTES);
+      // Stale names are still returned, while all of them are refreshed with
+      // a single lookup in the background.
+      assertEquals("GSA-CONNECTORS\\domain-users",
+          client.getUserAccountsBySid(Arrays.asList(USERS_SID, ADMINS_SID))
+          .get(USERS_SID));
+      assertEquals(1, executor.queued.size());
+      executor.runQueued();
+      assertEquals(2, server.requests.size());
+      assertEquals(new HashSet<String>(Arrays.asList(
+            DOMAIN_SID, USERS_SID, ADMINS_SID)),
+          new HashSet<String>(server.requests.get(1)));
+      assertEquals("GSA-CONNECTORS\\renamed-users",
+          client.getUserAccountBySid(USERS_SID));
+      assertEquals(2, server.requests.size());
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void testPrunesPersistentCache() throws IOException {
+    File file = new File(folder.getRoot(), "sids");
+    CheckpointStore store = new FileCheckpointStore(file);
+    MockTicker ticker = new MockTicker();
+    ActiveDirectoryClient client = new ActiveDirectoryClient(
+        new CountingADServer(), ticker, new QueueingExecutor());
+    try {
+      client.setPersistentCache(store);
+      client.getUserAccountBySid(USERS_SID);
+      ticker.advance(3, TimeUnit.HOURS);
+      client.getUserAccountBySid(ADMINS_SID);
+    } finally {
+      client.close();
+      store.close();
+    }
+
+    // The users SID expired without being used again.
+    Map<String, String> golden = new HashMap<String, String>();
+    golden.put(DOMAIN_SID, "GSA-CONNECTORS");
+    golden.put(ADMINS_SID, "domain-admins");
+    store = new FileCheckpointStore(file);
+    try {
+      assertEquals(golden, store.load());
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public void testCloseClosesServer() throws IOException {
+    CountingADServer server = new CountingADServer();
+    ActiveDirectoryClient client = new ActiveDirectoryClient(server);
+    client.getUserAccountBySid(USERS_SID);
+    assertFalse(server.closed);
+    client.close();
+    assertTrue(server.closed);
+  }
+
+  private static class CountingADServer implements ADServer {
+    private final Map<String, String> lookup = new HashMap<String, String>();
+    private final List<Collection<String>> requests
+        = Collections.synchronizedList(new ArrayList<Collection<String>>());
+
+    public CountingADServer() {
+      lookup.put(DOMAIN_SID, "GSA-CONNECTORS");
+      lookup.put(USERS_SID, "domain-users");
+      lookup.put(ADMINS_SID, "domain-admins");
+    }
+
+    @Override
+    public Map<String, String> getUserAccountsBySid(Collection<String> sids) {
+      requests.add(new ArrayList<String>(sids));
+      Map<String, String> resolved = new HashMap<String, String>();
+      for (String sid : sids) {
+        if (lookup.containsKey(sid)) {
+          resolved.put(sid, lookup.get(sid));
+        }
+      }
+      return resolved;
+    }
+
+    private boolean closed;
+
+    @Override
+    public void start() {}
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  private static class MockTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public synchronized long read() {
+      return nanos;
+    }
+
+    public synchronized void advance(long duration, TimeUnit unit) {
+      nanos += unit.toNanos(duration);
+    }
+  }
+
+  /** Holds on to tasks until {@link #runQueued} is called. */
+  private static class QueueingExecutor extends CallerRunsExecutor {
+    private final List<Runnable> queued = new ArrayList<Runnable>();
+
+    @Override
+    public synchronized void execute(Runnable command) {
+      queued.add(command);
+    }
+
+    public void runQueued() {
+      List<Runnable> tasks;
+      synchronized (this) {
+        tasks = new ArrayList<Runnable>(queued);
+        queued.clear();
+      }
+      for (Runnable task : tasks) {
+        task.run();
+      }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/** Test cases for {@link ClaimsDecoder}. */
+public class ClaimsDecoderTest {
+  @Test
+  public void testNotClaimsEncoded() {
+    assertEquals("GDC-PSL\\spuser1",
+        ClaimsDecoder.decode("GDC-PSL\\spuser1", "spuser1"));
+    assertEquals("i:", ClaimsDecoder.decode("i:", "spuser1"));
+    assertEquals("x:0#.w|user",
+        ClaimsDecoder.decode("x:0#.w|user", "spuser1"));
+  }
+
+  @Test
+  public void testWindowsClaims() {
+    assertEquals("GDC-PSL\\spuser1",
+        ClaimsDecoder.decode("i:0#.w|GDC-PSL\\spuser1", "spuser1"));
+    assertEquals("GDC-PSL\\group1", ClaimsDecoder.decode(
+        "c:0+.w|s-1-5-21-3993744865-3521423997-1479072767-1106",
+        "GDC-PSL\\group1"));
+    assertEquals("Everyone",
+        ClaimsDecoder.decode("c:0(.s|true", "Everyone"));
+    assertEquals("NT AUTHORITY\\authenticated users",
+        ClaimsDecoder.decode("c:0!.s|windows", "All Users"));
+  }
+
+  @Test
+  public void testFormsClaims() {
+    assertEquals("membership:user1",
+        ClaimsDecoder.decode("i:0#.f|membership|user1", "user1"));
+    assertEquals("roleprovider:role1",
+        ClaimsDecoder.decode("c:0-.f|roleprovider|role1", "role1"));
+  }
+
+  @Test
+  public void testTrustedClaims() {
+    assertEquals("spuser1@example.com", ClaimsDecoder.decode(
+        "i:05.t|adfsv2|spuser1@example.com", "spuser1"));
+    assertEquals("group|with|bars", ClaimsDecoder.decode(
+        "c:0-.t|adfsv2|group|with|bars", "group"));
+    assertEquals("",
+        ClaimsDecoder.decode("i:05.t|adfsv2|", "spuser1"));
+    assertNull(ClaimsDecoder.decode("i:05.t|adfsv2", "spuser1"));
+  }
+
+  @Test
+  public void testUnsupportedClaims() {
+    assertNull(ClaimsDecoder.decode("i:0", "spuser1"));
+    assertNull(ClaimsDecoder.decode("i:0#.w", "spuser1"));
+    assertNull(ClaimsDecoder.decode("c:0#.w|user", "spuser1"));
+    assertNull(ClaimsDecoder.decode("c:0(.s|false", "spuser1"));
+    assertNull(ClaimsDecoder.decode("i:0#.x|user", "spuser1"));
+  }
+}
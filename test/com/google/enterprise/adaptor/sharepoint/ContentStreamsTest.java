@@ -0,0 +1,74 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/** Test cases for {@link ContentStreams}. */
+public class ContentStreamsTest {
+  @Test
+  public void testCopyAll() throws IOException {
+    byte[] contents = new byte[ContentStreams.BUFFER_SIZE * 2 + 7];
+    for (int i = 0; i < contents.length; i++) {
+      contents[i] = (byte) i;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(contents.length, ContentStreams.copy(
+        new ByteArrayInputStream(contents), out, Long.MAX_VALUE));
+    assertArrayEquals(contents, out.toByteArray());
+  }
+
+  @Test
+  public void testCopyLimited() throws IOException {
+    byte[] contents = new byte[ContentStreams.BUFFER_SIZE + 10];
+    Arrays.fill(contents, (byte) 1);
+    ByteArrayInputStream in = new ByteArrayInputStream(contents);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(ContentStreams.BUFFER_SIZE + 5,
+        ContentStreams.copy(in, out, ContentStreams.BUFFER_SIZE + 5));
+    assertEquals(ContentStreams.BUFFER_SIZE + 5, out.size());
+    assertEquals(5, in.available());
+  }
+
+  @Test
+  public void testCopyNothing() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(0, ContentStreams.copy(
+        new ByteArrayInputStream(new byte[10]), out, 0));
+    assertEquals(0, out.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCopyNegativeLimit() throws IOException {
+    ContentStreams.copy(new ByteArrayInputStream(new byte[0]),
+        new ByteArrayOutputStream(), -1);
+  }
+
+  @Test
+  public void testParseContentLength() {
+    assertEquals(1234, ContentStreams.parseContentLength(" 1234"));
+    assertEquals(-1, ContentStreams.parseContentLength(null));
+    assertEquals(-1, ContentStreams.parseContentLength("-5"));
+    assertEquals(-1, ContentStreams.parseContentLength("abc"));
+  }
+}
@@ -0,0 +1,254 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.enterprise.adaptor.IOHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Test cases for {@link FileCheckpointStore}. */
+public class FileCheckpointStoreTest {
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+  private FileCheckpointStore store;
+
+  @Before
+  public void setup() {
+    file = new File(folder.getRoot(), "checkpoints");
+  }
+
+  @After
+  public void teardown() throws IOException {
+    if (store != null) {
+      store.close();
+    }
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testNullFile() {
+    new FileCheckpointStore(null);
+  }
+
+  @Test
+  public void testLoadMissingFile() throws IOException {
+    store = new FileCheckpointStore(file);
+    assertEquals(Collections.emptyMap(), store.load());
+    assertTrue(file.exists());
+  }
+
+  @Test
+  public void testPersistsAcrossInstances() throws IOException {
+    store = new FileCheckpointStore(file);
+    store.load();
+    store.put("{db1}", "1;0;db1;634727056594000000;603");
+    store.put("{db2}", "1;0;db2;634727056594000000;10");
+    store.put("{db1}", "1;0;db1;634727056594000000;700");
+    store.put("{db3}", "1;0;db3;634727056594000000;5");
+    store.remove("{db3}");
+    store.close();
+
+    Map<String, String> golden = new HashMap<String, String>();
+    golden.put("{db1}", "1;0;db1;634727056594000000;700");
+    golden.put("{db2}", "1;0;db2;634727056594000000;10");
+    store = new FileCheckpointStore(file);
+    assertEquals(golden, store.load());
+  }
+
+  @Test
+  public void testPutAll() throws IOException {
+    store = new FileCheckpointStore(file);
+    store.load();
+    store.put("{db1}", "1;0;db1;1;603");
+    long length = file.length();
+    Map<String, String> values = new HashMap<String, String>();
+    values.put("{db1}", "1;0;db1;1;603");
+    values.put("{db2}", "1;0;db2;1;10");
+    store.putAll(values);
+    assertEquals(length + "P\t{db2}\t1;0;db2;1;10\n".length(),
+        file.length());
+    store.close();
+    store = new FileCheckpointStore(file);
+    assertEquals(values, store.load());
+  }
+
+  @Test
+  public void testRemoveAll() throws IOException {
+    store = new FileCheckpointStore(file);
+    store.load();
+    store.put("{db1}", "1;0;db1;1;603");
+    store.put("{db2}", "1;0;db2;1;10");
+    store.put("{db3}", "1;0;db3;1;1");
+    long length = file.length();
+    store.removeAll(Arrays.asList("{db1}", "{db3}", "{db4}"));
+    // Unknown keys are not recorded.
+    assertEquals(length + "R\t{db1}\n".length() + "R\t{db3}\n".length(),
+        file.length());
+    store.close();
+    store = new FileCheckpointStore(file);
+    assertEquals(Collections.singletonMap("{db2}", "1;0;db2;1;10"),
+        store.load());
+  }
+
+  @Test
+  public void testIgnoresPartialRecord() throws IOException {
+    writeFile(file, "P\t{db1}\t1;0;db1;1;603\nP\t{db1}\t1;0;db1;1;7");
+    store = new FileCheckpointStore(file);
+    assertEquals(Collections.singletonMap("{db1}", "1;0;db1;1;603"),
+        store.load());
+    // The partial record must not corrupt later records.
+    store.put("{db2}", "1;0;db2;1;1");
+    store.close();
+    store = new FileCheckpointStore(file);
+    Map<String, String> golden = new HashMap<String, String>();
+    golden.put("{db1}", "1;0;db1;1;603");
+    golden.put("{db2}", "1;0;db2;1;1");
+    assertEquals(golden, store.load());
+  }
+
+  @Test
+  public void testIgnoresMalformedRecord() throws IOException {
+    writeFile(file, "garbage\nP\t{db1}\t1;0;db1;1;603\nR\n");
+    store = new FileCheckpointStore(file);
+    assertEquals(Collections.singletonMap("{db1}", "1;0;db1;1;603"),
+        store.load());
+  }
+
+  @Test
+  public void testRecoversFromInterruptedCompaction() throws IOException {
+    File compactionFile = new File(file.getPath() + ".compact");
+    writeFile(compactionFile, "P\t{db1}\t1;0;db1;1;603\n");
+    store = new FileCheckpointStore(file);
+    assertEquals(Collections.singletonMap("{db1}", "1;0;db1;1;603"),
+        store.load());
+    assertFalse(compactionFile.exists());
+  }
+
+  @Test
+  public void testPrefersJournalOverPartialCompaction() throws IOException {
+    File compactionFile = new File(file.getPath() + ".compact");
+    writeFile(file, "P\t{db1}\t1;0;db1;1;603\n");
+    writeFile(compactionFile, "P\t{db1}\t1;0;db1;1;");
+    store = new FileCheckpointStore(file);
+    assertEquals(Collections.singletonMap("{db1}", "1;0;db1;1;603"),
+        store.load());
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    store = new FileCheckpointStore(file, 10);
+    store.load();
+    for (int i = 0; i < 25; i++) {
+      store.put("{db1}", "1;0;db1;1;" + i);
+    }
+    assertTrue(readFile(file).endsWith("P\t{db1}\t1;0;db1;1;24\n"));
+    assertTrue(readFile(file).split("\n").length < 10);
+    store.close();
+    store = new FileCheckpointStore(file);
+    assertEquals(Collections.singletonMap("{db1}", "1;0;db1;1;24"),
+        store.load());
+  }
+
+  @Test
+  public void testFailedCompactionKeepsJournal() throws IOException {
+    store = new FileCheckpointStore(file, 2);
+    store.load();
+    // A directory in the way of the compacted copy makes compaction fail.
+    File compactionFile = new File(file.getPath() + ".compact");
+    assertTrue(compactionFile.mkdir());
+    store.put("{db1}", "1;0;db1;1;1");
+    store.put("{db1}", "1;0;db1;1;2");
+    try {
+      store.put("{db1}", "1;0;db1;1;3");
+      fail();
+    } catch (IOException expected) {
+    }
+    store.put("{db2}", "1;0;db2;1;1");
+    store.close();
+    assertTrue(compactionFile.delete());
+    store = new FileCheckpointStore(file);
+    Map<String, String> golden = new HashMap<String, String>();
+    golden.put("{db1}", "1;0;db1;1;3");
+    golden.put("{db2}", "1;0;db2;1;1");
+    assertEquals(golden, store.load());
+  }
+
+  @Test
+  public void testUnchangedValueNotWritten() throws IOException {
+    store = new FileCheckpointStore(file);
+    store.load();
+    store.put("{db1}", "1;0;db1;1;603");
+    long length = file.length();
+    store.put("{db1}", "1;0;db1;1;603");
+    store.remove("{missing}");
+    assertEquals(length, file.length());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsNewline() throws IOException {
+    store = new FileCheckpointStore(file);
+    store.load();
+    store.put("{db1}", "1;0;db1\n;1;603");
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testPutBeforeLoad() throws IOException {
+    store = new FileCheckpointStore(file);
+    store.put("{db1}", "1;0;db1;1;603");
+  }
+
+  private static void writeFile(File file, String contents)
+      throws IOException {
+    OutputStream os = new FileOutputStream(file);
+    try {
+      os.write(contents.getBytes(CHARSET));
+    } finally {
+      os.close();
+    }
+  }
+
+  private static String readFile(File file) throws IOException {
+    InputStream is = new FileInputStream(file);
+    try {
+      return IOHelper.readInputStreamToString(is, CHARSET);
+    } finally {
+      is.close();
+    }
+  }
+}
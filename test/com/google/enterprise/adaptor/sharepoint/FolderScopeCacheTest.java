@@ -0,0 +1,82 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+/** Test cases for {@link FolderScopeCache}. */
+public class FolderScopeCacheTest {
+  private static final String LIST_ID
+      = "{6F33949A-B3FF-4B0C-BA99-93CB518AC2C0}";
+  private static final String OTHER_LIST_ID
+      = "{133FCB96-7E9B-46C9-B5F3-09770A35AD8A}";
+  private static final String FOLDER
+      = "http://localhost:1/sites/SiteCollection/Lists/Custom List/Folder";
+  private static final String OTHER_FOLDER
+      = "http://localhost:1/sites/Other/Lists/Custom List/Folder";
+
+  private final FolderScopeCache cache = new FolderScopeCache(100);
+
+  @Test
+  public void testPutGet() {
+    assertNull(cache.getScopeId(LIST_ID, FOLDER));
+    cache.putScopeId(LIST_ID, FOLDER, "{D3A69DBF-B1EE-4B8D-AD30-5F64B661BF41}");
+    assertEquals("{d3a69dbf-b1ee-4b8d-ad30-5f64b661bf41}",
+        cache.getScopeId(LIST_ID.toLowerCase(Locale.ENGLISH), FOLDER));
+    assertNull(cache.getScopeId(OTHER_LIST_ID, FOLDER));
+    assertNull(cache.getScopeId(LIST_ID, FOLDER + "2"));
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testNullScopeId() {
+    cache.putScopeId(LIST_ID, FOLDER, null);
+  }
+
+  @Test
+  public void testBounded() {
+    FolderScopeCache cache = new FolderScopeCache(10);
+    for (int i = 0; i < 100; i++) {
+      cache.putScopeId(LIST_ID, FOLDER + i, "{scope}");
+    }
+    assertEquals(10, cache.size());
+  }
+
+  @Test
+  public void testInvalidateList() {
+    cache.putScopeId(LIST_ID, FOLDER, "{scope1}");
+    cache.putScopeId(OTHER_LIST_ID, OTHER_FOLDER, "{scope2}");
+    cache.invalidateList(LIST_ID.toLowerCase(Locale.ENGLISH));
+    assertNull(cache.getScopeId(LIST_ID, FOLDER));
+    assertEquals("{scope2}", cache.getScopeId(OTHER_LIST_ID, OTHER_FOLDER));
+  }
+
+  @Test
+  public void testInvalidateSiteCollection() {
+    cache.putScopeId(LIST_ID, FOLDER, "{scope1}");
+    cache.putScopeId(OTHER_LIST_ID, OTHER_FOLDER, "{scope2}");
+    cache.putScopeId(OTHER_LIST_ID,
+        "http://localhost:1/sites/SiteCollection2/Lists/Custom List/Folder",
+        "{scope3}");
+    cache.invalidateSiteCollection("http://localhost:1/sites/SiteCollection");
+    assertNull(cache.getScopeId(LIST_ID, FOLDER));
+    assertEquals("{scope2}", cache.getScopeId(OTHER_LIST_ID, OTHER_FOLDER));
+    assertEquals(2, cache.size());
+  }
+}
@@ -0,0 +1,117 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.enterprise.adaptor.GroupPrincipal;
+import com.google.enterprise.adaptor.Principal;
+import com.google.enterprise.adaptor.UserPrincipal;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Test cases for {@link GroupFingerprints}. */
+public class GroupFingerprintsTest {
+  private static final GroupPrincipal OWNERS = new GroupPrincipal(
+      "SiteCollection Owners", "Default_http://localhost:1");
+  private static final GroupPrincipal MEMBERS = new GroupPrincipal(
+      "SiteCollection Members", "Default_http://localhost:1");
+  private static final UserPrincipal SPUSER1
+      = new UserPrincipal("GDC-PSL\\spuser1", "Default");
+  private static final UserPrincipal SPUSER2
+      = new UserPrincipal("GDC-PSL\\spuser2", "Default");
+
+  private final GroupFingerprints fingerprints = new GroupFingerprints(10);
+
+  @Test
+  public void testUnknownGroupsChanged() {
+    Map<GroupPrincipal, Collection<Principal>> defs = defs(
+        OWNERS, Arrays.<Principal>asList(SPUSER1),
+        MEMBERS, Collections.<Principal>emptyList());
+    assertEquals(defs, fingerprints.changed(defs));
+  }
+
+  @Test
+  public void testPushedGroupsUnchanged() {
+    fingerprints.pushed(defs(
+        OWNERS, Arrays.<Principal>asList(SPUSER1, SPUSER2),
+        MEMBERS, Collections.<Principal>emptyList()));
+    assertEquals(Collections.emptyMap(), fingerprints.changed(defs(
+        OWNERS, Arrays.<Principal>asList(SPUSER2, SPUSER1),
+        MEMBERS, Collections.<Principal>emptyList())));
+    assertEquals(2, fingerprints.size());
+  }
+
+  @Test
+  public void testMembershipChanged() {
+    fingerprints.pushed(defs(
+        OWNERS, Arrays.<Principal>asList(SPUSER1),
+        MEMBERS, Arrays.<Principal>asList(SPUSER1)));
+    Map<GroupPrincipal, Collection<Principal>> defs = defs(
+        OWNERS, Arrays.<Principal>asList(SPUSER1),
+        MEMBERS, Arrays.<Principal>asList(SPUSER1, SPUSER2));
+    assertEquals(Collections.singletonMap(MEMBERS, defs.get(MEMBERS)),
+        fingerprints.changed(defs));
+  }
+
+  @Test
+  public void testInvalidateAll() {
+    Map<GroupPrincipal, Collection<Principal>> defs
+        = defs(OWNERS, Arrays.<Principal>asList(SPUSER1));
+    fingerprints.pushed(defs);
+    fingerprints.invalidateAll();
+    assertEquals(defs, fingerprints.changed(defs));
+  }
+
+  @Test
+  public void testFingerprint() {
+    assertTrue(Arrays.equals(
+        GroupFingerprints.fingerprint(Arrays.<Principal>asList(
+            SPUSER1, SPUSER2)),
+        GroupFingerprints.fingerprint(Arrays.<Principal>asList(
+            SPUSER2, SPUSER1))));
+    // Users and groups with the same name are different members.
+    assertFalse(Arrays.equals(
+        GroupFingerprints.fingerprint(Arrays.<Principal>asList(
+            new UserPrincipal("GDC-PSL\\group", "Default"))),
+        GroupFingerprints.fingerprint(Arrays.<Principal>asList(
+            new GroupPrincipal("GDC-PSL\\group", "Default")))));
+    assertFalse(Arrays.equals(
+        GroupFingerprints.fingerprint(Arrays.<Principal>asList(SPUSER1)),
+        GroupFingerprints.fingerprint(Arrays.<Principal>asList(
+            new UserPrincipal("GDC-PSL\\spuser1", "Other")))));
+  }
+
+  private static Map<GroupPrincipal, Collection<Principal>> defs(
+      Object... groupsAndMembers) {
+    Map<GroupPrincipal, Collection<Principal>> defs
+        = new HashMap<GroupPrincipal, Collection<Principal>>();
+    for (int i = 0; i < groupsAndMembers.length; i += 2) {
+      @SuppressWarnings("unchecked")
+      Collection<Principal> members
+          = (Collection<Principal>) groupsAndMembers[i + 1];
+      defs.put((GroupPrincipal) groupsAndMembers[i], members);
+    }
+    return defs;
+  }
+}
@@ -18,7 +18,9 @@ import static org.junit.Assert.assertEquals;
 
 import com.google.enterprise.adaptor.Config;
 import com.google.enterprise.adaptor.DocId;
+import com.google.enterprise.adaptor.DocIdEncoder;
 import com.google.enterprise.adaptor.DocIdPusher;
+import com.google.enterprise.adaptor.ExceptionHandler;
 
 import com.microsoft.schemas.sharepoint.soap.ObjectType;
 
@@ -28,6 +30,7 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
@@ -134,6 +137,87 @@ public class HtmlResponseWriterTest {
     assertEquals(goldenRecords, docIdPusher.getRecords());
   }
 
+  @Test
+  public void testOverflowPushedInBatches() throws Exception {
+    AccumulatingDocIdPusher docIdPusher = new AccumulatingDocIdPusher();
+    writer = new HtmlResponseWriter(baos, charset,
+        context.getDocIdEncoder(), Locale.ENGLISH, 1, docIdPusher,
+        executor, 2);
+    writer.start(new DocId("s"), ObjectType.SITE, null);
+    writer.startSection(ObjectType.LIST);
+    writer.addLink(new DocId("s/l1"), null);
+    assertEquals(0, docIdPusher.getRecords().size());
+    writer.addLink(new DocId("s/l2"), null);
+    // Pushed before the document is finished.
+    assertEquals(Arrays.asList(
+        new DocIdPusher.Record.Builder(new DocId("s/l1")).build(),
+        new DocIdPusher.Record.Builder(new DocId("s/l2")).build()),
+        docIdPusher.getRecords());
+    writer.addLink(new DocId("s/l3"), null);
+    writer.finish();
+    assertEquals(3, docIdPusher.getRecords().size());
+  }
+
+  @Test
+  public void testOverflowBatchPushFailure() throws Exception {
+    DocIdPusher docIdPusher = new UnsupportedDocIdPusher() {
+      @Override
+      public DocId pushDocIds(Iterable<DocId> docIds,
+          ExceptionHandler handler) {
+        return docIds.iterator().next();
+      }
+    };
+    writer = new HtmlResponseWriter(baos, charset,
+        context.getDocIdEncoder(), Locale.ENGLISH, 1, docIdPusher,
+        executor, 1);
+    writer.start(new DocId("s"), ObjectType.SITE, null);
+    writer.startSection(ObjectType.LIST);
+    thrown.expect(IOException.class);
+    writer.addLink(new DocId("s/l1"), null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructorZeroOverflowBatchSize() {
+    new HtmlResponseWriter(baos, charset, context.getDocIdEncoder(),
+        Locale.ENGLISH, 1024 * 1024, docIdPusher, executor, 0);
+  }
+
+  @Test
+  public void testAddLinkMatchesRelativize() throws Exception {
+    final String prefix = "sites/SiteCollection/Lists/Custom List/";
+    final DocId base = new DocId(prefix + "AllItems.aspx");
+    final List<DocId> links = Arrays.asList(
+        new DocId(prefix + "1_.000"),
+        new DocId(prefix + "Folder/2_.000"),
+        new DocId(prefix + "R&D's \"100%\" <draft>.docx"),
+        new DocId(prefix + "AllItems.aspx"),
+        new DocId(prefix),
+        new DocId(prefix + "a:b"),
+        new DocId(prefix + "Folder/a:b"),
+        new DocId(prefix + "caf\u00e9"),
+        new DocId("sites/SiteCollection/Lists/Other List/3_.000"),
+        new DocId("sites/SiteCollection"));
+    final String label = "R&D <\"draft\">'s";
+    DocIdEncoder encoder = context.getDocIdEncoder();
+    StringBuilder golden = new StringBuilder("<ul>");
+    writer.start(base, ObjectType.LIST, "Custom List");
+    writer.startSection(ObjectType.LIST_ITEM);
+    for (DocId link : links) {
+      writer.addLink(link, label);
+      String href = HtmlResponseWriter.relativize(encoder.encodeDocId(base),
+          encoder.encodeDocId(link)).toASCIIString();
+      golden.append("<li><a href=\"")
+          .append(href.replace("&", "&amp;").replace("<", "&lt;")
+              .replace("\"", "&quot;").replace("'", "&apos;"))
+          .append("\">R&amp;D &lt;\"draft\">'s</a></li>");
+    }
+    golden.append("</ul>");
+    writer.finish();
+    String html = new String(baos.toByteArray(), charset);
+    assertEquals(golden.toString(),
+        html.substring(html.indexOf("<ul>"), html.indexOf("</body>")));
+  }
+
   @Test
   public void testStartTwice() throws Exception {
     writer.start(new DocId(""), ObjectType.SITE, null);
@@ -0,0 +1,70 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+/** Test cases for {@link ListItemIndex}. */
+public class ListItemIndexTest {
+  private static final String LIST_URL
+      = "http://localhost:1/sites/SiteCollection/Lists/Custom List";
+  private static final String LIST_ID
+      = "{6F33949A-B3FF-4B0C-BA99-93CB518AC2C0}";
+  private static final String OTHER_LIST_ID
+      = "{133fcb96-7e9b-46c9-b5f3-09770a35ad8a}";
+
+  private final ListItemIndex index = new ListItemIndex(10);
+
+  @Test
+  public void testPutAndGet() {
+    assertNull(index.get(LIST_URL + "/Test Folder"));
+    index.put(LIST_URL + "/Test Folder", LIST_ID, "1");
+    ListItemIndex.ListItemId ids = index.get(LIST_URL + "/Test Folder");
+    assertEquals(LIST_ID, ids.listId);
+    assertEquals("1", ids.itemId);
+    assertNull(index.get(LIST_URL + "/Test Folder/2_.000"));
+  }
+
+  @Test
+  public void testInvalidate() {
+    index.put(LIST_URL + "/Test Folder", LIST_ID, "1");
+    index.put(LIST_URL + "/3_.000", LIST_ID, "3");
+    index.invalidate(LIST_URL + "/Test Folder");
+    assertNull(index.get(LIST_URL + "/Test Folder"));
+    assertEquals("3", index.get(LIST_URL + "/3_.000").itemId);
+  }
+
+  @Test
+  public void testInvalidateList() {
+    index.put(LIST_URL + "/Test Folder", LIST_ID, "1");
+    index.put(LIST_URL + "/3_.000", LIST_ID, "3");
+    index.put("http://localhost:1/Lists/Announcements/2_.000",
+        OTHER_LIST_ID, "2");
+    index.invalidateList(LIST_ID.toLowerCase(Locale.ENGLISH));
+    assertEquals(1, index.size());
+    assertEquals(OTHER_LIST_ID,
+        index.get("http://localhost:1/Lists/Announcements/2_.000").listId);
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testNullItemId() {
+    index.put(LIST_URL + "/Test Folder", LIST_ID, null);
+  }
+}
@@ -0,0 +1,60 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Test cases for {@link ListingFingerprints}. */
+public class ListingFingerprintsTest {
+  private static final String LIST
+      = "http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+      + "AllItems.aspx";
+  private static final String LAST_MODIFIED = "2012-05-04 21:24:32Z";
+
+  private final ListingFingerprints fingerprints = new ListingFingerprints(10);
+
+  @Test
+  public void testUnknownListing() {
+    assertFalse(fingerprints.isUnchanged(LIST, 2, LAST_MODIFIED));
+  }
+
+  @Test
+  public void testUnchanged() {
+    fingerprints.listed(LIST, 2, LAST_MODIFIED);
+    assertTrue(fingerprints.isUnchanged(LIST, 2, LAST_MODIFIED));
+    assertFalse(fingerprints.isUnchanged(LIST + "?gsaListingPage=p_ID%3D3", 2,
+        LAST_MODIFIED));
+  }
+
+  @Test
+  public void testChanged() {
+    fingerprints.listed(LIST, 2, LAST_MODIFIED);
+    assertFalse(fingerprints.isUnchanged(LIST, 3, LAST_MODIFIED));
+    assertFalse(fingerprints.isUnchanged(LIST, 2, "2012-05-04 21:25:00Z"));
+  }
+
+  @Test
+  public void testInvalidateAll() {
+    fingerprints.listed(LIST, 2, LAST_MODIFIED);
+    assertEquals(1, fingerprints.size());
+    fingerprints.invalidateAll();
+    assertEquals(0, fingerprints.size());
+    assertFalse(fingerprints.isUnchanged(LIST, 2, LAST_MODIFIED));
+  }
+}
@@ -0,0 +1,58 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.enterprise.adaptor.DocId;
+
+import org.junit.Test;
+
+/** Test cases for {@link ListingPage}. */
+public class ListingPageTest {
+  private static final String LIST_URL
+      = "http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+      + "AllItems.aspx";
+
+  @Test
+  public void testRoundTrip() {
+    DocId docId = ListingPage.docId(LIST_URL, "Paged=TRUE&p_ID=3");
+    assertEquals(
+        new DocId(LIST_URL + "?gsaListingPage=Paged%3DTRUE%26p_ID%3D3"), docId);
+    ListingPage page = ListingPage.parse(docId.getUniqueId());
+    assertEquals(LIST_URL, page.containerUrl);
+    assertEquals("Paged=TRUE&p_ID=3", page.lastItemIdOnPage);
+  }
+
+  @Test
+  public void testNotAPage() {
+    assertNull(ListingPage.parse(LIST_URL));
+    assertNull(ListingPage.parse(LIST_URL + "?gsaListingPage="));
+    assertNull(ListingPage.parse(LIST_URL + "?gsaListingPage=%zz"));
+  }
+
+  @Test
+  public void testContainerUrl() {
+    assertEquals(LIST_URL, ListingPage.containerUrl(LIST_URL));
+    assertEquals(LIST_URL, ListingPage.containerUrl(
+        ListingPage.docId(LIST_URL, "p_ID=3").getUniqueId()));
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testNullLastItemIdOnPage() {
+    ListingPage.docId(LIST_URL, null);
+  }
+}
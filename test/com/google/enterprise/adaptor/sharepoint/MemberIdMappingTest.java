@@ -0,0 +1,92 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.enterprise.adaptor.GroupPrincipal;
+import com.google.enterprise.adaptor.Principal;
+import com.google.enterprise.adaptor.UserPrincipal;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Test cases for {@link MemberIdMapping}. */
+public class MemberIdMappingTest {
+  @Test
+  public void testEmpty() {
+    MemberIdMapping mapping
+        = new MemberIdMapping(Collections.<Integer, Principal>emptyMap());
+    assertEquals(0, mapping.size());
+    assertNull(mapping.getPrincipal(0));
+    assertNull(mapping.getPrincipal(null));
+    assertEquals("MemberIdMapping({})", mapping.toString());
+  }
+
+  @Test
+  public void testUsersAndGroups() {
+    Map<Integer, Principal> map = new HashMap<Integer, Principal>();
+    map.put(1, new UserPrincipal("GDC-PSL\\administrator", "Default"));
+    map.put(3, new GroupPrincipal("chinese1 Owners",
+        "Default_http://localhost:1/sites/SiteCollection"));
+    map.put(7, new GroupPrincipal("GDC-PSL\\group1", "Default"));
+    map.put(-2, new UserPrincipal("negative", "Default"));
+    MemberIdMapping mapping = new MemberIdMapping(map);
+    assertEquals(4, mapping.size());
+    for (Map.Entry<Integer, Principal> me : map.entrySet()) {
+      assertEquals(me.getValue(), mapping.getPrincipal(me.getKey()));
+    }
+    assertNull(mapping.getPrincipal(2));
+    assertNull(mapping.getPrincipal(0));
+  }
+
+  @Test
+  public void testMany() {
+    Map<Integer, Principal> map = new HashMap<Integer, Principal>();
+    for (int i = 0; i < 10000; i++) {
+      // Ids with equal low bits, as well as sequential ones.
+      map.put(i << 16, new UserPrincipal("user" + i, "Default"));
+      map.put(i, new GroupPrincipal("group" + i, "ns" + (i % 3)));
+    }
+    MemberIdMapping mapping = new MemberIdMapping(map);
+    assertEquals(map.size(), mapping.size());
+    for (Map.Entry<Integer, Principal> me : map.entrySet()) {
+      assertEquals(me.getValue(), mapping.getPrincipal(me.getKey()));
+    }
+    assertNull(mapping.getPrincipal(10000));
+    assertNull(mapping.getPrincipal(10000 << 16));
+  }
+
+  @Test
+  public void testNamesShared() {
+    Map<Integer, Principal> map = new HashMap<Integer, Principal>();
+    map.put(1, new UserPrincipal(new String("user"), "Default"));
+    MemberIdMapping mapping1 = new MemberIdMapping(map);
+    map.put(1, new UserPrincipal(new String("user"), "Default"));
+    MemberIdMapping mapping2 = new MemberIdMapping(map);
+    assertSame(mapping1.getPrincipal(1).getName(),
+        mapping2.getPrincipal(1).getName());
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testNullPrincipal() {
+    new MemberIdMapping(Collections.singletonMap(1, (Principal) null));
+  }
+}
@@ -0,0 +1,154 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.PasswordAuthentication;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Test cases for {@link NtlmHandshake}. The expected values are the examples
+ * of section 4.2 of [MS-NLMP].
+ */
+public class NtlmHandshakeTest {
+  private static final Charset UNICODE = Charset.forName("UTF-16LE");
+  private static final byte[] SERVER_CHALLENGE = hex("0123456789abcdef");
+  private static final byte[] CLIENT_CHALLENGE = hex("aaaaaaaaaaaaaaaa");
+  private static final byte[] TIME = new byte[8];
+  /** MsvAvNbDomainName "Domain" and MsvAvNbComputerName "Server". */
+  private static final byte[] TARGET_INFO = hex("02000c0044006f006d0061"
+      + "0069006e0001000c0053006500720076006500720000000000");
+
+  @Test
+  public void testMd4() {
+    assertArrayEquals(hex("31d6cfe0d16ae931b73c59d7e0c089c0"),
+        NtlmHandshake.md4(new byte[0]));
+    assertArrayEquals(hex("a448017aaf21d8525fc10ae87aa6729d"),
+        NtlmHandshake.md4(ascii("abc")));
+    assertArrayEquals(hex("e33b4ddc9c38f2199c3e7b164fcc0536"),
+        NtlmHandshake.md4(ascii("1234567890123456789012345678901234567890"
+            + "1234567890123456789012345678901234567890")));
+  }
+
+  @Test
+  public void testNtHash() {
+    assertArrayEquals(hex("a4f49c406510bdcab6824ee7c30fd852"),
+        NtlmHandshake.md4("Password".getBytes(UNICODE)));
+  }
+
+  @Test
+  public void testNtowfv2() {
+    assertArrayEquals(hex("0c868a403bfd7a93a3001ef22ef02e3f"),
+        NtlmHandshake.ntowfv2("Password".toCharArray(), "User", "Domain"));
+  }
+
+  @Test
+  public void testLmv2Response() {
+    byte[] ntowf
+        = NtlmHandshake.ntowfv2("Password".toCharArray(), "User", "Domain");
+    assertArrayEquals(
+        hex("86c35097ac9cec102554764a57cccc19aaaaaaaaaaaaaaaa"),
+        NtlmHandshake.lmv2Response(ntowf, SERVER_CHALLENGE,
+            CLIENT_CHALLENGE));
+  }
+
+  @Test
+  public void testNtlmv2Response() {
+    byte[] ntowf
+        = NtlmHandshake.ntowfv2("Password".toCharArray(), "User", "Domain");
+    byte[] response = NtlmHandshake.ntlmv2Response(ntowf, SERVER_CHALLENGE,
+        CLIENT_CHALLENGE, TIME, TARGET_INFO);
+    assertArrayEquals(hex("68cd0ab851e51c96aabc927bebef6a1c"),
+        Arrays.copyOf(response, 16));
+    assertEquals(16 + 28 + TARGET_INFO.length + 4, response.length);
+  }
+
+  @Test
+  public void testWindowsTime() {
+    // 2000-01-01T00:00:00Z
+    assertArrayEquals(hex("00406d25eb53bf01"),
+        NtlmHandshake.windowsTime(946684800000L));
+  }
+
+  @Test
+  public void testNegotiate() {
+    NtlmHandshake handshake = new NtlmHandshake(
+        new PasswordAuthentication("Domain\\User", "Password".toCharArray()));
+    byte[] message
+        = DatatypeConverter.parseBase64Binary(handshake.negotiate());
+    assertEquals(32, message.length);
+    assertArrayEquals(ascii("NTLMSSP\0"), Arrays.copyOf(message, 8));
+    assertEquals(1, message[8]);
+  }
+
+  @Test
+  public void testAuthenticateMessage() {
+    NtlmHandshake handshake = new NtlmHandshake(
+        new PasswordAuthentication("Domain\\User", "Password".toCharArray()));
+    byte[] message = handshake.authenticateMessage(0xe28a8233,
+        SERVER_CHALLENGE, CLIENT_CHALLENGE, TIME, TARGET_INFO);
+    assertArrayEquals(ascii("NTLMSSP\0"), Arrays.copyOf(message, 8));
+    assertEquals(3, message[8]);
+    assertArrayEquals(
+        hex("86c35097ac9cec102554764a57cccc19aaaaaaaaaaaaaaaa"),
+        field(message, 12));
+    assertArrayEquals(hex("68cd0ab851e51c96aabc927bebef6a1c"),
+        Arrays.copyOf(field(message, 20), 16));
+    assertArrayEquals("Domain".getBytes(UNICODE), field(message, 28));
+    assertArrayEquals("User".getBytes(UNICODE), field(message, 36));
+  }
+
+  @Test
+  public void testTimestampedChallengeOmitsLmResponse() {
+    NtlmHandshake handshake = new NtlmHandshake(
+        new PasswordAuthentication("User", "Password".toCharArray()));
+    // MsvAvTimestamp followed by MsvAvEOL.
+    byte[] targetInfo = hex("0700080000406d25eb53bf0100000000");
+    byte[] message = handshake.authenticateMessage(0xe28a8233,
+        SERVER_CHALLENGE, CLIENT_CHALLENGE, TIME, targetInfo);
+    assertArrayEquals(new byte[24], field(message, 12));
+  }
+
+  @Test(expected = IOException.class)
+  public void testInvalidChallenge() throws IOException {
+    new NtlmHandshake(
+        new PasswordAuthentication("User", "Password".toCharArray()))
+        .authenticate(DatatypeConverter.printBase64Binary(new byte[40]));
+  }
+
+  /** Returns the contents of the security buffer at {@code offset}. */
+  private static byte[] field(byte[] message, int offset) {
+    int length = (message[offset] & 0xff) | (message[offset + 1] & 0xff) << 8;
+    int start = (message[offset + 4] & 0xff)
+        | (message[offset + 5] & 0xff) << 8;
+    return Arrays.copyOfRange(message, start, start + length);
+  }
+
+  private static byte[] ascii(String s) {
+    return s.getBytes(Charset.forName("US-ASCII"));
+  }
+
+  private static byte[] hex(String s) {
+    return DatatypeConverter.parseHexBinary(s);
+  }
+}
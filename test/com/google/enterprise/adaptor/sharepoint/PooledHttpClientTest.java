@@ -0,0 +1,619 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Ticker;
+import com.google.common.io.ByteStreams;
+import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.FileInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Authenticator;
+import java.net.InetAddress;
+import java.net.PasswordAuthentication;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+
+/** Test cases for {@link PooledHttpClient}. */
+public class PooledHttpClientTest {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final List<String> NO_COOKIES = Collections.emptyList();
+  private static final byte[] SERVER_CHALLENGE
+      = DatatypeConverter.parseHexBinary("0123456789abcdef");
+
+  private final MockTicker ticker = new MockTicker();
+  private final PooledHttpClient client = new PooledHttpClient(ticker);
+  private TestServer server;
+
+  @Before
+  public void setUp() throws IOException {
+    client.configure(0, 1000, 10000, 10000);
+    server = new TestServer();
+  }
+
+  @After
+  public void tearDown() {
+    Authenticator.setDefault(null);
+    client.close();
+    server.stop();
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testNullTicker() {
+    new PooledHttpClient(null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeLimit() {
+    client.configure(-1, 1000, 0, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testZeroIdleTimeout() {
+    client.configure(1, 0, 0, 0);
+  }
+
+  @Test
+  public void testReusesConnection() throws IOException {
+    server.handler = new FixedHandler(new TestResponse(200, "hello"));
+    for (int i = 0; i < 3; i++) {
+      assertEquals("hello", get("/a"));
+    }
+    assertEquals(1, server.connections.get());
+    PooledHttpClient.Stats stats = client.getStats();
+    assertEquals(3, stats.requests);
+    assertEquals(1, stats.opened);
+    assertEquals(2, stats.reused);
+    assertEquals(0, stats.leased);
+    assertEquals(1, stats.idle);
+    assertEquals(1, stats.hosts);
+  }
+
+  @Test
+  public void testReusesChunkedConnection() throws IOException {
+    TestResponse response = new TestResponse(200, "hello chunked world");
+    response.chunked = true;
+    server.handler = new FixedHandler(response);
+    assertEquals("hello chunked world", get("/a"));
+    assertEquals("hello chunked world", get("/a"));
+    assertEquals(1, server.connections.get());
+  }
+
+  @Test
+  public void testLeasesConnectionUntilBodyClosed() throws IOException {
+    server.handler = new FixedHandler(new TestResponse(200, "hello"));
+    FileInfo first = request("/a");
+    assertEquals(1, client.getStats().leased);
+    assertEquals("hello", get("/b"));
+    assertEquals(2, server.connections.get());
+    assertEquals("hello", read(first));
+    PooledHttpClient.Stats stats = client.getStats();
+    assertEquals(0, stats.leased);
+    assertEquals(2, stats.idle);
+  }
+
+  @Test
+  public void testLimitsConnectionsPerHost() throws Exception {
+    client.configure(1, 1000, 10000, 10000);
+    server.handler = new FixedHandler(new TestResponse(200, "hello"));
+    FileInfo first = request("/a");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<String> second = executor.submit(new Callable<String>() {
+        @Override
+        public String call() throws IOException {
+          return get("/b");
+        }
+      });
+      long deadline = System.currentTimeMillis() + 10000;
+      while (client.getStats().waits == 0) {
+        assertTrue(System.currentTimeMillis() < deadline);
+        Thread.sleep(10);
+      }
+      assertEquals("hello", read(first));
+      assertEquals("hello", second.get(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, server.connections.get());
+    assertEquals(1, client.getStats().waits);
+  }
+
+  @Test
+  public void testEvictsIdleConnections() throws Exception {
+    server.handler = new FixedHandler(new TestResponse(200, "hello"));
+    assertEquals("hello", get("/a"));
+    ticker.advance(999, TimeUnit.MILLISECONDS);
+    client.evictIdleConnections();
+    assertEquals(1, client.getStats().idle);
+    ticker.advance(1, TimeUnit.MILLISECONDS);
+    client.evictIdleConnections();
+    PooledHttpClient.Stats stats = client.getStats();
+    assertEquals(1, stats.evicted);
+    assertEquals(0, stats.idle);
+    assertEquals(0, stats.hosts);
+    server.awaitClosedConnections(1);
+
+    assertEquals("hello", get("/a"));
+    assertEquals(2, server.connections.get());
+  }
+
+  @Test
+  public void testDrainsSmallUnreadBody() throws IOException {
+    server.handler = new FixedHandler(new TestResponse(200, new byte[1000]));
+    request("/a").getContents().close();
+    assertEquals(1000, request("/a").getContents().skip(2000));
+    assertEquals(1, server.connections.get());
+    assertEquals(0, client.getStats().discarded);
+  }
+
+  @Test
+  public void testDiscardsLargeUnreadBody() throws IOException {
+    server.handler
+        = new FixedHandler(new TestResponse(200, new byte[1024 * 1024]));
+    FileInfo fi = request("/a");
+    fi.getContents().read(new byte[10]);
+    fi.getContents().close();
+    PooledHttpClient.Stats stats = client.getStats();
+    assertEquals(1, stats.discarded);
+    assertEquals(0, stats.idle);
+    request("/a").getContents().close();
+    assertEquals(2, server.connections.get());
+  }
+
+  @Test
+  public void testRetriesConnectionClosedByServer() throws Exception {
+    TestResponse response = new TestResponse(200, "hello");
+    // Closed without telling the client, like an expired keep-alive.
+    response.closeSilently = true;
+    server.handler = new FixedHandler(response);
+    assertEquals("hello", get("/a"));
+    server.awaitClosedConnections(1);
+    assertEquals("hello", get("/a"));
+    assertEquals(2, server.connections.get());
+    assertEquals(2, client.getStats().opened);
+  }
+
+  @Test
+  public void testClosesConnectionWhenAsked() throws IOException {
+    TestResponse response = new TestResponse(200, "hello");
+    response.headers.add("Connection: close");
+    server.handler = new FixedHandler(response);
+    assertEquals("hello", get("/a"));
+    assertEquals(0, client.getStats().idle);
+  }
+
+  @Test
+  public void testNotFoundReturnsConnection() throws IOException {
+    server.handler = new FixedHandler(new TestResponse(404, "not here"));
+    assertNull(client.issueGetRequest(server.url("/a"), NO_COOKIES, "", 0,
+        false));
+    PooledHttpClient.Stats stats = client.getStats();
+    assertEquals(0, stats.leased);
+    assertEquals(1, stats.idle);
+  }
+
+  @Test
+  public void testSharePointErrorReturnsConnection() throws IOException {
+    TestResponse response = new TestResponse(200, "busy");
+    response.headers.add("SharePointError: 2");
+    server.handler = new FixedHandler(response);
+    try {
+      request("/a");
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+    }
+    PooledHttpClient.Stats stats = client.getStats();
+    assertEquals(0, stats.leased);
+    assertEquals(1, stats.idle);
+  }
+
+  @Test
+  public void testFollowsRedirect() throws IOException {
+    server.handler = new Handler() {
+      @Override
+      public TestResponse handle(TestRequest request) {
+        if ("/a".equals(request.path)) {
+          TestResponse response = new TestResponse(302, "moved");
+          response.headers.add("Location: /b");
+          return response;
+        }
+        return new TestResponse(200, "at " + request.path);
+      }
+    };
+    assertEquals("at /b", get("/a"));
+    assertEquals(1, server.connections.get());
+    assertEquals(2, server.requests.size());
+  }
+
+  @Test
+  public void testSendsCookiesInOneHeader() throws IOException {
+    server.handler = new FixedHandler(new TestResponse(200, "hello"));
+    client.issueGetRequest(server.url("/a"), Arrays.asList("a=1", "b=2"),
+        "agent", 0, false).getContents().close();
+    TestRequest request = server.requests.get(0);
+    assertEquals("a=1; b=2", request.headers.get("Cookie"));
+    assertEquals("agent", request.headers.get("User-Agent"));
+  }
+
+  @Test
+  public void testAuthenticatesConnectionOnce() throws IOException {
+    setCredentials("Password");
+    server.handler = new NtlmHandler();
+    assertEquals("secret", get("/a"));
+    assertEquals("secret", get("/b"));
+    assertEquals(1, server.connections.get());
+    assertEquals(1, client.getStats().authentications);
+    // Anonymous, negotiate, authenticate, and then the second request.
+    assertEquals(4, server.requests.size());
+    assertNull(server.requests.get(3).headers.get("Authorization"));
+  }
+
+  @Test
+  public void testNegotiatesRightAwayOnNewConnections() throws IOException {
+    setCredentials("Password");
+    server.handler = new NtlmHandler();
+    assertEquals("secret", get("/a"));
+    FileInfo first = request("/a");
+    assertEquals("secret", get("/b"));
+    read(first);
+    assertEquals(2, server.connections.get());
+    assertEquals(2, client.getStats().authentications);
+    // The second connection skips the anonymous request.
+    assertEquals(6, server.requests.size());
+    TestRequest negotiate = server.requests.get(4);
+    assertEquals(2, negotiate.connection);
+    assertTrue(negotiate.headers.get("Authorization").startsWith("NTLM "));
+  }
+
+  @Test
+  public void testWrongPassword() throws IOException {
+    setCredentials("Wrong");
+    server.handler = new NtlmHandler();
+    try {
+      request("/a");
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+    }
+    PooledHttpClient.Stats stats = client.getStats();
+    assertEquals(0, stats.authentications);
+    assertEquals(0, stats.leased);
+  }
+
+  @Test
+  public void testCloseClosesIdleConnections() throws Exception {
+    server.handler = new FixedHandler(new TestResponse(200, "hello"));
+    FileInfo leased = request("/a");
+    assertEquals("hello", get("/b"));
+    client.close();
+    assertEquals(0, client.getStats().idle);
+    server.awaitClosedConnections(1);
+    read(leased);
+    server.awaitClosedConnections(2);
+    assertEquals(0, client.getStats().idle);
+  }
+
+  private String get(String path) throws IOException {
+    return read(request(path));
+  }
+
+  private FileInfo request(String path) throws IOException {
+    return client.issueGetRequest(server.url(path), NO_COOKIES, "", 0, false);
+  }
+
+  private static String read(FileInfo fi) throws IOException {
+    try {
+      return new String(ByteStreams.toByteArray(fi.getContents()), UTF8);
+    } finally {
+      fi.getContents().close();
+    }
+  }
+
+  private void setCredentials(final String password) {
+    Authenticator.setDefault(new Authenticator() {
+      @Override
+      protected PasswordAuthentication getPasswordAuthentication() {
+        return new PasswordAuthentication("Domain\\User",
+            password.toCharArray());
+      }
+    });
+  }
+
+  private static class MockTicker extends Ticker {
+    private long time;
+
+    @Override
+    public synchronized long read() {
+      return time;
+    }
+
+    public synchronized void advance(long duration, TimeUnit unit) {
+      time += unit.toNanos(duration);
+    }
+  }
+
+  private static class TestRequest {
+    /** Number of the connection, starting with 1. */
+    private final int connection;
+    private final String path;
+    private final Map<String, String> headers
+        = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+    public TestRequest(int connection, String path) {
+      this.connection = connection;
+      this.path = path;
+    }
+  }
+
+  private static class TestResponse {
+    private final int code;
+    private final byte[] body;
+    private final List<String> headers = new ArrayList<String>();
+    private boolean chunked;
+    private boolean closeSilently;
+
+    public TestResponse(int code, String body) {
+      this(code, body.getBytes(UTF8));
+    }
+
+    public TestResponse(int code, byte[] body) {
+      this.code = code;
+      this.body = body;
+    }
+
+    public void write(OutputStream out) throws IOException {
+      StringBuilder head = new StringBuilder();
+      head.append("HTTP/1.1 ").append(code).append(" Status\r\n");
+      for (String header : headers) {
+        head.append(header).append("\r\n");
+      }
+      if (chunked) {
+        head.append("Transfer-Encoding: chunked\r\n");
+      } else {
+        head.append("Content-Length: ").append(body.length).append("\r\n");
+      }
+      head.append("\r\n");
+      out.write(head.toString().getBytes(UTF8));
+      if (chunked) {
+        // Chunks of up to five bytes, with an extension on the first.
+        for (int i = 0; i < body.length; i += 5) {
+          int length = Math.min(5, body.length - i);
+          out.write((Integer.toHexString(length) + (i == 0 ? ";x=y" : "")
+              + "\r\n").getBytes(UTF8));
+          out.write(body, i, length);
+          out.write("\r\n".getBytes(UTF8));
+        }
+        out.write("0\r\nTrailer: value\r\n\r\n".getBytes(UTF8));
+      } else {
+        out.write(body);
+      }
+      out.flush();
+    }
+  }
+
+  private interface Handler {
+    public TestResponse handle(TestRequest request) throws IOException;
+  }
+
+  private static class FixedHandler implements Handler {
+    private final TestResponse response;
+
+    public FixedHandler(TestResponse response) {
+      this.response = response;
+    }
+
+    @Override
+    public TestResponse handle(TestRequest request) {
+      return response;
+    }
+  }
+
+  /**
+   * Requires NTLM authentication of each connection by Domain\User with
+   * password Password.
+   */
+  private static class NtlmHandler implements Handler {
+    private final Set<Integer> authenticated
+        = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    @Override
+    public TestResponse handle(TestRequest request) throws IOException {
+      if (authenticated.contains(request.connection)) {
+        return new TestResponse(200, "secret");
+      }
+      String authorization = request.headers.get("Authorization");
+      TestResponse denied = new TestResponse(401, "denied");
+      if (authorization == null) {
+        denied.headers.add("WWW-Authenticate: Negotiate");
+        denied.headers.add("WWW-Authenticate: NTLM");
+        return denied;
+      }
+      byte[] message = DatatypeConverter.parseBase64Binary(
+          authorization.substring("NTLM ".length()));
+      if (message[8] == 1) {
+        denied.headers.add("WWW-Authenticate: NTLM "
+            + DatatypeConverter.printBase64Binary(challenge()));
+      } else if (message[8] == 3 && isValid(message)) {
+        authenticated.add(request.connection);
+        return new TestResponse(200, "secret");
+      }
+      return denied;
+    }
+
+    /** Returns a CHALLENGE_MESSAGE without target name or target info. */
+    private static byte[] challenge() {
+      byte[] message = new byte[48];
+      System.arraycopy("NTLMSSP\0".getBytes(UTF8), 0, message, 0, 8);
+      message[8] = 2;
+      message[16] = 48;
+      // NTLMSSP_NEGOTIATE_UNICODE and NTLMSSP_NEGOTIATE_NTLM
+      message[20] = 1;
+      message[21] = 2;
+      System.arraycopy(SERVER_CHALLENGE, 0, message, 24, 8);
+      message[44] = 48;
+      return message;
+    }
+
+    private static boolean isValid(byte[] message) throws IOException {
+      int length = (message[20] & 0xff) | (message[21] & 0xff) << 8;
+      int offset = (message[24] & 0xff) | (message[25] & 0xff) << 8;
+      byte[] proof = Arrays.copyOfRange(message, offset, offset + 16);
+      byte[] blob = Arrays.copyOfRange(message, offset + 16, offset + length);
+      try {
+        Mac mac = Mac.getInstance("HmacMD5");
+        mac.init(new SecretKeySpec(NtlmHandshake.ntowfv2(
+            "Password".toCharArray(), "User", "Domain"), "HmacMD5"));
+        mac.update(SERVER_CHALLENGE);
+        return Arrays.equals(proof, mac.doFinal(blob));
+      } catch (Exception ex) {
+        throw new IOException(ex);
+      }
+    }
+  }
+
+  /** HTTP/1.1 server that keeps connections open between requests. */
+  private static class TestServer {
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger closedConnections = new AtomicInteger();
+    private final List<TestRequest> requests
+        = Collections.synchronizedList(new ArrayList<TestRequest>());
+    private final Set<Socket> sockets
+        = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private volatile Handler handler;
+
+    public TestServer() throws IOException {
+      serverSocket = new ServerSocket(0, 50, InetAddress.getByName(null));
+      executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          while (true) {
+            final Socket socket = serverSocket.accept();
+            final int connection = connections.incrementAndGet();
+            sockets.add(socket);
+            executor.submit(new Callable<Void>() {
+              @Override
+              public Void call() throws IOException {
+                try {
+                  serve(socket, connection);
+                } finally {
+                  socket.close();
+                  sockets.remove(socket);
+                  synchronized (closedConnections) {
+                    closedConnections.incrementAndGet();
+                    closedConnections.notifyAll();
+                  }
+                }
+                return null;
+              }
+            });
+          }
+        }
+      });
+    }
+
+    public URL url(String path) throws IOException {
+      return new URL("http", serverSocket.getInetAddress().getHostAddress(),
+          serverSocket.getLocalPort(), path);
+    }
+
+    public void awaitClosedConnections(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 10000;
+      synchronized (closedConnections) {
+        while (closedConnections.get() < count) {
+          long remaining = deadline - System.currentTimeMillis();
+          assertTrue("Connection still open", remaining > 0);
+          closedConnections.wait(remaining);
+        }
+      }
+    }
+
+    public void stop() {
+      try {
+        serverSocket.close();
+      } catch (IOException ex) {
+        // Ignore.
+      }
+      for (Socket socket : sockets) {
+        try {
+          socket.close();
+        } catch (IOException ex) {
+          // Ignore.
+        }
+      }
+      executor.shutdownNow();
+    }
+
+    private void serve(Socket socket, int connection) throws IOException {
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), UTF8));
+      OutputStream out = socket.getOutputStream();
+      while (true) {
+        String requestLine = in.readLine();
+        if (requestLine == null) {
+          return;
+        }
+        TestRequest request
+            = new TestRequest(connection, requestLine.split(" ")[1]);
+        for (String line = in.readLine(); !line.isEmpty();
+            line = in.readLine()) {
+          int colon = line.indexOf(':');
+          request.headers.put(line.substring(0, colon),
+              line.substring(colon + 1).trim());
+        }
+        requests.add(request);
+        TestResponse response = handler.handle(request);
+        response.write(out);
+        if (response.closeSilently
+            || response.headers.contains("Connection: close")) {
+          return;
+        }
+      }
+    }
+  }
+}
@@ -19,18 +19,26 @@ import static org.junit.Assert.assertFalse;
 
 import com.google.common.util.concurrent.ExecutionError;
 import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.enterprise.adaptor.IOHelper;
+
+import com.microsoft.schemas.sharepoint.soap.ObjectType;
 import com.microsoft.schemas.sharepoint.soap.SiteDataSoap;
 
-import org.junit.After;
 import org.junit.Test;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import javax.xml.ws.Holder;
 
 /** Test cases for {@link RareModificationCache}. */
 public class RareModificationCacheTest {
-  private ExecutorService executor = Executors.newCachedThreadPool();
+  private static final String WEB = "http://localhost:1/sites/SiteCollection";
+  private static final String OTHER_WEB = "http://localhost:1/sites/Other";
+  private static final String LIST_ID
+      = "{6F33949A-B3FF-4B0C-BA99-93CB518AC2C0}";
+
   private SiteDataSoap siteDataSoap = new DelegatingSiteData() {
     @Override
     protected SiteDataSoap delegate() {
@@ -40,35 +48,23 @@ public class RareModificationCacheTest {
   private SiteDataClient siteDataClient
       = new SiteDataClient(siteDataSoap, false);
   private RareModificationCache cache
-      = new RareModificationCache(siteDataClient, executor);
-
-  @After
-  public void shutdownExecutor() {
-    executor.shutdownNow();
-  }
+      = new RareModificationCache(siteDataClient);
 
   @Test(expected = NullPointerException.class)
   public void testNullSiteDataClient() {
-    new RareModificationCache(null, executor);
-  }
-
-  @Test(expected = NullPointerException.class)
-  public void testNullExecutor() {
-    new RareModificationCache(siteDataClient, null);
+    new RareModificationCache(null);
   }
 
   @Test
   public void testEquals() {
-    SiteDataClient siteDataClient2 = new SiteDataClient(siteDataSoap, false);
-
-    Object v1 = new RareModificationCache.VirtualServerKey(siteDataClient);
-    Object w1 = new RareModificationCache.WebKey(siteDataClient);
-    Object w2 = new RareModificationCache.WebKey(siteDataClient2);
-    Object l1 = new RareModificationCache.ListKey(siteDataClient, "{SomeGUID}");
-    Object l2
-        = new RareModificationCache.ListKey(siteDataClient2, "{SomeGUID}");
-    Object l3 = new RareModificationCache.ListKey(siteDataClient, "{DiffGUID}");
-    Object l4 = new RareModificationCache.ListKey(siteDataClient, "{someguid}");
+    Object v1 = RareModificationCache.VirtualServerKey.INSTANCE;
+    Object w1 = new RareModificationCache.WebKey(WEB);
+    Object w2 = new RareModificationCache.WebKey(OTHER_WEB);
+    Object w3 = new RareModificationCache.WebKey(WEB);
+    Object l1 = new RareModificationCache.ListKey(WEB, "{SomeGUID}");
+    Object l2 = new RareModificationCache.ListKey(OTHER_WEB, "{SomeGUID}");
+    Object l3 = new RareModificationCache.ListKey(WEB, "{DiffGUID}");
+    Object l4 = new RareModificationCache.ListKey(WEB, "{someguid}");
 
     assertEquals(v1, v1);
     assertEquals(v1.hashCode(), v1.hashCode());
@@ -92,6 +88,8 @@ public class RareModificationCacheTest {
 
     assertNotEquals(w1, w2);
     assertNotEquals(w1.hashCode(), w2.hashCode());
+    assertEquals(w1, w3);
+    assertEquals(w1.hashCode(), w3.hashCode());
     assertNotEquals(l1, l2);
     assertNotEquals(l1.hashCode(), l2.hashCode());
     assertNotEquals(l1, l3);
@@ -100,37 +98,138 @@ public class RareModificationCacheTest {
     assertEquals(l1.hashCode(), l4.hashCode());
   }
 
+  @Test
+  public void testLaterClientNotUsedOnHit() throws IOException {
+    CountingSiteData countingSiteData = new CountingSiteData();
+    CountingSiteData otherSiteData = new CountingSiteData();
+    cache.getWeb(WEB, new SiteDataClient(countingSiteData, false));
+    cache.getWeb(WEB, new SiteDataClient(otherSiteData, false));
+    assertEquals(1, countingSiteData.webRequests);
+    assertEquals(0, otherSiteData.webRequests);
+  }
+
+  @Test
+  public void testInvalidateWeb() throws IOException {
+    CountingSiteData countingSiteData = new CountingSiteData();
+    SiteDataClient client = new SiteDataClient(countingSiteData, false);
+    cache.getWeb(WEB, client);
+    cache.getWeb(WEB, client);
+    assertEquals(1, countingSiteData.webRequests);
+    cache.invalidateWeb(OTHER_WEB);
+    cache.getWeb(WEB, client);
+    assertEquals(1, countingSiteData.webRequests);
+    cache.invalidateWeb(WEB);
+    cache.getWeb(WEB, client);
+    assertEquals(2, countingSiteData.webRequests);
+  }
+
+  @Test
+  public void testWebScopeId() throws IOException {
+    SiteDataClient client = new SiteDataClient(new CountingSiteData(), false);
+    assertEquals("{01abac8c-66c8-4fed-829c-8dd02bbf40dd}",
+        cache.getWeb(WEB, client).scopeId);
+  }
+
+  @Test
+  public void testInvalidateList() throws IOException {
+    CountingSiteData countingSiteData = new CountingSiteData();
+    SiteDataClient client = new SiteDataClient(countingSiteData, false);
+    cache.getList(WEB, client, LIST_ID);
+    cache.getList(WEB, client, LIST_ID);
+    assertEquals(1, countingSiteData.listRequests);
+    cache.invalidateList(WEB, LIST_ID.toLowerCase(Locale.ENGLISH));
+    cache.getList(WEB, client, LIST_ID);
+    assertEquals(2, countingSiteData.listRequests);
+  }
+
+  @Test
+  public void testInvalidateSiteCollection() throws IOException {
+    CountingSiteData countingSiteData = new CountingSiteData();
+    SiteDataClient client = new SiteDataClient(countingSiteData, false);
+    cache.getWeb(WEB, client);
+    cache.getList(WEB, client, LIST_ID);
+    cache.getWeb(OTHER_WEB, client);
+    cache.invalidateSiteCollection(WEB);
+    cache.getWeb(WEB, client);
+    cache.getList(WEB, client, LIST_ID);
+    cache.getWeb(OTHER_WEB, client);
+    assertEquals(3, countingSiteData.webRequests);
+    assertEquals(2, countingSiteData.listRequests);
+  }
+
   @Test(expected = IOException.class)
   public void testGetIOException() throws IOException {
     cache.get(new RareModificationCache.CacheKey<Object>() {
       @Override
-      public Object computeValue() throws IOException {
+      public Object computeValue(SiteDataClient siteDataClient)
+          throws IOException {
         throw new IOException();
       }
-    });
+    }, siteDataClient);
   }
 
   @Test(expected = UncheckedExecutionException.class)
   public void testGetRuntimeException() throws IOException {
     cache.get(new RareModificationCache.CacheKey<Object>() {
       @Override
-      public Object computeValue() throws IOException {
+      public Object computeValue(SiteDataClient siteDataClient)
+          throws IOException {
         throw new RuntimeException();
       }
-    });
+    }, siteDataClient);
   }
 
   @Test(expected = ExecutionError.class)
   public void testGetError() throws IOException {
     cache.get(new RareModificationCache.CacheKey<Object>() {
       @Override
-      public Object computeValue() throws IOException {
+      public Object computeValue(SiteDataClient siteDataClient)
+          throws IOException {
         throw new Error();
       }
-    });
+    }, siteDataClient);
   }
 
   private void assertNotEquals(Object o, Object o2) {
     assertFalse(o.equals(o2));
   }
+
+  private static String loadTestString(String testString) {
+    try {
+      return IOHelper.readInputStreamToString(
+          RareModificationCacheTest.class.getResourceAsStream(
+              "spresponses/" + testString), Charset.forName("UTF-8"));
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /** Serves a fixed web and list, counting how often each is requested. */
+  private static class CountingSiteData extends DelegatingSiteData {
+    private int webRequests;
+    private int listRequests;
+
+    @Override
+    protected SiteDataSoap delegate() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void getContent(ObjectType objectType, String objectId,
+        String folderUrl, String itemId, boolean retrieveChildItems,
+        boolean securityOnly, Holder<String> lastItemIdOnPage,
+        Holder<String> getContentResult) {
+      if (objectType == ObjectType.SITE) {
+        webRequests++;
+        getContentResult.value
+            = loadTestString("sites-SiteCollection-s.xml");
+      } else if (objectType == ObjectType.LIST) {
+        listRequests++;
+        getContentResult.value
+            = loadTestString("sites-SiteCollection-Lists-CustomList-l.xml");
+      } else {
+        throw new UnsupportedOperationException();
+      }
+    }
+  }
 }
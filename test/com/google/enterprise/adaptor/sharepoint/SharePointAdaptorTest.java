@@ -31,6 +31,7 @@ import com.google.enterprise.adaptor.Acl;
 import com.google.enterprise.adaptor.Config;
 import com.google.enterprise.adaptor.DocId;
 import com.google.enterprise.adaptor.DocIdPusher;
+import com.google.enterprise.adaptor.ExceptionHandler;
 import com.google.enterprise.adaptor.GroupPrincipal;
 import com.google.enterprise.adaptor.IOHelper;
 import com.google.enterprise.adaptor.InvalidConfigurationException;
@@ -48,6 +49,8 @@ import com.google.enterprise.adaptor.sharepoint.SharePointAdaptor.SoapFactory;
 import com.microsoft.schemas.sharepoint.soap.ItemData;
 import com.microsoft.schemas.sharepoint.soap.ObjectType;
 import com.microsoft.schemas.sharepoint.soap.SPContentDatabase;
+import com.microsoft.schemas.sharepoint.soap.SPSite;
+import com.microsoft.schemas.sharepoint.soap.SPWeb;
 import com.microsoft.schemas.sharepoint.soap.SiteDataSoap;
 import com.microsoft.schemas.sharepoint.soap.VirtualServer;
 import com.microsoft.schemas.sharepoint.soap.authentication.AuthenticationMode;
@@ -101,12 +104,17 @@ import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
 import java.math.BigInteger;
 import java.net.HttpURLConnection;
 import java.net.URI;
@@ -125,7 +133,12 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.ws.Binding;
@@ -270,6 +283,9 @@ public class SharePointAdaptorTest {
   @Rule
   public ExpectedException thrown = ExpectedException.none();
 
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
   /**
    * JAXBContext is expensive to create and is created as part of the class'
    * initialization. Do this in a separately so that the timing for this
@@ -849,6 +865,71 @@ public class SharePointAdaptorTest {
     adaptor = null;
   }
 
+  @Test
+  public void testAdaptorInitWithInvalidMaxCachedWebs() throws Exception {
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    config.overrideKey("sharepoint.maxCachedWebs", "0");
+    thrown.expect(InvalidConfigurationException.class);
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor = null;
+  }
+
+  @Test
+  public void testAdaptorInitWithInvalidMaxConnectionsPerHost()
+      throws Exception {
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    config.overrideKey("sharepoint.maxConnectionsPerHost", "-1");
+    thrown.expect(InvalidConfigurationException.class);
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor = null;
+  }
+
+  @Test
+  public void testAdaptorInitWithInvalidConnectionIdleTimeout()
+      throws Exception {
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    config.overrideKey("sharepoint.connectionIdleTimeoutSecs", "0");
+    thrown.expect(InvalidConfigurationException.class);
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor = null;
+  }
+
+  @Test
+  public void testSiteAdaptorReused() throws Exception {
+    MockPeopleSoap mockPeople = new MockPeopleSoap();
+    mockPeople.addToResult("NT AUTHORITY\\LOCAL SERVICE",
+        "NT AUTHORITY\\LOCAL SERVICE", SPPrincipalType.USER);
+    mockPeople.addToResult("GDC-PSL\\spuser1", "spuser1", SPPrincipalType.USER);
+    mockPeople.addToResult("GDC-PSL\\Administrator", "dministrator",
+        SPPrincipalType.USER);
+    SoapFactory siteDataFactory = MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, MockSiteData.blank()
+            .register(VS_CONTENT_EXCHANGE)
+            .register(CD_CONTENT_EXCHANGE)
+            .register(ROOT_SITE_SAW_EXCHANGE))
+        .endpoint("http://localhost:1/_vti_bin/People.asmx", mockPeople);
+    adaptor = new SharePointAdaptor(siteDataFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    for (int i = 0; i < 2; i++) {
+      adaptor.getDocContent(new GetContentsRequest(new DocId("")),
+          new GetContentsResponse(new ByteArrayOutputStream()));
+    }
+    assertEquals(1, adaptor.getSiteAdaptorStats().missCount());
+    assertTrue(adaptor.getSiteAdaptorStats().hitCount() >= 2);
+  }
+
   @Test
   public void testMetadataDecoding() {
     assertEquals("NothingSpecial",
@@ -2249,81 +2330,229 @@ public class SharePointAdaptorTest {
   }
 
   @Test
-  public void testGetDocContentListNoIndex() throws Exception {
+  public void testGetDocContentListUnresolvableMemberIdNotRefreshed()
+      throws Exception {
     SiteDataSoap siteData = MockSiteData.blank()
-        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
         .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
-        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE
-          .replaceInContent("NoIndex=\"False\"", "NoIndex=\"True\""));
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_F_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE);
 
     adaptor = new SharePointAdaptor(initableSoapFactory,
         new UnsupportedHttpClient(), executorFactory,
         new MockAuthenticationClientFactoryForms(),
         new UnsupportedActiveDirectoryClientFactory());
-    adaptor.init(new MockAdaptorContext(config, pusher));
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    GetContentsRequest request = new GetContentsRequest(
-        new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List/"
-          + "AllItems.aspx"));
-    GetContentsResponse response = new GetContentsResponse(baos);
-    adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
+    adaptor.init(new MockAdaptorContext(config, new AccumulatingDocIdPusher()));
+    // Member id 5 is missing from both mappings.
+    MemberIdMapping memberIdMapping = new MemberIdMappingBuilder()
+        .put(1, GDC_PSL_ADMINISTRATOR)
+        .put(3, SITES_SITECOLLECTION_OWNERS)
+        .put(4, SITES_SITECOLLECTION_VISITORS)
+        .build();
+    SharePointAdaptor.SiteAdaptor siteAdaptor = adaptor.new SiteAdaptor(
+          "http://localhost:1/sites/SiteCollection",
           "http://localhost:1/sites/SiteCollection", siteData,
           new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
-          new UnsupportedCallable<MemberIdMapping>(),
-          new UnsupportedCallable<MemberIdMapping>())
-        .getDocContent(request, response);
-    assertTrue(response.isNotFound());
+          Callables.returning(memberIdMapping),
+          Callables.returning(new MemberIdMappingBuilder().build()));
+    DocId docId = new DocId("http://localhost:1/sites/SiteCollection/Lists/"
+        + "Custom List/AllItems.aspx");
+    siteAdaptor.getDocContent(new GetContentsRequest(docId),
+        new GetContentsResponse(new ByteArrayOutputStream()));
+    assertEquals(0, adaptor.getSuppressedMappingRefreshes());
+    siteAdaptor.getDocContent(new GetContentsRequest(docId),
+        new GetContentsResponse(new ByteArrayOutputStream()));
+    assertEquals(1, adaptor.getSuppressedMappingRefreshes());
   }
 
   @Test
-  public void testGetDocContentListNonDefaultView() throws Exception {
+  public void testGetDocContentListResolvesMissesWithOneRefresh()
+      throws Exception {
     SiteDataSoap siteData = MockSiteData.blank()
-        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)       
-        .register(new URLSegmentsExchange(
-          "http://localhost:1/sites/SiteCollection/Lists/Custom List"
-          + "/NonDefault.aspx", false, null, null, null, null))
-        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE);
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_F_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE);
+    // Member ids 4 and 5 are only known after a refresh, while 3 is known
+    // from the start.
+    final MemberIdMapping staleMapping = new MemberIdMappingBuilder()
+        .put(1, GDC_PSL_ADMINISTRATOR)
+        .put(3, SITES_SITECOLLECTION_OWNERS)
+        .build();
+    final AtomicLong memberIdMappingCalls = new AtomicLong();
+    Callable<MemberIdMapping> memberIdMappingCallable
+        = new Callable<MemberIdMapping>() {
+          @Override
+          public MemberIdMapping call() {
+            return memberIdMappingCalls.getAndIncrement() == 0
+                ? staleMapping : SITES_SITECOLLECTION_MEMBER_MAPPING;
+          }
+        };
+    final AtomicLong siteUserMappingCalls = new AtomicLong();
+    Callable<MemberIdMapping> siteUserMappingCallable
+        = new Callable<MemberIdMapping>() {
+          @Override
+          public MemberIdMapping call() {
+            siteUserMappingCalls.incrementAndGet();
+            return new MemberIdMappingBuilder().build();
+          }
+        };
+
     adaptor = new SharePointAdaptor(initableSoapFactory,
         new UnsupportedHttpClient(), executorFactory,
         new MockAuthenticationClientFactoryForms(),
         new UnsupportedActiveDirectoryClientFactory());
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
     adaptor.init(new MockAdaptorContext(config, pusher));
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    GetContentsRequest request = new GetContentsRequest(
-        new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List/"
-          + "NonDefault.aspx"));
-    GetContentsResponse response = new GetContentsResponse(baos);
     adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
           "http://localhost:1/sites/SiteCollection", siteData,
           new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
-          new UnsupportedCallable<MemberIdMapping>(),
-          new UnsupportedCallable<MemberIdMapping>())
-        .getDocContent(request, response);
-    assertTrue(response.isNotFound());
+          memberIdMappingCallable, siteUserMappingCallable)
+        .getDocContent(new GetContentsRequest(new DocId(
+              "http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+              + "AllItems.aspx")),
+            new GetContentsResponse(new ByteArrayOutputStream()));
+    assertEquals(ImmutableList.of(Collections.singletonMap(
+        new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List"),
+        new Acl.Builder()
+          .setEverythingCaseInsensitive()
+          .setInheritFrom(new DocId("http://localhost:1/sites/SiteCollection"),
+              "admin")
+          .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES)
+          .setPermitGroups(Arrays.asList(SITES_SITECOLLECTION_MEMBERS,
+              SITES_SITECOLLECTION_OWNERS, SITES_SITECOLLECTION_VISITORS))
+          .build())),
+        pusher.getNamedResources());
+    // The initial mapping, and a single refresh for both misses.
+    assertEquals(2, memberIdMappingCalls.get());
+    // Only consulted for the misses before the refresh; never refreshed.
+    assertEquals(1, siteUserMappingCalls.get());
   }
-  
+
   @Test
-  public void testGetDocContentListEmptyDefaultView() throws Exception {
-    SiteDataSoap siteData = MockSiteData.blank()
+  public void testGetDocContentConcurrentMissesShareMappingRefresh()
+      throws Exception {
+    final String listUrl = "http://localhost:1/sites/SiteCollection/Lists/"
+        + "Custom List/AllItems.aspx";
+    final SiteDataSoap siteData = MockSiteData.blank()
         .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
-        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE
-            .replaceInContent("DefaultViewUrl=\"/sites/SiteCollection/Lists/"
-            + "Custom List/AllItems.aspx\"", "DefaultViewUrl=\"/\""))        
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
         .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_F_CONTENT_EXCHANGE)
         .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
-        .register(new URLSegmentsExchange(
-              "http://localhost:1/sites/SiteCollection/Lists/Custom List",
-               true, null, null, "{6F33949A-B3FF-4B0C-BA99-93CB518AC2C0}",
-               null));
+        .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE);
+    // The first retrieval of the site collection misses the Members group.
+    final SiteDataSoap staleSiteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE
+          .replaceInContent("<Group ID=\"5\"", "<Group ID=\"50\""));
+    final int threads = 4;
+    final CountDownLatch listRequests = new CountDownLatch(threads);
+    final AtomicLong siteCollectionRequests = new AtomicLong();
+    SiteDataSoap countingSiteData = new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        return siteData;
+      }
+
+      @Override
+      public void getContent(ObjectType objectType, String objectId,
+          String folderUrl, String itemId, boolean retrieveChildItems,
+          boolean securityOnly, Holder<String> lastItemIdOnPage,
+          Holder<String> getContentResult) {
+        SiteDataSoap target = siteData;
+        if (objectType == ObjectType.LIST) {
+          listRequests.countDown();
+        } else if (objectType == ObjectType.SITE_COLLECTION) {
+          if (siteCollectionRequests.getAndIncrement() == 0) {
+            target = staleSiteData;
+          } else {
+            // Keep the refresh in progress while the others notice the miss.
+            try {
+              Thread.sleep(100);
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+              throw new RuntimeException(ex);
+            }
+          }
+        }
+        target.getContent(objectType, objectId, folderUrl, itemId,
+            retrieveChildItems, securityOnly, lastItemIdOnPage,
+            getContentResult);
+      }
+    };
+    adaptor = new SharePointAdaptor(MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, MockSiteData.blank()
+          .register(VS_CONTENT_EXCHANGE)
+          .register(CD_CONTENT_EXCHANGE)
+          .register(ROOT_SITE_SAW_EXCHANGE)
+          .register(new SiteAndWebExchange(listUrl, 0,
+              "http://localhost:1/sites/SiteCollection",
+              "http://localhost:1/sites/SiteCollection")))
+        .endpoint(SITES_SITECOLLECTION_ENDPOINT, countingSiteData)
+        .endpoint("http://localhost:1/sites/SiteCollection/_vti_bin/"
+            + "UserGroup.asmx", new MockUserGroupSoap(null) {
+          @Override
+          public GetUserCollectionFromSiteResponse
+              .GetUserCollectionFromSiteResult getUserCollectionFromSite() {
+            // Site users are only consulted after noticing the stale member
+            // id mapping, so hold every request there until all of them
+            // have noticed it.
+            try {
+              listRequests.await(10, TimeUnit.SECONDS);
+              Thread.sleep(100);
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+              throw new RuntimeException(ex);
+            }
+            return super.getUserCollectionFromSite();
+          }
+        }),
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, new AccumulatingDocIdPusher()));
+
+    ExecutorService requests = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(requests.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            adaptor.getDocContent(new GetContentsRequest(new DocId(listUrl)),
+                new GetContentsResponse(new ByteArrayOutputStream()));
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get(10, TimeUnit.SECONDS);
+      }
+    } finally {
+      requests.shutdownNow();
+    }
+    // The initial retrieval, and one refresh shared by all requests.
+    assertEquals(2, siteCollectionRequests.get());
+  }
+
+  @Test
+  public void testGetDocContentListStreaming() throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_F_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE);
+
     adaptor = new SharePointAdaptor(initableSoapFactory,
         new UnsupportedHttpClient(), executorFactory,
         new MockAuthenticationClientFactoryForms(),
         new UnsupportedActiveDirectoryClientFactory());
+    config.overrideKey("sharepoint.streamingXmlParser", "true");
     AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
     adaptor.init(new MockAdaptorContext(config, pusher));
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     GetContentsRequest request = new GetContentsRequest(
-        new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List"));
+        new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+          + "AllItems.aspx"));
     GetContentsResponse response = new GetContentsResponse(baos);
     adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
           "http://localhost:1/sites/SiteCollection", siteData,
@@ -2331,136 +2560,224 @@ public class SharePointAdaptorTest {
           Callables.returning(SITES_SITECOLLECTION_MEMBER_MAPPING),
           new UnsupportedCallable<MemberIdMapping>())
         .getDocContent(request, response);
-    // Verify display URL for List document
-    assertEquals(URI.create("http://localhost:1/sites/SiteCollection/Lists/"
-          + "Custom%20List"), response.getDisplayUrl());    
+    String responseString = new String(baos.toByteArray(), charset);
+    final String golden
+        = "<!DOCTYPE html>\n"
+        + "<html><head><title>Custom List</title></head>"
+        + "<body><h1><!--googleoff: index-->List<!--googleon: index-->"
+        +   " Custom List</h1>"
+        + "<p><!--googleoff: index-->List Items<!--googleon: index--></p>"
+        + "<ul>"
+        + "<li><a href=\"3_.000\">Outside Folder</a></li>"
+        + "<li><a href=\"Test%20Folder\">Test Folder</a></li>"
+        + "</ul></body></html>";
+    assertEquals(golden, responseString);
   }
-  
 
   @Test
-  public void testGetDocContentAttachment() throws Exception {
+  public void testGetDocContentListUnchangedNoContent() throws Exception {
     SiteDataSoap siteData = MockSiteData.blank()
-        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
         .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
         .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
-        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_LI_CONTENT_EXCHANGE);
-    final String site = "http://localhost:1/sites/SiteCollection";
-    final String attachmentId = site + "/Lists/Custom List/Attachments/2/104600"
-        + "0.pdf";
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_F_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE);
 
-    final String goldenContents = "attachment contents";
-    final String goldenContentType = "fake/type";
     adaptor = new SharePointAdaptor(initableSoapFactory,
-        new HttpClient() {
-      @Override
-      public FileInfo issueGetRequest(URL url,
-          List<String> authenticationCookies, String adaptorUserAgent,
-          int maxRedirectsToFollow, boolean performBrowserLeniency) {
-        assertEquals(
-          "http://localhost:1/sites/SiteCollection/Lists/Custom%20List/"
-            + "Attachments/2/1046000.pdf",
-          url.toString());
-        InputStream contents = new ByteArrayInputStream(
-            goldenContents.getBytes(charset));
-        List<String> headers = Arrays.asList("not-the-Content-Type", "early",
-            "conTent-TypE", goldenContentType, "Content-Type", "late",
-            "Last-Modified", "Tue, 01 May 2012 22:14:41 GMT");
-        return new FileInfo.Builder(contents).setHeaders(headers).build();
-      }
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, new AccumulatingDocIdPusher()));
+    SharePointAdaptor.SiteAdaptor siteAdaptor = adaptor.new SiteAdaptor(
+          "http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection", siteData,
+          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          Callables.returning(SITES_SITECOLLECTION_MEMBER_MAPPING),
+          new UnsupportedCallable<MemberIdMapping>());
+    DocId docId = new DocId("http://localhost:1/sites/SiteCollection/Lists/"
+        + "Custom List/AllItems.aspx");
+    // Accessed after the list was last modified.
+    Date lastAccessTime = new Date(1336166672000L + 1000);
 
-      @Override
-      public String getRedirectLocation(URL url,
-          List<String> authenticationCookies, String adaptorUserAgent)
-          throws IOException {
-        assertEquals(
-            "http://localhost:1/sites/SiteCollection/Lists/Custom%20List",
-            url.toString());
+    // The listing must be generated once before it can be skipped.
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    GetContentsResponse response = new GetContentsResponse(baos);
+    siteAdaptor.getDocContent(new GetContentsRequest(docId, lastAccessTime),
+        response);
+    assertFalse(response.isNoContent());
+    assertTrue(baos.size() > 0);
+
+    baos = new ByteArrayOutputStream();
+    response = new GetContentsResponse(baos);
+    siteAdaptor.getDocContent(new GetContentsRequest(docId, lastAccessTime),
+        response);
+    assertTrue(response.isNoContent());
+    assertEquals(0, baos.size());
 
-        return "http://localhost:1/sites/SiteCollection/Lists/Custom List"
-            + "/AllItems.aspx";
-      }
+    // Still generated in full if the GSA's copy may be out of date.
+    baos = new ByteArrayOutputStream();
+    response = new GetContentsResponse(baos);
+    siteAdaptor.getDocContent(new GetContentsRequest(docId), response);
+    assertFalse(response.isNoContent());
+    assertTrue(baos.size() > 0);
+  }
 
-      @Override
-      public HttpURLConnection getHttpURLConnection(URL url)
-          throws IOException {
-        throw new UnsupportedOperationException();
-      }
-    }, executorFactory, new MockAuthenticationClientFactoryForms(),
-    new UnsupportedActiveDirectoryClientFactory());
-    adaptor.init(new MockAdaptorContext(config, pusher));
+  @Test
+  public void testGetDocContentListPaged() throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+        .register(new ContentExchange(ObjectType.FOLDER,
+            "{6F33949A-B3FF-4B0C-BA99-93CB518AC2C0}", "", null, true, false,
+            "Paged=TRUE&p_ID=3",
+            loadTestString("sites-SiteCollection-Lists-CustomList-f.xml")))
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE);
+
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    config.overrideKey("sharepoint.listingPageSize", "1");
+    adaptor.init(new MockAdaptorContext(config, new AccumulatingDocIdPusher()));
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     GetContentsRequest request = new GetContentsRequest(
-        new DocId(attachmentId));
+        new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+          + "AllItems.aspx"));
     GetContentsResponse response = new GetContentsResponse(baos);
     adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
           "http://localhost:1/sites/SiteCollection", siteData,
           new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
-          new UnsupportedCallable<MemberIdMapping>(),
+          Callables.returning(SITES_SITECOLLECTION_MEMBER_MAPPING),
           new UnsupportedCallable<MemberIdMapping>())
         .getDocContent(request, response);
     String responseString = new String(baos.toByteArray(), charset);
-    assertEquals(goldenContents, responseString);
-    assertEquals(goldenContentType, response.getContentType());
+    // The whole page from SharePoint is listed, followed by the next page.
+    final String golden
+        = "<!DOCTYPE html>\n"
+        + "<html><head><title>Custom List</title></head>"
+        + "<body><h1><!--googleoff: index-->List<!--googleon: index-->"
+        +   " Custom List</h1>"
+        + "<p><!--googleoff: index-->List Items<!--googleon: index--></p>"
+        + "<ul>"
+        + "<li><a href=\"3_.000\">Outside Folder</a></li>"
+        + "<li><a href=\"Test%20Folder\">Test Folder</a></li>"
+        + "<li><a href=\"AllItems.aspx%3FgsaListingPage="
+        +   "Paged%253DTRUE%2526p_ID%253D3\">Next page</a></li>"
+        + "</ul></body></html>";
+    assertEquals(golden, responseString);
+  }
+
+  @Test
+  public void testGetDocContentListPage() throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_F_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE);
+
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    config.overrideKey("sharepoint.listingPageSize", "1");
+    adaptor.init(new MockAdaptorContext(config, new AccumulatingDocIdPusher()));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    GetContentsRequest request = new GetContentsRequest(
+        new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+          + "AllItems.aspx?gsaListingPage=Paged%3DTRUE%26p_ID%3D3"));
+    GetContentsResponse response = new GetContentsResponse(baos);
+    adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection", siteData,
+          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          Callables.returning(SITES_SITECOLLECTION_MEMBER_MAPPING),
+          new UnsupportedCallable<MemberIdMapping>())
+        .getDocContent(request, response);
+    String responseString = new String(baos.toByteArray(), charset);
+    // Last page, so no link to a next page.
+    final String golden
+        = "<!DOCTYPE html>\n"
+        + "<html><head><title>Custom List</title></head>"
+        + "<body><h1><!--googleoff: index-->List<!--googleon: index-->"
+        +   " Custom List</h1>"
+        + "<p><!--googleoff: index-->List Items<!--googleon: index--></p>"
+        + "<ul>"
+        + "<li><a href=\"3_.000\">Outside Folder</a></li>"
+        + "<li><a href=\"Test%20Folder\">Test Folder</a></li>"
+        + "</ul></body></html>";
+    assertEquals(golden, responseString);
+    // Pages are secured like the list itself.
     assertEquals(new Acl.Builder()
         .setInheritFrom(new DocId(
-          "http://localhost:1/sites/SiteCollection/Lists/Custom List/"
-            + "Test Folder/2_.000"))
+            "http://localhost:1/sites/SiteCollection/Lists/Custom List"))
+        .setInheritanceType(Acl.InheritanceType.PARENT_OVERRIDES)
         .build(),
         response.getAcl());
-    assertEquals(URI.create(
-          "http://localhost:1/sites/SiteCollection/Lists/Custom%20List/"
-            + "Attachments/2/1046000.pdf"),
-        response.getDisplayUrl());
-    assertEquals(new Date(1335910481000L), response.getLastModified());
   }
-  
+
   @Test
-  public void testGetDocContentAttachmentDeletedParent() throws Exception {
+  public void testGetDocContentListPageNotPaged() throws Exception {
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, new AccumulatingDocIdPusher()));
+    GetContentsRequest request = new GetContentsRequest(
+        new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+          + "AllItems.aspx?gsaListingPage=Paged%3DTRUE%26p_ID%3D3"));
+    GetContentsResponse response
+        = new GetContentsResponse(new ByteArrayOutputStream());
+    adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection", MockSiteData.blank(),
+          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          Callables.returning(SITES_SITECOLLECTION_MEMBER_MAPPING),
+          new UnsupportedCallable<MemberIdMapping>())
+        .getDocContent(request, response);
+    assertTrue(response.isNotFound());
+  }
+
+  @Test
+  public void testGetDocContentListNoIndex() throws Exception {
     SiteDataSoap siteData = MockSiteData.blank()
         .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
         .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
-        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
-        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_LI_CONTENT_EXCHANGE
-            .replaceInContent("data ItemCount=\"1\"", "data ItemCount=\"0\""))
-        .register(new URLSegmentsExchange(
-            "http://localhost:1/sites/SiteCollection/Lists/Custom List"
-                + "/Attachments/2/1046000.pdf", false, null, null, null, null));
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE
+          .replaceInContent("NoIndex=\"False\"", "NoIndex=\"True\""));
 
-    final String site = "http://localhost:1/sites/SiteCollection";
-    final String attachmentId = site 
-        + "/Lists/Custom List/Attachments/2/1046000.pdf";
     adaptor = new SharePointAdaptor(initableSoapFactory,
-        new HttpClient() {
-      @Override
-      public FileInfo issueGetRequest(URL url,
-          List<String> authenticationCookies, String adaptorUserAgent,
-          int maxRedirectsToFollow, boolean performBrowserLeniency) {
-        throw new UnsupportedOperationException();
-      }
-
-      @Override
-      public String getRedirectLocation(URL url,
-          List<String> authenticationCookies, String adaptorUserAgent)
-          throws IOException {
-        assertEquals(
-            "http://localhost:1/sites/SiteCollection/Lists/Custom%20List",
-            url.toString());
-
-        return "http://localhost:1/sites/SiteCollection/Lists/Custom List"
-            + "/AllItems.aspx";
-      }
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    GetContentsRequest request = new GetContentsRequest(
+        new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+          + "AllItems.aspx"));
+    GetContentsResponse response = new GetContentsResponse(baos);
+    adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection", siteData,
+          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          new UnsupportedCallable<MemberIdMapping>(),
+          new UnsupportedCallable<MemberIdMapping>())
+        .getDocContent(request, response);
+    assertTrue(response.isNotFound());
+  }
 
-      @Override
-      public HttpURLConnection getHttpURLConnection(URL url)
-          throws IOException {
-        throw new UnsupportedOperationException();
-      }
-    }, executorFactory, new MockAuthenticationClientFactoryForms(),
-    new UnsupportedActiveDirectoryClientFactory());
+  @Test
+  public void testGetDocContentListNonDefaultView() throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)       
+        .register(new URLSegmentsExchange(
+          "http://localhost:1/sites/SiteCollection/Lists/Custom List"
+          + "/NonDefault.aspx", false, null, null, null, null))
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE);
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
     adaptor.init(new MockAdaptorContext(config, pusher));
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     GetContentsRequest request = new GetContentsRequest(
-        new DocId(attachmentId));
+        new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+          + "NonDefault.aspx"));
     GetContentsResponse response = new GetContentsResponse(baos);
     adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
           "http://localhost:1/sites/SiteCollection", siteData,
@@ -2470,9 +2787,44 @@ public class SharePointAdaptorTest {
         .getDocContent(request, response);
     assertTrue(response.isNotFound());
   }
+  
+  @Test
+  public void testGetDocContentListEmptyDefaultView() throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE
+            .replaceInContent("DefaultViewUrl=\"/sites/SiteCollection/Lists/"
+            + "Custom List/AllItems.aspx\"", "DefaultViewUrl=\"/\""))        
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_F_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(new URLSegmentsExchange(
+              "http://localhost:1/sites/SiteCollection/Lists/Custom List",
+               true, null, null, "{6F33949A-B3FF-4B0C-BA99-93CB518AC2C0}",
+               null));
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    GetContentsRequest request = new GetContentsRequest(
+        new DocId("http://localhost:1/sites/SiteCollection/Lists/Custom List"));
+    GetContentsResponse response = new GetContentsResponse(baos);
+    adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection", siteData,
+          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          Callables.returning(SITES_SITECOLLECTION_MEMBER_MAPPING),
+          new UnsupportedCallable<MemberIdMapping>())
+        .getDocContent(request, response);
+    // Verify display URL for List document
+    assertEquals(URI.create("http://localhost:1/sites/SiteCollection/Lists/"
+          + "Custom%20List"), response.getDisplayUrl());    
+  }
+  
 
   @Test
-  public void testGetDocContentAttachmentSpecialMimeType() throws Exception {
+  public void testGetDocContentAttachment() throws Exception {
     SiteDataSoap siteData = MockSiteData.blank()
         .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
         .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
@@ -2482,15 +2834,23 @@ public class SharePointAdaptorTest {
     final String attachmentId = site + "/Lists/Custom List/Attachments/2/104600"
         + "0.pdf";
 
+    final String goldenContents = "attachment contents";
+    final String goldenContentType = "fake/type";
     adaptor = new SharePointAdaptor(initableSoapFactory,
         new HttpClient() {
       @Override
       public FileInfo issueGetRequest(URL url,
           List<String> authenticationCookies, String adaptorUserAgent,
           int maxRedirectsToFollow, boolean performBrowserLeniency) {
-        InputStream contents = new ByteArrayInputStream(new byte[0]);
-        List<String> headers = Arrays.asList(
-            "Content-Type", "application/vnd.ms-excel.12");
+        assertEquals(
+          "http://localhost:1/sites/SiteCollection/Lists/Custom%20List/"
+            + "Attachments/2/1046000.pdf",
+          url.toString());
+        InputStream contents = new ByteArrayInputStream(
+            goldenContents.getBytes(charset));
+        List<String> headers = Arrays.asList("not-the-Content-Type", "early",
+            "conTent-TypE", goldenContentType, "Content-Type", "late",
+            "Last-Modified", "Tue, 01 May 2012 22:14:41 GMT");
         return new FileInfo.Builder(contents).setHeaders(headers).build();
       }
 
@@ -2501,7 +2861,7 @@ public class SharePointAdaptorTest {
         assertEquals(
             "http://localhost:1/sites/SiteCollection/Lists/Custom%20List",
             url.toString());
-        
+
         return "http://localhost:1/sites/SiteCollection/Lists/Custom List"
             + "/AllItems.aspx";
       }
@@ -2524,25 +2884,258 @@ public class SharePointAdaptorTest {
           new UnsupportedCallable<MemberIdMapping>(),
           new UnsupportedCallable<MemberIdMapping>())
         .getDocContent(request, response);
-    assertEquals(
-        "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
-        response.getContentType());
+    String responseString = new String(baos.toByteArray(), charset);
+    assertEquals(goldenContents, responseString);
+    assertEquals(goldenContentType, response.getContentType());
+    assertEquals(new Acl.Builder()
+        .setInheritFrom(new DocId(
+          "http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+            + "Test Folder/2_.000"))
+        .build(),
+        response.getAcl());
+    assertEquals(URI.create(
+          "http://localhost:1/sites/SiteCollection/Lists/Custom%20List/"
+            + "Attachments/2/1046000.pdf"),
+        response.getDisplayUrl());
+    assertEquals(new Date(1335910481000L), response.getLastModified());
+  }
+  
+  @Test
+  public void testGetDocContentAttachmentOversized() throws Exception {
+    config.overrideKey("sharepoint.maxDocumentSize", "10");
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    GetContentsResponse response
+        = getAttachmentContent("attachment contents", baos);
+    assertEquals(0, baos.size());
+    assertEquals(new Date(1335910481000L), response.getLastModified());
+    assertNotNull(response.getAcl());
   }
 
   @Test
-  public void testGetDocContentListItem() throws Exception {
+  public void testGetDocContentAttachmentTruncated() throws Exception {
+    config.overrideKey("sharepoint.maxDocumentSize", "10");
+    config.overrideKey("sharepoint.truncateOversizedDocuments", "true");
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    getAttachmentContent("attachment contents", baos);
+    assertEquals("attachment", new String(baos.toByteArray(), charset));
+  }
+
+  @Test
+  public void testGetDocContentAttachmentOversizedWithoutLength()
+      throws Exception {
+    config.overrideKey("sharepoint.maxDocumentSize", "10");
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    thrown.expect(IOException.class);
+    getAttachmentContent("attachment contents", false, baos);
+  }
+
+  @Test
+  public void testGetDocContentAttachmentMaxSizeWithoutLength()
+      throws Exception {
+    config.overrideKey("sharepoint.maxDocumentSize", "10");
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    getAttachmentContent("attachment", false, baos);
+    assertEquals("attachment", new String(baos.toByteArray(), charset));
+  }
+
+  @Test
+  public void testGetDocContentAttachmentTruncatedWithoutLength()
+      throws Exception {
+    config.overrideKey("sharepoint.maxDocumentSize", "10");
+    config.overrideKey("sharepoint.truncateOversizedDocuments", "true");
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    getAttachmentContent("attachment contents", false, baos);
+    assertEquals("attachment", new String(baos.toByteArray(), charset));
+  }
+
+  @Test
+  public void testGetDocContentConnectionPoolKeepsInjectedClient()
+      throws Exception {
+    config.overrideKey("sharepoint.useConnectionPool", "true");
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    getAttachmentContent("attachment contents", baos);
+    assertEquals("attachment contents",
+        new String(baos.toByteArray(), charset));
+  }
+
+  private GetContentsResponse getAttachmentContent(String contents,
+      ByteArrayOutputStream baos) throws Exception {
+    return getAttachmentContent(contents, true, baos);
+  }
+
+  private GetContentsResponse getAttachmentContent(final String contents,
+      final boolean sendLength, ByteArrayOutputStream baos) throws Exception {
     SiteDataSoap siteData = MockSiteData.blank()
         .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
-        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_1_URLSEG_EXCHANGE)
-        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
         .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
-        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_1_LI_CONTENT_EXCHANGE)
-        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_LI_CONTENT_EXCHANGE)
-        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_A_CONTENT_EXCHANGE);
-
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_LI_CONTENT_EXCHANGE);
     adaptor = new SharePointAdaptor(initableSoapFactory,
-        new UnsupportedHttpClient(), executorFactory,
-        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedHttpClient() {
+      @Override
+      public FileInfo issueGetRequest(URL url,
+          List<String> authenticationCookies, String adaptorUserAgent,
+          int maxRedirectsToFollow, boolean performBrowserLeniency) {
+        byte[] bytes = contents.getBytes(charset);
+        List<String> headers = sendLength
+            ? Arrays.asList("Content-Length", "" + bytes.length,
+                "Last-Modified", "Tue, 01 May 2012 22:14:41 GMT")
+            : Arrays.asList("Last-Modified", "Tue, 01 May 2012 22:14:41 GMT");
+        return new FileInfo.Builder(new ByteArrayInputStream(bytes))
+            .setHeaders(headers).build();
+      }
+
+      @Override
+      public String getRedirectLocation(URL url,
+          List<String> authenticationCookies, String adaptorUserAgent) {
+        return "http://localhost:1/sites/SiteCollection/Lists/Custom List"
+            + "/AllItems.aspx";
+      }
+    }, executorFactory, new MockAuthenticationClientFactoryForms(),
+    new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    GetContentsRequest request = new GetContentsRequest(new DocId(
+        "http://localhost:1/sites/SiteCollection/Lists/Custom List/"
+        + "Attachments/2/1046000.pdf"));
+    GetContentsResponse response = new GetContentsResponse(baos);
+    adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection", siteData,
+          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          new UnsupportedCallable<MemberIdMapping>(),
+          new UnsupportedCallable<MemberIdMapping>())
+        .getDocContent(request, response);
+    return response;
+  }
+
+  @Test
+  public void testGetDocContentAttachmentDeletedParent() throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_LI_CONTENT_EXCHANGE
+            .replaceInContent("data ItemCount=\"1\"", "data ItemCount=\"0\""))
+        .register(new URLSegmentsExchange(
+            "http://localhost:1/sites/SiteCollection/Lists/Custom List"
+                + "/Attachments/2/1046000.pdf", false, null, null, null, null));
+
+    final String site = "http://localhost:1/sites/SiteCollection";
+    final String attachmentId = site 
+        + "/Lists/Custom List/Attachments/2/1046000.pdf";
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new HttpClient() {
+      @Override
+      public FileInfo issueGetRequest(URL url,
+          List<String> authenticationCookies, String adaptorUserAgent,
+          int maxRedirectsToFollow, boolean performBrowserLeniency) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public String getRedirectLocation(URL url,
+          List<String> authenticationCookies, String adaptorUserAgent)
+          throws IOException {
+        assertEquals(
+            "http://localhost:1/sites/SiteCollection/Lists/Custom%20List",
+            url.toString());
+
+        return "http://localhost:1/sites/SiteCollection/Lists/Custom List"
+            + "/AllItems.aspx";
+      }
+
+      @Override
+      public HttpURLConnection getHttpURLConnection(URL url)
+          throws IOException {
+        throw new UnsupportedOperationException();
+      }
+    }, executorFactory, new MockAuthenticationClientFactoryForms(),
+    new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    GetContentsRequest request = new GetContentsRequest(
+        new DocId(attachmentId));
+    GetContentsResponse response = new GetContentsResponse(baos);
+    adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection", siteData,
+          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          new UnsupportedCallable<MemberIdMapping>(),
+          new UnsupportedCallable<MemberIdMapping>())
+        .getDocContent(request, response);
+    assertTrue(response.isNotFound());
+  }
+
+  @Test
+  public void testGetDocContentAttachmentSpecialMimeType() throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_LI_CONTENT_EXCHANGE);
+    final String site = "http://localhost:1/sites/SiteCollection";
+    final String attachmentId = site + "/Lists/Custom List/Attachments/2/104600"
+        + "0.pdf";
+
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new HttpClient() {
+      @Override
+      public FileInfo issueGetRequest(URL url,
+          List<String> authenticationCookies, String adaptorUserAgent,
+          int maxRedirectsToFollow, boolean performBrowserLeniency) {
+        InputStream contents = new ByteArrayInputStream(new byte[0]);
+        List<String> headers = Arrays.asList(
+            "Content-Type", "application/vnd.ms-excel.12");
+        return new FileInfo.Builder(contents).setHeaders(headers).build();
+      }
+
+      @Override
+      public String getRedirectLocation(URL url,
+          List<String> authenticationCookies, String adaptorUserAgent)
+          throws IOException {
+        assertEquals(
+            "http://localhost:1/sites/SiteCollection/Lists/Custom%20List",
+            url.toString());
+        
+        return "http://localhost:1/sites/SiteCollection/Lists/Custom List"
+            + "/AllItems.aspx";
+      }
+
+      @Override
+      public HttpURLConnection getHttpURLConnection(URL url)
+          throws IOException {
+        throw new UnsupportedOperationException();
+      }
+    }, executorFactory, new MockAuthenticationClientFactoryForms(),
+    new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    GetContentsRequest request = new GetContentsRequest(
+        new DocId(attachmentId));
+    GetContentsResponse response = new GetContentsResponse(baos);
+    adaptor.new SiteAdaptor("http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection", siteData,
+          new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          new UnsupportedCallable<MemberIdMapping>(),
+          new UnsupportedCallable<MemberIdMapping>())
+        .getDocContent(request, response);
+    assertEquals(
+        "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+        response.getContentType());
+  }
+
+  @Test
+  public void testGetDocContentListItem() throws Exception {
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_1_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_1_LI_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_LI_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_A_CONTENT_EXCHANGE);
+
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
         new UnsupportedActiveDirectoryClientFactory());
     adaptor.init(new MockAdaptorContext(config, pusher));
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -3448,6 +4041,46 @@ public class SharePointAdaptorTest {
         response.getDisplayUrl());
   }
   
+  @Test
+  public void testGetDocContentFolderIndexedFromListing() throws Exception {
+    // Deliberately no URLSEG exchange for the folder.
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_F_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_1_LI_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_1_F_CONTENT_EXCHANGE);
+
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    SharePointAdaptor.SiteAdaptor siteAdaptor = adaptor.new SiteAdaptor(
+          "http://localhost:1/sites/SiteCollection",
+          "http://localhost:1/sites/SiteCollection",
+          siteData, new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+          Callables.returning(SITES_SITECOLLECTION_MEMBER_MAPPING),
+          new UnsupportedCallable<MemberIdMapping>());
+    siteAdaptor.getDocContent(new GetContentsRequest(
+          new DocId("http://localhost:1/sites/SiteCollection/Lists/"
+            + "Custom List/AllItems.aspx")),
+        new GetContentsResponse(new ByteArrayOutputStream()));
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    GetContentsResponse response = new GetContentsResponse(baos);
+    siteAdaptor.getDocContent(new GetContentsRequest(
+          new DocId("http://localhost:1/sites/SiteCollection/Lists/"
+            + "Custom List/Test Folder")),
+        response);
+    String responseString = new String(baos.toByteArray(), charset);
+    assertTrue(responseString.startsWith("<!DOCTYPE html>\n"
+        + "<html><head><title>Test Folder</title></head>"));
+    assertFalse(response.isNotFound());
+  }
+
   @Test
   public void testGetDocContentFolderEmptyDefaultView() throws Exception {
     SiteDataSoap siteData = MockSiteData.blank()
@@ -3523,7 +4156,7 @@ public class SharePointAdaptorTest {
   }
   
   @Test
-  public void testGetDocIdsSiteCollectionOnly() throws Exception {
+  public void testGetDocIdsParallelTraversal() throws Exception {
     final Map<GroupPrincipal, Collection<Principal>> goldenGroups;
     {
       Map<GroupPrincipal, Collection<Principal>> tmp
@@ -3538,82 +4171,334 @@ public class SharePointAdaptorTest {
       goldenGroups = Collections.unmodifiableMap(tmp);
     }
 
-    final String getChangesSiteCollection726 =
-        loadTestString("testModifiedGetDocIdsClient.changes-sc.xml");
-    final ContentExchange getContentSiteCollection  =
-        new ContentExchange(ObjectType.SITE_COLLECTION, null, null, null,
-            true, false, null, loadTestString("sites-SiteCollection-sc.xml")
-                .replace("http://localhost:1/sites/SiteCollection",
-                    "http://localhost:1/sites/sitecollection"));
-    SoapFactory siteDataFactory = MockSoapFactory.blank()        
-        .endpoint(SITES_SITECOLLECTION_ENDPOINT.replace("SiteCollection",
-            "sitecollection"), MockSiteData.blank()
-            .register(ROOT_SITE_SAW_EXCHANGE)            
-            .register(getContentSiteCollection)
-            .register(new ChangesExchange(ObjectType.SITE_COLLECTION,
-                    "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}",
-                    "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
-                        + "634762601982930000;726",
-                    "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
-                        + "634762601982930000;726",
-                    null,
-                    "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
-                        + "634762601982930000;726",
-                    600, getChangesSiteCollection726, false)))
+    config.overrideKey("feed.maxUrls", "2");
+    config.overrideKey("sharepoint.siteCollectionTraversalThreads", "4");
+    config.overrideKey(
+        "sharepoint.siteCollectionTraversalThreadsPerContentDatabase", "2");
+    adaptor = new SharePointAdaptor(MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, MockSiteData.blank()
+          .register(VS_CONTENT_EXCHANGE)
+          .register(CD_CONTENT_EXCHANGE
+            .replaceInContent("<Site URL=\"http://localhost:1\"\n"
+              + " ID=\"{bb3bb2dd-6ea7-471b-a361-6fb67988755c}\" />", ""))
+          .register(ROOT_SITE_SAW_EXCHANGE)
+          .register(SITES_SITECOLLECTION_SAW_EXCHANGE))
         .endpoint(SITES_SITECOLLECTION_ENDPOINT, MockSiteData.blank()
-            .register(SITES_SITECOLLECTION_URLSEG_EXCHANGE)
-            .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
-            .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE));
-
-    adaptor = new SharePointAdaptor(siteDataFactory,
+          .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE)),
         new UnsupportedHttpClient(), executorFactory,
         new MockAuthenticationClientFactoryForms(),
         new UnsupportedActiveDirectoryClientFactory());
-    config.overrideKey("sharepoint.server",
-        "http://localhost:1/sites/sitecollection");
     AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
     adaptor.init(new MockAdaptorContext(config, pusher));
     adaptor.getDocIds(pusher);
     assertEquals(
-        Arrays.asList(new DocIdPusher.Record.Builder(
-            new DocId("http://localhost:1/sites/SiteCollection")).build()),
-            pusher.getRecords());
+        Arrays.asList(new DocIdPusher.Record.Builder(new DocId("")).build()),
+        pusher.getRecords());
     assertEquals(goldenGroups, pusher.getGroups());
   }
 
   @Test
-  public void testModifiedGetDocIds() throws Exception {
-    final String getContentContentDatabase4fb
-        = "<ContentDatabase>"
-        + "<Metadata ChangeId=\"1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727"
-        +   "056594000000;603\""
-        + " ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />"
-        + "</ContentDatabase>";
-    final String getContentContentDatabase3ac
-        = "<ContentDatabase>"
-        + "<Metadata ChangeId=\"1;0;3ac1e3b3-2326-7341-4afe-16751eafbc51;634882"
-        +   "028739000000;224\""
-        + " ID=\"{3ac1e3b3-2326-7341-4afe-16751eafbc51}\" />"
-        + "</ContentDatabase>";
-    final String getChangesContentDatabase4fb
-        = "<SPContentDatabase Change=\"Unchanged\" ItemCount=\"0\">"
-        + "<ContentDatabase>"
-        + "<Metadata ChangeId=\"1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727"
-        +   "056594000000;603\""
-        + " ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />"
-        + "</ContentDatabase></SPContentDatabase>";
-    final ReferenceSiteData siteData = new ReferenceSiteData();
-    SiteDataSoap state0 = MockSiteData.blank()
-        .register(VS_CONTENT_EXCHANGE)
-        .register(CD_CONTENT_EXCHANGE)
-        .register(ROOT_SITE_SAW_EXCHANGE);
-    SiteDataSoap state1 = new UnsupportedSiteData() {
+  public void testGetDocIdsInterleavesContentDatabases() throws Exception {
+    // The first content database lists the site collection twice, the second
+    // one once. With one thread per content database, the two databases must
+    // still be traversed at the same time.
+    final CountDownLatch concurrentRequests = new CountDownLatch(2);
+    final AtomicBoolean timedOut = new AtomicBoolean();
+    final SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE);
+    SiteDataSoap waitingSiteData = new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        return siteData;
+      }
+
       @Override
       public void getContent(ObjectType objectType, String objectId,
           String folderUrl, String itemId, boolean retrieveChildItems,
           boolean securityOnly, Holder<String> lastItemIdOnPage,
           Holder<String> getContentResult) {
-        throw new WebServiceException("fake IO error");
+        concurrentRequests.countDown();
+        try {
+          if (!concurrentRequests.await(10, TimeUnit.SECONDS)) {
+            timedOut.set(true);
+          }
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(ex);
+        }
+        super.getContent(objectType, objectId, folderUrl, itemId,
+            retrieveChildItems, securityOnly, lastItemIdOnPage,
+            getContentResult);
+      }
+    };
+    String siteCollection = "<Site URL=\"http://localhost:1/sites/"
+        + "SiteCollection\"\n ID=\"{5cbcd3b1-fca9-48b2-92db-3b5de26f837d}\" />";
+    String secondDatabaseId = "{3ac1e3b3-2326-7341-4afe-16751eafbc51}";
+
+    config.overrideKey("sharepoint.siteCollectionTraversalThreads", "2");
+    config.overrideKey(
+        "sharepoint.siteCollectionTraversalThreadsPerContentDatabase", "1");
+    adaptor = new SharePointAdaptor(MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, MockSiteData.blank()
+          .register(VS_CONTENT_EXCHANGE
+            .replaceInContent("</ContentDatabases>",
+              "<ContentDatabase ID=\"" + secondDatabaseId + "\" />\n"
+              + "</ContentDatabases>"))
+          .register(CD_CONTENT_EXCHANGE
+            .replaceInContent("<Site URL=\"http://localhost:1\"\n"
+              + " ID=\"{bb3bb2dd-6ea7-471b-a361-6fb67988755c}\" />",
+              siteCollection))
+          .register(new ContentExchange(ObjectType.CONTENT_DATABASE,
+              secondDatabaseId, null, null, true, false, null,
+              "<ContentDatabase>\n<Metadata ID=\"" + secondDatabaseId
+              + "\" />\n<Sites>\n" + siteCollection
+              + "\n</Sites></ContentDatabase>"))
+          .register(ROOT_SITE_SAW_EXCHANGE)
+          .register(SITES_SITECOLLECTION_SAW_EXCHANGE))
+        .endpoint(SITES_SITECOLLECTION_ENDPOINT, waitingSiteData),
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor.getDocIds(pusher);
+    assertFalse(timedOut.get());
+    assertEquals(3, pusher.getGroups().size());
+  }
+
+  @Test
+  public void testGetDocIdsBusyContentDatabaseLeavesThreadsForOthers()
+      throws Exception {
+    // The first content database lists its site collection three times, the
+    // second lists another site collection twice. The first request to the
+    // first database waits for the second database's second request, which
+    // needs a thread that is not parked on the first database's limit.
+    final CountDownLatch otherRequests = new CountDownLatch(2);
+    final AtomicBoolean timedOut = new AtomicBoolean();
+    final SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE);
+    SiteDataSoap waitingSiteData = new DelegatingSiteData() {
+      private boolean first = true;
+
+      @Override
+      protected SiteDataSoap delegate() {
+        return siteData;
+      }
+
+      @Override
+      public void getContent(ObjectType objectType, String objectId,
+          String folderUrl, String itemId, boolean retrieveChildItems,
+          boolean securityOnly, Holder<String> lastItemIdOnPage,
+          Holder<String> getContentResult) {
+        boolean wait;
+        synchronized (this) {
+          wait = first;
+          first = false;
+        }
+        try {
+          if (wait && !otherRequests.await(10, TimeUnit.SECONDS)) {
+            timedOut.set(true);
+          }
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(ex);
+        }
+        super.getContent(objectType, objectId, folderUrl, itemId,
+            retrieveChildItems, securityOnly, lastItemIdOnPage,
+            getContentResult);
+      }
+    };
+    final SiteDataSoap otherSiteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE);
+    SiteDataSoap countingSiteData = new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        return otherSiteData;
+      }
+
+      @Override
+      public void getContent(ObjectType objectType, String objectId,
+          String folderUrl, String itemId, boolean retrieveChildItems,
+          boolean securityOnly, Holder<String> lastItemIdOnPage,
+          Holder<String> getContentResult) {
+        otherRequests.countDown();
+        super.getContent(objectType, objectId, folderUrl, itemId,
+            retrieveChildItems, securityOnly, lastItemIdOnPage,
+            getContentResult);
+      }
+    };
+    String siteCollection = "<Site URL=\"http://localhost:1/sites/"
+        + "SiteCollection\"\n ID=\"{5cbcd3b1-fca9-48b2-92db-3b5de26f837d}\" />";
+    String otherSiteCollection = "<Site URL=\"http://localhost:1/sites/"
+        + "Other\"\n ID=\"{4fc0e5d2-3aa2-4e8a-9c3b-1c0d2e1f6a77}\" />";
+    String secondDatabaseId = "{3ac1e3b3-2326-7341-4afe-16751eafbc51}";
+
+    config.overrideKey("sharepoint.siteCollectionTraversalThreads", "2");
+    config.overrideKey(
+        "sharepoint.siteCollectionTraversalThreadsPerContentDatabase", "1");
+    adaptor = new SharePointAdaptor(MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, MockSiteData.blank()
+          .register(VS_CONTENT_EXCHANGE
+            .replaceInContent("</ContentDatabases>",
+              "<ContentDatabase ID=\"" + secondDatabaseId + "\" />\n"
+              + "</ContentDatabases>"))
+          .register(CD_CONTENT_EXCHANGE
+            .replaceInContent("<Site URL=\"http://localhost:1\"\n"
+              + " ID=\"{bb3bb2dd-6ea7-471b-a361-6fb67988755c}\" />",
+              siteCollection + "\n" + siteCollection + "\n" + siteCollection))
+          .register(new ContentExchange(ObjectType.CONTENT_DATABASE,
+              secondDatabaseId, null, null, true, false, null,
+              "<ContentDatabase>\n<Metadata ID=\"" + secondDatabaseId
+              + "\" />\n<Sites>\n" + otherSiteCollection + "\n"
+              + otherSiteCollection + "\n</Sites></ContentDatabase>"))
+          .register(ROOT_SITE_SAW_EXCHANGE)
+          .register(SITES_SITECOLLECTION_SAW_EXCHANGE))
+        .endpoint(SITES_SITECOLLECTION_ENDPOINT, waitingSiteData)
+        .endpoint("http://localhost:1/sites/Other/_vti_bin/SiteData.asmx",
+            countingSiteData),
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor.getDocIds(pusher);
+    assertFalse(timedOut.get());
+    assertEquals(0, otherRequests.getCount());
+  }
+
+  @Test
+  public void testGetDocIdsUnchangedGroupsNotPushedAgain() throws Exception {
+    adaptor = new SharePointAdaptor(MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, MockSiteData.blank()
+          .register(VS_CONTENT_EXCHANGE)
+          .register(CD_CONTENT_EXCHANGE
+            .replaceInContent("<Site URL=\"http://localhost:1\"\n"
+              + " ID=\"{bb3bb2dd-6ea7-471b-a361-6fb67988755c}\" />", ""))
+          .register(ROOT_SITE_SAW_EXCHANGE)
+          .register(SITES_SITECOLLECTION_SAW_EXCHANGE))
+        .endpoint(SITES_SITECOLLECTION_ENDPOINT, MockSiteData.blank()
+          .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE)),
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor.getDocIds(pusher);
+    assertEquals(3, pusher.getGroups().size());
+    pusher.reset();
+
+    adaptor.getDocIds(pusher);
+    assertEquals(
+        Arrays.asList(new DocIdPusher.Record.Builder(new DocId("")).build()),
+        pusher.getRecords());
+    assertEquals(Collections.emptyMap(), pusher.getGroups());
+  }
+
+  @Test
+  public void testInitInvalidSiteCollectionTraversalThreads()
+      throws Exception {
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    config.overrideKey("sharepoint.siteCollectionTraversalThreads", "0");
+    thrown.expect(InvalidConfigurationException.class);
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor = null;
+  }
+
+  @Test
+  public void testGetDocIdsSiteCollectionOnly() throws Exception {
+    final Map<GroupPrincipal, Collection<Principal>> goldenGroups;
+    {
+      Map<GroupPrincipal, Collection<Principal>> tmp
+          = new TreeMap<GroupPrincipal, Collection<Principal>>();
+      tmp.put(SITES_SITECOLLECTION_OWNERS, Arrays.<Principal>asList(
+          GDC_PSL_ADMINISTRATOR));
+      tmp.put(SITES_SITECOLLECTION_MEMBERS, Arrays.asList(
+            new UserPrincipal("GDC-PSL\\spuser2", DEFAULT_NAMESPACE),
+            new GroupPrincipal("BUILTIN\\users", DEFAULT_NAMESPACE),
+            new UserPrincipal("GDC-PSL\\spuser4", DEFAULT_NAMESPACE)));
+      tmp.put(SITES_SITECOLLECTION_VISITORS, Arrays.<Principal>asList());
+      goldenGroups = Collections.unmodifiableMap(tmp);
+    }
+
+    final String getChangesSiteCollection726 =
+        loadTestString("testModifiedGetDocIdsClient.changes-sc.xml");
+    final ContentExchange getContentSiteCollection  =
+        new ContentExchange(ObjectType.SITE_COLLECTION, null, null, null,
+            true, false, null, loadTestString("sites-SiteCollection-sc.xml")
+                .replace("http://localhost:1/sites/SiteCollection",
+                    "http://localhost:1/sites/sitecollection"));
+    SoapFactory siteDataFactory = MockSoapFactory.blank()        
+        .endpoint(SITES_SITECOLLECTION_ENDPOINT.replace("SiteCollection",
+            "sitecollection"), MockSiteData.blank()
+            .register(ROOT_SITE_SAW_EXCHANGE)            
+            .register(getContentSiteCollection)
+            .register(new ChangesExchange(ObjectType.SITE_COLLECTION,
+                    "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}",
+                    "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
+                        + "634762601982930000;726",
+                    "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
+                        + "634762601982930000;726",
+                    null,
+                    "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
+                        + "634762601982930000;726",
+                    600, getChangesSiteCollection726, false)))
+        .endpoint(SITES_SITECOLLECTION_ENDPOINT, MockSiteData.blank()
+            .register(SITES_SITECOLLECTION_URLSEG_EXCHANGE)
+            .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+            .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE));
+
+    adaptor = new SharePointAdaptor(siteDataFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    config.overrideKey("sharepoint.server",
+        "http://localhost:1/sites/sitecollection");
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor.getDocIds(pusher);
+    assertEquals(
+        Arrays.asList(new DocIdPusher.Record.Builder(
+            new DocId("http://localhost:1/sites/SiteCollection")).build()),
+            pusher.getRecords());
+    assertEquals(goldenGroups, pusher.getGroups());
+  }
+
+  @Test
+  public void testModifiedGetDocIds() throws Exception {
+    final String getContentContentDatabase4fb
+        = "<ContentDatabase>"
+        + "<Metadata ChangeId=\"1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727"
+        +   "056594000000;603\""
+        + " ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />"
+        + "</ContentDatabase>";
+    final String getContentContentDatabase3ac
+        = "<ContentDatabase>"
+        + "<Metadata ChangeId=\"1;0;3ac1e3b3-2326-7341-4afe-16751eafbc51;634882"
+        +   "028739000000;224\""
+        + " ID=\"{3ac1e3b3-2326-7341-4afe-16751eafbc51}\" />"
+        + "</ContentDatabase>";
+    final String getChangesContentDatabase4fb
+        = "<SPContentDatabase Change=\"Unchanged\" ItemCount=\"0\">"
+        + "<ContentDatabase>"
+        + "<Metadata ChangeId=\"1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727"
+        +   "056594000000;603\""
+        + " ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />"
+        + "</ContentDatabase></SPContentDatabase>";
+    final ReferenceSiteData siteData = new ReferenceSiteData();
+    SiteDataSoap state0 = MockSiteData.blank()
+        .register(VS_CONTENT_EXCHANGE)
+        .register(CD_CONTENT_EXCHANGE)
+        .register(ROOT_SITE_SAW_EXCHANGE);
+    SiteDataSoap state1 = new UnsupportedSiteData() {
+      @Override
+      public void getContent(ObjectType objectType, String objectId,
+          String folderUrl, String itemId, boolean retrieveChildItems,
+          boolean securityOnly, Holder<String> lastItemIdOnPage,
+          Holder<String> getContentResult) {
+        throw new WebServiceException("fake IO error");
       }
     };
     SiteDataSoap state2 = MockSiteData.blank()
@@ -3638,7 +4523,509 @@ public class SharePointAdaptorTest {
               "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603",
               15, getChangesContentDatabase4fb, false));
     final AtomicLong atomicNumberGetChangesCalls = new AtomicLong(0);
-    SiteDataSoap countingSiteData = new DelegatingSiteData() {
+    SiteDataSoap countingSiteData = new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        return siteData;
+      }
+
+      @Override
+      public void getChanges(ObjectType objectType,
+          String contentDatabaseId, Holder<String> lastChangeId,
+          Holder<String> currentChangeId, Integer timeout,
+          Holder<String> getChangesResult, Holder<Boolean> moreChanges) {
+        atomicNumberGetChangesCalls.getAndIncrement();
+        super.getChanges(objectType, contentDatabaseId, lastChangeId,
+            currentChangeId, timeout, getChangesResult, moreChanges);
+      }
+    };
+    SoapFactory siteDataFactory = MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, countingSiteData);
+    adaptor = new SharePointAdaptor(siteDataFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    siteData.setSiteDataSoap(state0);
+    adaptor.init(new MockAdaptorContext(config, pusher));
+
+    // Error getting content databases, so content databases remains unchanged
+    // (empty).
+    siteData.setSiteDataSoap(state1);
+    adaptor.getModifiedDocIds(pusher);
+    assertEquals(0, pusher.getRecords().size());
+    assertEquals(0, atomicNumberGetChangesCalls.get());
+
+    // Find new content databases and get their current change id.
+    siteData.setSiteDataSoap(state2);
+    adaptor.getModifiedDocIds(pusher);
+    assertEquals(1, pusher.getRecords().size());
+    assertEquals(new DocIdPusher.Record.Builder(new DocId(""))
+        .setCrawlImmediately(true).build(),
+        pusher.getRecords().get(0));
+    assertEquals(0, atomicNumberGetChangesCalls.get());
+    pusher.reset();
+
+    // Discover one content database disappeared; get changes for other content
+    // database.
+    siteData.setSiteDataSoap(state3);
+    adaptor.getModifiedDocIds(pusher);
+    assertEquals(1, pusher.getRecords().size());
+    assertEquals(new DocIdPusher.Record.Builder(new DocId(""))
+        .setCrawlImmediately(true).build(),
+        pusher.getRecords().get(0));
+    assertEquals(1, atomicNumberGetChangesCalls.get());
+  }
+
+  @Test
+  public void testModifiedGetDocIdsSP2010() throws Exception {
+    final String getContentContentDatabase4fb
+        = "<ContentDatabase>"
+        + "<Metadata ChangeId=\"1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727"
+        +   "056594000000;603\""
+        + " ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />"
+        + "</ContentDatabase>";
+    final String getChangesContentDatabase4fb
+        = "<SPContentDatabase Change=\"Unchanged\" ItemCount=\"0\">"
+        + "<ContentDatabase>"
+        + "<Metadata ChangeId=\"1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf9;634727"
+        +   "056595000000;604\""
+        + " ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />"
+        + "</ContentDatabase></SPContentDatabase>";
+    // SP 2010 provides more metadata than 2007.
+    ContentExchange vsContentExchange = VS_CONTENT_EXCHANGE.replaceInContent(
+        "<Metadata URL=\"http://localhost:1/\" />",
+        "<Metadata ID=\"{3a125232-0c27-495f-8c92-65ad85b5a17c}\""
+          + " Version=\"14.0.4762.1000\" URL=\"http://localhost:1/\""
+          + " URLZone=\"Default\" URLIsHostHeader=\"False\" />");
+    final AtomicLong atomicNumberGetChangesCalls = new AtomicLong(0);
+    final SiteDataSoap siteData = MockSiteData.blank()
+        .register(vsContentExchange)
+        .register(CD_CONTENT_EXCHANGE)
+        .register(ROOT_SITE_SAW_EXCHANGE)
+        .register(new ContentExchange(ObjectType.CONTENT_DATABASE,
+              "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}", null, null, false,
+              false, null, getContentContentDatabase4fb))
+        // The timeout in SP 2010 is not a timeout and should always be at least
+        // 60 to get a result.
+        .register(new ChangesExchange(ObjectType.CONTENT_DATABASE,
+              "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+              "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603",
+              "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603",
+              null,
+              "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603",
+              600, getChangesContentDatabase4fb, false));
+    SiteDataSoap countingSiteData = new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        return siteData;
+      }
+
+      @Override
+      public void getChanges(ObjectType objectType,
+          String contentDatabaseId, Holder<String> lastChangeId,
+          Holder<String> currentChangeId, Integer timeout,
+          Holder<String> getChangesResult, Holder<Boolean> moreChanges) {
+        atomicNumberGetChangesCalls.getAndIncrement();
+        super.getChanges(objectType, contentDatabaseId, lastChangeId,
+            currentChangeId, timeout, getChangesResult, moreChanges);
+      }
+    };
+    SoapFactory siteDataFactory = MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, countingSiteData);
+    adaptor = new SharePointAdaptor(siteDataFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    adaptor.init(new MockAdaptorContext(config, pusher));
+
+    // Initialize changeIds.
+    adaptor.getModifiedDocIds(pusher);
+    assertEquals(0, atomicNumberGetChangesCalls.get());
+
+    // Check for changes. This should not go into an infinite loop.
+    adaptor.getModifiedDocIds(pusher);
+    assertEquals(1, atomicNumberGetChangesCalls.get());
+  }
+
+  @Test
+  public void testInitFailureReleasesCheckpointStore() throws Exception {
+    final ExecutorService executor = new CallerRunsExecutor();
+    final SiteDataSoap siteData = MockSiteData.blank()
+        .register(VS_CONTENT_EXCHANGE)
+        .register(CD_CONTENT_EXCHANGE);
+    SiteDataSoap failingSiteData = new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        return siteData;
+      }
+
+      @Override
+      public void getSiteAndWeb(String strUrl, Holder<Long> result,
+          Holder<String> strSite, Holder<String> strWeb) {
+        throw new WebServiceException("fake IO error");
+      }
+    };
+    config.overrideKey("sharepoint.changeCheckpointFile",
+        tempFolder.newFile("checkpoints").getPath());
+    adaptor = new SharePointAdaptor(MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, failingSiteData),
+        new UnsupportedHttpClient(), new Callable<ExecutorService>() {
+          @Override
+          public ExecutorService call() {
+            return executor;
+          }
+        },
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    try {
+      adaptor.init(new MockAdaptorContext(config, pusher));
+      fail();
+    } catch (IOException ex) {
+      // expected
+    }
+    // The failed init already destroyed the adaptor, closing the checkpoint
+    // store along with the executor.
+    assertTrue(executor.isShutdown());
+    adaptor = null;
+  }
+
+  @Test
+  public void testInitFailureReleasesSidCache() throws Exception {
+    final SiteDataSoap siteData = MockSiteData.blank()
+        .register(VS_CONTENT_EXCHANGE)
+        .register(CD_CONTENT_EXCHANGE);
+    SiteDataSoap failingSiteData = new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        return siteData;
+      }
+
+      @Override
+      public void getSiteAndWeb(String strUrl, Holder<Long> result,
+          Holder<String> strSite, Holder<String> strWeb) {
+        throw new RuntimeException("fake failure");
+      }
+    };
+    final List<CheckpointStore> sidCacheStores
+        = new ArrayList<CheckpointStore>();
+    ActiveDirectoryClientFactory adClientFactory
+        = new ActiveDirectoryClientFactory() {
+          @Override
+          public ActiveDirectoryClient newActiveDirectoryClient(String host,
+              int port, String username, String password, String method)
+              throws IOException {
+            return new ActiveDirectoryClient(
+                new MockADServer(Collections.<String, String>emptyMap())) {
+              @Override
+              public void setPersistentCache(CheckpointStore store)
+                  throws IOException {
+                sidCacheStores.add(store);
+                super.setPersistentCache(store);
+              }
+            };
+          }
+        };
+    config.overrideKey("sidLookup.host", "sidlookuphost");
+    config.overrideKey("sidLookup.username", "username");
+    config.overrideKey("sidLookup.password", "password");
+    config.overrideKey("sidLookup.cacheFile",
+        tempFolder.newFile("sids").getPath());
+    adaptor = new SharePointAdaptor(MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, failingSiteData),
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(), adClientFactory);
+    try {
+      adaptor.init(new MockAdaptorContext(config, pusher));
+      fail();
+    } catch (RuntimeException ex) {
+      // expected
+    }
+    assertEquals(1, sidCacheStores.size());
+    try {
+      sidCacheStores.get(0).put("S-1-5-21-0", "closed");
+      fail("SID cache was not closed");
+    } catch (IllegalStateException ex) {
+      // expected
+    }
+    adaptor = null;
+  }
+
+  @Test
+  public void testModifiedGetDocIdsResumesFromCheckpoint() throws Exception {
+    final String getChangesContentDatabase4fb
+        = "<SPContentDatabase Change=\"Unchanged\" ItemCount=\"0\">"
+        + "<ContentDatabase>"
+        + "<Metadata ChangeId=\"1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727"
+        +   "056595000000;604\""
+        + " ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />"
+        + "</ContentDatabase></SPContentDatabase>";
+    final AtomicLong atomicNumberGetChangesCalls = new AtomicLong(0);
+    final SiteDataSoap siteData = MockSiteData.blank()
+        .register(VS_CONTENT_EXCHANGE)
+        .register(CD_CONTENT_EXCHANGE)
+        .register(ROOT_SITE_SAW_EXCHANGE)
+        .register(new ChangesExchange(ObjectType.CONTENT_DATABASE,
+              "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+              "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603",
+              "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056595000000;604",
+              null,
+              "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056595000000;604",
+              15, getChangesContentDatabase4fb, false));
+    SiteDataSoap countingSiteData = new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        return siteData;
+      }
+
+      @Override
+      public void getChanges(ObjectType objectType,
+          String contentDatabaseId, Holder<String> lastChangeId,
+          Holder<String> currentChangeId, Integer timeout,
+          Holder<String> getChangesResult, Holder<Boolean> moreChanges) {
+        atomicNumberGetChangesCalls.getAndIncrement();
+        super.getChanges(objectType, contentDatabaseId, lastChangeId,
+            currentChangeId, timeout, getChangesResult, moreChanges);
+      }
+    };
+    File checkpointFile = tempFolder.newFile("checkpoints");
+    OutputStream os = new FileOutputStream(checkpointFile);
+    try {
+      os.write(("P\t{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\t"
+          + "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603\n")
+          .getBytes("UTF-8"));
+    } finally {
+      os.close();
+    }
+    config.overrideKey("sharepoint.changeCheckpointFile",
+        checkpointFile.getPath());
+    adaptor = new SharePointAdaptor(MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, countingSiteData),
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    adaptor.init(new MockAdaptorContext(config, pusher));
+
+    // The persisted change id is used instead of re-seeding from the current
+    // change id of the content database.
+    adaptor.getModifiedDocIds(pusher);
+    assertEquals(1, atomicNumberGetChangesCalls.get());
+    adaptor.destroy();
+    adaptor = null;
+
+    FileCheckpointStore store = new FileCheckpointStore(checkpointFile);
+    try {
+      assertEquals(Collections.singletonMap(
+          "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+          "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056595000000;604"),
+          store.load());
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public void testModifiedGetDocIdsPushesEachPageByDefault() throws Exception {
+    assertEquals(2, pushRecordsCallsForTwoPagesOfChanges());
+  }
+
+  @Test
+  public void testModifiedGetDocIdsChangeBatching() throws Exception {
+    config.overrideKey("sharepoint.changeBatching", "true");
+    assertEquals(1, pushRecordsCallsForTwoPagesOfChanges());
+  }
+
+  /**
+   * Polls a content database whose two pages of changes each change the
+   * virtual server, and returns the number of times records were pushed.
+   */
+  private long pushRecordsCallsForTwoPagesOfChanges() throws Exception {
+    final String changeId603
+        = "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603";
+    final String changeId604
+        = "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056595000000;604";
+    final String changeId605
+        = "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056596000000;605";
+    final String getChangesContentDatabase
+        = "<SPContentDatabase Change=\"Update\" ItemCount=\"0\">"
+        + "<ContentDatabase>"
+        + "<Metadata ChangeId=\"%s\""
+        + " ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />"
+        + "</ContentDatabase></SPContentDatabase>";
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(VS_CONTENT_EXCHANGE)
+        .register(CD_CONTENT_EXCHANGE)
+        .register(ROOT_SITE_SAW_EXCHANGE)
+        .register(new ChangesExchange(ObjectType.CONTENT_DATABASE,
+              "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+              changeId603, changeId604, null, changeId605, 15,
+              String.format(getChangesContentDatabase, changeId604), true))
+        .register(new ChangesExchange(ObjectType.CONTENT_DATABASE,
+              "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+              changeId604, changeId605, changeId605, changeId605, 15,
+              String.format(getChangesContentDatabase, changeId605), false));
+    File checkpointFile = tempFolder.newFile("checkpoints");
+    FileCheckpointStore store = new FileCheckpointStore(checkpointFile);
+    store.load();
+    store.put("{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}", changeId603);
+    store.close();
+    config.overrideKey("sharepoint.changeCheckpointFile",
+        checkpointFile.getPath());
+    adaptor = new SharePointAdaptor(MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, siteData),
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    final AtomicLong pushRecordsCalls = new AtomicLong();
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher() {
+      @Override
+      public DocIdPusher.Record pushRecords(
+          Iterable<DocIdPusher.Record> records, ExceptionHandler handler)
+          throws InterruptedException {
+        pushRecordsCalls.incrementAndGet();
+        return super.pushRecords(records, handler);
+      }
+    };
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor.getModifiedDocIds(pusher);
+    assertEquals(new HashSet<DocIdPusher.Record>(Arrays.asList(
+          new DocIdPusher.Record.Builder(new DocId(""))
+          .setCrawlImmediately(true).build())),
+        new HashSet<DocIdPusher.Record>(pusher.getRecords()));
+    return pushRecordsCalls.get();
+  }
+
+  @Test
+  public void testModifiedGetDocIdsConcurrentPolling() throws Exception {
+    final String getChangesContentDatabase4fb
+        = "<SPContentDatabase Change=\"Unchanged\" ItemCount=\"0\">"
+        + "<ContentDatabase>"
+        + "<Metadata ChangeId=\"1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727"
+        +   "056595000000;604\""
+        + " ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />"
+        + "</ContentDatabase></SPContentDatabase>";
+    final String getChangesContentDatabase3ac
+        = "<SPContentDatabase Change=\"Unchanged\" ItemCount=\"0\">"
+        + "<ContentDatabase>"
+        + "<Metadata ChangeId=\"1;0;3ac1e3b3-2326-7341-4afe-16751eafbc51;634882"
+        +   "028739000000;225\""
+        + " ID=\"{3ac1e3b3-2326-7341-4afe-16751eafbc51}\" />"
+        + "</ContentDatabase></SPContentDatabase>";
+    final AtomicLong atomicNumberGetChangesCalls = new AtomicLong(0);
+    final SiteDataSoap siteData = MockSiteData.blank()
+        .register(VS_CONTENT_EXCHANGE.replaceInContent(
+          "<ContentDatabase ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />",
+          "<ContentDatabase ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />"
+           + "<ContentDatabase ID=\"{3ac1e3b3-2326-7341-4afe-16751eafbc51}\" />"
+          ))
+        .register(CD_CONTENT_EXCHANGE)
+        .register(new ContentExchange(ObjectType.CONTENT_DATABASE,
+              "{3ac1e3b3-2326-7341-4afe-16751eafbc51}", null, null, true,
+              false, null, "<ContentDatabase>"
+              + "<Metadata ChangeId=\"1;0;3ac1e3b3-2326-7341-4afe-16751eafbc51;"
+              +   "634882028739000000;224\""
+              + " ID=\"{3ac1e3b3-2326-7341-4afe-16751eafbc51}\" />"
+              + "</ContentDatabase>"))
+        .register(ROOT_SITE_SAW_EXCHANGE)
+        .register(new ChangesExchange(ObjectType.CONTENT_DATABASE,
+              "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+              "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603",
+              "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056595000000;604",
+              null,
+              "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056595000000;604",
+              15, getChangesContentDatabase4fb, false))
+        .register(new ChangesExchange(ObjectType.CONTENT_DATABASE,
+              "{3ac1e3b3-2326-7341-4afe-16751eafbc51}",
+              "1;0;3ac1e3b3-2326-7341-4afe-16751eafbc51;634882028739000000;224",
+              "1;0;3ac1e3b3-2326-7341-4afe-16751eafbc51;634882028739000000;225",
+              null,
+              "1;0;3ac1e3b3-2326-7341-4afe-16751eafbc51;634882028739000000;225",
+              15, getChangesContentDatabase3ac, false));
+    SiteDataSoap countingSiteData = new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        return siteData;
+      }
+
+      @Override
+      public void getChanges(ObjectType objectType,
+          String contentDatabaseId, Holder<String> lastChangeId,
+          Holder<String> currentChangeId, Integer timeout,
+          Holder<String> getChangesResult, Holder<Boolean> moreChanges) {
+        atomicNumberGetChangesCalls.getAndIncrement();
+        super.getChanges(objectType, contentDatabaseId, lastChangeId,
+            currentChangeId, timeout, getChangesResult, moreChanges);
+      }
+    };
+    File checkpointFile = tempFolder.newFile("checkpoints");
+    FileCheckpointStore store = new FileCheckpointStore(checkpointFile);
+    store.load();
+    store.put("{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+        "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603");
+    store.put("{3ac1e3b3-2326-7341-4afe-16751eafbc51}",
+        "1;0;3ac1e3b3-2326-7341-4afe-16751eafbc51;634882028739000000;224");
+    store.close();
+    config.overrideKey("sharepoint.changeCheckpointFile",
+        checkpointFile.getPath());
+    config.overrideKey("sharepoint.changePollingThreads", "2");
+    config.overrideKey("sharepoint.changePollingTimeBudgetSecs", "60");
+    adaptor = new SharePointAdaptor(MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, countingSiteData),
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    adaptor.init(new MockAdaptorContext(config, pusher));
+
+    adaptor.getModifiedDocIds(pusher);
+    assertEquals(2, atomicNumberGetChangesCalls.get());
+    assertEquals(0, pusher.getRecords().size());
+    adaptor.destroy();
+    adaptor = null;
+
+    Map<String, String> golden = new HashMap<String, String>();
+    golden.put("{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
+        "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056595000000;604");
+    golden.put("{3ac1e3b3-2326-7341-4afe-16751eafbc51}",
+        "1;0;3ac1e3b3-2326-7341-4afe-16751eafbc51;634882028739000000;225");
+    store = new FileCheckpointStore(checkpointFile);
+    try {
+      assertEquals(golden, store.load());
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public void testModifiedGetDocIdsTimeBudgetPerContentDatabase()
+      throws Exception {
+    // Three content databases polled by two threads. The first page of
+    // changes of each database takes most of the one second budget, so the
+    // database that waits for a thread only gets its second page if its budget
+    // starts when its polling does.
+    final List<String> databases = Arrays.asList(
+        "4fb7dea1-2912-4927-9eda-1ea2f0977cf8",
+        "3ac1e3b3-2326-7341-4afe-16751eafbc51",
+        "9d2c7a0e-5b1f-4c3e-8f6a-2b7d1e0c4a91");
+    final AtomicLong atomicNumberGetChangesCalls = new AtomicLong(0);
+    String vsContentDatabases = "";
+    MockSiteData mockSiteData = MockSiteData.blank();
+    for (String database : databases) {
+      vsContentDatabases += "<ContentDatabase ID=\"{" + database + "}\" />";
+      mockSiteData = mockSiteData.register(new ContentExchange(
+            ObjectType.CONTENT_DATABASE, "{" + database + "}", null, null,
+            true, false, null, "<ContentDatabase><Metadata ChangeId=\""
+            + changeIdPage(database, 1) + "\" ID=\"{" + database + "}\" />"
+            + "</ContentDatabase>"));
+    }
+    final SiteDataSoap siteData = mockSiteData
+        .register(VS_CONTENT_EXCHANGE.replaceInContent(
+          "<ContentDatabase ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />",
+          vsContentDatabases))
+        .register(ROOT_SITE_SAW_EXCHANGE);
+    SiteDataSoap slowSiteData = new DelegatingSiteData() {
       @Override
       protected SiteDataSoap delegate() {
         return siteData;
@@ -3650,86 +5037,93 @@ public class SharePointAdaptorTest {
           Holder<String> currentChangeId, Integer timeout,
           Holder<String> getChangesResult, Holder<Boolean> moreChanges) {
         atomicNumberGetChangesCalls.getAndIncrement();
-        super.getChanges(objectType, contentDatabaseId, lastChangeId,
-            currentChangeId, timeout, getChangesResult, moreChanges);
+        String database = contentDatabaseId.substring(1,
+            contentDatabaseId.length() - 1);
+        boolean firstPage
+            = changeIdPage(database, 1).equals(lastChangeId.value);
+        if (firstPage) {
+          try {
+            Thread.sleep(700);
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+          }
+        }
+        lastChangeId.value = changeIdPage(database, firstPage ? 2 : 3);
+        currentChangeId.value = changeIdPage(database, 3);
+        moreChanges.value = firstPage;
+        getChangesResult.value
+            = "<SPContentDatabase Change=\"Unchanged\" ItemCount=\"0\">"
+            + "<ContentDatabase><Metadata ChangeId=\"" + lastChangeId.value
+            + "\" ID=\"" + contentDatabaseId + "\" /></ContentDatabase>"
+            + "</SPContentDatabase>";
       }
     };
-    SoapFactory siteDataFactory = MockSoapFactory.blank()
-        .endpoint(VS_ENDPOINT, countingSiteData);
-    adaptor = new SharePointAdaptor(siteDataFactory,
+    File checkpointFile = tempFolder.newFile("checkpoints");
+    FileCheckpointStore store = new FileCheckpointStore(checkpointFile);
+    store.load();
+    for (String database : databases) {
+      store.put("{" + database + "}", changeIdPage(database, 1));
+    }
+    store.close();
+    config.overrideKey("sharepoint.changeCheckpointFile",
+        checkpointFile.getPath());
+    config.overrideKey("sharepoint.changePollingThreads", "2");
+    config.overrideKey("sharepoint.changePollingTimeBudgetSecs", "1");
+    adaptor = new SharePointAdaptor(MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, slowSiteData),
         new UnsupportedHttpClient(), executorFactory,
         new MockAuthenticationClientFactoryForms(),
         new UnsupportedActiveDirectoryClientFactory());
     AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
-    siteData.setSiteDataSoap(state0);
     adaptor.init(new MockAdaptorContext(config, pusher));
 
-    // Error getting content databases, so content databases remains unchanged
-    // (empty).
-    siteData.setSiteDataSoap(state1);
     adaptor.getModifiedDocIds(pusher);
-    assertEquals(0, pusher.getRecords().size());
-    assertEquals(0, atomicNumberGetChangesCalls.get());
+    assertEquals(6, atomicNumberGetChangesCalls.get());
+    adaptor.destroy();
+    adaptor = null;
 
-    // Find new content databases and get their current change id.
-    siteData.setSiteDataSoap(state2);
-    adaptor.getModifiedDocIds(pusher);
-    assertEquals(1, pusher.getRecords().size());
-    assertEquals(new DocIdPusher.Record.Builder(new DocId(""))
-        .setCrawlImmediately(true).build(),
-        pusher.getRecords().get(0));
-    assertEquals(0, atomicNumberGetChangesCalls.get());
-    pusher.reset();
+    Map<String, String> golden = new HashMap<String, String>();
+    for (String database : databases) {
+      golden.put("{" + database + "}", changeIdPage(database, 3));
+    }
+    store = new FileCheckpointStore(checkpointFile);
+    try {
+      assertEquals(golden, store.load());
+    } finally {
+      store.close();
+    }
+  }
 
-    // Discover one content database disappeared; get changes for other content
-    // database.
-    siteData.setSiteDataSoap(state3);
-    adaptor.getModifiedDocIds(pusher);
-    assertEquals(1, pusher.getRecords().size());
-    assertEquals(new DocIdPusher.Record.Builder(new DocId(""))
-        .setCrawlImmediately(true).build(),
-        pusher.getRecords().get(0));
-    assertEquals(1, atomicNumberGetChangesCalls.get());
+  private static String changeIdPage(String database, int page) {
+    return "1;0;" + database + ";634727056594000000;" + page;
   }
 
   @Test
-  public void testModifiedGetDocIdsSP2010() throws Exception {
-    final String getContentContentDatabase4fb
-        = "<ContentDatabase>"
-        + "<Metadata ChangeId=\"1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727"
-        +   "056594000000;603\""
-        + " ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />"
-        + "</ContentDatabase>";
-    final String getChangesContentDatabase4fb
-        = "<SPContentDatabase Change=\"Unchanged\" ItemCount=\"0\">"
-        + "<ContentDatabase>"
-        + "<Metadata ChangeId=\"1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf9;634727"
-        +   "056595000000;604\""
-        + " ID=\"{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}\" />"
-        + "</ContentDatabase></SPContentDatabase>";
-    // SP 2010 provides more metadata than 2007.
-    ContentExchange vsContentExchange = VS_CONTENT_EXCHANGE.replaceInContent(
-        "<Metadata URL=\"http://localhost:1/\" />",
-        "<Metadata ID=\"{3a125232-0c27-495f-8c92-65ad85b5a17c}\""
-          + " Version=\"14.0.4762.1000\" URL=\"http://localhost:1/\""
-          + " URLZone=\"Default\" URLIsHostHeader=\"False\" />");
-    final AtomicLong atomicNumberGetChangesCalls = new AtomicLong(0);
+  public void testInitInvalidChangePollingThreads() throws Exception {
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    config.overrideKey("sharepoint.changePollingThreads", "none");
+    thrown.expect(InvalidConfigurationException.class);
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor = null;
+  }
+
+  @Test
+  public void testModifiedGetDocIdsInvalidatesCachedWebAndList()
+      throws Exception {
+    final AtomicLong webRequests = new AtomicLong();
+    final AtomicLong listRequests = new AtomicLong();
     final SiteDataSoap siteData = MockSiteData.blank()
-        .register(vsContentExchange)
-        .register(CD_CONTENT_EXCHANGE)
-        .register(ROOT_SITE_SAW_EXCHANGE)
-        .register(new ContentExchange(ObjectType.CONTENT_DATABASE,
-              "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}", null, null, false,
-              false, null, getContentContentDatabase4fb))
-        // The timeout in SP 2010 is not a timeout and should always be at least
-        // 60 to get a result.
-        .register(new ChangesExchange(ObjectType.CONTENT_DATABASE,
-              "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}",
-              "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603",
-              "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603",
-              null,
-              "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603",
-              600, getChangesContentDatabase4fb, false));
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_1_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_1_LI_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_LI_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_A_CONTENT_EXCHANGE);
     SiteDataSoap countingSiteData = new DelegatingSiteData() {
       @Override
       protected SiteDataSoap delegate() {
@@ -3737,31 +5131,126 @@ public class SharePointAdaptorTest {
       }
 
       @Override
-      public void getChanges(ObjectType objectType,
-          String contentDatabaseId, Holder<String> lastChangeId,
-          Holder<String> currentChangeId, Integer timeout,
-          Holder<String> getChangesResult, Holder<Boolean> moreChanges) {
-        atomicNumberGetChangesCalls.getAndIncrement();
-        super.getChanges(objectType, contentDatabaseId, lastChangeId,
-            currentChangeId, timeout, getChangesResult, moreChanges);
+      public void getContent(ObjectType objectType, String objectId,
+          String folderUrl, String itemId, boolean retrieveChildItems,
+          boolean securityOnly, Holder<String> lastItemIdOnPage,
+          Holder<String> getContentResult) {
+        if (objectType == ObjectType.SITE) {
+          webRequests.incrementAndGet();
+        } else if (objectType == ObjectType.LIST) {
+          listRequests.incrementAndGet();
+        }
+        super.getContent(objectType, objectId, folderUrl, itemId,
+            retrieveChildItems, securityOnly, lastItemIdOnPage,
+            getContentResult);
       }
     };
-    SoapFactory siteDataFactory = MockSoapFactory.blank()
-        .endpoint(VS_ENDPOINT, countingSiteData);
-    adaptor = new SharePointAdaptor(siteDataFactory,
+    adaptor = new SharePointAdaptor(initableSoapFactory,
         new UnsupportedHttpClient(), executorFactory,
         new MockAuthenticationClientFactoryForms(),
         new UnsupportedActiveDirectoryClientFactory());
-    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
     adaptor.init(new MockAdaptorContext(config, pusher));
+    SharePointAdaptor.SiteAdaptor siteAdaptor = adaptor.new SiteAdaptor(
+        "http://localhost:1/sites/SiteCollection",
+        "http://localhost:1/sites/SiteCollection", countingSiteData,
+        new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+        Callables.returning(SITES_SITECOLLECTION_MEMBER_MAPPING),
+        new UnsupportedCallable<MemberIdMapping>());
+    DocId itemDocId = new DocId("http://localhost:1/sites/SiteCollection/"
+        + "Lists/Custom List/Test Folder/2_.000");
+    siteAdaptor.getDocContent(new GetContentsRequest(itemDocId),
+        new GetContentsResponse(new ByteArrayOutputStream()));
+    siteAdaptor.getDocContent(new GetContentsRequest(itemDocId),
+        new GetContentsResponse(new ByteArrayOutputStream()));
+    // The second request is answered from the cache.
+    assertEquals(1, webRequests.get());
+    assertEquals(1, listRequests.get());
+
+    // The web and the list changed.
+    SPContentDatabase result = parseChanges(
+        loadTestString("testModifiedGetDocIdsClient.changes-cd.xml")
+        .replace("<SPWeb Change=\"Unchanged\"", "<SPWeb Change=\"Update\""
+            + " ServerUrl=\"http://localhost:1\""
+            + " DisplayUrl=\"/sites/SiteCollection\"")
+        .replace("<SPList Change=\"Unchanged\"", "<SPList Change=\"Update\""
+            + " Id=\"{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}\""
+            + " ServerUrl=\"http://localhost:1\""
+            + " DisplayUrl=\"/sites/SiteCollection/Lists/Custom List\""));
+    adaptor.getModifiedDocIdsContentDatabase(result, new ArrayList<DocId>(),
+        new HashSet<String>());
+
+    siteAdaptor.getDocContent(new GetContentsRequest(itemDocId),
+        new GetContentsResponse(new ByteArrayOutputStream()));
+    assertEquals(2, webRequests.get());
+    assertEquals(2, listRequests.get());
+  }
 
-    // Initialize changeIds.
-    adaptor.getModifiedDocIds(pusher);
-    assertEquals(0, atomicNumberGetChangesCalls.get());
+  @Test
+  public void testModifiedGetDocIdsKeepsFolderScopes() throws Exception {
+    final AtomicLong folderRequests = new AtomicLong();
+    final SiteDataSoap siteData = MockSiteData.blank()
+        .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_1_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_URLSEG_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_L_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_1_LI_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_LI_CONTENT_EXCHANGE)
+        .register(SITES_SITECOLLECTION_LISTS_CUSTOMLIST_2_A_CONTENT_EXCHANGE);
+    SiteDataSoap countingSiteData = new DelegatingSiteData() {
+      @Override
+      protected SiteDataSoap delegate() {
+        return siteData;
+      }
 
-    // Check for changes. This should not go into an infinite loop.
-    adaptor.getModifiedDocIds(pusher);
-    assertEquals(1, atomicNumberGetChangesCalls.get());
+      @Override
+      public void getContent(ObjectType objectType, String objectId,
+          String folderUrl, String itemId, boolean retrieveChildItems,
+          boolean securityOnly, Holder<String> lastItemIdOnPage,
+          Holder<String> getContentResult) {
+        // Item 1 is the folder containing item 2.
+        if (objectType == ObjectType.LIST_ITEM && "1".equals(itemId)) {
+          folderRequests.incrementAndGet();
+        }
+        super.getContent(objectType, objectId, folderUrl, itemId,
+            retrieveChildItems, securityOnly, lastItemIdOnPage,
+            getContentResult);
+      }
+    };
+    adaptor = new SharePointAdaptor(initableSoapFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    SharePointAdaptor.SiteAdaptor siteAdaptor = adaptor.new SiteAdaptor(
+        "http://localhost:1/sites/SiteCollection",
+        "http://localhost:1/sites/SiteCollection", countingSiteData,
+        new UnsupportedUserGroupSoap(), new UnsupportedPeopleSoap(),
+        Callables.returning(SITES_SITECOLLECTION_MEMBER_MAPPING),
+        new UnsupportedCallable<MemberIdMapping>());
+    DocId itemDocId = new DocId("http://localhost:1/sites/SiteCollection/"
+        + "Lists/Custom List/Test Folder/2_.000");
+    siteAdaptor.getDocContent(new GetContentsRequest(itemDocId),
+        new GetContentsResponse(new ByteArrayOutputStream()));
+    assertEquals(1, folderRequests.get());
+
+    // An edited item leaves the folder's scope alone.
+    String changes
+        = loadTestString("testModifiedGetDocIdsClient.changes-cd.xml")
+        .replace("<SPList Change=\"Unchanged\"", "<SPList Change=\"Unchanged\""
+            + " Id=\"{6f33949a-b3ff-4b0c-ba99-93cb518ac2c0}\"");
+    adaptor.getModifiedDocIdsContentDatabase(parseChanges(changes),
+        new ArrayList<DocId>(), new HashSet<String>());
+    siteAdaptor.getDocContent(new GetContentsRequest(itemDocId),
+        new GetContentsResponse(new ByteArrayOutputStream()));
+    assertEquals(1, folderRequests.get());
+
+    // Changed permissions may have changed the folder's scope.
+    adaptor.getModifiedDocIdsContentDatabase(parseChanges(changes.replace(
+          "UpdateSecurity=\"False\"", "UpdateSecurity=\"True\"")),
+        new ArrayList<DocId>(), new HashSet<String>());
+    siteAdaptor.getDocContent(new GetContentsRequest(itemDocId),
+        new GetContentsResponse(new ByteArrayOutputStream()));
+    assertEquals(2, folderRequests.get());
   }
 
   @Test
@@ -3846,6 +5335,140 @@ public class SharePointAdaptorTest {
     assertTrue(pusher.getGroups().isEmpty());
   }
 
+  @Test
+  public void testModifiedGetDocIdsSiteCollectionStreaming() throws Exception {
+    final String getChangesSiteCollection726
+        = loadTestString("testModifiedGetDocIdsClient.changes-sc.xml");
+    SoapFactory siteDataFactory = MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, MockSiteData.blank()
+            .register(SITES_SITECOLLECTION_SAW_EXCHANGE))
+        .endpoint(SITES_SITECOLLECTION_ENDPOINT, MockSiteData.blank()
+            .register(ROOT_SITE_SAW_EXCHANGE)
+            .register(SITES_SITECOLLECTION_URLSEG_EXCHANGE)
+            .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+            .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE)
+            .register(new ChangesExchange(ObjectType.SITE_COLLECTION,
+                    "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}",
+                    "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
+                        + "634762601982930000;726",
+                    "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
+                        + "634762601982930000;728",
+                    null,
+                    "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
+                        + "634762601982930000;728",
+                    600, getChangesSiteCollection726, false)));
+    adaptor = new SharePointAdaptor(siteDataFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    config.overrideKey("sharepoint.server",
+        "http://localhost:1/sites/SiteCollection");
+    config.overrideKey("sharepoint.siteCollectionOnly", "true");
+    config.overrideKey("sharepoint.streamingXmlParser", "true");
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    adaptor.init(new MockAdaptorContext(config, pusher));
+    adaptor.getModifiedDocIdsSiteCollection(pusher);
+    assertEquals(Arrays.asList(new DocIdPusher.Record.Builder(
+            new DocId("http://localhost:1/sites/SiteCollection/"
+                + "Lists/Announcements/2_.000"))
+            .setCrawlImmediately(true).build()), pusher.getRecords());
+    assertTrue(pusher.getGroups().isEmpty());
+  }
+
+  @Test
+  public void testVisitChangesContentDatabase() throws Exception {
+    final String changeId
+        = "1;0;4fb7dea1-2912-4927-9eda-1ea2f0977cf8;634727056594000000;603";
+    SiteDataSoap siteData = MockSiteData.blank()
+        .register(new ChangesExchange(ObjectType.CONTENT_DATABASE,
+              "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}", changeId, changeId,
+              null, changeId, 15,
+              loadTestString("testModifiedGetDocIdsClient.changes-cd.xml"),
+              false));
+    SiteDataClient client = new SiteDataClient(siteData, true);
+    final List<String> visited = new ArrayList<String>();
+    SiteDataClient.CursorPaginator<Boolean, String> paginator
+        = client.visitChangesContentDatabase(
+            "{4fb7dea1-2912-4927-9eda-1ea2f0977cf8}", changeId, true,
+            new SiteDataClient.ChangeVisitor() {
+              @Override
+              public void visitContentDatabase(String change) {
+                visited.add("cd " + change);
+              }
+
+              @Override
+              public void visitSite(SPSite site) {
+                assertTrue(site.getSPWeb().isEmpty());
+                visited.add("site " + site.getChange());
+              }
+
+              @Override
+              public void visitWeb(SPWeb web) {
+                visited.add("web " + web.getChange());
+              }
+            });
+    assertEquals(Boolean.TRUE, paginator.next());
+    assertEquals(changeId, paginator.getCursor());
+    assertNull(paginator.next());
+    assertEquals(Arrays.asList("cd Unchanged", "site Unchanged",
+          "web Unchanged"), visited);
+  }
+
+  @Test
+  public void testModifiedGetDocIdsSiteCollectionRetriesFailedPush()
+      throws Exception {
+    final String getChangesSiteCollection726
+        = loadTestString("testModifiedGetDocIdsClient.changes-sc.xml");
+    SoapFactory siteDataFactory = MockSoapFactory.blank()
+        .endpoint(VS_ENDPOINT, MockSiteData.blank()
+            .register(SITES_SITECOLLECTION_SAW_EXCHANGE))
+        .endpoint(SITES_SITECOLLECTION_ENDPOINT, MockSiteData.blank()
+            .register(ROOT_SITE_SAW_EXCHANGE)
+            .register(SITES_SITECOLLECTION_URLSEG_EXCHANGE)
+            .register(SITES_SITECOLLECTION_S_CONTENT_EXCHANGE)
+            .register(SITES_SITECOLLECTION_SC_CONTENT_EXCHANGE)
+            .register(new ChangesExchange(ObjectType.SITE_COLLECTION,
+                    "{bb3bb2dd-6ea7-471b-a361-6fb67988755c}",
+                    "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
+                        + "634762601982930000;726",
+                    "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
+                        + "634762601982930000;728",
+                    null,
+                    "1;1;bb3bb2dd-6ea7-471b-a361-6fb67988755c;"
+                        + "634762601982930000;728",
+                    600, getChangesSiteCollection726, false)));
+    adaptor = new SharePointAdaptor(siteDataFactory,
+        new UnsupportedHttpClient(), executorFactory,
+        new MockAuthenticationClientFactoryForms(),
+        new UnsupportedActiveDirectoryClientFactory());
+    config.overrideKey("sharepoint.server",
+        "http://localhost:1/sites/SiteCollection");
+    config.overrideKey("sharepoint.siteCollectionOnly", "true");
+    AccumulatingDocIdPusher pusher = new AccumulatingDocIdPusher();
+    adaptor.init(new MockAdaptorContext(config, pusher));
+
+    final AtomicLong atomicNumberPushRecordsCalls = new AtomicLong(0);
+    DocIdPusher failingPusher = new UnsupportedDocIdPusher() {
+      @Override
+      public DocIdPusher.Record pushRecords(
+          Iterable<DocIdPusher.Record> records, ExceptionHandler handler) {
+        atomicNumberPushRecordsCalls.getAndIncrement();
+        return records.iterator().next();
+      }
+    };
+    adaptor.getModifiedDocIdsSiteCollection(failingPusher);
+    assertEquals(1, atomicNumberPushRecordsCalls.get());
+
+    // The change token was not advanced, so the same changes are retrieved
+    // and pushed again.
+    adaptor.getModifiedDocIdsSiteCollection(pusher);
+    assertEquals(1, pusher.getRecords().size());
+    assertEquals(new DocIdPusher.Record.Builder(
+            new DocId("http://localhost:1/sites/SiteCollection/"
+                + "Lists/Announcements/2_.000"))
+            .setCrawlImmediately(true).build(), pusher.getRecords().get(0));
+  }
+
   @Test
   public void testParseError() throws Exception {
     SiteDataClient client = new SiteDataClient(
@@ -3922,6 +5545,58 @@ public class SharePointAdaptorTest {
     assertNotNull(client.jaxbParse(xml, ItemData.class));
   }
 
+  @Test
+  public void testUnusedCharacterReferenceFilterReader() throws Exception {
+    String[][] goldens = new String[][] {
+      {"", ""},
+      {"&", "&"},
+      {"&#", "&#"},
+      {"a&#31;b", "ab"},
+      {"&#0;&#00;&#000;&#8;&#08;&#9;&#10;&#11;&#12;&#13;&#14;&#31;&#32;",
+        "&#000;&#9;&#10;&#13;&#32;"},
+      {"&#126;&#127;&#159;&#160;&#1599;", "&#126;&#160;&#1599;"},
+      {"&&#31;;", "&;"},
+      {"&#&#31;;", "&#;"},
+      {"&#x1f;&amp;&#3", "&#x1f;&amp;&#3"},
+      {"x&#31", "x&#31"},
+    };
+    for (String[] golden : goldens) {
+      // Zero means to read a character at a time.
+      for (int bufferSize = 0; bufferSize < 8; bufferSize++) {
+        Reader reader = new SiteDataClient.UnusedCharacterReferenceFilterReader(
+            new StringReader(golden[0]));
+        StringBuilder sb = new StringBuilder();
+        if (bufferSize == 0) {
+          int c;
+          while ((c = reader.read()) != -1) {
+            sb.append((char) c);
+          }
+        } else {
+          char[] buffer = new char[bufferSize];
+          int read;
+          while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+            sb.append(buffer, 0, read);
+          }
+        }
+        assertEquals("buffer size " + bufferSize, golden[1], sb.toString());
+      }
+    }
+  }
+
+  @Test
+  public void testUnmarshallerReused() throws Exception {
+    String xml
+        = loadTestString("testModifiedGetDocIdsClient.changes-cd.xml");
+    SiteDataClient.UnmarshallerPool pool
+        = SiteDataClient.getUnmarshallerPool(true);
+    parseChanges(xml);
+    long hits = pool.getHits();
+    long misses = pool.getMisses();
+    parseChanges(xml);
+    assertEquals(hits + 1, pool.getHits());
+    assertEquals(misses, pool.getMisses());
+  }
+
   @Test
   public void testParseUnknownXml() throws Exception {
     SiteDataClient client = new SiteDataClient(
@@ -5486,12 +7161,23 @@ public class SharePointAdaptorTest {
     }
     
     @Override
-    public String getUserAccountBySid(String sid) throws IOException {      
-      return lookup.get(sid);
+    public Map<String, String> getUserAccountsBySid(Collection<String> sids)
+        throws IOException {
+      Map<String, String> resolved = new HashMap<String, String>();
+      for (String sid : sids) {
+        if (lookup.containsKey(sid)) {
+          resolved.put(sid, lookup.get(sid));
+        }
+      }
+      return resolved;
     }
     
     @Override
     public void start() throws IOException {
     }    
+
+    @Override
+    public void close() {
+    }
   }    
 }
@@ -0,0 +1,88 @@
+// Copyright 2014 Google Inc. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.adaptor.sharepoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/** Test cases for {@link WebUrlResolver}. */
+public class WebUrlResolverTest {
+  private static final String SITE = "http://localhost:1/sites/SiteCollection";
+  private static final String SUBWEB = SITE + "/SubSite";
+  private static final String LIST = SITE + "/Lists/Custom List";
+
+  private final WebUrlResolver resolver = new WebUrlResolver(10);
+
+  @Test
+  public void testUnknown() {
+    assertNull(resolver.resolve(SITE));
+    assertNull(resolver.resolve("http://localhost:1"));
+  }
+
+  @Test
+  public void testWebOnlyResolvesItself() {
+    resolver.putWeb(SITE, SITE);
+    assertResolves(SITE, SITE, SITE);
+    // Could be a child web or another site collection.
+    assertNull(resolver.resolve(SUBWEB));
+    assertNull(resolver.resolve(SITE + "/default.aspx"));
+  }
+
+  @Test
+  public void testListRootFolderResolvesDescendants() {
+    resolver.putListRootFolder(SITE, SITE, LIST);
+    assertResolves(SITE, SITE, LIST);
+    assertResolves(SITE, SITE, LIST + "/AllItems.aspx");
+    assertResolves(SITE, SITE, LIST + "/Test Folder/2_.000");
+    assertResolves(SITE, SITE, LIST + "/DispForm.aspx?ID=2&Source=/a/b");
+    assertNull(resolver.resolve(LIST + "2/AllItems.aspx"));
+    assertNull(resolver.resolve(SITE + "/Lists"));
+  }
+
+  @Test
+  public void testLongestPrefixWins() {
+    resolver.putWeb(SITE, SITE);
+    resolver.putWeb(SITE, SUBWEB);
+    resolver.putListRootFolder(SITE, SITE, LIST);
+    resolver.putListRootFolder(SITE, SUBWEB, SUBWEB + "/Shared Documents");
+    assertResolves(SITE, SUBWEB, SUBWEB);
+    assertResolves(SITE, SUBWEB, SUBWEB + "/Shared Documents/a.docx");
+    assertResolves(SITE, SITE, LIST + "/1_.000");
+  }
+
+  @Test
+  public void testInvalidate() {
+    resolver.putWeb(SITE, SITE);
+    resolver.putWeb(SITE, SUBWEB);
+    resolver.putListRootFolder(SITE, SITE, LIST);
+    resolver.putListRootFolder(SITE, SUBWEB, SUBWEB + "/Shared Documents");
+    resolver.putWeb(SITE + "Other", SITE + "Other");
+    resolver.invalidate(SUBWEB);
+    assertEquals(3, resolver.size());
+    assertNull(resolver.resolve(SUBWEB + "/Shared Documents/a.docx"));
+    resolver.invalidate(SITE);
+    assertEquals(1, resolver.size());
+    assertNull(resolver.resolve(LIST + "/1_.000"));
+    assertResolves(SITE + "Other", SITE + "Other", SITE + "Other");
+  }
+
+  private void assertResolves(String siteUrl, String webUrl, String url) {
+    WebUrlResolver.Resolution resolution = resolver.resolve(url);
+    assertEquals(siteUrl, resolution.siteUrl);
+    assertEquals(webUrl, resolution.webUrl);
+  }
+}